@@ -23,14 +23,17 @@ package qupath.lib.analysis.features;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.EnumSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.IntStream;
 
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 import org.apache.commons.math3.stat.descriptive.StatisticalSummary;
@@ -38,6 +41,7 @@ import org.locationtech.jts.algorithm.Area;
 import org.locationtech.jts.algorithm.Length;
 import org.locationtech.jts.algorithm.MinimumBoundingCircle;
 import org.locationtech.jts.algorithm.MinimumDiameter;
+import org.locationtech.jts.geom.CoordinateSequence;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.Lineal;
 import org.locationtech.jts.geom.Polygon;
@@ -60,6 +64,7 @@ import qupath.lib.objects.PathCellObject;
 import qupath.lib.objects.PathObject;
 import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.EllipseROI;
+import qupath.lib.roi.PolygonROI;
 import qupath.lib.roi.interfaces.ROI;
 
 /**
@@ -169,7 +174,15 @@ public class ObjectMeasurements {
 	}
 	
 	
-	private final static Collection<ShapeFeatures> ALL_SHAPE_FEATURES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(ShapeFeatures.values())));
+	/**
+	 * Default shape features. {@link ShapeFeatures#ELLIPSE} is excluded, and must be requested explicitly.
+	 */
+	private final static Collection<ShapeFeatures> ALL_SHAPE_FEATURES = Collections.unmodifiableSet(EnumSet.complementOf(EnumSet.of(ShapeFeatures.ELLIPSE)));
+	
+	/**
+	 * Number of objects measured together, reusing the same workspace for polygon calculations.
+	 */
+	private final static int SHAPE_CHUNK_SIZE = 256;
 	
 	/**
 	 * Add shape measurements for one object. If this is a cell, measurements will be made for both the 
@@ -177,7 +190,7 @@ public class ObjectMeasurements {
 	 * 
 	 * @param pathObject the object for which measurements should be added
 	 * @param cal pixel calibration, used to determine units and scaling
-	 * @param features specific features to add; if empty, all available shape features will be added
+	 * @param features specific features to add; if empty, all default shape features will be added
 	 */
 	public static void addShapeMeasurements(PathObject pathObject, PixelCalibration cal, ShapeFeatures... features) {
 		addShapeMeasurements(Collections.singleton(pathObject), cal, features);
@@ -186,22 +199,47 @@ public class ObjectMeasurements {
 	/**
 	 * Add shape measurements for multiple objects. If any of these objects is a cell, measurements will be made for both the 
 	 * nucleus and cell boundary where possible.
+	 * <p>
+	 * Objects are measured in parallel chunks. Simple polygons are measured directly from their vertices in a single pass, 
+	 * without creating geometries, while other ROIs use a slower geometry-based approach. 
+	 * This makes it efficient to call this method once for all objects after detection, rather than for each object in turn.
 	 * 
 	 * @param pathObjects the objects for which measurements should be added
 	 * @param cal pixel calibration, used to determine units and scaling
-	 * @param features specific features to add; if empty, all available shape features will be added
+	 * @param features specific features to add; if empty, all default shape features will be added
 	 */
 	public static void addShapeMeasurements(Collection<? extends PathObject> pathObjects, PixelCalibration cal, ShapeFeatures... features) {
 		
 		PixelCalibration calibration = cal == null || !cal.unitsMatch2D() ? PixelCalibration.getDefaultInstance() : cal;
-		Collection<ShapeFeatures> featureCollection = features.length == 0 ? ALL_SHAPE_FEATURES : Arrays.asList(features);
+		Collection<ShapeFeatures> featureCollection = features.length == 0 ? ALL_SHAPE_FEATURES : EnumSet.copyOf(Arrays.asList(features));
 		
-		pathObjects.parallelStream().filter(p -> p.hasROI()).forEach(pathObject -> {
-			if (pathObject instanceof PathCellObject) {
-				addCellShapeMeasurements((PathCellObject)pathObject, calibration, featureCollection);
-			} else {
-				try (var ml = pathObject.getMeasurementList()) {
-					addShapeMeasurements(ml, pathObject.getROI(), calibration, "", featureCollection);
+		List<PathObject> list = new ArrayList<>(pathObjects.size());
+		for (var pathObject : pathObjects) {
+			if (pathObject.hasROI())
+				list.add(pathObject);
+		}
+		if (list.isEmpty())
+			return;
+		
+		// Create measurement names once, rather than for every object
+		String units = calibration.getPixelWidthUnit();
+		var names = new ShapeNames("", units);
+		var namesNucleus = new ShapeNames("Nucleus: ", units);
+		var namesCell = new ShapeNames("Cell: ", units);
+		
+		int n = list.size();
+		int nChunks = (n + SHAPE_CHUNK_SIZE - 1) / SHAPE_CHUNK_SIZE;
+		IntStream.range(0, nChunks).parallel().forEach(c -> {
+			var calculator = new PolygonShapeCalculator();
+			int end = Math.min(n, (c + 1) * SHAPE_CHUNK_SIZE);
+			for (int i = c * SHAPE_CHUNK_SIZE; i < end; i++) {
+				var pathObject = list.get(i);
+				if (pathObject instanceof PathCellObject) {
+					addCellShapeMeasurements((PathCellObject)pathObject, calibration, calculator, namesNucleus, namesCell, featureCollection);
+				} else {
+					try (var ml = pathObject.getMeasurementList()) {
+						addShapeMeasurements(ml, pathObject.getROI(), calibration, calculator, names, featureCollection);
+					}
 				}
 			}
 		});
@@ -219,17 +257,18 @@ public class ObjectMeasurements {
 		return AffineTransformation.scaleInstance(pixelWidth, pixelHeight).transform(geom);
 	}
 	
-	private static void addCellShapeMeasurements(PathCellObject cell, PixelCalibration cal, Collection<ShapeFeatures> features) {
+	private static void addCellShapeMeasurements(PathCellObject cell, PixelCalibration cal, PolygonShapeCalculator calculator,
+			ShapeNames namesNucleus, ShapeNames namesCell, Collection<ShapeFeatures> features) {
 		
 		var roiNucleus = cell.getNucleusROI();
 		var roiCell = cell.getROI();
 		
 		try (MeasurementList ml = cell.getMeasurementList()) {
 			if (roiNucleus != null) {
-				addShapeMeasurements(ml, roiNucleus, cal, "Nucleus: ", features);
+				addShapeMeasurements(ml, roiNucleus, cal, calculator, namesNucleus, features);
 			}
 			if (roiCell != null) {
-				addShapeMeasurements(ml, roiCell, cal, "Cell: ", features);
+				addShapeMeasurements(ml, roiCell, cal, calculator, namesCell, features);
 			}
 			
 			if (roiNucleus != null && roiCell != null && features.contains(ShapeFeatures.NUCLEUS_CELL_RATIO)) {
@@ -273,7 +312,12 @@ public class ObjectMeasurements {
 		/**
 		 * Nucleus/cell area ratio (only relevant to cell objects).
 		 */
-		NUCLEUS_CELL_RATIO;
+		NUCLEUS_CELL_RATIO,
+		/**
+		 * Major and minor axis lengths and eccentricity of the ellipse with the same second moments as the shape.
+		 * This is available only for area shapes, and is not included by default.
+		 */
+		ELLIPSE;
 		
 		@Override
 		public String toString() {
@@ -292,6 +336,8 @@ public class ObjectMeasurements {
 				return "Solidity";
 			case NUCLEUS_CELL_RATIO:
 				return "Nucleus/Cell area ratio";
+			case ELLIPSE:
+				return "Ellipse fit";
 			default:
 				throw new IllegalArgumentException("Unknown feature " + this);
 			}
@@ -299,67 +345,117 @@ public class ObjectMeasurements {
 		
 	}
 	
-	private static void addShapeMeasurements(MeasurementList ml, ROI roi, PixelCalibration cal, String baseName, Collection<ShapeFeatures> features) {
+	/**
+	 * Measurement names for one compartment, created once per call rather than once per object.
+	 */
+	private static class ShapeNames {
+		
+		private final String area, length, circularity, solidity, maxDiameter, minDiameter;
+		private final String ellipseMajor, ellipseMinor, ellipseEccentricity;
+		
+		private ShapeNames(String baseName, String units) {
+			if (!baseName.isEmpty() && !baseName.endsWith(" "))
+				baseName += " ";
+			area = baseName + "Area " + units + "^2";
+			length = baseName + "Length " + units;
+			circularity = baseName + "Circularity";
+			solidity = baseName + "Solidity";
+			maxDiameter = baseName + "Max diameter " + units;
+			minDiameter = baseName + "Min diameter " + units;
+			ellipseMajor = baseName + "Ellipse major axis " + units;
+			ellipseMinor = baseName + "Ellipse minor axis " + units;
+			ellipseEccentricity = baseName + "Ellipse eccentricity";
+		}
+		
+	}
+	
+	private static void addShapeMeasurements(MeasurementList ml, ROI roi, PixelCalibration cal, PolygonShapeCalculator calculator, ShapeNames names, Collection<ShapeFeatures> features) {
 		if (roi == null)
 			return;
 		if (roi instanceof EllipseROI)
-			addShapeMeasurements(ml, (EllipseROI)roi, cal, baseName, features);
-		else {
-			var geom = getScaledGeometry(roi, cal);			
-			String units = cal.getPixelWidthUnit();
-			addShapeMeasurements(ml, geom, baseName, units, features);
+			addShapeMeasurements(ml, (EllipseROI)roi, cal, names, features);
+		else if (!(roi instanceof PolygonROI) || !addShapeMeasurements(ml, (PolygonROI)roi, cal, calculator, names, features)) {
+			var geom = getScaledGeometry(roi, cal);
+			addShapeMeasurements(ml, geom, names, features);
 		}
 	}
 	
-	
-	private static void addShapeMeasurements(MeasurementList ml, EllipseROI ellipse, PixelCalibration cal, String baseName, Collection<ShapeFeatures> features) {
-		String units = cal.getPixelWidthUnit();
-		var units2 = units + "^2";
-		if (!baseName.isEmpty() && !baseName.endsWith(" "))
-			baseName += " ";
+	/**
+	 * Add measurements for a polygon directly from its vertices.
+	 * @return true if measurements were added, false if the polygon could not be handled (and a geometry should be used instead)
+	 */
+	private static boolean addShapeMeasurements(MeasurementList ml, PolygonROI polygon, PixelCalibration cal, PolygonShapeCalculator calculator, ShapeNames names, Collection<ShapeFeatures> features) {
+		double pixelWidth = cal.getPixelWidth().doubleValue();
+		double pixelHeight = cal.getPixelHeight().doubleValue();
+		if (!calculator.setPolygon(polygon, pixelWidth, pixelHeight))
+			return false;
 		
+		if (features.contains(ShapeFeatures.AREA))
+			ml.putMeasurement(names.area, calculator.getArea());
+		if (features.contains(ShapeFeatures.LENGTH))
+			ml.putMeasurement(names.length, calculator.getPerimeter());
+		if (features.contains(ShapeFeatures.CIRCULARITY))
+			ml.putMeasurement(names.circularity, calculator.getCircularity());
+		if (features.contains(ShapeFeatures.SOLIDITY))
+			ml.putMeasurement(names.solidity, calculator.getSolidity());
+		if (features.contains(ShapeFeatures.MAX_DIAMETER))
+			ml.putMeasurement(names.maxDiameter, calculator.getMaxDiameter());
+		if (features.contains(ShapeFeatures.MIN_DIAMETER))
+			ml.putMeasurement(names.minDiameter, calculator.getMinDiameter());
+		if (features.contains(ShapeFeatures.ELLIPSE)) {
+			ml.putMeasurement(names.ellipseMajor, calculator.getEllipseMajorAxis());
+			ml.putMeasurement(names.ellipseMinor, calculator.getEllipseMinorAxis());
+			ml.putMeasurement(names.ellipseEccentricity, calculator.getEllipseEccentricity());
+		}
+		return true;
+	}
+	
+	
+	private static void addShapeMeasurements(MeasurementList ml, EllipseROI ellipse, PixelCalibration cal, ShapeNames names, Collection<ShapeFeatures> features) {
 		double pixelWidth = cal.getPixelWidth().doubleValue();
 		double pixelHeight = cal.getPixelHeight().doubleValue();
 		
 		if (features.contains(ShapeFeatures.AREA))
-			ml.putMeasurement(baseName + "Area " + units2, ellipse.getScaledArea(pixelWidth, pixelHeight));
+			ml.putMeasurement(names.area, ellipse.getScaledArea(pixelWidth, pixelHeight));
 		if (features.contains(ShapeFeatures.LENGTH))
-			ml.putMeasurement(baseName + "Length " + units, ellipse.getLength());
+			ml.putMeasurement(names.length, ellipse.getLength());
 		
 		if (features.contains(ShapeFeatures.CIRCULARITY)) {
-			ml.putMeasurement(baseName + "Circularity", 1.0);
+			ml.putMeasurement(names.circularity, 1.0);
 		}
 		
 		if (features.contains(ShapeFeatures.SOLIDITY)) {
-			ml.putMeasurement(baseName + "Solidity", 1.0);
+			ml.putMeasurement(names.solidity, 1.0);
 		}
 		
+		double maxDiameter = Math.max(ellipse.getBoundsWidth() * pixelWidth, ellipse.getBoundsHeight() * pixelHeight);
+		double minDiameter = Math.min(ellipse.getBoundsWidth() * pixelWidth, ellipse.getBoundsHeight() * pixelHeight);
 		if (features.contains(ShapeFeatures.MAX_DIAMETER)) {
-			double maxDiameter = Math.max(ellipse.getBoundsWidth() * pixelWidth, ellipse.getBoundsHeight() * pixelHeight);
-			ml.putMeasurement(baseName + "Max diameter " + units, maxDiameter);
+			ml.putMeasurement(names.maxDiameter, maxDiameter);
 		}
 
 		if (features.contains(ShapeFeatures.MIN_DIAMETER)) {
-			double minDiameter = Math.min(ellipse.getBoundsWidth() * pixelWidth, ellipse.getBoundsHeight() * pixelHeight);
-			ml.putMeasurement(baseName + "Min diameter " + units, minDiameter);
+			ml.putMeasurement(names.minDiameter, minDiameter);
+		}
+		
+		if (features.contains(ShapeFeatures.ELLIPSE)) {
+			ml.putMeasurement(names.ellipseMajor, maxDiameter);
+			ml.putMeasurement(names.ellipseMinor, minDiameter);
+			ml.putMeasurement(names.ellipseEccentricity, maxDiameter == 0 ? Double.NaN : Math.sqrt(1 - (minDiameter * minDiameter) / (maxDiameter * maxDiameter)));
 		}
 	}
 	
-	private static void addShapeMeasurements(MeasurementList ml, Geometry geom, String baseName, String units, Collection<ShapeFeatures> features) {
+	private static void addShapeMeasurements(MeasurementList ml, Geometry geom, ShapeNames names, Collection<ShapeFeatures> features) {
 		boolean isArea = geom instanceof Polygonal;
 		boolean isLine = geom instanceof Lineal;
 		
-		var units2 = units + "^2";
-		if (!baseName.isEmpty() && !baseName.endsWith(" "))
-			baseName += " ";
-		
 		double area = geom.getArea();
 		double length = geom.getLength();
 		
 		if (isArea && features.contains(ShapeFeatures.AREA))
-			ml.putMeasurement(baseName + "Area " + units2, area);
+			ml.putMeasurement(names.area, area);
 		if ((isArea || isLine) && features.contains(ShapeFeatures.LENGTH))
-			ml.putMeasurement(baseName + "Length " + units, length);
+			ml.putMeasurement(names.length, length);
 		
 		if (isArea && features.contains(ShapeFeatures.CIRCULARITY)) {
 			if (geom instanceof Polygon) {
@@ -374,7 +470,7 @@ public class ObjectMeasurements {
 					ringLength = Length.ofLine(ring);
 				}
 				double circularity = Math.PI * 4 * ringArea / (ringLength * ringLength);
-				ml.putMeasurement(baseName + "Circularity", circularity);
+				ml.putMeasurement(names.circularity, circularity);
 			} else {
 				logger.debug("Cannot compute circularity for {}", geom.getClass());
 			}
@@ -382,21 +478,84 @@ public class ObjectMeasurements {
 		
 		if (isArea && features.contains(ShapeFeatures.SOLIDITY)) {
 			double solidity = area / geom.convexHull().getArea();
-			ml.putMeasurement(baseName + "Solidity", solidity);
+			ml.putMeasurement(names.solidity, solidity);
 		}
 		
 		if (features.contains(ShapeFeatures.MAX_DIAMETER)) {
 			double minCircleRadius = new MinimumBoundingCircle(geom).getRadius();
-			ml.putMeasurement(baseName + "Max diameter " + units, minCircleRadius*2);
+			ml.putMeasurement(names.maxDiameter, minCircleRadius*2);
 		}
 
 		if (features.contains(ShapeFeatures.MIN_DIAMETER)) {
 			double minDiameter = new MinimumDiameter(geom).getLength();
-			ml.putMeasurement(baseName + "Min diameter " + units, minDiameter);
+			ml.putMeasurement(names.minDiameter, minDiameter);
+		}
+		
+		if (isArea && features.contains(ShapeFeatures.ELLIPSE)) {
+			double[] moments = computeCentralMoments(geom);
+			if (moments != null) {
+				ml.putMeasurement(names.ellipseMajor, 4 * Math.sqrt(PolygonShapeCalculator.ellipseEigenvalue(moments[0], moments[1], moments[2], true)));
+				ml.putMeasurement(names.ellipseMinor, 4 * Math.sqrt(PolygonShapeCalculator.ellipseEigenvalue(moments[0], moments[1], moments[2], false)));
+				ml.putMeasurement(names.ellipseEccentricity, PolygonShapeCalculator.ellipseEccentricity(moments[0], moments[1], moments[2]));
+			}
 		}
 
 	}
 	
+	/**
+	 * Compute the central second moments of a polygonal geometry, normalized by area.
+	 * @param geom
+	 * @return an array containing mu20, mu02 and mu11, or null if the area is zero
+	 */
+	private static double[] computeCentralMoments(Geometry geom) {
+		var env = geom.getEnvelopeInternal();
+		double x0 = env.getMinX(), y0 = env.getMinY();
+		double[] sums = new double[6];
+		for (int g = 0; g < geom.getNumGeometries(); g++) {
+			var part = geom.getGeometryN(g);
+			if (!(part instanceof Polygon))
+				continue;
+			var polygon = (Polygon)part;
+			accumulateMoments(polygon.getExteriorRing().getCoordinateSequence(), x0, y0, 1, sums);
+			for (int r = 0; r < polygon.getNumInteriorRing(); r++)
+				accumulateMoments(polygon.getInteriorRingN(r).getCoordinateSequence(), x0, y0, -1, sums);
+		}
+		double a = sums[0] / 2.0;
+		if (a == 0)
+			return null;
+		double cx = sums[1] / (6 * a);
+		double cy = sums[2] / (6 * a);
+		return new double[] {
+				sums[3] / 12.0 / a - cx * cx,
+				sums[4] / 12.0 / a - cy * cy,
+				sums[5] / 24.0 / a - cx * cy
+		};
+	}
+	
+	private static void accumulateMoments(CoordinateSequence ring, double x0, double y0, int sign, double[] sums) {
+		int n = ring.size();
+		double a = 0, sx = 0, sy = 0, sxx = 0, syy = 0, sxy = 0;
+		for (int i = 0; i < n - 1; i++) {
+			double xi = ring.getX(i) - x0, yi = ring.getY(i) - y0;
+			double xj = ring.getX(i+1) - x0, yj = ring.getY(i+1) - y0;
+			double c = xi * yj - xj * yi;
+			a += c;
+			sx += (xi + xj) * c;
+			sy += (yi + yj) * c;
+			sxx += (xi*xi + xi*xj + xj*xj) * c;
+			syy += (yi*yi + yi*yj + yj*yj) * c;
+			sxy += (xi*yj + 2*xi*yi + 2*xj*yj + xj*yi) * c;
+		}
+		// Ensure the shell contributes positively and holes negatively, regardless of orientation
+		double scale = a < 0 ? -sign : sign;
+		sums[0] += a * scale;
+		sums[1] += sx * scale;
+		sums[2] += sy * scale;
+		sums[3] += sxx * scale;
+		sums[4] += syy * scale;
+		sums[5] += sxy * scale;
+	}
+	
 	
 	
 	/**
@@ -0,0 +1,435 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.analysis.features;
+
+import java.util.Arrays;
+
+import qupath.lib.roi.PolygonROI;
+
+/**
+ * Reusable workspace to compute shape measurements for simple polygons directly from their vertex arrays.
+ * <p>
+ * Area, perimeter, centroid and second moments are computed in a single pass over the vertices. 
+ * The convex hull (required for solidity and diameters) is computed only when requested.
+ * <p>
+ * Polygons that are not simple (e.g. self-intersecting), degenerate or very large are rejected, 
+ * so that the caller can use a more robust geometry-based approach instead. This ensures that 
+ * results are consistent with those derived from a valid JTS geometry.
+ * <p>
+ * Instances are not thread-safe, but may be reused for many polygons within a single thread 
+ * to avoid repeated allocation.
+ * 
+ * @author Pete Bankhead
+ */
+class PolygonShapeCalculator {
+	
+	/**
+	 * Maximum number of vertices for which the (quadratic) simplicity test is applied.
+	 * Larger polygons are rejected.
+	 */
+	static final int MAX_VERTICES = 1024;
+	
+	private float[] xf = new float[64], yf = new float[64];
+	private double[] x = new double[64], y = new double[64];
+	private int n;
+	
+	private double pixelWidth, pixelHeight;
+	
+	private double area, perimeter;
+	private double mu20, mu02, mu11;
+	
+	private long[] sortKeys = new long[64];
+	private double[] hullX = new double[128], hullY = new double[128];
+	private int nHull = -1;
+	private double[] circleX = new double[128], circleY = new double[128];
+	
+	/**
+	 * Set the polygon for which measurements should be computed.
+	 * @param roi the polygon
+	 * @param pixelWidth scale factor to apply to x-coordinates
+	 * @param pixelHeight scale factor to apply to y-coordinates
+	 * @return true if the polygon could be handled, false if it is not simple, degenerate or too large
+	 */
+	boolean setPolygon(PolygonROI roi, double pixelWidth, double pixelHeight) {
+		int nVertices = roi.nVertices();
+		n = 0;
+		nHull = -1;
+		if (nVertices < 3 || nVertices > MAX_VERTICES)
+			return false;
+		ensureCapacity(nVertices);
+		xf = roi.getVerticesX(xf);
+		yf = roi.getVerticesY(yf);
+		this.pixelWidth = pixelWidth;
+		this.pixelHeight = pixelHeight;
+		
+		// Copy, removing repeated vertices (including the closing vertex, if present)
+		for (int i = 0; i < nVertices; i++) {
+			if (n > 0 && xf[i] == xf[n-1] && yf[i] == yf[n-1])
+				continue;
+			xf[n] = xf[i];
+			yf[n] = yf[i];
+			x[n] = xf[i];
+			y[n] = yf[i];
+			n++;
+		}
+		while (n > 1 && x[n-1] == x[0] && y[n-1] == y[0])
+			n--;
+		if (n < 3 || !isSimple())
+			return false;
+		
+		// Single pass for area, perimeter & moments, relative to the first vertex for precision
+		double x0 = x[0] * pixelWidth;
+		double y0 = y[0] * pixelHeight;
+		double a = 0, sx = 0, sy = 0, sxx = 0, syy = 0, sxy = 0, length = 0;
+		double xi = 0, yi = 0;
+		for (int i = 0; i < n; i++) {
+			int j = i == n-1 ? 0 : i + 1;
+			double xj = x[j] * pixelWidth - x0;
+			double yj = y[j] * pixelHeight - y0;
+			double dx = xj - xi;
+			double dy = yj - yi;
+			length += Math.sqrt(dx*dx + dy*dy);
+			double c = xi * yj - xj * yi;
+			a += c;
+			sx += (xi + xj) * c;
+			sy += (yi + yj) * c;
+			sxx += (xi*xi + xi*xj + xj*xj) * c;
+			syy += (yi*yi + yi*yj + yj*yj) * c;
+			sxy += (xi*yj + 2*xi*yi + 2*xj*yj + xj*yi) * c;
+			xi = xj;
+			yi = yj;
+		}
+		if (a == 0)
+			return false;
+		double signedArea = a / 2.0;
+		double cx = sx / (6 * signedArea);
+		double cy = sy / (6 * signedArea);
+		mu20 = sxx / 12.0 / signedArea - cx * cx;
+		mu02 = syy / 12.0 / signedArea - cy * cy;
+		mu11 = sxy / 24.0 / signedArea - cx * cy;
+		area = Math.abs(signedArea);
+		perimeter = length;
+		return true;
+	}
+	
+	private void ensureCapacity(int nVertices) {
+		if (x.length >= nVertices)
+			return;
+		int len = Math.max(nVertices, x.length * 2);
+		xf = new float[len];
+		yf = new float[len];
+		x = new double[len];
+		y = new double[len];
+	}
+	
+	/**
+	 * Check whether the current ring is simple, i.e. no two non-adjacent edges intersect or touch, 
+	 * and no adjacent edges overlap.
+	 * @return
+	 */
+	private boolean isSimple() {
+		for (int i = 0; i < n; i++) {
+			int i2 = i == n-1 ? 0 : i + 1;
+			double ax = x[i], ay = y[i], bx = x[i2], by = y[i2];
+			// Adjacent edges must not fold back upon themselves
+			int i3 = i2 == n-1 ? 0 : i2 + 1;
+			double cross = (bx - ax) * (y[i3] - by) - (by - ay) * (x[i3] - bx);
+			if (cross == 0 && (bx - ax) * (x[i3] - bx) + (by - ay) * (y[i3] - by) < 0)
+				return false;
+			double minX = Math.min(ax, bx), maxX = Math.max(ax, bx);
+			double minY = Math.min(ay, by), maxY = Math.max(ay, by);
+			// Test against all later edges that are not adjacent
+			int last = i == 0 ? n - 2 : n - 1;
+			for (int j = i + 2; j <= last; j++) {
+				int j2 = j == n-1 ? 0 : j + 1;
+				double cx = x[j], cy = y[j], dx = x[j2], dy = y[j2];
+				if (Math.max(cx, dx) < minX || Math.min(cx, dx) > maxX || Math.max(cy, dy) < minY || Math.min(cy, dy) > maxY)
+					continue;
+				if (segmentsIntersect(ax, ay, bx, by, cx, cy, dx, dy))
+					return false;
+			}
+		}
+		return true;
+	}
+	
+	private static boolean segmentsIntersect(double ax, double ay, double bx, double by, double cx, double cy, double dx, double dy) {
+		int o1 = orientation(ax, ay, bx, by, cx, cy);
+		int o2 = orientation(ax, ay, bx, by, dx, dy);
+		int o3 = orientation(cx, cy, dx, dy, ax, ay);
+		int o4 = orientation(cx, cy, dx, dy, bx, by);
+		if (o1 != o2 && o3 != o4)
+			return true;
+		// Collinear cases (bounding boxes are already known to overlap)
+		return (o1 == 0 && onSegment(ax, ay, bx, by, cx, cy)) ||
+				(o2 == 0 && onSegment(ax, ay, bx, by, dx, dy)) ||
+				(o3 == 0 && onSegment(cx, cy, dx, dy, ax, ay)) ||
+				(o4 == 0 && onSegment(cx, cy, dx, dy, bx, by));
+	}
+	
+	private static int orientation(double ax, double ay, double bx, double by, double px, double py) {
+		return (int)Math.signum((bx - ax) * (py - ay) - (by - ay) * (px - ax));
+	}
+	
+	private static boolean onSegment(double ax, double ay, double bx, double by, double px, double py) {
+		return px >= Math.min(ax, bx) && px <= Math.max(ax, bx) && py >= Math.min(ay, by) && py <= Math.max(ay, by);
+	}
+	
+	double getArea() {
+		return area;
+	}
+	
+	double getPerimeter() {
+		return perimeter;
+	}
+	
+	double getCircularity() {
+		return Math.PI * 4 * area / (perimeter * perimeter);
+	}
+	
+	/**
+	 * Get the major axis length of the ellipse with the same second moments as the polygon.
+	 * @return
+	 */
+	double getEllipseMajorAxis() {
+		return 4 * Math.sqrt(ellipseEigenvalue(mu20, mu02, mu11, true));
+	}
+
+	/**
+	 * Get the minor axis length of the ellipse with the same second moments as the polygon.
+	 * @return
+	 */
+	double getEllipseMinorAxis() {
+		return 4 * Math.sqrt(ellipseEigenvalue(mu20, mu02, mu11, false));
+	}
+	
+	/**
+	 * Get the eccentricity of the ellipse with the same second moments as the polygon.
+	 * @return
+	 */
+	double getEllipseEccentricity() {
+		return ellipseEccentricity(mu20, mu02, mu11);
+	}
+	
+	static double ellipseEigenvalue(double mu20, double mu02, double mu11, boolean major) {
+		double common = Math.sqrt((mu20 - mu02) * (mu20 - mu02) + 4 * mu11 * mu11);
+		double value = major ? (mu20 + mu02 + common) / 2.0 : (mu20 + mu02 - common) / 2.0;
+		return Math.max(0, value);
+	}
+	
+	static double ellipseEccentricity(double mu20, double mu02, double mu11) {
+		double l1 = ellipseEigenvalue(mu20, mu02, mu11, true);
+		double l2 = ellipseEigenvalue(mu20, mu02, mu11, false);
+		if (l1 == 0)
+			return Double.NaN;
+		return Math.sqrt(Math.max(0, 1 - l2 / l1));
+	}
+	
+	double getConvexArea() {
+		ensureHull();
+		double a = 0;
+		for (int i = 0; i < nHull; i++) {
+			int j = i == nHull-1 ? 0 : i + 1;
+			a += hullX[i] * hullY[j] - hullX[j] * hullY[i];
+		}
+		return Math.abs(a / 2.0);
+	}
+	
+	double getSolidity() {
+		return area / getConvexArea();
+	}
+	
+	/**
+	 * Get the minimum width of the polygon, i.e. the minimum distance between two parallel lines enclosing it.
+	 * This uses rotating calipers on the convex hull.
+	 * @return
+	 */
+	double getMinDiameter() {
+		ensureHull();
+		if (nHull < 3)
+			return 0;
+		double minWidth = Double.POSITIVE_INFINITY;
+		int k = 1;
+		for (int i = 0; i < nHull; i++) {
+			int i2 = i == nHull-1 ? 0 : i + 1;
+			double ex = hullX[i2] - hullX[i];
+			double ey = hullY[i2] - hullY[i];
+			double len = Math.sqrt(ex*ex + ey*ey);
+			// Advance the antipodal vertex while the distance from the edge increases
+			int next = k == nHull-1 ? 0 : k + 1;
+			int count = 0;
+			while (count++ < nHull && edgeDistance(i, ex, ey, next) >= edgeDistance(i, ex, ey, k)) {
+				k = next;
+				next = k == nHull-1 ? 0 : k + 1;
+			}
+			minWidth = Math.min(minWidth, edgeDistance(i, ex, ey, k) / len);
+		}
+		return minWidth;
+	}
+	
+	private double edgeDistance(int i, double ex, double ey, int k) {
+		return Math.abs(ex * (hullY[k] - hullY[i]) - ey * (hullX[k] - hullX[i]));
+	}
+	
+	/**
+	 * Get the diameter of the minimum bounding circle, computed from the convex hull.
+	 * @return
+	 */
+	double getMaxDiameter() {
+		ensureHull();
+		// Shuffle a copy of the hull deterministically, so that the expected time is linear
+		if (circleX.length < nHull) {
+			circleX = new double[hullX.length];
+			circleY = new double[hullY.length];
+		}
+		System.arraycopy(hullX, 0, circleX, 0, nHull);
+		System.arraycopy(hullY, 0, circleY, 0, nHull);
+		long seed = 0x9E3779B97F4A7C15L;
+		for (int i = nHull - 1; i > 0; i--) {
+			seed ^= seed << 13;
+			seed ^= seed >>> 7;
+			seed ^= seed << 17;
+			int j = (int)Math.floorMod(seed, (long)(i + 1));
+			swap(circleX, i, j);
+			swap(circleY, i, j);
+		}
+		// Iterative version of Welzl's algorithm
+		double cx = circleX[0], cy = circleY[0], r2 = 0;
+		for (int i = 1; i < nHull; i++) {
+			if (isInside(circleX[i], circleY[i], cx, cy, r2))
+				continue;
+			cx = circleX[i];
+			cy = circleY[i];
+			r2 = 0;
+			for (int j = 0; j < i; j++) {
+				if (isInside(circleX[j], circleY[j], cx, cy, r2))
+					continue;
+				cx = (circleX[i] + circleX[j]) / 2.0;
+				cy = (circleY[i] + circleY[j]) / 2.0;
+				r2 = distanceSq(circleX[i], circleY[i], cx, cy);
+				for (int k = 0; k < j; k++) {
+					if (isInside(circleX[k], circleY[k], cx, cy, r2))
+						continue;
+					// Circumcircle of i, j & k
+					double ax = circleX[i], ay = circleY[i];
+					double bx = circleX[j] - ax, by = circleY[j] - ay;
+					double qx = circleX[k] - ax, qy = circleY[k] - ay;
+					double d = 2 * (bx * qy - by * qx);
+					if (d == 0)
+						continue;
+					double b2 = bx*bx + by*by;
+					double q2 = qx*qx + qy*qy;
+					double ux = (qy * b2 - by * q2) / d;
+					double uy = (bx * q2 - qx * b2) / d;
+					cx = ax + ux;
+					cy = ay + uy;
+					r2 = ux*ux + uy*uy;
+				}
+			}
+		}
+		return Math.sqrt(r2) * 2;
+	}
+	
+	private static boolean isInside(double x, double y, double cx, double cy, double r2) {
+		return distanceSq(x, y, cx, cy) <= r2 * (1 + 1e-12) + 1e-18;
+	}
+	
+	private static double distanceSq(double x1, double y1, double x2, double y2) {
+		double dx = x1 - x2;
+		double dy = y1 - y2;
+		return dx*dx + dy*dy;
+	}
+	
+	private static void swap(double[] array, int i, int j) {
+		double temp = array[i];
+		array[i] = array[j];
+		array[j] = temp;
+	}
+	
+	/**
+	 * Compute the convex hull (if needed) using Andrew's monotone chain algorithm.
+	 * Vertices are sorted as packed long keys, to avoid creating any objects.
+	 */
+	private void ensureHull() {
+		if (nHull >= 0)
+			return;
+		if (sortKeys.length < n)
+			sortKeys = new long[Math.max(n, sortKeys.length * 2)];
+		for (int i = 0; i < n; i++)
+			sortKeys[i] = ((long)sortableBits(xf[i]) << 32) | ((sortableBits(yf[i]) ^ 0x80000000) & 0xffffffffL);
+		Arrays.sort(sortKeys, 0, n);
+		if (hullX.length < 2 * n) {
+			hullX = new double[2 * n];
+			hullY = new double[2 * n];
+		}
+		int k = 0;
+		// Lower hull
+		for (int i = 0; i < n; i++) {
+			double px = keyX(sortKeys[i]) * pixelWidth;
+			double py = keyY(sortKeys[i]) * pixelHeight;
+			while (k >= 2 && cross(k, px, py) <= 0)
+				k--;
+			hullX[k] = px;
+			hullY[k] = py;
+			k++;
+		}
+		// Upper hull
+		int lower = k + 1;
+		for (int i = n - 2; i >= 0; i--) {
+			double px = keyX(sortKeys[i]) * pixelWidth;
+			double py = keyY(sortKeys[i]) * pixelHeight;
+			while (k >= lower && cross(k, px, py) <= 0)
+				k--;
+			hullX[k] = px;
+			hullY[k] = py;
+			k++;
+		}
+		// Last point duplicates the first
+		nHull = Math.max(1, k - 1);
+	}
+	
+	private double cross(int k, double px, double py) {
+		double ox = hullX[k-2], oy = hullY[k-2];
+		return (hullX[k-1] - ox) * (py - oy) - (hullY[k-1] - oy) * (px - ox);
+	}
+	
+	/**
+	 * Convert float bits to an int that sorts in the same order as the float value.
+	 */
+	private static int sortableBits(float value) {
+		int bits = Float.floatToIntBits(value);
+		return bits ^ ((bits >> 31) & 0x7fffffff);
+	}
+	
+	private static float fromSortableBits(int bits) {
+		return Float.intBitsToFloat(bits ^ ((bits >> 31) & 0x7fffffff));
+	}
+	
+	private static float keyX(long key) {
+		return fromSortableBits((int)(key >> 32));
+	}
+
+	private static float keyY(long key) {
+		return fromSortableBits((int)key ^ 0x80000000);
+	}
+
+}
@@ -0,0 +1,60 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.dnn;
+
+import java.io.IOException;
+
+/**
+ * Service provider interface for a library that can apply deep learning models (an 'inference backend').
+ * <p>
+ * Implementations are discovered using a {@link java.util.ServiceLoader}, and should be registered in 
+ * {@code META-INF/services/qupath.opencv.dnn.DnnBackend}.
+ * 
+ * @author Pete Bankhead
+ * @see DnnBackends
+ */
+public interface DnnBackend {
+	
+	/**
+	 * Get a unique name for the backend, which is used to identify it when an op is serialized.
+	 * @return
+	 */
+	public String getName();
+	
+	/**
+	 * Query whether the backend is likely to be able to load a model from the specified path.
+	 * This is generally based upon the file extension, and does not guarantee that loading will succeed.
+	 * @param modelPath path to the model file (or directory)
+	 * @return true if the backend may support the model, false otherwise
+	 */
+	public boolean supportsModel(String modelPath);
+	
+	/**
+	 * Load a model.
+	 * @param modelPath path to the model file (or directory)
+	 * @param options options to customize how the model is loaded and applied
+	 * @return the model
+	 * @throws IOException if the model could not be loaded
+	 */
+	public DnnModel loadModel(String modelPath, DnnOptions options) throws IOException;
+
+}
@@ -0,0 +1,324 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.dnn;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access the installed {@link DnnBackend} implementations, and load models using them.
+ * <p>
+ * Loaded models are cached, so that multiple ops using the same model with the same options can share it.
+ * The cache holds at most {@link #MAX_CACHED_MODELS} models, evicting the least recently requested model when full.
+ * Evicted models are closed to release their native resources as soon as any predictions that are running have finished. 
+ * If an evicted model is used again, it is reloaded (and returned to the cache) automatically.
+ * 
+ * @author Pete Bankhead
+ */
+public class DnnBackends {
+	
+	private final static Logger logger = LoggerFactory.getLogger(DnnBackends.class);
+	
+	private static ServiceLoader<DnnBackend> serviceLoader = ServiceLoader.load(DnnBackend.class);
+	
+	/**
+	 * Maximum number of models retained in the cache.
+	 */
+	public static final int MAX_CACHED_MODELS = 8;
+	
+	/**
+	 * Cached models, in access order.
+	 */
+	private static Map<String, CachedModel> cachedModels = new LinkedHashMap<>(16, 0.75f, true);
+	
+	/**
+	 * Replace the default service loader with another.
+	 * <p>
+	 * This can be handy if the ServiceLoader should be using an alternative ClassLoader,
+	 * e.g. to auto-discover backends in extension directories.
+	 * 
+	 * @param newLoader
+	 */
+	public static void setServiceLoader(final ServiceLoader<DnnBackend> newLoader) {
+		serviceLoader = newLoader;
+	}
+	
+	/**
+	 * Request all available {@link DnnBackend DnnBackends}.
+	 * @return
+	 */
+	public static List<DnnBackend> getInstalledBackends() {
+		List<DnnBackend> backends = new ArrayList<>();
+		synchronized (serviceLoader) {
+			for (DnnBackend b : serviceLoader) {
+				backends.add(b);
+			}
+		}
+		return backends;
+	}
+	
+	/**
+	 * Get an installed backend by name.
+	 * @param name the name of the backend (case-insensitive)
+	 * @return the backend, or null if no backend with the name is available
+	 */
+	public static DnnBackend getBackend(String name) {
+		for (var backend : getInstalledBackends()) {
+			if (backend.getName().equalsIgnoreCase(name))
+				return backend;
+		}
+		return null;
+	}
+	
+	/**
+	 * Get the first installed backend that may support a model.
+	 * @param modelPath path to the model
+	 * @return the backend, or null if no backend supports the model
+	 * @see DnnBackend#supportsModel(String)
+	 */
+	public static DnnBackend findBackend(String modelPath) {
+		for (var backend : getInstalledBackends()) {
+			if (backend.supportsModel(modelPath))
+				return backend;
+		}
+		return null;
+	}
+	
+	/**
+	 * Load a model, or retrieve it from the cache if it has already been loaded with the same backend and options.
+	 * @param backendName name of the backend; if null, the first backend that supports the model will be used
+	 * @param modelPath path to the model
+	 * @param options options used to load the model; if null, the default options will be used
+	 * @return the model
+	 * @throws IOException if no suitable backend is available, or the model could not be loaded
+	 */
+	public static DnnModel loadModel(String backendName, String modelPath, DnnOptions options) throws IOException {
+		var backend = backendName == null ? findBackend(modelPath) : getBackend(backendName);
+		if (backend == null) {
+			if (backendName == null)
+				throw new IOException("No inference backend available for " + modelPath);
+			throw new IOException("Inference backend '" + backendName + "' is not available");
+		}
+		if (options == null)
+			options = DnnOptions.getDefaultInstance();
+		String key = backend.getName() + "::" + modelPath + "::" + options;
+		CachedModel model;
+		synchronized (cachedModels) {
+			model = cachedModels.get(key);
+			if (model != null)
+				return model;
+			model = new CachedModel(key, backend, modelPath, options);
+		}
+		model.load();
+		return model;
+	}
+	
+	/**
+	 * Close all cached models, and remove them from the cache.
+	 * Models are closed once any predictions that are running have finished.
+	 */
+	public static void clearCache() {
+		List<CachedModel> models;
+		synchronized (cachedModels) {
+			models = new ArrayList<>(cachedModels.values());
+			cachedModels.clear();
+		}
+		for (var model : models)
+			model.evict();
+	}
+	
+	/**
+	 * Add a model to the cache, evicting the least recently used models if the cache is full.
+	 * Evicted models are closed outside the cache lock, since closing may need to wait for the model.
+	 */
+	private static void putCachedModel(CachedModel model) {
+		List<CachedModel> evicted = new ArrayList<>();
+		synchronized (cachedModels) {
+			var previous = cachedModels.put(model.key, model);
+			if (previous != null && previous != model)
+				evicted.add(previous);
+			var iter = cachedModels.values().iterator();
+			while (cachedModels.size() > MAX_CACHED_MODELS && iter.hasNext()) {
+				evicted.add(iter.next());
+				iter.remove();
+			}
+		}
+		for (var m : evicted) {
+			logger.debug("Removing {} from model cache", m.key);
+			m.evict();
+		}
+	}
+	
+	
+	/**
+	 * Model stored in the cache, which counts the number of active uses so that the wrapped model can be closed 
+	 * safely when it is evicted.
+	 * The wrapped model is loaded again if it is used after being closed.
+	 */
+	private static class CachedModel implements DnnModel {
+		
+		private final String key;
+		private final DnnBackend backend;
+		private final String modelPath;
+		private final DnnOptions options;
+		
+		private DnnModel model;
+		private int nActive = 0;
+		private boolean evicted = false;
+		
+		private CachedModel(String key, DnnBackend backend, String modelPath, DnnOptions options) {
+			this.key = key;
+			this.backend = backend;
+			this.modelPath = modelPath;
+			this.options = options;
+		}
+		
+		private void load() throws IOException {
+			acquire();
+			release();
+		}
+		
+		/**
+		 * Get the wrapped model, loading it if necessary. This must be followed by a call to {@link #release()}.
+		 */
+		private DnnModel acquire() throws IOException {
+			DnnModel current;
+			boolean loaded = false;
+			synchronized (this) {
+				if (model == null) {
+					logger.debug("Loading {} with {} ({})", modelPath, backend.getName(), options);
+					model = backend.loadModel(modelPath, options);
+					evicted = false;
+					loaded = true;
+				}
+				nActive++;
+				current = model;
+			}
+			if (loaded)
+				putCachedModel(this);
+			return current;
+		}
+		
+		private synchronized void release() {
+			nActive--;
+			if (evicted && nActive == 0)
+				closeModel();
+		}
+		
+		/**
+		 * Close the wrapped model as soon as it is no longer in use.
+		 */
+		private synchronized void evict() {
+			evicted = true;
+			if (nActive == 0)
+				closeModel();
+		}
+		
+		private void closeModel() {
+			if (model != null) {
+				logger.debug("Closing {}", key);
+				model.close();
+				model = null;
+			}
+		}
+
+		@Override
+		public String getBackendName() {
+			return backend.getName();
+		}
+
+		@Override
+		public Layout getLayout() {
+			try {
+				var current = acquire();
+				try {
+					return current.getLayout();
+				} finally {
+					release();
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public int[] getInputShape() {
+			try {
+				var current = acquire();
+				try {
+					return current.getInputShape();
+				} finally {
+					release();
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public int[] getOutputShape(int... inputShape) throws IOException {
+			var current = acquire();
+			try {
+				return current.getOutputShape(inputShape);
+			} finally {
+				release();
+			}
+		}
+
+		@Override
+		public Mat predict(Mat mat) throws IOException {
+			var current = acquire();
+			try {
+				return current.predict(mat);
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Remove the model from the cache, and close it once it is no longer in use.
+		 * The model will be reloaded if it is used again.
+		 */
+		@Override
+		public void close() {
+			synchronized (cachedModels) {
+				cachedModels.remove(key, this);
+			}
+			evict();
+		}
+		
+		@Override
+		public String toString() {
+			return "CachedModel[" + key + "]";
+		}
+		
+	}
+
+}
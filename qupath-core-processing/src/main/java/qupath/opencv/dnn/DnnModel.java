@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.dnn;
+
+import java.io.IOException;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+
+/**
+ * A deep learning model that has been loaded by a {@link DnnBackend}, and can be used for prediction.
+ * <p>
+ * Models accept a single image as input, with dimensions (rows, columns, channels), and return a single image as output.
+ * Conversion to and from the tensor layout required by the model is handled by the implementation.
+ * <p>
+ * Implementations are expected to be thread-safe. If multiple predictions can run concurrently this is determined by 
+ * {@link DnnOptions#getMaxConcurrentPredictions()}; otherwise, calls to {@link #predict(Mat)} will block until the model is available.
+ * 
+ * @author Pete Bankhead
+ */
+public interface DnnModel extends AutoCloseable {
+	
+	/**
+	 * Tensor layouts, where N is the batch size, C the number of channels, H the height and W the width.
+	 */
+	public static enum Layout {
+		/**
+		 * Batch, channels, height, width (e.g. PyTorch and most ONNX models).
+		 */
+		NCHW,
+		/**
+		 * Batch, height, width, channels (e.g. TensorFlow models).
+		 */
+		NHWC;
+	}
+	
+	/**
+	 * Get the name of the backend that loaded this model.
+	 * @return
+	 * @see DnnBackend#getName()
+	 */
+	public String getBackendName();
+	
+	/**
+	 * Get the tensor layout for the model input and output.
+	 * @return
+	 */
+	public Layout getLayout();
+	
+	/**
+	 * Get the input shape declared by the model, according to {@link #getLayout()}.
+	 * Dimensions that are not fixed (e.g. because the model accepts inputs of different sizes) are -1.
+	 * @return the input shape, or null if this cannot be determined
+	 */
+	public int[] getInputShape();
+	
+	/**
+	 * Get the output shape that results from a specific input shape.
+	 * @param inputShape the input shape, according to {@link #getLayout()}
+	 * @return the output shape, according to {@link #getLayout()}
+	 * @throws IOException if the shape could not be determined
+	 */
+	public int[] getOutputShape(int... inputShape) throws IOException;
+	
+	/**
+	 * Apply the model to an image.
+	 * @param mat the input image, with dimensions (rows, columns, channels)
+	 * @return the output image, with dimensions (rows, columns, channels)
+	 * @throws IOException if the prediction failed
+	 */
+	public Mat predict(Mat mat) throws IOException;
+	
+	/**
+	 * Negotiate the input size for a requested tile size.
+	 * The default implementation uses the width and height declared by the model input, if these are fixed, 
+	 * or otherwise the requested width and height.
+	 * @param width the requested input width, or &le; 0 if any width is acceptable
+	 * @param height the requested input height, or &le; 0 if any height is acceptable
+	 * @return an array containing the input width and height that should be used (which may be &le; 0 if any size is acceptable)
+	 */
+	public default int[] negotiateInputSize(int width, int height) {
+		var shape = getInputShape();
+		if (shape == null || shape.length != 4)
+			return new int[] {width, height};
+		int modelHeight, modelWidth;
+		if (getLayout() == Layout.NHWC) {
+			modelHeight = shape[1];
+			modelWidth = shape[2];
+		} else {
+			modelHeight = shape[2];
+			modelWidth = shape[3];
+		}
+		return new int[] {
+				modelWidth > 0 ? modelWidth : width,
+				modelHeight > 0 ? modelHeight : height
+		};
+	}
+	
+	/**
+	 * Release any resources associated with the model.
+	 * The model should not be used after it has been closed.
+	 */
+	@Override
+	public void close();
+
+}
@@ -0,0 +1,225 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.dnn;
+
+import java.util.Objects;
+
+import qupath.opencv.dnn.DnnModel.Layout;
+
+/**
+ * Options used when loading a {@link DnnModel}.
+ * <p>
+ * Not all options are supported by all backends; unsupported options are ignored.
+ * Instances are immutable, and may be serialized to JSON.
+ * 
+ * @author Pete Bankhead
+ */
+public class DnnOptions {
+	
+	private static final DnnOptions DEFAULT_OPTIONS = new Builder().build();
+	
+	private int intraOpThreads = -1;
+	private int interOpThreads = 1;
+	private int maxConcurrentPredictions = 1;
+	private Layout layout;
+	private String inputName;
+	private String outputName;
+	
+	private DnnOptions() {}
+	
+	/**
+	 * Get the default options.
+	 * @return
+	 */
+	public static DnnOptions getDefaultInstance() {
+		return DEFAULT_OPTIONS;
+	}
+	
+	/**
+	 * Get the number of threads that should be used to parallelize the computations within a single prediction.
+	 * @return the number of threads, or &le; 0 if the backend default should be used
+	 */
+	public int getIntraOpThreads() {
+		return intraOpThreads;
+	}
+
+	/**
+	 * Get the number of threads that should be used to run independent parts of the model graph in parallel 
+	 * within a single prediction.
+	 * This does not affect how many predictions may run at the same time; see {@link #getMaxConcurrentPredictions()}.
+	 * @return the number of threads, or &le; 0 if the backend default should be used
+	 */
+	public int getInterOpThreads() {
+		return interOpThreads;
+	}
+	
+	/**
+	 * Get the maximum number of predictions that may be made in parallel using the same model.
+	 * Backends may support this by preallocating additional inputs, 
+	 * or by creating multiple instances of the model (at the cost of additional memory).
+	 * @return the maximum number of concurrent predictions; values &le; 1 mean predictions are made one at a time
+	 */
+	public int getMaxConcurrentPredictions() {
+		return maxConcurrentPredictions;
+	}
+	
+	/**
+	 * Get the tensor layout expected by the model.
+	 * @return the layout, or null if the backend default should be used
+	 */
+	public Layout getLayout() {
+		return layout;
+	}
+	
+	/**
+	 * Get the name of the model input.
+	 * @return the input name, or null if the first (or only) input should be used
+	 */
+	public String getInputName() {
+		return inputName;
+	}
+	
+	/**
+	 * Get the name of the model output.
+	 * @return the output name, or null if the default output should be used
+	 */
+	public String getOutputName() {
+		return outputName;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(intraOpThreads, interOpThreads, maxConcurrentPredictions, layout, inputName, outputName);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof DnnOptions))
+			return false;
+		var other = (DnnOptions)obj;
+		return intraOpThreads == other.intraOpThreads &&
+				interOpThreads == other.interOpThreads &&
+				maxConcurrentPredictions == other.maxConcurrentPredictions &&
+				layout == other.layout &&
+				Objects.equals(inputName, other.inputName) &&
+				Objects.equals(outputName, other.outputName);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("DnnOptions[intraOpThreads=%d, interOpThreads=%d, maxConcurrentPredictions=%d, layout=%s, input=%s, output=%s]",
+				intraOpThreads, interOpThreads, maxConcurrentPredictions, layout, inputName, outputName);
+	}
+	
+	
+	/**
+	 * Helper class to build {@link DnnOptions}.
+	 */
+	public static class Builder {
+		
+		private int intraOpThreads = -1;
+		private int interOpThreads = 1;
+		private int maxConcurrentPredictions = 1;
+		private Layout layout;
+		private String inputName;
+		private String outputName;
+		
+		/**
+		 * Number of threads to parallelize the computations within a single prediction.
+		 * @param nThreads number of threads, or &le; 0 to use the backend default
+		 * @return
+		 */
+		public Builder intraOpThreads(int nThreads) {
+			this.intraOpThreads = nThreads;
+			return this;
+		}
+		
+		/**
+		 * Number of threads to run independent parts of the model graph in parallel within a single prediction.
+		 * @param nThreads number of threads, or &le; 0 to use the backend default
+		 * @return
+		 */
+		public Builder interOpThreads(int nThreads) {
+			this.interOpThreads = nThreads;
+			return this;
+		}
+		
+		/**
+		 * Maximum number of predictions that may be made in parallel using the same model.
+		 * @param maxPredictions maximum number of concurrent predictions (default 1)
+		 * @return
+		 */
+		public Builder maxConcurrentPredictions(int maxPredictions) {
+			this.maxConcurrentPredictions = maxPredictions;
+			return this;
+		}
+		
+		/**
+		 * Tensor layout expected by the model, if this should not be determined by the backend.
+		 * @param layout
+		 * @return
+		 */
+		public Builder layout(Layout layout) {
+			this.layout = layout;
+			return this;
+		}
+		
+		/**
+		 * Name of the model input, if the first input should not be used.
+		 * @param name
+		 * @return
+		 */
+		public Builder inputName(String name) {
+			this.inputName = name;
+			return this;
+		}
+		
+		/**
+		 * Name of the model output, if the default output should not be used.
+		 * @param name
+		 * @return
+		 */
+		public Builder outputName(String name) {
+			this.outputName = name;
+			return this;
+		}
+		
+		/**
+		 * Build the options.
+		 * @return
+		 */
+		public DnnOptions build() {
+			var options = new DnnOptions();
+			options.intraOpThreads = intraOpThreads;
+			options.interOpThreads = interOpThreads;
+			options.maxConcurrentPredictions = maxConcurrentPredictions;
+			options.layout = layout;
+			options.inputName = inputName;
+			options.outputName = outputName;
+			return options;
+		}
+		
+	}
+
+}
@@ -0,0 +1,169 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.dnn;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import qupath.opencv.dnn.DnnModel.Layout;
+
+/**
+ * Static helper methods for converting between images and tensors, intended for use by {@link DnnBackend} implementations.
+ * 
+ * @author Pete Bankhead
+ */
+public class DnnTools {
+	
+	// Suppressed default constructor for non-instantiability
+	private DnnTools() {
+		throw new AssertionError();
+	}
+	
+	/**
+	 * Get the tensor shape for a single image, with a batch size of 1.
+	 * @param mat the image, with dimensions (rows, columns, channels)
+	 * @param layout the tensor layout
+	 * @return the shape
+	 */
+	public static int[] getTensorShape(Mat mat, Layout layout) {
+		if (layout == Layout.NHWC)
+			return new int[] {1, mat.rows(), mat.cols(), mat.channels()};
+		return new int[] {1, mat.channels(), mat.rows(), mat.cols()};
+	}
+	
+	/**
+	 * Allocate a direct buffer, in native byte order, to hold a tensor.
+	 * @param shape the tensor shape
+	 * @return the buffer
+	 */
+	public static FloatBuffer allocateBuffer(int... shape) {
+		long n = 1;
+		for (int s : shape)
+			n *= s;
+		if (n > Integer.MAX_VALUE / Float.BYTES)
+			throw new IllegalArgumentException("Tensor shape " + Arrays.toString(shape) + " is too large");
+		return ByteBuffer.allocateDirect((int)n * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+	}
+	
+	/**
+	 * Write an image to a buffer, as a tensor with a batch size of 1.
+	 * @param mat the image, with dimensions (rows, columns, channels); this will be converted to 32-bit floating point if needed
+	 * @param layout the tensor layout
+	 * @param buffer a buffer to reuse; if null or too small, a new (direct) buffer will be allocated
+	 * @return the buffer containing the tensor values, with position 0 and limit set to the number of values
+	 */
+	public static FloatBuffer toTensor(Mat mat, Layout layout, FloatBuffer buffer) {
+		int[] shape = getTensorShape(mat, layout);
+		int n = shape[1] * shape[2] * shape[3];
+		if (buffer == null || buffer.capacity() < n)
+			buffer = allocateBuffer(shape);
+		buffer.clear();
+		buffer.limit(n);
+		
+		var mat2 = mat;
+		if (mat.depth() != opencv_core.CV_32F) {
+			mat2 = new Mat();
+			mat.convertTo(mat2, opencv_core.CV_32F);
+		}
+		int h = mat.rows();
+		int w = mat.cols();
+		int c = mat.channels();
+		try (FloatIndexer idx = mat2.createIndexer()) {
+			if (layout == Layout.NHWC) {
+				int i = 0;
+				for (int y = 0; y < h; y++) {
+					for (int x = 0; x < w; x++) {
+						for (int b = 0; b < c; b++)
+							buffer.put(i++, idx.get(y, x, b));
+					}
+				}
+			} else {
+				int i = 0;
+				for (int b = 0; b < c; b++) {
+					for (int y = 0; y < h; y++) {
+						for (int x = 0; x < w; x++)
+							buffer.put(i++, idx.get(y, x, b));
+					}
+				}
+			}
+		}
+		if (mat2 != mat)
+			mat2.close();
+		return buffer;
+	}
+	
+	/**
+	 * Create an image from a tensor with a batch size of 1.
+	 * @param buffer buffer containing the tensor values, starting at position 0
+	 * @param shape the tensor shape; this should have 4 dimensions, or 3 if there is only one channel
+	 * @param layout the tensor layout
+	 * @return a 32-bit floating point image, with dimensions (rows, columns, channels)
+	 * @throws IllegalArgumentException if the batch size is not 1
+	 */
+	public static Mat fromTensor(FloatBuffer buffer, int[] shape, Layout layout) throws IllegalArgumentException {
+		if (shape[0] != 1)
+			throw new IllegalArgumentException("Tensor shape " + Arrays.toString(shape) + " does not represent a single image");
+		int h, w, c;
+		if (shape.length == 3) {
+			c = 1;
+			h = shape[1];
+			w = shape[2];
+		} else if (shape.length == 4 && layout == Layout.NHWC) {
+			h = shape[1];
+			w = shape[2];
+			c = shape[3];
+		} else if (shape.length == 4) {
+			c = shape[1];
+			h = shape[2];
+			w = shape[3];
+		} else
+			throw new IllegalArgumentException("Unsupported tensor shape " + Arrays.toString(shape));
+		
+		var mat = new Mat(h, w, opencv_core.CV_32FC(c));
+		try (FloatIndexer idx = mat.createIndexer()) {
+			int i = 0;
+			if (layout == Layout.NHWC) {
+				for (int y = 0; y < h; y++) {
+					for (int x = 0; x < w; x++) {
+						for (int b = 0; b < c; b++)
+							idx.put(y, x, b, buffer.get(i++));
+					}
+				}
+			} else {
+				for (int b = 0; b < c; b++) {
+					for (int y = 0; y < h; y++) {
+						for (int x = 0; x < w; x++)
+							idx.put(y, x, b, buffer.get(i++));
+					}
+				}
+			}
+		}
+		return mat;
+	}
+
+}
@@ -0,0 +1,269 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.dnn;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_dnn;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.MatVector;
+import org.bytedeco.opencv.opencv_dnn.Net;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.opencv.dnn.DnnModel.Layout;
+import qupath.opencv.ml.OpenCVDNN;
+
+/**
+ * {@link DnnBackend} using OpenCV's dnn module.
+ * <p>
+ * OpenCV does not support setting the number of threads for an individual model, and so 
+ * {@link DnnOptions#getIntraOpThreads()} and {@link DnnOptions#getInterOpThreads()} are ignored; 
+ * OpenCV's global thread pool is used instead.
+ * If {@link DnnOptions#getMaxConcurrentPredictions()} is greater than 1, multiple instances of the Net are created on demand 
+ * so that predictions can run in parallel.
+ * 
+ * @author Pete Bankhead
+ */
+public class OpenCVDnnBackend implements DnnBackend {
+	
+	private final static Logger logger = LoggerFactory.getLogger(OpenCVDnnBackend.class);
+	
+	/**
+	 * Name of the backend.
+	 */
+	public static final String NAME = "OpenCV";
+	
+	private static final List<String> EXTENSIONS = List.of(
+			".onnx", ".pb", ".caffemodel", ".t7", ".net", ".weights", ".bin"
+			);
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public boolean supportsModel(String modelPath) {
+		var lower = modelPath.toLowerCase(Locale.ROOT);
+		return EXTENSIONS.stream().anyMatch(e -> lower.endsWith(e));
+	}
+
+	@Override
+	public DnnModel loadModel(String modelPath, DnnOptions options) throws IOException {
+		var dnn = new OpenCVDNN.Builder(modelPath).build();
+		var model = new OpenCVDnnModel(dnn, options == null ? DnnOptions.getDefaultInstance() : options);
+		// Read the model now, so that any exception is thrown immediately
+		model.release(model.acquire());
+		return model;
+	}
+	
+	/**
+	 * Create a {@link DnnModel} from an {@link OpenCVDNN}.
+	 * The Net is read lazily, when it is first required.
+	 * @param dnn the wrapped OpenCV model
+	 * @param options options determining how the model should be applied
+	 * @return the model
+	 */
+	public static DnnModel createModel(OpenCVDNN dnn, DnnOptions options) {
+		return new OpenCVDnnModel(dnn, options == null ? DnnOptions.getDefaultInstance() : options);
+	}
+	
+	
+	/**
+	 * A Net, along with preallocated input and output matrices.
+	 */
+	private static class NetWorker {
+		
+		private final Net net;
+		private final MatVector outputs = new MatVector();
+		
+		private int[] shape;
+		private FloatBuffer buffer;
+		private Mat blob;
+		
+		private NetWorker(Net net) {
+			this.net = net;
+		}
+		
+		/**
+		 * Get the input blob for an image, reusing the previous blob if the shape is unchanged.
+		 */
+		private Mat getBlob(Mat mat) {
+			int[] shape = DnnTools.getTensorShape(mat, Layout.NCHW);
+			if (blob == null || !Arrays.equals(shape, this.shape)) {
+				if (blob != null)
+					blob.close();
+				buffer = DnnTools.allocateBuffer(shape);
+				blob = new Mat(shape.length, shape, opencv_core.CV_32F, new FloatPointer(buffer));
+				this.shape = shape;
+			}
+			DnnTools.toTensor(mat, Layout.NCHW, buffer);
+			return blob;
+		}
+		
+		private void close(boolean closeNet) {
+			if (blob != null)
+				blob.close();
+			outputs.close();
+			if (closeNet)
+				net.close();
+		}
+		
+	}
+	
+	
+	private static class OpenCVDnnModel implements DnnModel {
+		
+		private final OpenCVDNN dnn;
+		private final DnnOptions options;
+		private final String outputName;
+		
+		private final int maxWorkers;
+		private final BlockingQueue<NetWorker> workers;
+		private final List<NetWorker> allWorkers = new ArrayList<>();
+		
+		private OpenCVDnnModel(OpenCVDNN dnn, DnnOptions options) {
+			this.dnn = dnn;
+			this.options = options;
+			this.outputName = options.getOutputName() == null ? dnn.getOutputLayerName() : options.getOutputName();
+			this.maxWorkers = Math.max(1, options.getMaxConcurrentPredictions());
+			this.workers = new ArrayBlockingQueue<>(maxWorkers);
+			if (options.getLayout() != null && options.getLayout() != Layout.NCHW)
+				logger.warn("OpenCV backend only supports {} layout, {} will be ignored", Layout.NCHW, options.getLayout());
+			if (options.getIntraOpThreads() > 0 || options.getInterOpThreads() > 1)
+				logger.debug("OpenCV backend does not support per-model thread counts, these will be ignored");
+		}
+		
+		private NetWorker acquire() throws IOException {
+			var worker = workers.poll();
+			if (worker != null)
+				return worker;
+			synchronized (allWorkers) {
+				if (allWorkers.size() < maxWorkers) {
+					// The first Net is shared with the OpenCVDNN
+					var net = allWorkers.isEmpty() ? dnn.getNet() : dnn.createNet();
+					worker = new NetWorker(net);
+					allWorkers.add(worker);
+					return worker;
+				}
+			}
+			try {
+				return workers.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for model", e);
+			}
+		}
+		
+		private void release(NetWorker worker) {
+			workers.offer(worker);
+		}
+
+		@Override
+		public String getBackendName() {
+			return NAME;
+		}
+
+		@Override
+		public Layout getLayout() {
+			return Layout.NCHW;
+		}
+
+		/**
+		 * OpenCV does not provide the input shape, so this always returns null.
+		 */
+		@Override
+		public int[] getInputShape() {
+			return null;
+		}
+
+		@Override
+		public int[] getOutputShape(int... inputShape) throws IOException {
+			var worker = acquire();
+			try {
+				var layers = OpenCVDNN.parseLayers(worker.net, inputShape[3], inputShape[2], inputShape[1], inputShape[0]);
+				if (layers.isEmpty())
+					return inputShape.clone();
+				if (outputName != null) {
+					for (var layer : layers) {
+						if (outputName.equals(layer.getName()))
+							return layer.getOutputShapes();
+					}
+				}
+				return layers.get(layers.size()-1).getOutputShapes();
+			} finally {
+				release(worker);
+			}
+		}
+
+		@Override
+		public Mat predict(Mat mat) throws IOException {
+			var worker = acquire();
+			try {
+				long startTime = System.currentTimeMillis();
+				worker.net.setInput(worker.getBlob(mat));
+				// We need to extract the results while we still have the Net, 
+				// since the result of calling forward() can become invalid later
+				Mat prob = outputName == null ? worker.net.forward() : worker.net.forward(outputName);
+				opencv_dnn.imagesFromBlob(prob, worker.outputs);
+				if (worker.outputs.size() != 1)
+					throw new IOException("DNN result must be a single image - here, the result is " + worker.outputs.size() + " images");
+				var result = worker.outputs.get(0L).clone();
+				long endTime = System.currentTimeMillis();
+				logger.trace("Prediction time: {} ms", endTime - startTime);
+				return result;
+			} catch (RuntimeException e) {
+				throw new IOException("Error applying " + dnn.getName(), e);
+			} finally {
+				release(worker);
+			}
+		}
+
+		@Override
+		public void close() {
+			synchronized (allWorkers) {
+				workers.clear();
+				// Don't close the Net shared with the OpenCVDNN
+				for (int i = 0; i < allWorkers.size(); i++)
+					allWorkers.get(i).close(i > 0);
+				allWorkers.clear();
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return "OpenCV model: " + dnn.getName() + " (" + options + ")";
+		}
+		
+	}
+
+}
@@ -0,0 +1,4 @@
+/**
+ * QuPath classes to apply deep learning models to pixels, using pluggable inference backends.
+ */
+package qupath.opencv.dnn;
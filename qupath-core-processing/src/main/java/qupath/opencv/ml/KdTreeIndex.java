@@ -0,0 +1,600 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.ml;
+
+import java.util.Arrays;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+/**
+ * A k-d tree for nearest neighbor searches in feature space.
+ * <p>
+ * Each sample is a row of float values, and distances are Euclidean. Searches can be exact, or approximate
+ * by limiting the number of leaves that are checked (best-bin-first search). Approximate searches are
+ * much faster for large numbers of samples and features, at the cost of sometimes missing the true nearest neighbors.
+ * <p>
+ * Non-finite values are replaced by 0, both when building the index and when searching.
+ * The index is immutable, and may be searched from multiple threads.
+ *
+ * @author Pete Bankhead
+ */
+public class KdTreeIndex {
+
+	/**
+	 * Maximum number of samples stored in a leaf.
+	 */
+	private final static int LEAF_SIZE = 16;
+
+	private final int nSamples;
+	private final int nFeatures;
+
+	/**
+	 * Sample values, reordered so that each leaf refers to a contiguous block of rows.
+	 */
+	private final float[] data;
+
+	/**
+	 * Original index for each (reordered) row.
+	 */
+	private final int[] sampleIndex;
+
+	// Node arrays; a split dimension < 0 indicates a leaf
+	private int nNodes = 0;
+	private int[] splitDim;
+	private float[] splitValue;
+	private int[] childLeft;
+	private int[] childRight;
+	private int[] rowStart;
+	private int[] rowEnd;
+
+	private KdTreeIndex(float[] values, int nFeatures) {
+		if (nFeatures <= 0)
+			throw new IllegalArgumentException("Number of features must be > 0");
+		if (values.length % nFeatures != 0)
+			throw new IllegalArgumentException("Number of values " + values.length + " is not a multiple of the number of features " + nFeatures);
+		this.nFeatures = nFeatures;
+		this.nSamples = values.length / nFeatures;
+
+		int[] order = new int[nSamples];
+		for (int i = 0; i < nSamples; i++)
+			order[i] = i;
+
+		// Splits occur at the median, so every leaf contains at least LEAF_SIZE/2 samples
+		int maxNodes = 2 * (nSamples / (LEAF_SIZE / 2) + 1);
+		splitDim = new int[maxNodes];
+		splitValue = new float[maxNodes];
+		childLeft = new int[maxNodes];
+		childRight = new int[maxNodes];
+		rowStart = new int[maxNodes];
+		rowEnd = new int[maxNodes];
+
+		var finiteValues = Arrays.copyOf(values, values.length);
+		for (int i = 0; i < finiteValues.length; i++) {
+			if (!Float.isFinite(finiteValues[i]))
+				finiteValues[i] = 0f;
+		}
+		buildNode(finiteValues, order, 0, nSamples);
+
+		// Store data in leaf order for better memory locality during searches
+		data = new float[values.length];
+		sampleIndex = order;
+		for (int i = 0; i < nSamples; i++)
+			System.arraycopy(finiteValues, order[i] * nFeatures, data, i * nFeatures, nFeatures);
+	}
+
+	/**
+	 * Build a k-d tree from an array of sample values, stored row by row.
+	 * @param values the feature values, of length {@code nSamples * nFeatures}
+	 * @param nFeatures the number of features per sample
+	 * @return the k-d tree
+	 */
+	public static KdTreeIndex build(float[] values, int nFeatures) {
+		return new KdTreeIndex(values, nFeatures);
+	}
+
+	/**
+	 * Build a k-d tree from a Mat, where each row corresponds to a sample and each column to a feature.
+	 * @param samples the samples; these will be converted to 32-bit floating point if necessary
+	 * @return the k-d tree
+	 */
+	public static KdTreeIndex build(Mat samples) {
+		return new KdTreeIndex(toFloatArray(samples), samples.cols());
+	}
+
+	/**
+	 * Get the number of samples in the index.
+	 * @return the number of samples
+	 */
+	public int size() {
+		return nSamples;
+	}
+
+	/**
+	 * Get the number of features for each sample.
+	 * @return the number of features
+	 */
+	public int nFeatures() {
+		return nFeatures;
+	}
+
+	private int buildNode(float[] values, int[] order, int start, int end) {
+		int node = nNodes++;
+		rowStart[node] = start;
+		rowEnd[node] = end;
+		if (end - start <= LEAF_SIZE) {
+			splitDim[node] = -1;
+			return node;
+		}
+		// Split along the dimension with the greatest spread
+		int bestDim = -1;
+		float bestSpread = 0;
+		for (int d = 0; d < nFeatures; d++) {
+			float min = Float.POSITIVE_INFINITY;
+			float max = Float.NEGATIVE_INFINITY;
+			for (int i = start; i < end; i++) {
+				float v = values[order[i] * nFeatures + d];
+				if (v < min)
+					min = v;
+				if (v > max)
+					max = v;
+			}
+			if (max - min > bestSpread) {
+				bestSpread = max - min;
+				bestDim = d;
+			}
+		}
+		// All samples identical
+		if (bestDim < 0) {
+			splitDim[node] = -1;
+			return node;
+		}
+		int mid = (start + end) >>> 1;
+		select(values, order, start, end - 1, mid, bestDim);
+		splitDim[node] = bestDim;
+		splitValue[node] = values[order[mid] * nFeatures + bestDim];
+		childLeft[node] = buildNode(values, order, start, mid);
+		childRight[node] = buildNode(values, order, mid, end);
+		return node;
+	}
+
+	/**
+	 * Partially sort order[left..right] so that the element at k is in its sorted position for dimension dim.
+	 */
+	private void select(float[] values, int[] order, int left, int right, int k, int dim) {
+		while (right > left) {
+			float pivot = values[order[(left + right) >>> 1] * nFeatures + dim];
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (values[order[i] * nFeatures + dim] < pivot)
+					i++;
+				while (values[order[j] * nFeatures + dim] > pivot)
+					j--;
+				if (i <= j) {
+					int temp = order[i];
+					order[i] = order[j];
+					order[j] = temp;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j)
+				right = j;
+			else if (k >= i)
+				left = i;
+			else
+				return;
+		}
+	}
+
+	/**
+	 * Find the k nearest neighbors of a query sample.
+	 *
+	 * @param query the query sample, of length {@link #nFeatures()}
+	 * @param k the number of neighbors to find
+	 * @param maxChecks the maximum number of leaves to check; if &le; 0, an exact search is performed
+	 * @return the neighbors, sorted by increasing distance
+	 */
+	public Neighbors search(float[] query, int k, int maxChecks) {
+		return search(query, 0, k, maxChecks);
+	}
+
+	/**
+	 * Find the k nearest neighbors of a query sample, which is stored within a larger array.
+	 *
+	 * @param values array containing the query sample
+	 * @param offset offset of the first feature of the query sample within the array
+	 * @param k the number of neighbors to find
+	 * @param maxChecks the maximum number of leaves to check; if &le; 0, an exact search is performed
+	 * @return the neighbors, sorted by increasing distance
+	 */
+	public Neighbors search(float[] values, int offset, int k, int maxChecks) {
+		float[] query = toQuery(values, offset);
+		k = Math.min(k, nSamples);
+		if (k <= 0)
+			return new Neighbors(new int[0], new double[0]);
+
+		var best = new NeighborHeap(k);
+		var pending = new NodeQueue();
+		pending.add(0, 0.0);
+		int checks = 0;
+		while (pending.size() > 0) {
+			double bound = pending.peekDistance();
+			if (best.isFull() && bound >= best.worstDistance())
+				break;
+			if (maxChecks > 0 && checks >= maxChecks && best.isFull())
+				break;
+			int node = pending.poll();
+			// Descend to a leaf, queuing the branches not taken
+			while (splitDim[node] >= 0) {
+				int dim = splitDim[node];
+				double diff = query[dim] - splitValue[node];
+				int near = diff < 0 ? childLeft[node] : childRight[node];
+				int far = diff < 0 ? childRight[node] : childLeft[node];
+				pending.add(far, Math.max(bound, diff * diff));
+				node = near;
+			}
+			for (int row = rowStart[node]; row < rowEnd[node]; row++) {
+				double dist = 0;
+				int ind = row * nFeatures;
+				for (int d = 0; d < nFeatures; d++) {
+					double diff = query[d] - data[ind + d];
+					dist += diff * diff;
+				}
+				best.offer(sampleIndex[row], dist);
+			}
+			checks++;
+		}
+		return best.toNeighbors();
+	}
+
+	/**
+	 * Find all samples within a specified distance of a query sample, which is stored within a larger array.
+	 * <p>
+	 * This search is always exact. The order of the neighbors is not specified, but is the same for repeated searches.
+	 *
+	 * @param values array containing the query sample
+	 * @param offset offset of the first feature of the query sample within the array
+	 * @param radius the maximum Euclidean distance
+	 * @return the neighbors within the radius (inclusive)
+	 */
+	public Neighbors searchRadius(float[] values, int offset, double radius) {
+		float[] query = toQuery(values, offset);
+		var result = new RadiusResult();
+		if (nSamples > 0)
+			searchRadius(0, query, radius * radius, result);
+		return new Neighbors(Arrays.copyOf(result.indices, result.size), Arrays.copyOf(result.distances, result.size));
+	}
+
+	/**
+	 * Count the samples within a specified distance of a query sample, stopping early if a maximum count is reached.
+	 * This is useful to test whether a minimum number of neighbors exists, without finding all of them.
+	 *
+	 * @param values array containing the query sample
+	 * @param offset offset of the first feature of the query sample within the array
+	 * @param radius the maximum Euclidean distance
+	 * @param maxCount the maximum count required
+	 * @return the number of samples within the radius (inclusive), or maxCount if this is lower
+	 */
+	public int countRadius(float[] values, int offset, double radius, int maxCount) {
+		float[] query = toQuery(values, offset);
+		if (nSamples == 0 || maxCount <= 0)
+			return 0;
+		return countRadius(0, query, radius * radius, 0, maxCount);
+	}
+
+	private int countRadius(int node, float[] query, double radiusSquared, int count, int maxCount) {
+		int dim = splitDim[node];
+		if (dim >= 0) {
+			double diff = query[dim] - splitValue[node];
+			int near = diff < 0 ? childLeft[node] : childRight[node];
+			int far = diff < 0 ? childRight[node] : childLeft[node];
+			count = countRadius(near, query, radiusSquared, count, maxCount);
+			if (count < maxCount && diff * diff <= radiusSquared)
+				count = countRadius(far, query, radiusSquared, count, maxCount);
+			return count;
+		}
+		for (int row = rowStart[node]; row < rowEnd[node] && count < maxCount; row++) {
+			double dist = 0;
+			int ind = row * nFeatures;
+			for (int d = 0; d < nFeatures && dist <= radiusSquared; d++) {
+				double diff = query[d] - data[ind + d];
+				dist += diff * diff;
+			}
+			if (dist <= radiusSquared)
+				count++;
+		}
+		return count;
+	}
+
+	private void searchRadius(int node, float[] query, double radiusSquared, RadiusResult result) {
+		int dim = splitDim[node];
+		if (dim >= 0) {
+			double diff = query[dim] - splitValue[node];
+			int near = diff < 0 ? childLeft[node] : childRight[node];
+			int far = diff < 0 ? childRight[node] : childLeft[node];
+			searchRadius(near, query, radiusSquared, result);
+			if (diff * diff <= radiusSquared)
+				searchRadius(far, query, radiusSquared, result);
+			return;
+		}
+		for (int row = rowStart[node]; row < rowEnd[node]; row++) {
+			double dist = 0;
+			int ind = row * nFeatures;
+			for (int d = 0; d < nFeatures && dist <= radiusSquared; d++) {
+				double diff = query[d] - data[ind + d];
+				dist += diff * diff;
+			}
+			if (dist <= radiusSquared)
+				result.add(sampleIndex[row], Math.sqrt(dist));
+		}
+	}
+
+	private float[] toQuery(float[] values, int offset) {
+		if (values.length < offset + nFeatures)
+			throw new IllegalArgumentException("Query requires " + nFeatures + " features");
+		float[] query = new float[nFeatures];
+		for (int d = 0; d < nFeatures; d++) {
+			float v = values[offset + d];
+			query[d] = Float.isFinite(v) ? v : 0f;
+		}
+		return query;
+	}
+
+	/**
+	 * Find the k nearest neighbors for each row of a Mat.
+	 * @param samples the query samples, one per row
+	 * @param k the number of neighbors to find
+	 * @param maxChecks the maximum number of leaves to check; if &le; 0, an exact search is performed
+	 * @return the neighbors for each row of the input
+	 */
+	public Neighbors[] search(Mat samples, int k, int maxChecks) {
+		if (samples.cols() != nFeatures)
+			throw new IllegalArgumentException("Samples have " + samples.cols() + " features, but " + nFeatures + " are required");
+		float[] values = toFloatArray(samples);
+		int n = samples.rows();
+		var results = new Neighbors[n];
+		for (int i = 0; i < n; i++)
+			results[i] = search(values, i * nFeatures, k, maxChecks);
+		return results;
+	}
+
+	private static float[] toFloatArray(Mat samples) {
+		if (samples.channels() != 1)
+			throw new IllegalArgumentException("Samples must have a single channel");
+		Mat mat = samples;
+		if (mat.depth() != opencv_core.CV_32F) {
+			mat = new Mat();
+			samples.convertTo(mat, opencv_core.CV_32F);
+		} else if (!mat.isContinuous())
+			mat = samples.clone();
+		float[] values = new float[mat.rows() * mat.cols()];
+		try (FloatIndexer idx = mat.createIndexer()) {
+			idx.get(0L, values);
+		}
+		if (mat != samples)
+			mat.close();
+		return values;
+	}
+
+
+	/**
+	 * Result of a nearest neighbor search.
+	 */
+	public static class Neighbors {
+
+		private final int[] indices;
+		private final double[] distances;
+
+		private Neighbors(int[] indices, double[] distances) {
+			this.indices = indices;
+			this.distances = distances;
+		}
+
+		/**
+		 * Get the number of neighbors found.
+		 * @return the number of neighbors
+		 */
+		public int size() {
+			return indices.length;
+		}
+
+		/**
+		 * Get the index of a neighbor, i.e. the row of the sample used to build the index.
+		 * @param n the neighbor, where 0 is the nearest
+		 * @return the sample index
+		 */
+		public int getIndex(int n) {
+			return indices[n];
+		}
+
+		/**
+		 * Get the Euclidean distance to a neighbor.
+		 * @param n the neighbor, where 0 is the nearest
+		 * @return the distance in feature space
+		 */
+		public double getDistance(int n) {
+			return distances[n];
+		}
+
+	}
+
+
+	private static class RadiusResult {
+
+		private int[] indices = new int[16];
+		private double[] distances = new double[16];
+		private int size = 0;
+
+		void add(int index, double distance) {
+			if (size == indices.length) {
+				indices = Arrays.copyOf(indices, size * 2);
+				distances = Arrays.copyOf(distances, size * 2);
+			}
+			indices[size] = index;
+			distances[size] = distance;
+			size++;
+		}
+
+	}
+
+
+	/**
+	 * Bounded max-heap of the best neighbors found so far.
+	 */
+	private static class NeighborHeap {
+
+		private final int[] indices;
+		private final double[] distances;
+		private int size = 0;
+
+		NeighborHeap(int k) {
+			indices = new int[k];
+			distances = new double[k];
+		}
+
+		boolean isFull() {
+			return size == indices.length;
+		}
+
+		double worstDistance() {
+			return size == 0 ? Double.POSITIVE_INFINITY : distances[0];
+		}
+
+		void offer(int index, double distance) {
+			if (size < indices.length) {
+				int i = size++;
+				while (i > 0) {
+					int parent = (i - 1) / 2;
+					if (distances[parent] >= distance)
+						break;
+					indices[i] = indices[parent];
+					distances[i] = distances[parent];
+					i = parent;
+				}
+				indices[i] = index;
+				distances[i] = distance;
+			} else if (distance < distances[0]) {
+				siftDown(index, distance);
+			}
+		}
+
+		private void siftDown(int index, double distance) {
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && distances[child + 1] > distances[child])
+					child++;
+				if (distances[child] <= distance)
+					break;
+				indices[i] = indices[child];
+				distances[i] = distances[child];
+				i = child;
+			}
+			indices[i] = index;
+			distances[i] = distance;
+		}
+
+		Neighbors toNeighbors() {
+			int n = size;
+			int[] outIndices = new int[n];
+			double[] outDistances = new double[n];
+			for (int i = n - 1; i >= 0; i--) {
+				outIndices[i] = indices[0];
+				outDistances[i] = Math.sqrt(distances[0]);
+				size--;
+				if (size > 0)
+					siftDown(indices[size], distances[size]);
+			}
+			return new Neighbors(outIndices, outDistances);
+		}
+
+	}
+
+
+	/**
+	 * Min-priority queue of nodes, ordered by the lower bound of their distance from the query.
+	 */
+	private static class NodeQueue {
+
+		private int[] nodes = new int[64];
+		private double[] distances = new double[64];
+		private int size = 0;
+
+		int size() {
+			return size;
+		}
+
+		double peekDistance() {
+			return distances[0];
+		}
+
+		void add(int node, double distance) {
+			if (size == nodes.length) {
+				nodes = Arrays.copyOf(nodes, size * 2);
+				distances = Arrays.copyOf(distances, size * 2);
+			}
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (distances[parent] <= distance)
+					break;
+				nodes[i] = nodes[parent];
+				distances[i] = distances[parent];
+				i = parent;
+			}
+			nodes[i] = node;
+			distances[i] = distance;
+		}
+
+		int poll() {
+			int result = nodes[0];
+			size--;
+			if (size > 0) {
+				int node = nodes[size];
+				double distance = distances[size];
+				int i = 0;
+				while (true) {
+					int child = 2 * i + 1;
+					if (child >= size)
+						break;
+					if (child + 1 < size && distances[child + 1] < distances[child])
+						child++;
+					if (distances[child] >= distance)
+						break;
+					nodes[i] = nodes[child];
+					distances[i] = distances[child];
+					i = child;
+				}
+				nodes[i] = node;
+				distances[i] = distance;
+			}
+			return result;
+		}
+
+	}
+
+}
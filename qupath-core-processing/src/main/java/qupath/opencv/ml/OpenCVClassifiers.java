@@ -23,7 +23,9 @@ package qupath.opencv.ml;
 
 import java.io.IOException;
 import java.nio.IntBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -37,6 +39,10 @@ import org.bytedeco.javacpp.indexer.IntIndexer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.TypeAdapter;
 import com.google.gson.annotations.JsonAdapter;
 import com.google.gson.stream.JsonReader;
@@ -247,8 +253,33 @@ public class OpenCVClassifiers {
 		 */
 		public abstract void predict(Mat samples, Mat results, Mat probabilities);
 		
+		/**
+		 * Set the number of output classes, if this is known before training.
+		 * <p>
+		 * This is only needed by classifiers that would otherwise determine the number of classes from the 
+		 * training labels, so that probability estimates can include a column for every class (even classes 
+		 * without training samples). The default implementation does nothing.
+		 * @param nClasses the number of output classes
+		 */
+		public void setNumOutputClasses(int nClasses) {}
+		
 		abstract StatModel getStatModel();
 		
+		private transient volatile int version = 0;
+		
+		/**
+		 * Get a counter that is incremented whenever the classifier is trained.
+		 * This is not serialized, but can be used to identify when predictions made previously may be out of date.
+		 * @return the number of times this classifier has been trained since it was created or deserialized
+		 */
+		public int getVersion() {
+			return version;
+		}
+		
+		void incrementVersion() {
+			version++;
+		}
+		
 		@Override
 		public String toString() {
 			return String.format("OpenCV ", getStatModel().getClass().getSimpleName());
@@ -258,16 +289,29 @@ public class OpenCVClassifiers {
 	
 	
 	static class OpenCVClassifierTypeAdapter extends TypeAdapter<OpenCVStatModel> {
+		
+		private static Gson gson = new GsonBuilder().create();
 
 		@Override
 		public void write(JsonWriter out, OpenCVStatModel value) throws IOException {
-			OpenCVTypeAdapters.getTypeAdaptor(StatModel.class).write(out, value.getStatModel());
+			var adapter = OpenCVTypeAdapters.getTypeAdaptor(StatModel.class);
+			if (value instanceof KNearestClassifierCV) {
+				// Add the fields that aren't part of the StatModel
+				var obj = adapter.toJsonTree(value.getStatModel()).getAsJsonObject();
+				((KNearestClassifierCV)value).writeFields(obj);
+				gson.toJson(obj, out);
+			} else
+				adapter.write(out, value.getStatModel());
 		}
 
 		@Override
 		public OpenCVStatModel read(JsonReader in) throws IOException {
-			var statModel = OpenCVTypeAdapters.getTypeAdaptor(StatModel.class).read(in);
-			return wrapStatModel(statModel);
+			var element = JsonParser.parseReader(in);
+			var statModel = OpenCVTypeAdapters.getTypeAdaptor(StatModel.class).fromJsonTree(element);
+			var model = wrapStatModel(statModel);
+			if (model instanceof KNearestClassifierCV && element.isJsonObject())
+				((KNearestClassifierCV)model).readFields(element.getAsJsonObject());
+			return model;
 //			return new DefaultOpenCVStatModel<StatModel>(statModel);
 		}
 		
@@ -371,6 +415,7 @@ public class OpenCVClassifiers {
 			lock.writeLock().lock();
 			try {
 				trainWithLock(trainData);
+				incrementVersion();
 			} finally {
 				lock.writeLock().unlock();
 			}
@@ -1154,8 +1199,27 @@ public class OpenCVClassifiers {
 	
 	/**
 	 * Classifier based on {@link KNearest}.
+	 * <p>
+	 * Training samples are stored (and serialized) within the {@link KNearest} model, but predictions use a 
+	 * {@link KdTreeIndex} rather than a brute force search over all samples. The search is exact by default, 
+	 * but can be made approximate by limiting the number of k-d tree leaves checked for each sample.
+	 * <p>
+	 * The maximum number of leaf checks and the number of output classes are serialized alongside the model 
+	 * by {@link OpenCVClassifierTypeAdapter}.
 	 */
 	static class KNearestClassifierCV extends AbstractOpenCVClassifierML<KNearest> {
+		
+		private static Logger logger = LoggerFactory.getLogger(KNearestClassifierCV.class);
+		
+		private int maxLeafChecks;
+		private int nOutputClasses;
+		
+		private transient KdTreeIndex index;
+		private transient float[] indexSamples;
+		private transient int indexFeatures;
+		private transient int[] indexLabels;
+		private transient int nClasses;
+		private transient boolean indexFailed = false;
 
 		KNearestClassifierCV() {
 			super();
@@ -1170,8 +1234,25 @@ public class OpenCVClassifiers {
 			var params = new ParameterList();
 			int defaultK = model.getDefaultK();
 			params.addIntParameter("defaultK", "Default K", defaultK, null, "Number of nearest neighbors");
+			params.addIntParameter("maxChecks", "Max leaf checks", maxLeafChecks, null,
+					"Maximum number of k-d tree leaves to check when searching for neighbors.\n"
+					+ "Use 0 for an exact search, or a value such as 64 for a faster approximate search with large training sets.");
 			return params;
 		}
+		
+		/**
+		 * Set the maximum number of k-d tree leaves to check for each sample, updating the parameter list.
+		 * @param maxLeafChecks the maximum number of checks, or 0 for an exact search
+		 */
+		private void setMaxLeafChecks(int maxLeafChecks) {
+			this.maxLeafChecks = Math.max(0, maxLeafChecks);
+			getParameterList().getParameters().get("maxChecks").setStringLastValue(Locale.US, Integer.toString(this.maxLeafChecks));
+		}
+		
+		@Override
+		public void setNumOutputClasses(int nClasses) {
+			this.nOutputClasses = Math.max(0, nClasses);
+		}
 
 		@Override
 		KNearest createStatModel() {
@@ -1186,10 +1267,201 @@ public class OpenCVClassifiers {
 		@Override
 		void updateModel(KNearest model, ParameterList params, TrainData trainData) {
 			int defaultK = params.getIntParameterValue("defaultK");
+			maxLeafChecks = Math.max(0, params.getIntParameterValue("maxChecks"));
 			model.setDefaultK(defaultK);
 			model.setIsClassifier(true);
 		}
 		
+		/**
+		 * Returns true; probabilities are the proportion of neighbors belonging to each class.
+		 */
+		@Override
+		public boolean supportsProbabilities() {
+			return true;
+		}
+		
+		@Override
+		public void trainWithLock(TrainData trainData) {
+			super.trainWithLock(trainData);
+			synchronized (this) {
+				index = null;
+				indexFailed = false;
+				indexSamples = null;
+				try {
+					setIndex(KdTreeIndex.build(trainData.getTrainSamples()), getLabels(trainData.getTrainResponses()));
+				} catch (Exception e) {
+					logger.warn("Unable to create k-d tree for nearest neighbor search: {}", e.getLocalizedMessage());
+					logger.debug(e.getLocalizedMessage(), e);
+					indexFailed = true;
+				}
+			}
+		}
+		
+		private static int[] getLabels(Mat responses) {
+			var matLabels = new Mat();
+			responses.convertTo(matLabels, opencv_core.CV_32S);
+			var labels = new int[(int)matLabels.total()];
+			IntBuffer buffer = matLabels.createBuffer();
+			buffer.get(labels);
+			matLabels.close();
+			return labels;
+		}
+		
+		private void setIndex(KdTreeIndex newIndex, int[] labels) {
+			if (newIndex.size() != labels.length)
+				throw new IllegalArgumentException("Number of samples (" + newIndex.size() + ") does not match the number of responses (" + labels.length + ")");
+			// Use the declared number of classes if available, so that probabilities have a column for every class
+			nClasses = Math.max(nOutputClasses, Arrays.stream(labels).max().orElse(-1) + 1);
+			indexLabels = labels;
+			index = newIndex;
+		}
+		
+		/**
+		 * Get the k-d tree, creating it from the training samples read with the model if necessary.
+		 * @return the k-d tree, or null if none is available
+		 */
+		private synchronized KdTreeIndex getIndex() {
+			if (index != null || indexFailed || indexSamples == null)
+				return index;
+			try {
+				setIndex(KdTreeIndex.build(indexSamples, indexFeatures), indexLabels);
+			} catch (Exception e) {
+				logger.warn("Unable to create k-d tree for nearest neighbor search: {}", e.getLocalizedMessage());
+				logger.debug(e.getLocalizedMessage(), e);
+				indexFailed = true;
+			}
+			// The samples are now held by the index
+			indexSamples = null;
+			return index;
+		}
+		
+		/**
+		 * Write the fields that are not stored in the {@link KNearest} model.
+		 * @param obj
+		 */
+		void writeFields(JsonObject obj) {
+			obj.addProperty("maxLeafChecks", maxLeafChecks);
+			obj.addProperty("numOutputClasses", nOutputClasses);
+		}
+		
+		/**
+		 * Read the fields that are not stored in the {@link KNearest} model, and the training samples needed for the k-d tree.
+		 * @param obj
+		 */
+		void readFields(JsonObject obj) {
+			if (obj.has("maxLeafChecks"))
+				setMaxLeafChecks(obj.get("maxLeafChecks").getAsInt());
+			if (obj.has("numOutputClasses"))
+				setNumOutputClasses(obj.get("numOutputClasses").getAsInt());
+			if (!getStatModel().isTrained() || !obj.has("statmodel"))
+				return;
+			try {
+				var statModel = obj.getAsJsonObject("statmodel");
+				var samples = statModel.getAsJsonObject("samples");
+				var responses = statModel.getAsJsonObject("responses");
+				var labels = readMatrix(responses);
+				int[] intLabels = new int[labels.length];
+				for (int i = 0; i < labels.length; i++)
+					intLabels[i] = Math.round(labels[i]);
+				synchronized (this) {
+					indexSamples = readMatrix(samples);
+					indexFeatures = samples.get("cols").getAsInt();
+					indexLabels = intLabels;
+					index = null;
+				}
+			} catch (Exception e) {
+				logger.warn("Unable to read samples for nearest neighbor search: {}", e.getLocalizedMessage());
+				logger.debug(e.getLocalizedMessage(), e);
+				indexFailed = true;
+			}
+		}
+		
+		/**
+		 * Read the values of a single-channel matrix from its OpenCV JSON representation.
+		 */
+		private static float[] readMatrix(JsonObject obj) {
+			int n = obj.get("rows").getAsInt() * obj.get("cols").getAsInt();
+			var data = obj.getAsJsonArray("data");
+			if (data.size() != n)
+				throw new IllegalArgumentException("Expected " + n + " matrix values, but found " + data.size());
+			var values = new float[n];
+			for (int i = 0; i < n; i++)
+				values[i] = data.get(i).getAsFloat();
+			return values;
+		}
+		
+		/**
+		 * Predict using the k-d tree if possible, or brute force otherwise.
+		 * Neighbors are sorted by distance, so ties between classes are resolved in favor of the class that 
+		 * reaches the winning number of votes first.
+		 * If no labelled neighbors are found for a sample, the prediction of the OpenCV model is used instead 
+		 * (or -1 if the model has not been trained).
+		 */
+		@Override
+		protected void predictWithLock(Mat samples, Mat results, Mat probabilities) {
+			var index = getIndex();
+			if (index == null || samples.cols() != index.nFeatures()) {
+				super.predictWithLock(samples, results, probabilities);
+				return;
+			}
+			var model = getStatModel();
+			int k = Math.max(1, model.getDefaultK());
+			var neighbors = index.search(samples, k, maxLeafChecks);
+			int nSamples = neighbors.length;
+			
+			results.create(nSamples, 1, opencv_core.CV_32SC1);
+			IntIndexer idxResults = results.createIndexer();
+			FloatIndexer idxProbabilities = null;
+			if (probabilities != null) {
+				probabilities.create(nSamples, nClasses, opencv_core.CV_32FC1);
+				idxProbabilities = probabilities.createIndexer();
+			}
+			var votes = new int[nClasses];
+			List<Integer> missing = new ArrayList<>();
+			for (int i = 0; i < nSamples; i++) {
+				Arrays.fill(votes, 0);
+				var nn = neighbors[i];
+				int bestClass = -1;
+				int bestVotes = 0;
+				for (int j = 0; j < nn.size(); j++) {
+					int label = indexLabels[nn.getIndex(j)];
+					if (label < 0)
+						continue;
+					int v = ++votes[label];
+					if (v > bestVotes) {
+						bestVotes = v;
+						bestClass = label;
+					}
+				}
+				idxResults.put(i, bestClass);
+				if (bestClass < 0)
+					missing.add(i);
+				if (idxProbabilities != null) {
+					for (int c = 0; c < nClasses; c++)
+						idxProbabilities.put(i, c, nn.size() == 0 ? 0f : votes[c] / (float)nn.size());
+				}
+			}
+			if (!missing.isEmpty() && model.isTrained()) {
+				logger.debug("No labelled neighbors found in index for {}/{} samples - will use OpenCV prediction", missing.size(), nSamples);
+				var fallback = new Mat();
+				super.predictWithLock(samples, fallback, null);
+				IntIndexer idxFallback = fallback.createIndexer();
+				for (int i : missing) {
+					idxResults.put(i, idxFallback.get(i));
+					// Probabilities aren't available from the OpenCV model
+					if (idxProbabilities != null) {
+						for (int c = 0; c < nClasses; c++)
+							idxProbabilities.put(i, c, Float.NaN);
+					}
+				}
+				idxFallback.release();
+				fallback.close();
+			}
+			idxResults.release();
+			if (idxProbabilities != null)
+				idxProbabilities.release();
+		}
+		
 	}
 	
 	/**
@@ -75,15 +75,25 @@ public class OpenCVDNN {
 	 */
 	public Net getNet() throws IOException {
 		if (net == null) {
-			try {
-				net = opencv_dnn.readNet(pathModel, pathConfig, framework);
-			} catch (RuntimeException e) {
-				throw new IOException("Unable to load model from " + pathModel, e);
-			}
+			net = createNet();
 		}
 		return net;
 	}
 	
+	/**
+	 * Create a new OpenCV Net by reading the model.
+	 * Unlike {@link #getNet()}, this returns a new instance each time it is called, which can be used independently of any other.
+	 * @return
+	 * @throws IOException
+	 */
+	public Net createNet() throws IOException {
+		try {
+			return opencv_dnn.readNet(pathModel, pathConfig, framework);
+		} catch (RuntimeException e) {
+			throw new IOException("Unable to load model from " + pathModel, e);
+		}
+	}
+	
 	/**
 	 * Create a (multiline) summary String for the Net, given the specified image input dimensions.
 	 * @param width input width
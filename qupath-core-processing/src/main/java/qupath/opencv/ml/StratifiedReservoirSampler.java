@@ -0,0 +1,341 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.ml;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.indexer.IntIndexer;
+import org.bytedeco.javacpp.indexer.UByteIndexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+/**
+ * Helper class to select a class-stratified random subset of training samples, using a single pass through the data.
+ * <p>
+ * Samples are offered one at a time (or one {@link Mat} of targets at a time), and each is assigned the next sequential index.
+ * A separate reservoir is maintained for each label, so that no more than a maximum number of samples are retained per class.
+ * Because every class is sampled independently using a random number generator seeded from a fixed seed and the label,
+ * the selection is reproducible for the same input order.
+ * <p>
+ * Once all samples have been offered, the selected indices can be queried, or used to extract the corresponding rows
+ * from a {@link Mat} containing all the samples in the order they were offered.
+ *
+ * @author Pete Bankhead
+ */
+public class StratifiedReservoirSampler {
+
+	private final int defaultMaxSamples;
+	private final long seed;
+
+	private final Map<Integer, Integer> maxSamples = new HashMap<>();
+	private final Map<Integer, Reservoir> reservoirs = new TreeMap<>();
+
+	private int nOffered = 0;
+
+	/**
+	 * Constructor.
+	 * @param maxSamplesPerClass maximum number of samples to retain for each class; if &le; 0, all samples are retained
+	 * @param seed seed for the random number generators
+	 */
+	public StratifiedReservoirSampler(int maxSamplesPerClass, long seed) {
+		this.defaultMaxSamples = maxSamplesPerClass;
+		this.seed = seed;
+	}
+
+	/**
+	 * Set the maximum number of samples to retain for a specific label, overriding the default.
+	 * This must be called before any sample with the label is offered.
+	 * @param label the label
+	 * @param maxSamples maximum number of samples to retain; if &le; 0, all samples are retained
+	 * @return this sampler
+	 * @throws IllegalStateException if a sample with the label has already been offered
+	 */
+	public StratifiedReservoirSampler setMaxSamples(int label, int maxSamples) throws IllegalStateException {
+		if (reservoirs.containsKey(label))
+			throw new IllegalStateException("Cannot change the maximum number of samples for label " + label + " after sampling has begun");
+		this.maxSamples.put(label, maxSamples);
+		return this;
+	}
+
+	/**
+	 * Get the maximum number of samples retained for a specific label.
+	 * @param label
+	 * @return the maximum number of samples, or a value &le; 0 if there is no limit
+	 */
+	public int getMaxSamples(int label) {
+		return maxSamples.getOrDefault(label, defaultMaxSamples);
+	}
+
+	/**
+	 * Offer the next sample.
+	 * @param label the label (e.g. class index) of the sample
+	 * @return the index assigned to the sample
+	 */
+	public int offer(int label) {
+		int index = nOffered++;
+		var reservoir = reservoirs.get(label);
+		if (reservoir == null) {
+			reservoir = new Reservoir(getMaxSamples(label), seed ^ (label * 0x9E3779B97F4A7C15L));
+			reservoirs.put(label, reservoir);
+		}
+		reservoir.offer(index);
+		return index;
+	}
+
+	/**
+	 * Offer one sample for each row of a targets matrix.
+	 * <p>
+	 * If the matrix has a single column, this is expected to contain integer labels.
+	 * Otherwise, each row is expected to be a one-hot (or multi-hot) encoding and the label is the index of the first non-zero column,
+	 * or -1 if all columns are zero.
+	 * @param targets the targets, with one row per sample
+	 * @return the number of samples offered
+	 */
+	public int offerRows(Mat targets) {
+		int n = targets.rows();
+		if (n == 0)
+			return 0;
+		if (targets.cols() == 1) {
+			var mat = targets.depth() == opencv_core.CV_32S ? targets : new Mat();
+			if (mat != targets)
+				targets.convertTo(mat, opencv_core.CV_32S);
+			try (IntIndexer idx = mat.createIndexer()) {
+				for (int r = 0; r < n; r++)
+					offer(idx.get(r, 0));
+			}
+			if (mat != targets)
+				mat.close();
+		} else {
+			int nCols = targets.cols();
+			var mat = targets.depth() == opencv_core.CV_8U ? targets : new Mat();
+			if (mat != targets)
+				targets.convertTo(mat, opencv_core.CV_8U);
+			try (UByteIndexer idx = mat.createIndexer()) {
+				for (int r = 0; r < n; r++) {
+					int label = -1;
+					for (int c = 0; c < nCols; c++) {
+						if (idx.get(r, c) != 0) {
+							label = c;
+							break;
+						}
+					}
+					offer(label);
+				}
+			}
+			if (mat != targets)
+				mat.close();
+		}
+		return n;
+	}
+
+	/**
+	 * Get the total number of samples that have been offered.
+	 * @return
+	 */
+	public int getOfferedCount() {
+		return nOffered;
+	}
+
+	/**
+	 * Get the number of samples that have been offered for a specific label.
+	 * @param label
+	 * @return
+	 */
+	public int getOfferedCount(int label) {
+		var reservoir = reservoirs.get(label);
+		return reservoir == null ? 0 : reservoir.count;
+	}
+
+	/**
+	 * Get the total number of samples that have been selected.
+	 * @return
+	 */
+	public int getSelectedCount() {
+		int n = 0;
+		for (var reservoir : reservoirs.values())
+			n += reservoir.size();
+		return n;
+	}
+
+	/**
+	 * Get the number of samples that have been selected for a specific label.
+	 * @param label
+	 * @return
+	 */
+	public int getSelectedCount(int label) {
+		var reservoir = reservoirs.get(label);
+		return reservoir == null ? 0 : reservoir.size();
+	}
+
+	/**
+	 * Query whether any samples have been discarded, because more than the maximum number were offered for at least one label.
+	 * @return
+	 */
+	public boolean isSubsampled() {
+		return getSelectedCount() < nOffered;
+	}
+
+	/**
+	 * Get all the labels for which samples have been offered.
+	 * @return an unmodifiable sorted set of labels
+	 */
+	public SortedSet<Integer> getLabels() {
+		return Collections.unmodifiableSortedSet(new TreeSet<>(reservoirs.keySet()));
+	}
+
+	/**
+	 * Get the indices of all selected samples.
+	 * @return the selected indices, in ascending order
+	 */
+	public int[] getSelectedIndices() {
+		int[] indices = new int[getSelectedCount()];
+		int ind = 0;
+		for (var reservoir : reservoirs.values()) {
+			System.arraycopy(reservoir.indices, 0, indices, ind, reservoir.size());
+			ind += reservoir.size();
+		}
+		Arrays.sort(indices);
+		return indices;
+	}
+
+	/**
+	 * Get the indices of the selected samples for a specific label.
+	 * @param label
+	 * @return the selected indices, in ascending order
+	 */
+	public int[] getSelectedIndices(int label) {
+		var reservoir = reservoirs.get(label);
+		if (reservoir == null)
+			return new int[0];
+		int[] indices = Arrays.copyOf(reservoir.indices, reservoir.size());
+		Arrays.sort(indices);
+		return indices;
+	}
+
+	/**
+	 * Extract the rows of a {@link Mat} corresponding to the selected samples.
+	 * @param mat a matrix containing one row for every offered sample, in the order the samples were offered
+	 * @return a new matrix containing only the selected rows, in ascending order of index
+	 * @throws IllegalArgumentException if the number of rows does not match the number of samples offered
+	 */
+	public Mat selectRows(Mat mat) throws IllegalArgumentException {
+		return selectRows(Collections.singletonList(mat));
+	}
+
+	/**
+	 * Extract the rows corresponding to the selected samples from a list of {@link Mat}s, without first concatenating them.
+	 * This is useful when samples are offered in batches (e.g. one batch per image tile), since only the selected rows 
+	 * are ever copied.
+	 * @param mats matrices with the same number of columns and type, which together contain one row for every offered sample, 
+	 *             in the order the samples were offered
+	 * @return a new matrix containing only the selected rows, in ascending order of index
+	 * @throws IllegalArgumentException if the total number of rows does not match the number of samples offered, 
+	 *                                  or the matrices are not compatible
+	 */
+	public Mat selectRows(List<? extends Mat> mats) throws IllegalArgumentException {
+		long nRows = 0;
+		for (var mat : mats)
+			nRows += mat.rows();
+		if (nRows != nOffered)
+			throw new IllegalArgumentException("Number of rows " + nRows + " does not match the number of samples offered " + nOffered);
+		int[] indices = getSelectedIndices();
+		if (mats.isEmpty())
+			return new Mat();
+		var first = mats.get(0);
+		var output = new Mat(indices.length, first.cols(), first.type());
+		long rowBytes = first.cols() * first.elemSize();
+		int matInd = 0;
+		int offset = 0;
+		for (int i = 0; i < indices.length; i++) {
+			int index = indices[i];
+			// Indices are sorted, so we only ever need to move forward through the matrices
+			while (index >= offset + mats.get(matInd).rows()) {
+				offset += mats.get(matInd).rows();
+				matInd++;
+			}
+			var mat = mats.get(matInd);
+			if (mat.cols() != first.cols() || mat.type() != first.type())
+				throw new IllegalArgumentException("All matrices must have the same number of columns and type");
+			Pointer.memcpy(output.ptr(i), mat.ptr(index - offset), rowBytes);
+		}
+		return output;
+	}
+
+	@Override
+	public String toString() {
+		var sb = new StringBuilder("StratifiedReservoirSampler[");
+		boolean first = true;
+		for (var entry : reservoirs.entrySet()) {
+			if (!first)
+				sb.append(", ");
+			sb.append(entry.getKey()).append(": ").append(entry.getValue().size()).append("/").append(entry.getValue().count);
+			first = false;
+		}
+		return sb.append("]").toString();
+	}
+
+
+	/**
+	 * Reservoir for a single label, using Algorithm R.
+	 */
+	private static class Reservoir {
+
+		private final int maxSize;
+		private final Random random;
+
+		private int[] indices = new int[16];
+		private int count = 0;
+
+		private Reservoir(int maxSize, long seed) {
+			this.maxSize = maxSize <= 0 ? Integer.MAX_VALUE : maxSize;
+			this.random = new Random(seed);
+		}
+
+		private void offer(int index) {
+			if (count < maxSize) {
+				if (count == indices.length)
+					indices = Arrays.copyOf(indices, (int)Math.min(maxSize, indices.length * 2L));
+				indices[count] = index;
+			} else {
+				int r = random.nextInt(count + 1);
+				if (r < maxSize)
+					indices[r] = index;
+			}
+			count++;
+		}
+
+		private int size() {
+			return Math.min(count, maxSize);
+		}
+
+	}
+
+}
@@ -0,0 +1,666 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.ml.objects;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.classifiers.Normalization;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.objects.classes.Reclassifier;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.opencv.ml.KdTreeIndex;
+import qupath.opencv.ml.objects.features.FeatureExtractor;
+import qupath.opencv.ml.objects.features.Preprocessing;
+
+/**
+ * Unsupervised clustering of objects based upon features determined by a {@link FeatureExtractor}.
+ * <p>
+ * Two methods are supported: mini-batch k-means (see {@link #kMeans(int)}) and density-based clustering
+ * using DBSCAN (see {@link #dbscan(double, int)}). Both are multithreaded, but give the same results
+ * for the same input and random seed regardless of the number of threads.
+ * <p>
+ * A typical use is
+ * <pre>
+ * var extractor = FeatureExtractors.createMeasurementListFeatureExtractor(measurements);
+ * ObjectClustering.cluster(imageData, extractor, Normalization.MEAN_VARIANCE, detections, ObjectClustering.kMeans(10).build(), "Cluster");
+ * </pre>
+ *
+ * @author Pete Bankhead
+ */
+public class ObjectClustering {
+
+	private final static Logger logger = LoggerFactory.getLogger(ObjectClustering.class);
+
+	/**
+	 * Label used for objects that do not belong to any cluster.
+	 */
+	public static final int NOISE = -1;
+
+	/**
+	 * Number of objects (or samples) handled by each parallel task.
+	 */
+	private static final int CHUNK_SIZE = 4096;
+
+	/**
+	 * Interface for a clustering method.
+	 */
+	public static interface Clusterer {
+
+		/**
+		 * Cluster samples.
+		 * @param features feature values, stored sample by sample, of length {@code nSamples * nFeatures}
+		 * @param nFeatures the number of features per sample
+		 * @return the cluster labels
+		 */
+		ClusterResult cluster(float[] features, int nFeatures);
+
+	}
+
+	/**
+	 * Result of clustering.
+	 * Clusters are numbered from 0 in order of decreasing size; samples not assigned to any cluster
+	 * have the label {@link ObjectClustering#NOISE}.
+	 */
+	public static class ClusterResult {
+
+		private final int[] labels;
+		private final int[] sizes;
+
+		private ClusterResult(int[] labels, int nClusters) {
+			// Relabel so that the largest cluster comes first
+			var counts = new int[nClusters];
+			for (int label : labels) {
+				if (label >= 0)
+					counts[label]++;
+			}
+			var order = IntStream.range(0, nClusters)
+					.boxed()
+					.sorted((a, b) -> counts[a] == counts[b] ? Integer.compare(a, b) : -Integer.compare(counts[a], counts[b]))
+					.mapToInt(i -> i)
+					.toArray();
+			var mapping = new int[nClusters];
+			sizes = new int[nClusters];
+			for (int i = 0; i < nClusters; i++) {
+				mapping[order[i]] = i;
+				sizes[i] = counts[order[i]];
+			}
+			this.labels = labels;
+			for (int i = 0; i < labels.length; i++) {
+				if (labels[i] >= 0)
+					labels[i] = mapping[labels[i]];
+			}
+		}
+
+		/**
+		 * Get the number of clusters.
+		 * @return the number of clusters
+		 */
+		public int nClusters() {
+			return sizes.length;
+		}
+
+		/**
+		 * Get the number of samples that were clustered.
+		 * @return the number of samples
+		 */
+		public int nSamples() {
+			return labels.length;
+		}
+
+		/**
+		 * Get the cluster label for a sample.
+		 * @param ind index of the sample
+		 * @return the label, or {@link ObjectClustering#NOISE}
+		 */
+		public int getLabel(int ind) {
+			return labels[ind];
+		}
+
+		/**
+		 * Get the number of samples assigned to a cluster.
+		 * @param label the cluster label
+		 * @return the number of samples
+		 */
+		public int getClusterSize(int label) {
+			return sizes[label];
+		}
+
+		/**
+		 * Get the number of samples not assigned to any cluster.
+		 * @return the number of noise samples
+		 */
+		public int getNoiseCount() {
+			return labels.length - Arrays.stream(sizes).sum();
+		}
+
+	}
+
+	/**
+	 * Create a builder for mini-batch k-means clustering.
+	 * @param k the number of clusters
+	 * @return a builder
+	 */
+	public static KMeansBuilder kMeans(int k) {
+		return new KMeansBuilder(k);
+	}
+
+	/**
+	 * Create a builder for DBSCAN density-based clustering.
+	 * @param eps the maximum distance between neighboring samples
+	 * @param minPoints minimum number of samples within a distance of {@code eps} (including the sample itself) for
+	 *                  a sample to be considered a core point
+	 * @return a builder
+	 */
+	public static DBSCANBuilder dbscan(double eps, int minPoints) {
+		return new DBSCANBuilder(eps, minPoints);
+	}
+
+	/**
+	 * Extract features, cluster objects and apply the results as classifications.
+	 * @param <T>
+	 * @param imageData the image data
+	 * @param extractor the feature extractor
+	 * @param normalization normalization to apply to features before clustering
+	 * @param pathObjects the objects to cluster
+	 * @param clusterer the clustering method
+	 * @param prefix prefix for the classification names; clusters are named 'prefix 1', 'prefix 2' etc.
+	 * @return the clustering result
+	 * @see #applyClusters(PathObjectHierarchy, List, ClusterResult, String)
+	 */
+	public static <T> ClusterResult cluster(ImageData<T> imageData, FeatureExtractor<T> extractor, Normalization normalization,
+			Collection<? extends PathObject> pathObjects, Clusterer clusterer, String prefix) {
+		var list = new ArrayList<PathObject>(pathObjects);
+		long startTime = System.currentTimeMillis();
+		var features = extractFeatures(imageData, extractor, list, normalization);
+		var result = clusterer.cluster(features, extractor.nFeatures());
+		long endTime = System.currentTimeMillis();
+		logger.info("Clustered {} objects into {} clusters ({} noise) in {} ms", list.size(), result.nClusters(), result.getNoiseCount(), endTime - startTime);
+		applyClusters(imageData.getHierarchy(), list, result, prefix);
+		return result;
+	}
+
+	/**
+	 * Extract features for objects in parallel, optionally normalizing the result.
+	 * Non-finite values are replaced by 0.
+	 * @param <T>
+	 * @param imageData the image data
+	 * @param extractor the feature extractor
+	 * @param pathObjects the objects
+	 * @param normalization optional normalization to apply
+	 * @return feature values, stored object by object, of length {@code pathObjects.size() * extractor.nFeatures()}
+	 */
+	public static <T> float[] extractFeatures(ImageData<T> imageData, FeatureExtractor<T> extractor, List<? extends PathObject> pathObjects, Normalization normalization) {
+		int n = pathObjects.size();
+		int nFeatures = extractor.nFeatures();
+		float[] features = new float[n * nFeatures];
+		int nChunks = (n + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		IntStream.range(0, nChunks).parallel().forEach(c -> {
+			int start = c * CHUNK_SIZE;
+			int end = Math.min(n, start + CHUNK_SIZE);
+			var buffer = FloatBuffer.wrap(features, start * nFeatures, (end - start) * nFeatures);
+			extractor.extractFeatures(imageData, pathObjects.subList(start, end), buffer);
+		});
+
+		if (normalization != null && normalization != Normalization.NONE && n > 0) {
+			var mat = new Mat(n, nFeatures, opencv_core.CV_32FC1);
+			try (FloatIndexer idx = mat.createIndexer()) {
+				idx.put(0L, features);
+			}
+			var normalizer = Preprocessing.createNormalizer(normalization, mat, 0.0);
+			mat.close();
+			IntStream.range(0, nChunks).parallel().forEach(c -> {
+				int end = Math.min(n, (c + 1) * CHUNK_SIZE) * nFeatures;
+				for (int i = c * CHUNK_SIZE * nFeatures; i < end; i++)
+					features[i] = (float)normalizer.normalizeFeature(i % nFeatures, features[i]);
+			});
+		} else {
+			for (int i = 0; i < features.length; i++) {
+				if (!Float.isFinite(features[i]))
+					features[i] = 0f;
+			}
+		}
+		return features;
+	}
+
+	/**
+	 * Set the classifications of objects according to their cluster labels, firing a single hierarchy event.
+	 * Objects that are not assigned to any cluster are unclassified.
+	 * @param hierarchy hierarchy containing the objects; may be null if no event should be fired
+	 * @param pathObjects the objects, in the same order used for clustering
+	 * @param result the clustering result
+	 * @param prefix prefix for the classification names; clusters are named 'prefix 1', 'prefix 2' etc.
+	 * @return the number of objects whose classifications changed
+	 */
+	public static int applyClusters(PathObjectHierarchy hierarchy, List<? extends PathObject> pathObjects, ClusterResult result, String prefix) {
+		if (pathObjects.size() != result.nSamples())
+			throw new IllegalArgumentException("Number of objects (" + pathObjects.size() + ") does not match the number of clustered samples (" + result.nSamples() + ")");
+		var pathClasses = new PathClass[result.nClusters()];
+		for (int i = 0; i < pathClasses.length; i++)
+			pathClasses[i] = PathClassFactory.getPathClass(prefix + " " + (i + 1));
+		var changed = new ArrayList<PathObject>();
+		for (int i = 0; i < pathObjects.size(); i++) {
+			int label = result.getLabel(i);
+			var pathObject = pathObjects.get(i);
+			if (new Reclassifier(pathObject, label < 0 ? null : pathClasses[label], false).apply())
+				changed.add(pathObject);
+		}
+		if (hierarchy != null && !changed.isEmpty())
+			hierarchy.fireObjectClassificationsChangedEvent(ObjectClustering.class, changed);
+		return changed.size();
+	}
+
+	/**
+	 * Select distinct sample indices at random, returned in ascending order.
+	 */
+	private static int[] sampleIndices(int n, int maxSamples, Random rand) {
+		if (n <= maxSamples)
+			return IntStream.range(0, n).toArray();
+		var inds = IntStream.range(0, n).toArray();
+		for (int i = 0; i < maxSamples; i++) {
+			int j = i + rand.nextInt(n - i);
+			int temp = inds[i];
+			inds[i] = inds[j];
+			inds[j] = temp;
+		}
+		var samples = Arrays.copyOf(inds, maxSamples);
+		Arrays.sort(samples);
+		return samples;
+	}
+
+	private static double distanceSquared(float[] features, int offset, double[] centers, int centerOffset, int nFeatures) {
+		double dist = 0;
+		for (int d = 0; d < nFeatures; d++) {
+			double diff = features[offset + d] - centers[centerOffset + d];
+			dist += diff * diff;
+		}
+		return dist;
+	}
+
+	private static int nearestCenter(float[] features, int offset, double[] centers, int k, int nFeatures) {
+		int best = 0;
+		double bestDist = Double.POSITIVE_INFINITY;
+		for (int c = 0; c < k; c++) {
+			double dist = distanceSquared(features, offset, centers, c * nFeatures, nFeatures);
+			if (dist < bestDist) {
+				bestDist = dist;
+				best = c;
+			}
+		}
+		return best;
+	}
+
+
+	/**
+	 * Builder for mini-batch k-means clustering.
+	 */
+	public static class KMeansBuilder {
+
+		private int k;
+		private int batchSize = 1024;
+		private int maxIterations = 200;
+		private int initSamples = 10_000;
+		private double tolerance = 1e-4;
+		private long seed = 1012;
+
+		private KMeansBuilder(int k) {
+			if (k <= 0)
+				throw new IllegalArgumentException("Number of clusters must be > 0");
+			this.k = k;
+		}
+
+		/**
+		 * Number of samples in each mini-batch.
+		 * @param batchSize
+		 * @return this builder
+		 */
+		public KMeansBuilder batchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		/**
+		 * Maximum number of mini-batches used to update the cluster centers.
+		 * @param maxIterations
+		 * @return this builder
+		 */
+		public KMeansBuilder maxIterations(int maxIterations) {
+			this.maxIterations = maxIterations;
+			return this;
+		}
+
+		/**
+		 * Maximum number of samples used to initialize cluster centers with k-means++.
+		 * @param initSamples
+		 * @return this builder
+		 */
+		public KMeansBuilder initSamples(int initSamples) {
+			this.initSamples = initSamples;
+			return this;
+		}
+
+		/**
+		 * Stop iterating when the mean squared change in cluster centers after a mini-batch is below this value.
+		 * @param tolerance
+		 * @return this builder
+		 */
+		public KMeansBuilder tolerance(double tolerance) {
+			this.tolerance = tolerance;
+			return this;
+		}
+
+		/**
+		 * Seed for the random number generator.
+		 * @param seed
+		 * @return this builder
+		 */
+		public KMeansBuilder seed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		/**
+		 * Build the clusterer.
+		 * @return the clusterer
+		 */
+		public Clusterer build() {
+			return new MiniBatchKMeans(k, Math.max(1, batchSize), maxIterations, Math.max(1, initSamples), tolerance, seed);
+		}
+
+	}
+
+
+	private static class MiniBatchKMeans implements Clusterer {
+
+		private final int k;
+		private final int batchSize;
+		private final int maxIterations;
+		private final int initSamples;
+		private final double tolerance;
+		private final long seed;
+
+		private MiniBatchKMeans(int k, int batchSize, int maxIterations, int initSamples, double tolerance, long seed) {
+			this.k = k;
+			this.batchSize = batchSize;
+			this.maxIterations = maxIterations;
+			this.initSamples = initSamples;
+			this.tolerance = tolerance;
+			this.seed = seed;
+		}
+
+		@Override
+		public ClusterResult cluster(float[] features, int nFeatures) {
+			int n = features.length / nFeatures;
+			int k = Math.min(this.k, n);
+			if (k == 0)
+				return new ClusterResult(new int[n], 0);
+
+			var rand = new Random(seed);
+			var centers = initializeCenters(features, nFeatures, n, k, rand);
+
+			// Update centers using mini-batches, with a per-center learning rate
+			var counts = new long[k];
+			var batch = new int[batchSize];
+			var batchLabels = new int[batchSize];
+			var previous = new double[centers.length];
+			for (int iter = 0; iter < maxIterations; iter++) {
+				for (int i = 0; i < batchSize; i++)
+					batch[i] = rand.nextInt(n);
+				IntStream.range(0, batchSize).parallel().forEach(i -> {
+					batchLabels[i] = nearestCenter(features, batch[i] * nFeatures, centers, k, nFeatures);
+				});
+				System.arraycopy(centers, 0, previous, 0, centers.length);
+				for (int i = 0; i < batchSize; i++) {
+					int c = batchLabels[i];
+					counts[c]++;
+					double eta = 1.0 / counts[c];
+					int offset = batch[i] * nFeatures;
+					int centerOffset = c * nFeatures;
+					for (int d = 0; d < nFeatures; d++)
+						centers[centerOffset + d] += eta * (features[offset + d] - centers[centerOffset + d]);
+				}
+				double change = 0;
+				for (int i = 0; i < centers.length; i++) {
+					double diff = centers[i] - previous[i];
+					change += diff * diff;
+				}
+				if (change / k < tolerance) {
+					logger.debug("Mini-batch k-means converged after {} iterations", iter + 1);
+					break;
+				}
+			}
+
+			// Assign all samples to the nearest center
+			var labels = new int[n];
+			int nChunks = (n + CHUNK_SIZE - 1) / CHUNK_SIZE;
+			IntStream.range(0, nChunks).parallel().forEach(c -> {
+				int end = Math.min(n, (c + 1) * CHUNK_SIZE);
+				for (int i = c * CHUNK_SIZE; i < end; i++)
+					labels[i] = nearestCenter(features, i * nFeatures, centers, k, nFeatures);
+			});
+			return new ClusterResult(labels, k);
+		}
+
+		/**
+		 * Initialize centers using k-means++ applied to a random subset of samples.
+		 */
+		private double[] initializeCenters(float[] features, int nFeatures, int n, int k, Random rand) {
+			var samples = sampleIndices(n, Math.max(initSamples, k), rand);
+			int m = samples.length;
+			var centers = new double[k * nFeatures];
+			var minDistances = new double[m];
+			Arrays.fill(minDistances, Double.POSITIVE_INFINITY);
+			int next = samples[rand.nextInt(m)];
+			for (int c = 0; c < k; c++) {
+				for (int d = 0; d < nFeatures; d++)
+					centers[c * nFeatures + d] = features[next * nFeatures + d];
+				if (c == k - 1)
+					break;
+				int centerOffset = c * nFeatures;
+				double total = 0;
+				for (int i = 0; i < m; i++) {
+					double dist = distanceSquared(features, samples[i] * nFeatures, centers, centerOffset, nFeatures);
+					if (dist < minDistances[i])
+						minDistances[i] = dist;
+					total += minDistances[i];
+				}
+				// Choose the next center with probability proportional to the squared distance
+				double target = rand.nextDouble() * total;
+				int ind = 0;
+				double cumulative = minDistances[0];
+				while (cumulative < target && ind < m - 1) {
+					ind++;
+					cumulative += minDistances[ind];
+				}
+				next = samples[ind];
+			}
+			return centers;
+		}
+
+	}
+
+
+	/**
+	 * Builder for DBSCAN density-based clustering.
+	 */
+	public static class DBSCANBuilder {
+
+		private double eps;
+		private int minPoints;
+		private int maxSamples = 50_000;
+		private long seed = 1012;
+
+		private DBSCANBuilder(double eps, int minPoints) {
+			if (!(eps > 0))
+				throw new IllegalArgumentException("eps must be > 0");
+			this.eps = eps;
+			this.minPoints = minPoints;
+		}
+
+		/**
+		 * Maximum number of samples used to identify clusters.
+		 * If there are more samples than this, a random subset is clustered with DBSCAN and every other sample
+		 * is assigned the cluster of its nearest core sample (if this is within eps), or is otherwise considered noise.
+		 * @param maxSamples
+		 * @return this builder
+		 */
+		public DBSCANBuilder maxSamples(int maxSamples) {
+			this.maxSamples = maxSamples;
+			return this;
+		}
+
+		/**
+		 * Seed for the random number generator, used when selecting a subset of samples.
+		 * @param seed
+		 * @return this builder
+		 */
+		public DBSCANBuilder seed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		/**
+		 * Build the clusterer.
+		 * @return the clusterer
+		 */
+		public Clusterer build() {
+			return new DBSCAN(eps, minPoints, Math.max(1, maxSamples), seed);
+		}
+
+	}
+
+
+	private static class DBSCAN implements Clusterer {
+
+		private static final int UNVISITED = -2;
+
+		private final double eps;
+		private final int minPoints;
+		private final int maxSamples;
+		private final long seed;
+
+		private DBSCAN(double eps, int minPoints, int maxSamples, long seed) {
+			this.eps = eps;
+			this.minPoints = minPoints;
+			this.maxSamples = maxSamples;
+			this.seed = seed;
+		}
+
+		@Override
+		public ClusterResult cluster(float[] features, int nFeatures) {
+			int n = features.length / nFeatures;
+			var samples = sampleIndices(n, maxSamples, new Random(seed));
+			int m = samples.length;
+			var sampleFeatures = new float[m * nFeatures];
+			for (int i = 0; i < m; i++)
+				System.arraycopy(features, samples[i] * nFeatures, sampleFeatures, i * nFeatures, nFeatures);
+			var index = KdTreeIndex.build(sampleFeatures, nFeatures);
+
+			// Identify core samples
+			var isCore = new boolean[m];
+			IntStream.range(0, m).parallel().forEach(i -> {
+				isCore[i] = index.countRadius(sampleFeatures, i * nFeatures, eps, minPoints) >= minPoints;
+			});
+
+			// Expand clusters from core samples, in order
+			var sampleLabels = new int[m];
+			Arrays.fill(sampleLabels, UNVISITED);
+			var queue = new int[m];
+			int nClusters = 0;
+			for (int i = 0; i < m; i++) {
+				if (!isCore[i] || sampleLabels[i] != UNVISITED)
+					continue;
+				int label = nClusters++;
+				sampleLabels[i] = label;
+				int head = 0;
+				int tail = 0;
+				queue[tail++] = i;
+				while (head < tail) {
+					int current = queue[head++];
+					var neighbors = index.searchRadius(sampleFeatures, current * nFeatures, eps);
+					for (int j = 0; j < neighbors.size(); j++) {
+						int neighbor = neighbors.getIndex(j);
+						if (sampleLabels[neighbor] != UNVISITED)
+							continue;
+						sampleLabels[neighbor] = label;
+						if (isCore[neighbor])
+							queue[tail++] = neighbor;
+					}
+				}
+			}
+
+			var labels = new int[n];
+			Arrays.fill(labels, UNVISITED);
+			for (int i = 0; i < m; i++)
+				labels[samples[i]] = sampleLabels[i] == UNVISITED ? NOISE : sampleLabels[i];
+
+			// Assign remaining samples using the nearest core sample
+			if (m < n) {
+				int nCore = 0;
+				for (boolean core : isCore) {
+					if (core)
+						nCore++;
+				}
+				var coreFeatures = new float[nCore * nFeatures];
+				var coreLabels = new int[nCore];
+				int ind = 0;
+				for (int i = 0; i < m; i++) {
+					if (isCore[i]) {
+						System.arraycopy(sampleFeatures, i * nFeatures, coreFeatures, ind * nFeatures, nFeatures);
+						coreLabels[ind++] = sampleLabels[i];
+					}
+				}
+				var coreIndex = KdTreeIndex.build(coreFeatures, nFeatures);
+				int nChunks = (n + CHUNK_SIZE - 1) / CHUNK_SIZE;
+				IntStream.range(0, nChunks).parallel().forEach(c -> {
+					int end = Math.min(n, (c + 1) * CHUNK_SIZE);
+					for (int i = c * CHUNK_SIZE; i < end; i++) {
+						if (labels[i] != UNVISITED)
+							continue;
+						var nearest = coreIndex.search(features, i * nFeatures, 1, 0);
+						if (nearest.size() > 0 && nearest.getDistance(0) <= eps)
+							labels[i] = coreLabels[nearest.getIndex(0)];
+						else
+							labels[i] = NOISE;
+					}
+				});
+			}
+			return new ClusterResult(labels, nClusters);
+		}
+
+	}
+
+}
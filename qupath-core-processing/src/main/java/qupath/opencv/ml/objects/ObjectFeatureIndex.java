@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.ml.objects;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import qupath.lib.classifiers.Normalization;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.opencv.ml.KdTreeIndex;
+import qupath.opencv.ml.objects.features.FeatureExtractor;
+import qupath.opencv.ml.objects.features.Normalizer;
+import qupath.opencv.ml.objects.features.Preprocessing;
+
+/**
+ * Index of objects in feature space, used to find objects that are similar to a specified object.
+ * <p>
+ * Features are determined using a {@link FeatureExtractor}, optionally normalized, and stored in a {@link KdTreeIndex}.
+ * Similarity is defined by the Euclidean distance between (normalized) feature vectors.
+ *
+ * @author Pete Bankhead
+ *
+ * @param <T> generic parameter for the {@link ImageData}
+ */
+public class ObjectFeatureIndex<T> {
+
+	private final ImageData<T> imageData;
+	private final FeatureExtractor<T> extractor;
+	private final Normalizer normalizer;
+	private final List<PathObject> pathObjects;
+	private final Map<PathObject, Integer> rows;
+	private final float[] features;
+	private final KdTreeIndex index;
+
+	private ObjectFeatureIndex(ImageData<T> imageData, FeatureExtractor<T> extractor, Collection<? extends PathObject> pathObjects, Normalization normalization) {
+		this.imageData = imageData;
+		this.extractor = extractor;
+		this.pathObjects = Collections.unmodifiableList(new ArrayList<>(pathObjects));
+
+		int n = this.pathObjects.size();
+		int nFeatures = extractor.nFeatures();
+		var buffer = FloatBuffer.allocate(n * nFeatures);
+		extractor.extractFeatures(imageData, this.pathObjects, buffer);
+		features = buffer.array();
+
+		if (normalization == null || normalization == Normalization.NONE || n == 0) {
+			normalizer = null;
+		} else {
+			var mat = new Mat(n, nFeatures, opencv_core.CV_32FC1);
+			try (FloatIndexer idx = mat.createIndexer()) {
+				idx.put(0L, features);
+			}
+			normalizer = Preprocessing.createNormalizer(normalization, mat, 0.0);
+			mat.close();
+			for (int i = 0; i < features.length; i++)
+				features[i] = (float)normalizer.normalizeFeature(i % nFeatures, features[i]);
+		}
+
+		rows = new IdentityHashMap<>();
+		for (int i = 0; i < n; i++)
+			rows.put(this.pathObjects.get(i), i);
+
+		index = KdTreeIndex.build(features, nFeatures);
+	}
+
+	/**
+	 * Create an index for all detections within the hierarchy of an image.
+	 * @param <T>
+	 * @param imageData the image data
+	 * @param extractor the feature extractor
+	 * @param normalization optional normalization to apply to features, so that each contributes similarly to distances
+	 * @return the index
+	 */
+	public static <T> ObjectFeatureIndex<T> create(ImageData<T> imageData, FeatureExtractor<T> extractor, Normalization normalization) {
+		return create(imageData, extractor, imageData.getHierarchy().getDetectionObjects(), normalization);
+	}
+
+	/**
+	 * Create an index for specified objects.
+	 * @param <T>
+	 * @param imageData the image data
+	 * @param extractor the feature extractor
+	 * @param pathObjects the objects to index
+	 * @param normalization optional normalization to apply to features, so that each contributes similarly to distances
+	 * @return the index
+	 */
+	public static <T> ObjectFeatureIndex<T> create(ImageData<T> imageData, FeatureExtractor<T> extractor, Collection<? extends PathObject> pathObjects, Normalization normalization) {
+		return new ObjectFeatureIndex<>(imageData, extractor, pathObjects, normalization);
+	}
+
+	/**
+	 * Get the objects within the index.
+	 * @return an unmodifiable list of indexed objects
+	 */
+	public List<PathObject> getPathObjects() {
+		return pathObjects;
+	}
+
+	/**
+	 * Find the objects most similar to a specified object, using an exact search.
+	 * @param pathObject the query object; this need not be within the index, but it is excluded from the results if it is
+	 * @param k the maximum number of objects to return
+	 * @return the most similar objects, ordered by decreasing similarity
+	 */
+	public List<PathObject> findSimilar(PathObject pathObject, int k) {
+		return findSimilar(pathObject, k, 0);
+	}
+
+	/**
+	 * Find the objects most similar to a specified object.
+	 * @param pathObject the query object; this need not be within the index, but it is excluded from the results if it is
+	 * @param k the maximum number of objects to return
+	 * @param maxChecks the maximum number of k-d tree leaves to check; if &le; 0, an exact search is performed
+	 * @return the most similar objects, ordered by decreasing similarity
+	 * @see KdTreeIndex#search(float[], int, int)
+	 */
+	public List<PathObject> findSimilar(PathObject pathObject, int k, int maxChecks) {
+		int nFeatures = extractor.nFeatures();
+		float[] query;
+		Integer row = rows.get(pathObject);
+		if (row != null) {
+			query = features;
+		} else {
+			var buffer = FloatBuffer.allocate(nFeatures);
+			extractor.extractFeatures(imageData, Collections.singletonList(pathObject), buffer);
+			query = buffer.array();
+			if (normalizer != null) {
+				for (int i = 0; i < nFeatures; i++)
+					query[i] = (float)normalizer.normalizeFeature(i, query[i]);
+			}
+		}
+		int offset = row == null ? 0 : row * nFeatures;
+		// Request an extra neighbor, since the query object is likely to be its own nearest neighbor
+		var neighbors = index.search(query, offset, row == null ? k : k + 1, maxChecks);
+		var results = new ArrayList<PathObject>(k);
+		for (int i = 0; i < neighbors.size() && results.size() < k; i++) {
+			var neighbor = pathObjects.get(neighbors.getIndex(i));
+			if (neighbor != pathObject)
+				results.add(neighbor);
+		}
+		return results;
+	}
+
+}
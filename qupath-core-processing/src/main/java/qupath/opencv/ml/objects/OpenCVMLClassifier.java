@@ -23,11 +23,18 @@ package qupath.opencv.ml.objects;
 
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.bytedeco.javacpp.indexer.FloatIndexer;
 import org.bytedeco.javacpp.indexer.IntIndexer;
@@ -40,7 +47,9 @@ import com.google.common.collect.Lists;
 
 import qupath.lib.classifiers.object.AbstractObjectClassifier;
 import qupath.lib.classifiers.object.ObjectClassifier;
+import qupath.lib.classifiers.object.ObjectClassifierCache;
 import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.images.ImageData;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjectFilter;
@@ -128,7 +137,25 @@ public class OpenCVMLClassifier<T> extends AbstractObjectClassifier<T> {
 	
 	@Override
 	public int classifyObjects(ImageData<T> imageData, Collection<? extends PathObject> pathObjects, boolean resetExistingClass) {
-		return classifyObjects(featureExtractor, classifier, pathClasses, imageData, pathObjects, resetExistingClass, requestProbabilityEstimate);
+		var cache = ObjectClassifierCache.getDefaultCache();
+		if (cache != null && imageData != null)
+			cache.register(imageData.getHierarchy());
+		return classifyObjects(featureExtractor, classifier, pathClasses, imageData, pathObjects, resetExistingClass, requestProbabilityEstimate,
+				cache, cache == null ? null : getModelKey());
+	}
+	
+	/**
+	 * Get a key identifying the current version of this classifier, used to check whether cached predictions are valid.
+	 * The same classifier read from a file gives the same key, but retraining the model changes the key.
+	 */
+	private String getModelKey() {
+		return String.join(":",
+				Long.toString(getTimestamp()),
+				classifier.getName(),
+				Integer.toString(classifier.getVersion()),
+				Boolean.toString(requestProbabilityEstimate),
+				pathClasses.toString(),
+				Integer.toString(featureExtractor == null ? 0 : featureExtractor.getFeatureNames().hashCode()));
 	}
 
 	
@@ -139,129 +166,339 @@ public class OpenCVMLClassifier<T> extends AbstractObjectClassifier<T> {
 			ImageData<T> imageData,
 			Collection<? extends PathObject> pathObjects,
 			boolean resetExistingClass,
-			boolean requestProbabilityEstimate) {
+			boolean requestProbabilityEstimate,
+			ObjectClassifierCache cache,
+			String modelKey) {
 
 		if (featureExtractor == null) {
 			logger.warn("No feature extractor! Cannot classify {} objects", pathObjects.size());
 			return 0;
 		}
+		if (pathObjects.isEmpty())
+			return 0;
 		
-		int counter = 0;
-		
-		List<Reclassifier> reclassifiers = new ArrayList<>();
+		int nObjects = pathObjects.size();
+		int nThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
 
-		// Try not to have more than ~10 million entries per list
-		int subListSize = (int)Math.max(1, Math.min(pathObjects.size(), (1024 * 1024 * 10 / featureExtractor.nFeatures())));
+		// Try not to have more than ~10 million entries per list, 
+		// but use enough chunks to keep all threads busy (so that features for one chunk are extracted while another is predicted)
+		int maxSubListSize = (int)Math.max(1, Math.min(nObjects, (1024 * 1024 * 10 / featureExtractor.nFeatures())));
+		int subListSize = Math.min(maxSubListSize, Math.max(MIN_CHUNK_SIZE, (int)Math.ceil(nObjects / (nThreads * 4.0))));
+		
+		var chunks = Lists.partition(new ArrayList<>(pathObjects), subListSize);
+		nThreads = Math.min(nThreads, chunks.size());
 		
-		Mat samples = new Mat();
+		// Each worker owns its own buffers, which are reused for every chunk it handles
+		// (all workers are also kept in a separate list, since the queue doesn't contain those that are in use)
+		var allWorkers = new ArrayList<ChunkWorker<T>>();
+		for (int i = 0; i < nThreads; i++)
+			allWorkers.add(new ChunkWorker<>(featureExtractor, classifier, pathClasses, imageData, resetExistingClass, requestProbabilityEstimate, cache, modelKey));
+		var workers = new LinkedBlockingQueue<>(allWorkers);
 		
-		Mat results = new Mat();
-		Mat probabilities = requestProbabilityEstimate ? new Mat() : null;
+		long startTime = System.nanoTime();
+		List<List<Reclassifier>> results = new ArrayList<>();
+		ExecutorService pool = null;
+		try {
+			if (nThreads == 1) {
+				var worker = workers.peek();
+				for (var chunk : chunks) {
+					if (Thread.interrupted()) {
+						logger.warn("Classification interrupted - will not be applied");
+						return 0;
+					}
+					results.add(worker.process(chunk));
+				}
+			} else {
+				pool = Executors.newFixedThreadPool(nThreads, ThreadTools.createThreadFactory("object-classifier-", true));
+				List<Future<List<Reclassifier>>> futures = new ArrayList<>();
+				for (var chunk : chunks) {
+					futures.add(pool.submit(() -> {
+						var worker = workers.take();
+						try {
+							return worker.process(chunk);
+						} finally {
+							workers.put(worker);
+						}
+					}));
+				}
+				for (var future : futures)
+					results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			logger.warn("Classification interrupted - will not be applied");
+			Thread.currentThread().interrupt();
+			return 0;
+		} catch (ExecutionException e) {
+			logger.error("Error classifying objects: " + e.getLocalizedMessage(), e.getCause());
+			return 0;
+		} finally {
+			// Workers must not be closed while any task might still be using them
+			boolean terminated = true;
+			if (pool != null) {
+				pool.shutdownNow();
+				terminated = awaitTermination(pool);
+			}
+			if (terminated) {
+				for (var worker : allWorkers)
+					worker.close();
+			} else
+				logger.warn("Object classification tasks did not terminate - worker resources will not be released");
+		}
+		long predictTime = System.nanoTime() - startTime;
 
-		// Work through the objects in chunks
-		long startTime = System.currentTimeMillis();
-		long lastTime = startTime;
-		int nComplete = 0;
-		for (var tempObjectList : Lists.partition(new ArrayList<>(pathObjects), subListSize)) {
+		// Apply classifications now, in a single pass (and in the original order) - 
+		// the caller is then responsible for firing a single classification event
+		long startApply = System.nanoTime();
+		int counter = 0;
+		for (var list : results) {
+			for (var reclassifier : list)
+				reclassifier.apply();
+			counter += list.size();
+		}
+		long applyTime = System.nanoTime() - startApply;
+		
+		// Report throughput for each stage; feature & prediction times are summed across threads
+		long featureTime = 0L, modelTime = 0L;
+		int nCached = 0;
+		for (var worker : allWorkers) {
+			featureTime += worker.featureNanos;
+			modelTime += worker.predictNanos;
+			nCached += worker.nCached;
+		}
+		logger.info("Prediction time: {} ms for {} objects ({} ns per object, {} threads)",
+				predictTime / 1_000_000, nObjects,
+				GeneralTools.formatNumber((double)predictTime/nObjects, 2),
+				nThreads);
+		if (cache != null)
+			logger.debug("Cached predictions used for {}/{} objects", nCached, nObjects);
+		logger.debug("Throughput: features {} objects/s/thread, prediction {} objects/s/thread, apply {} objects/s",
+				GeneralTools.formatNumber(getThroughput(nObjects, featureTime), 1),
+				GeneralTools.formatNumber(getThroughput(nObjects, modelTime), 1),
+				GeneralTools.formatNumber(getThroughput(counter, applyTime), 1));
 
-			if (Thread.interrupted()) {
-				logger.warn("Classification interrupted - will not be applied");
-				return 0;
-			}
+		return counter;
+	}
+	
+	/**
+	 * Wait for the tasks of a pool that has been shut down to finish.
+	 * @param pool
+	 * @return true if the pool terminated, false if it did not terminate within the timeout
+	 */
+	private static boolean awaitTermination(ExecutorService pool) {
+		try {
+			return pool.awaitTermination(MAX_TERMINATION_WAIT_SECONDS, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return pool.isTerminated();
+		}
+	}
+	
+	/**
+	 * Maximum time to wait for running tasks to finish before releasing worker resources.
+	 */
+	private static final long MAX_TERMINATION_WAIT_SECONDS = 60L;
+	
+	/**
+	 * Minimum number of objects per chunk when classifying in parallel, 
+	 * to avoid excessive overhead when calling the model.
+	 */
+	private static final int MIN_CHUNK_SIZE = 1024;
+	
+	private static double getThroughput(int nObjects, long nanos) {
+		if (nanos <= 0)
+			return Double.NaN;
+		return nObjects / (nanos / 1e9);
+	}
+	
+	
+	/**
+	 * Extract features and apply the prediction for successive chunks of objects, 
+	 * reusing the same buffers for each chunk.
+	 * If a cache is available, the model is only called for objects without a valid cached prediction.
+	 * A worker should only be used by one thread at a time.
+	 */
+	private static class ChunkWorker<T> {
+		
+		private final FeatureExtractor<T> featureExtractor;
+		private final OpenCVStatModel classifier;
+		private final List<PathClass> pathClasses;
+		private final ImageData<T> imageData;
+		private final boolean resetExistingClass;
+		private final ObjectClassifierCache cache;
+		private final String modelKey;
+		
+		private final Mat samples = new Mat();
+		private final Mat uncachedSamples = new Mat();
+		private final Mat results = new Mat();
+		private final Mat probabilities;
+		
+		private long featureNanos = 0L;
+		private long predictNanos = 0L;
+		private int nCached = 0;
+		
+		ChunkWorker(FeatureExtractor<T> featureExtractor, OpenCVStatModel classifier, List<PathClass> pathClasses, 
+				ImageData<T> imageData, boolean resetExistingClass, boolean requestProbabilityEstimate,
+				ObjectClassifierCache cache, String modelKey) {
+			this.featureExtractor = featureExtractor;
+			this.classifier = classifier;
+			this.pathClasses = pathClasses;
+			this.imageData = imageData;
+			this.resetExistingClass = resetExistingClass;
+			this.probabilities = requestProbabilityEstimate ? new Mat() : null;
+			this.cache = modelKey == null ? null : cache;
+			this.modelKey = modelKey;
+		}
+		
+		List<Reclassifier> process(List<? extends PathObject> tempObjectList) {
+			int n = tempObjectList.size();
+			int nFeatures = featureExtractor.nFeatures();
 			
-			samples.create(tempObjectList.size(), featureExtractor.nFeatures(), opencv_core.CV_32FC1);
+			long startTime = System.nanoTime();
+			samples.create(n, nFeatures, opencv_core.CV_32FC1);
 			FloatBuffer buffer = samples.createBuffer();
 			featureExtractor.extractFeatures(imageData, tempObjectList, buffer);
+			long featureTime = System.nanoTime();
+			featureNanos += featureTime - startTime;
+			
+			// Predictions for each object (before merging with any existing classification)
+			var predictedClasses = new PathClass[n];
+			var predictedProbabilities = new double[n];
+			
+			// Check which objects have cached predictions, and gather features for the rest
+			long[] fingerprints = null;
+			int[] uncached = null;
+			Mat matPredict = samples;
+			if (cache != null) {
+				fingerprints = new long[n];
+				var row = new float[nFeatures];
+				buffer.rewind();
+				for (int i = 0; i < n; i++) {
+					buffer.get(row);
+					fingerprints[i] = ObjectClassifierCache.fingerprint(row, 0, nFeatures);
+				}
+				var cached = cache.get(tempObjectList, modelKey, fingerprints);
+				int nUncached = 0;
+				uncached = new int[n];
+				for (int i = 0; i < n; i++) {
+					if (cached[i] == null)
+						uncached[nUncached++] = i;
+					else {
+						predictedClasses[i] = cached[i].getPathClass();
+						predictedProbabilities[i] = cached[i].getProbability();
+					}
+				}
+				nCached += n - nUncached;
+				uncached = Arrays.copyOf(uncached, nUncached);
+				if (nUncached < n) {
+					uncachedSamples.create(nUncached, nFeatures, opencv_core.CV_32FC1);
+					for (int i = 0; i < nUncached; i++)
+						samples.row(uncached[i]).copyTo(uncachedSamples.row(i));
+					matPredict = uncachedSamples;
+				}
+			}
+
+			try {
+				if (matPredict.rows() > 0)
+					predict(matPredict, uncached, predictedClasses, predictedProbabilities);
+			} catch (Exception e) {
+				logger.warn("Error with samples: {}", samples);
+				logger.error(e.getLocalizedMessage(), e);
+				predictNanos += System.nanoTime() - featureTime;
+				return Collections.emptyList();
+			}
 			
-			// Possibly log time taken
-			nComplete += tempObjectList.size();
-			long intermediateTime = System.currentTimeMillis();
-			if (intermediateTime - lastTime > 1000L) {
-				logger.debug("Calculated features for {}/{} objects in {} ms ({} ms per object, {}% complete)", nComplete, pathObjects.size(), 
-						(intermediateTime - startTime),
-						GeneralTools.formatNumber((intermediateTime - startTime)/(double)nComplete, 2),
-						GeneralTools.formatNumber(nComplete * 100.0 / pathObjects.size(), 1));
-				lastTime = startTime;
+			if (cache != null) {
+				for (int i : uncached)
+					cache.put(tempObjectList.get(i), modelKey, fingerprints[i], predictedClasses[i], predictedProbabilities[i]);
 			}
 			
+			boolean retainIntensityClass = !(classifier.supportsMulticlass() && probabilities != null);
+			List<Reclassifier> reclassifiers = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				var pathObject = tempObjectList.get(i);
+				var pathClass = predictedClasses[i];
+				double probability = predictedProbabilities[i];
+				if (!resetExistingClass) {
+					pathClass = PathClassTools.mergeClasses(pathObject.getPathClass(), pathClass);
+					probability = Double.NaN;
+				}
+				reclassifiers.add(new Reclassifier(pathObject, pathClass, retainIntensityClass, probability));
+			}
+			predictNanos += System.nanoTime() - featureTime;
+			return reclassifiers;
+		}
+		
+		/**
+		 * Apply the model to samples, storing the results.
+		 * @param matSamples the samples
+		 * @param rows the output rows corresponding to each sample, or null if these are the same as the sample rows
+		 * @param predictedClasses array to store the predicted classifications
+		 * @param predictedProbabilities array to store the prediction probabilities
+		 */
+		private void predict(Mat matSamples, int[] rows, PathClass[] predictedClasses, double[] predictedProbabilities) {
 			boolean doMulticlass = classifier.supportsMulticlass();
 			double threshold = 0.5;
 
-			try {
-				classifier.predict(samples, results, probabilities);
+			classifier.predict(matSamples, results, probabilities);
 
-				IntIndexer idxResults = results.createIndexer();
-				FloatIndexer idxProbabilities = null;
-				if (probabilities != null && !probabilities.empty())
-					idxProbabilities = probabilities.createIndexer();
+			IntIndexer idxResults = results.createIndexer();
+			FloatIndexer idxProbabilities = null;
+			if (probabilities != null && !probabilities.empty())
+				idxProbabilities = probabilities.createIndexer();
 
-				if (doMulticlass && idxProbabilities != null) {
-					// Use probabilities if we require multiclass outputs
-					long row = 0;
-					int nCols = (int)idxProbabilities.size(2); // Previously .cols()
-					List<String> classifications = new ArrayList<>();
-					for (var pathObject : tempObjectList) {
-						classifications.clear();
-						for (int col = 0; col < nCols; col++) {
-							double prob = idxProbabilities.get(row, col);
-							if (prob >= threshold) {
-								var pathClass = col >= pathClasses.size() ? null : pathClasses.get(col);
-								if (pathClass != null)
-									classifications.add(pathClass.getName());
-							}
+			int nSamples = matSamples.rows();
+			if (doMulticlass && idxProbabilities != null) {
+				// Use probabilities if we require multiclass outputs
+				int nCols = (int)idxProbabilities.size(2); // Previously .cols()
+				List<String> classifications = new ArrayList<>();
+				for (int row = 0; row < nSamples; row++) {
+					classifications.clear();
+					for (int col = 0; col < nCols; col++) {
+						double prob = idxProbabilities.get(row, col);
+						if (prob >= threshold) {
+							var pathClass = col >= pathClasses.size() ? null : pathClasses.get(col);
+							if (pathClass != null)
+								classifications.add(pathClass.getName());
 						}
-						var pathClass = PathClassFactory.getPathClass(classifications);
-						if (PathClassTools.isIgnoredClass(pathClass)) {
-							pathClass = null;
-						}
-						if (!resetExistingClass) {
-							pathClass = PathClassTools.mergeClasses(pathObject.getPathClass(), pathClass);
-						}
-						reclassifiers.add(new Reclassifier(pathObject, pathClass, false));
-						row++;
 					}
-				} else {
-					// Use results (indexed values) if we do not require multiclass outputs
-					long row = 0;
-					for (var pathObject : tempObjectList) {
-						int prediction = idxResults.get(row);
-						var pathClass = pathClasses.get(prediction);
-						double probability = idxProbabilities == null ? Double.NaN : idxProbabilities.get(row, prediction);
-						if (PathClassTools.isIgnoredClass(pathClass)) {
-							pathClass = null;
-							probability = Double.NaN;
-						} 
-						if (!resetExistingClass) {
-							pathClass = PathClassTools.mergeClasses(pathObject.getPathClass(), pathClass);
-							probability = Double.NaN;
-						}
-						reclassifiers.add(new Reclassifier(pathObject, pathClass, true, probability));							
-						row++;
+					var pathClass = PathClassFactory.getPathClass(classifications);
+					if (PathClassTools.isIgnoredClass(pathClass)) {
+						pathClass = null;
 					}
+					int ind = rows == null ? row : rows[row];
+					predictedClasses[ind] = pathClass;
+					predictedProbabilities[ind] = Double.NaN;
+				}
+			} else {
+				// Use results (indexed values) if we do not require multiclass outputs
+				for (int row = 0; row < nSamples; row++) {
+					int prediction = idxResults.get(row);
+					// Negative values indicate that no prediction could be made
+					boolean validPrediction = prediction >= 0 && prediction < pathClasses.size();
+					var pathClass = validPrediction ? pathClasses.get(prediction) : null;
+					double probability = idxProbabilities == null || !validPrediction ? Double.NaN : idxProbabilities.get(row, prediction);
+					if (PathClassTools.isIgnoredClass(pathClass)) {
+						pathClass = null;
+						probability = Double.NaN;
+					} 
+					int ind = rows == null ? row : rows[row];
+					predictedClasses[ind] = pathClass;
+					predictedProbabilities[ind] = probability;
 				}
-				idxResults.release();
-				if (idxProbabilities != null)
-					idxProbabilities.release();
-			} catch (Exception e) {
-				logger.warn("Error with samples: {}", samples);
-				logger.error(e.getLocalizedMessage(), e);
 			}
-			counter += tempObjectList.size();
+			idxResults.release();
+			if (idxProbabilities != null)
+				idxProbabilities.release();
 		}
-		long predictTime = System.currentTimeMillis() - startTime;
-		logger.info("Prediction time: {} ms for {} objects ({} ns per object)",
-				predictTime, pathObjects.size(),
-				GeneralTools.formatNumber((double)predictTime/pathObjects.size() * 1000.0, 2));
-
-		samples.release();
-		results.release();
-		if (probabilities != null)
-			probabilities.release();
-
-		// Apply classifications now
-		reclassifiers.stream().forEach(p -> p.apply());
-
-		return counter;
+		
+		void close() {
+			samples.release();
+			uncachedSamples.release();
+			results.release();
+			if (probabilities != null)
+				probabilities.release();
+		}
+		
 	}
 	
 	@Override
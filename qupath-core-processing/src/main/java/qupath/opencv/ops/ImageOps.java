@@ -38,14 +38,12 @@ import java.util.stream.IntStream;
 import org.bytedeco.javacpp.indexer.DoubleIndexer;
 import org.bytedeco.javacpp.indexer.FloatIndexer;
 import org.bytedeco.opencv.global.opencv_core;
-import org.bytedeco.opencv.global.opencv_dnn;
 import org.bytedeco.opencv.global.opencv_imgproc;
 import org.bytedeco.opencv.opencv_core.Mat;
 import org.bytedeco.opencv.opencv_core.MatVector;
 import org.bytedeco.opencv.opencv_core.Rect;
 import org.bytedeco.opencv.opencv_core.Scalar;
 import org.bytedeco.opencv.opencv_core.Size;
-import org.bytedeco.opencv.opencv_dnn.Net;
 import org.bytedeco.opencv.opencv_ml.StatModel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -63,12 +61,18 @@ import qupath.lib.images.servers.ServerTools;
 import qupath.lib.io.GsonTools;
 import qupath.lib.regions.Padding;
 import qupath.lib.regions.RegionRequest;
+import qupath.opencv.dnn.DnnBackend;
+import qupath.opencv.dnn.DnnBackends;
+import qupath.opencv.dnn.DnnModel;
+import qupath.opencv.dnn.DnnOptions;
+import qupath.opencv.dnn.OpenCVDnnBackend;
 import qupath.opencv.ml.OpenCVDNN;
 import qupath.opencv.ml.FeaturePreprocessor;
 import qupath.opencv.ml.OpenCVClassifiers.OpenCVStatModel;
 import qupath.opencv.tools.LocalNormalization;
 import qupath.opencv.tools.MultiscaleFeatures.MultiscaleFeature;
 import qupath.opencv.tools.MultiscaleFeatures.MultiscaleResultsBuilder;
+import qupath.opencv.tools.MultiscaleFeatures.ScaleSpaceResultsBuilder;
 import qupath.opencv.tools.OpenCVTools;
 
 /**
@@ -573,6 +577,20 @@ public class ImageOps {
 			return new MultiscaleFeatureOp(features, sigmaX, sigmaY);
 		}
 		
+		/**
+		 * Compute one or more {@link MultiscaleFeature}s for multiple smoothing values (must be &gt; 0), sharing calculations between scales.
+		 * <p>
+		 * The output is equivalent (within a small tolerance) to merging the output of {@link #features(Collection, double, double)} 
+		 * for each sigma value in turn, but is generally faster because the Gaussian scale-space is built incrementally.
+		 * @param features
+		 * @param sigmas
+		 * @return
+		 * @see ScaleSpaceResultsBuilder
+		 */
+		public static ImageOp features(Collection<MultiscaleFeature> features, double[] sigmas) {
+			return new ScaleSpaceFeatureOp(features, sigmas);
+		}
+		
 		/**
 		 * Apply a 2D maximum filter.
 		 * @param radius filter radius. Must be 1 or greater. 1 indicates a 3x3 square; larger filters approximate a circle.
@@ -742,6 +760,70 @@ public class ImageOps {
 		}
 		
 		
+		@OpType("multiscale-scale-space")
+		static class ScaleSpaceFeatureOp extends PaddedOp {
+			
+			private List<MultiscaleFeature> features;
+			private double[] sigmas;
+			private transient ScaleSpaceResultsBuilder builder;
+			
+			ScaleSpaceFeatureOp(Collection<MultiscaleFeature> features, double[] sigmas) {
+				this.features = new ArrayList<>(new LinkedHashSet<>(features));
+				this.sigmas = sigmas.clone();
+			}
+
+			@Override
+			protected Padding calculatePadding() {
+				double maxSigma = 0;
+				for (double s : sigmas)
+					maxSigma = Math.max(maxSigma, s);
+				return Padding.symmetric((int)(Math.ceil(maxSigma * 4) * 2 + 1));
+			}
+
+			@Override
+			protected Mat transformPadded(Mat input) {
+				var builder = getBuilder();
+				var channels = OpenCVTools.splitChannels(input);
+				var channelResults = new ArrayList<List<Map<MultiscaleFeature, Mat>>>();
+				for (var mat : channels)
+					channelResults.add(builder.build(mat));
+				// Output in the same order as merging the results for each scale separately
+				var output = new ArrayList<Mat>();
+				for (int i = 0; i < sigmas.length; i++) {
+					for (var results : channelResults) {
+						for (var f : features)
+							output.add(results.get(i).get(f));
+					}
+				}
+				return OpenCVTools.mergeChannels(output, input);
+			}
+			
+			@Override
+			public List<ImageChannel> getChannels(List<ImageChannel> channels) {
+				var list = new ArrayList<ImageChannel>();
+				for (double sigma : sigmas) {
+					for (var c : channels) {
+						var color = c.getColor();
+						var name = c.getName();
+						for (var f : features) {
+							list.add(ImageChannel.getInstance(
+									String.format("%s (%s, sigma=%.1f,%.1f)", name, f.toString(), sigma, sigma),
+									color));
+						}
+					}
+				}
+				return list;
+			}
+			
+			private ScaleSpaceResultsBuilder getBuilder() {
+				if (builder == null)
+					builder = new ScaleSpaceResultsBuilder(features).sigmas(sigmas);
+				return builder;
+			}
+			
+		}
+		
+		
 		@OpType("gaussian")
 		static class GaussianFilterOp extends PaddedOp {
 			
@@ -1645,6 +1727,21 @@ public class ImageOps {
 			return new DnnOp(dnn, inputWidth, inputHeight, padding, false);
 		}
 		
+		/**
+		 * Apply a deep learning model to pixels to generate a prediction, using a {@link DnnBackend}.
+		 * @param backend name of the backend used to load the model; if null, the first installed backend that supports the model will be used
+		 * @param modelPath path to the model
+		 * @param options options used to load and apply the model; if null, the default options will be used
+		 * @param inputWidth input width; if &le; 0, the width is determined by the model (if fixed) or the input image
+		 * @param inputHeight input height; if &le; 0, the height is determined by the model (if fixed) or the input image
+		 * @param padding padding that is required by the model, and should be removed from the output
+		 * @return
+		 * @see DnnBackends
+		 */
+		public static ImageOp dnn(String backend, String modelPath, DnnOptions options, int inputWidth, int inputHeight, Padding padding) {
+			return new DnnModelOp(backend, modelPath, options, inputWidth, inputHeight, padding);
+		}
+		
 		/**
 		 * Apply a {@link FeaturePreprocessor} to pixels, considering each channel as features.
 		 * @param preprocessor
@@ -1698,9 +1795,7 @@ public class ImageOps {
 			
 			private Padding padding;
 			
-			private transient Net net;
-			private transient ThreadLocal<Net> localNet = ThreadLocal.withInitial(() -> readNet());
-			private transient Exception exception;
+			private transient DnnModel dnnModel;
 			
 			/**
 			 * A DNN op.
@@ -1724,39 +1819,78 @@ public class ImageOps {
 				return padding;
 			}
 			
+			private synchronized DnnModel getModel() {
+				if (dnnModel == null) {
+					var options = new DnnOptions.Builder()
+							.maxConcurrentPredictions(doParallel ? Runtime.getRuntime().availableProcessors() : 1)
+							.build();
+					dnnModel = OpenCVDnnBackend.createModel(model, options);
+				}
+				return dnnModel;
+			}
+
+			@Override
+			protected Mat transformPadded(Mat input) {
+				return applyModel(getModel(), input, inputWidth, inputHeight);
+			}
+			
+			@Override
+			public PixelType getOutputType(PixelType inputType) {
+				return PixelType.FLOAT32;
+			}
+
+		}
+		
+		@OpType("dnn")
+		static class DnnModelOp extends PaddedOp {
+
+			private String backend;
+			private String modelPath;
+			private DnnOptions options;
+			private int inputWidth;
+			private int inputHeight;
+			
+			private Padding padding;
+			
+			private transient DnnModel dnnModel;
+			private transient Exception exception;
+			
+			DnnModelOp(String backend, String modelPath, DnnOptions options, int inputWidth, int inputHeight, Padding padding) {
+				this.backend = backend;
+				this.modelPath = modelPath;
+				this.options = options;
+				this.inputWidth = inputWidth;
+				this.inputHeight = inputHeight;
+				this.padding = padding == null ? Padding.empty() : padding;
+			}
+
+			@Override
+			protected Padding calculatePadding() {
+				return padding;
+			}
+			
 			/**
-			 * Try to read the {@link Net}, setting the exception if this fails
+			 * Try to load the model, setting the exception if this fails
 			 * @return
 			 */
-			private Net readNet() {
-				if (exception == null) {
+			private synchronized DnnModel getModel() {
+				if (dnnModel == null && exception == null) {
 					try {
-						return model.getNet();
+						dnnModel = DnnBackends.loadModel(backend, modelPath, options);
 					} catch (IOException e) {
+						logger.error("Unable to load model: " + e.getLocalizedMessage(), e);
 						exception = e;
 					}
 				}
-				return null;
-			}
-			
-			private Net getNet() {
-				if (doParallel)
-					return localNet.get();
-				if (net == null)
-					net = readNet();
-				return net;
+				return dnnModel;
 			}
 
 			@Override
 			protected Mat transformPadded(Mat input) {
-				Net net = getNet();
-				if (exception == null) {
-					if ((inputWidth <= 0 && inputHeight <= 0) || (input.cols() == inputWidth && input.rows() == inputHeight))
-						return doClassification(input, net);
-					else
-						return OpenCVTools.applyTiled(m -> doClassification(m, net), input, inputWidth, inputHeight, opencv_core.BORDER_REFLECT);
-				}
-				throw new RuntimeException(exception);
+				var model = getModel();
+				if (exception != null)
+					throw new RuntimeException(exception);
+				return applyModel(model, input, inputWidth, inputHeight);
 			}
 			
 			@Override
@@ -1766,6 +1900,32 @@ public class ImageOps {
 
 		}
 		
+		/**
+		 * Apply a model to an image, splitting it into tiles if required.
+		 * @param model the model
+		 * @param input the input image
+		 * @param inputWidth the requested input width; may be &le; 0 if the model should be applied to the whole image
+		 * @param inputHeight the requested input height; may be &le; 0 if the model should be applied to the whole image
+		 * @return the model output
+		 */
+		private static Mat applyModel(DnnModel model, Mat input, int inputWidth, int inputHeight) {
+			int[] size = model.negotiateInputSize(inputWidth, inputHeight);
+			int width = size[0];
+			int height = size[1];
+			if ((width <= 0 && height <= 0) || (input.cols() == width && input.rows() == height))
+				return predict(model, input);
+			else
+				return OpenCVTools.applyTiled(m -> predict(model, m), input, width, height, opencv_core.BORDER_REFLECT);
+		}
+		
+		private static Mat predict(DnnModel model, Mat mat) {
+			try {
+				return model.predict(mat);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
 		@OpType("opencv-statmodel")
 		static class StatModelOp implements ImageOp {
 
@@ -1804,54 +1964,6 @@ public class ImageOps {
 	}
 	
 	
-	private static Mat doClassification(Mat mat, Net net) {
-    	// Currently we require 32-bit input
-    	mat.convertTo(mat, opencv_core.CV_32F);
-    	
-        // Net appears not to support multithreading, so we need to synchronize.
-        // We also need to extract the results we need at this point while still within the synchronized block,
-    	// since it appears that the result of calling model.forward() can become invalid later.
-    	Mat matResult = null;
-    	Mat blob = null;
-    	if (mat.channels() == 3) {
-    		blob = opencv_dnn.blobFromImage(mat);
-    	} else {
-    		// TODO: Don't have any net to test this with currently...
-    		logger.warn("Attempting to reshape an image with channels != 3 - this may not work!");
-    		int[] shape = new int[mat.dims() + 1];
-    		shape[0] = 1;
-    		for (int s = 1; s < shape.length; s++) {
-    			shape[1] = mat.size(s-1);
-    		}
-    		if (mat.isContinuous())
-    			blob = new Mat(shape, opencv_core.CV_32F, mat);
-    		else
-        		blob = new Mat(shape, opencv_core.CV_32F, mat.clone());
-    	}
-    	synchronized(net) {
-    		long startTime = System.currentTimeMillis();
-    		net.setInput(blob);
-    		try {
-    			Mat prob = net.forward();
-    			MatVector matvec = new MatVector();
-    			opencv_dnn.imagesFromBlob(prob, matvec);
-    			if (matvec.size() != 1)
-    				throw new IllegalArgumentException("DNN result must be a single image - here, the result is " + matvec.size() + " images");
-    			// Get the first result & clone it - otherwise can have threading woes
-    			matResult = matvec.get(0L).clone();
-    			matvec.close();
-    		} catch (Exception e2) {
-    			logger.error("Error applying classifier", e2);
-    		}
-    		long endTime = System.currentTimeMillis();
-    		logger.trace("Classification time: {} ms", endTime - startTime);
-    	}
-        
-        return matResult;
-    }
-	
-	
-	
 	/**
      * Rescale the rows of matResult so that they sum to maxValue.
      * <p>
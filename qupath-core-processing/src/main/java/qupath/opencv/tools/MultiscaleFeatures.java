@@ -25,9 +25,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
 import org.bytedeco.javacpp.FloatPointer;
 import org.bytedeco.javacpp.indexer.FloatIndexer;
 import org.bytedeco.opencv.global.opencv_core;
@@ -927,6 +931,261 @@ public class MultiscaleFeatures {
 		
 	}
 	
+	/**
+	 * Helper-class for computing 2D pixel-features at multiple scales, sharing calculations between scales.
+	 * <p>
+	 * Rather than filtering the input image from scratch for each scale (as {@link MultiscaleResultsBuilder} does), 
+	 * this builds a Gaussian scale-space incrementally. The image smoothed with {@code sigma_n} is used to compute the 
+	 * image smoothed with {@code sigma_(n+1)} by applying a Gaussian filter with {@code sqrt(sigma_(n+1)^2 - sigma_n^2)}, 
+	 * and Gaussian derivatives are computed from the previous scale in the same way. 
+	 * The squared image and the structure tensor components are smoothed incrementally too, 
+	 * and working {@code Mat}s are reused for each thread.
+	 * <p>
+	 * Where the difference between successive scales is very small the incremental filter would be poorly sampled, 
+	 * and so the scale is computed from the input image instead.
+	 * The results match those of {@link MultiscaleResultsBuilder} within a small tolerance, although values 
+	 * close to the image boundary may differ more because of the border handling.
+	 */
+	public static class ScaleSpaceResultsBuilder {
+		
+		/**
+		 * Minimum Gaussian sigma (in pixels) for which an incremental filter will be applied.
+		 */
+		private static final double MIN_INCREMENTAL_SIGMA = 1.0;
+		
+		private final Set<MultiscaleFeature> features = EnumSet.noneOf(MultiscaleFeature.class);
+		
+		private double[] sigmas = new double[] {1.0};
+		
+		private PixelCalibration pixelCalibration = PixelCalibration.getDefaultInstance();
+		private double downsampleXY = 1.0;
+		
+		private int border = BORDER_DEFAULT.getOpenCVCode();
+		
+		private List<Scale> scales;
+		private final ThreadLocal<ScratchMats> scratch = ThreadLocal.withInitial(ScratchMats::new);
+		
+		/**
+		 * Constructor prepared to calculate specified features.
+		 * 
+		 * @param features
+		 */
+		public ScaleSpaceResultsBuilder(Collection<MultiscaleFeature> features) {
+			for (var f : features) {
+				if (f.supports2D())
+					this.features.add(f);
+			}
+		}
+		
+		/**
+		 * Set the Gaussian sigma values, one for each scale.
+		 * <p>
+		 * Note that these values are in pixels by default, or may be microns is supported 
+		 * by setting the pixel calibration.
+		 * 
+		 * @param sigmas
+		 * @return
+		 * 
+		 * @see #pixelCalibration(PixelCalibration, double)
+		 */
+		public synchronized ScaleSpaceResultsBuilder sigmas(double... sigmas) {
+			for (double s : sigmas) {
+				if (!(s > 0))
+					throw new IllegalArgumentException("Sigma values must be > 0!");
+			}
+			this.sigmas = sigmas.clone();
+			this.scales = null;
+			return this;
+		}
+		
+		/**
+		 * Set the pixel calibration, with optional x,y scaling.
+		 * 
+		 * @param cal
+		 * @param downsampleXY
+		 * @return
+		 * 
+		 * @see MultiscaleResultsBuilder#pixelCalibration(PixelCalibration, double)
+		 */
+		public synchronized ScaleSpaceResultsBuilder pixelCalibration(PixelCalibration cal, double downsampleXY) {
+			this.pixelCalibration = cal;
+			this.downsampleXY = downsampleXY;
+			this.scales = null;
+			return this;
+		}
+		
+		/**
+		 * Calculate results for a single Mat.
+		 * @param mat
+		 * @return a list of maps connecting features and Mats, one for each sigma value (in the order they were set)
+		 */
+		public List<Map<MultiscaleFeature, Mat>> build(Mat mat) {
+			var scales = getScales();
+			var s = scratch.get();
+			
+			int depth = opencv_core.CV_32F;
+			mat.convertTo(s.input, depth);
+			
+			boolean doSmoothed = features.contains(MultiscaleFeature.GAUSSIAN);
+			boolean doWeightedStdDev = features.contains(MultiscaleFeature.WEIGHTED_STD_DEV);
+			boolean doGradient = features.contains(MultiscaleFeature.GRADIENT_MAGNITUDE);
+			boolean doStructureTensor = features.contains(MultiscaleFeature.STRUCTURE_TENSOR_EIGENVALUE_MAX) ||
+					features.contains(MultiscaleFeature.STRUCTURE_TENSOR_EIGENVALUE_MIN) ||
+					features.contains(MultiscaleFeature.STRUCTURE_TENSOR_COHERENCE);
+			boolean doHessian = features.contains(MultiscaleFeature.LAPLACIAN) ||
+					features.contains(MultiscaleFeature.HESSIAN_DETERMINANT) ||
+					features.contains(MultiscaleFeature.HESSIAN_EIGENVALUE_MAX) ||
+					features.contains(MultiscaleFeature.HESSIAN_EIGENVALUE_MIN);
+			
+			// Compute anything that is shared by all scales
+			if (doWeightedStdDev)
+				opencv_core.multiply(s.input, s.input, s.squared);
+			if (doStructureTensor) {
+				opencv_imgproc.Sobel(s.input, s.dx, depth, 1, 0);
+				opencv_imgproc.Sobel(s.input, s.dy, depth, 0, 1);
+				opencv_core.multiply(s.dx, s.dx, s.stXX);
+				opencv_core.multiply(s.dx, s.dy, s.stXY);
+				opencv_core.multiply(s.dy, s.dy, s.stYY);
+			}
+			
+			List<Map<MultiscaleFeature, Mat>> results = new ArrayList<>(Collections.nCopies(scales.size(), null));
+			for (var scale : scales) {
+				Map<MultiscaleFeature, Mat> output = new LinkedHashMap<>();
+				
+				// Derivatives are computed from the previous scale (if incremental) or the input image
+				Mat base = scale.incremental ? s.smoothed : s.input;
+				
+				if (doGradient) {
+					opencv_imgproc.sepFilter2D(base, s.dx, depth, scale.kx1, scale.ky0, null, 0.0, border);
+					opencv_imgproc.sepFilter2D(base, s.dy, depth, scale.kx0, scale.ky1, null, 0.0, border);
+					Mat magnitude = new Mat();
+					opencv_core.magnitude(s.dx, s.dy, magnitude);
+					output.put(MultiscaleFeature.GRADIENT_MAGNITUDE, magnitude);
+				}
+				
+				if (doHessian) {
+					opencv_imgproc.sepFilter2D(base, s.dxx, depth, scale.kx2, scale.ky0, null, 0.0, border);
+					opencv_imgproc.sepFilter2D(base, s.dyy, depth, scale.kx0, scale.ky2, null, 0.0, border);
+					opencv_imgproc.sepFilter2D(base, s.dxy, depth, scale.kx1, scale.ky1, null, 0.0, border);
+					// All outputs are new Mats, so we can continue to reuse the derivatives
+					var hessian = new Hessian2D(s.dxx, s.dxy, s.dyy, false);
+					if (features.contains(MultiscaleFeature.LAPLACIAN))
+						output.put(MultiscaleFeature.LAPLACIAN, hessian.getLaplacian());
+					if (features.contains(MultiscaleFeature.HESSIAN_DETERMINANT))
+						output.put(MultiscaleFeature.HESSIAN_DETERMINANT, hessian.getDeterminant());
+					if (features.contains(MultiscaleFeature.HESSIAN_EIGENVALUE_MAX) || features.contains(MultiscaleFeature.HESSIAN_EIGENVALUE_MIN)) {
+						List<Mat> eigenvalues = hessian.getEigenvalues();
+						output.put(MultiscaleFeature.HESSIAN_EIGENVALUE_MAX, eigenvalues.get(0));
+						output.put(MultiscaleFeature.HESSIAN_EIGENVALUE_MIN, eigenvalues.get(1));
+					}
+				}
+				
+				// Update the smoothed image - this is needed as the base for the next scale
+				opencv_imgproc.sepFilter2D(base, s.smoothed, depth, scale.kx0, scale.ky0, null, 0.0, border);
+				if (doSmoothed)
+					output.put(MultiscaleFeature.GAUSSIAN, s.smoothed.clone());
+				
+				if (doWeightedStdDev) {
+					Mat baseSquared = scale.incremental ? s.squaredSmoothed : s.squared;
+					opencv_imgproc.sepFilter2D(baseSquared, s.squaredSmoothed, depth, scale.kx0, scale.ky0, null, 0.0, border);
+					Mat matStdDev = opencv_core.subtract(s.squaredSmoothed, s.smoothed.mul(s.smoothed)).asMat();
+					opencv_core.sqrt(matStdDev, matStdDev);
+					output.put(MultiscaleFeature.WEIGHTED_STD_DEV, matStdDev);
+				}
+				
+				if (doStructureTensor) {
+					opencv_imgproc.sepFilter2D(scale.incremental ? s.stXXSmoothed : s.stXX, s.stXXSmoothed, depth, scale.kx0, scale.ky0, null, 0.0, border);
+					opencv_imgproc.sepFilter2D(scale.incremental ? s.stXYSmoothed : s.stXY, s.stXYSmoothed, depth, scale.kx0, scale.ky0, null, 0.0, border);
+					opencv_imgproc.sepFilter2D(scale.incremental ? s.stYYSmoothed : s.stYY, s.stYYSmoothed, depth, scale.kx0, scale.ky0, null, 0.0, border);
+					var temp = new EigenSymm2(s.stXXSmoothed, s.stXYSmoothed, s.stYYSmoothed, false);
+					output.put(MultiscaleFeature.STRUCTURE_TENSOR_EIGENVALUE_MAX, temp.eigvalMax);
+					output.put(MultiscaleFeature.STRUCTURE_TENSOR_EIGENVALUE_MIN, temp.eigvalMin);
+					output.put(MultiscaleFeature.STRUCTURE_TENSOR_COHERENCE, calculateCoherence(temp.eigvalMax, temp.eigvalMin));
+				}
+				
+				results.set(scale.index, output);
+			}
+			return results;
+		}
+		
+		/**
+		 * Get the scales in ascending order, along with the kernels needed to compute them.
+		 * @return
+		 */
+		private synchronized List<Scale> getScales() {
+			if (scales != null)
+				return scales;
+			
+			var indices = IntStream.range(0, sigmas.length)
+					.boxed()
+					.sorted((i1, i2) -> Double.compare(sigmas[i1], sigmas[i2]))
+					.mapToInt(i -> i)
+					.toArray();
+			
+			var list = new ArrayList<Scale>();
+			double lastSigmaX = 0, lastSigmaY = 0;
+			for (int ind : indices) {
+				double sigmaX = sigmas[ind];
+				double sigmaY = sigmas[ind];
+				if (pixelCalibration.hasPixelSizeMicrons()) {
+					sigmaX /= pixelCalibration.getPixelWidthMicrons() * downsampleXY;
+					sigmaY /= pixelCalibration.getPixelHeightMicrons() * downsampleXY;
+				}
+				double incX = Math.sqrt(sigmaX*sigmaX - lastSigmaX*lastSigmaX);
+				double incY = Math.sqrt(sigmaY*sigmaY - lastSigmaY*lastSigmaY);
+				boolean incremental = !list.isEmpty() && incX >= MIN_INCREMENTAL_SIGMA && incY >= MIN_INCREMENTAL_SIGMA;
+				if (incremental)
+					list.add(new Scale(ind, incX, incY, true));
+				else
+					list.add(new Scale(ind, sigmaX, sigmaY, false));
+				lastSigmaX = sigmaX;
+				lastSigmaY = sigmaY;
+			}
+			scales = Collections.unmodifiableList(list);
+			return scales;
+		}
+		
+		
+		/**
+		 * Filter kernels required to compute a single scale.
+		 */
+		private static class Scale {
+			
+			private final int index;
+			private final boolean incremental;
+			private final Mat kx0, kx1, kx2, ky0, ky1, ky2;
+			
+			Scale(int index, double sigmaX, double sigmaY, boolean incremental) {
+				this.index = index;
+				this.incremental = incremental;
+				kx0 = OpenCVTools.getGaussianDerivKernel(sigmaX, 0, false);
+				kx1 = OpenCVTools.getGaussianDerivKernel(sigmaX, 1, false);
+				kx2 = OpenCVTools.getGaussianDerivKernel(sigmaX, 2, false);
+				ky0 = OpenCVTools.getGaussianDerivKernel(sigmaY, 0, true);
+				ky1 = OpenCVTools.getGaussianDerivKernel(sigmaY, 1, true);
+				ky2 = OpenCVTools.getGaussianDerivKernel(sigmaY, 2, true);
+			}
+			
+		}
+		
+		/**
+		 * Working Mats, reused between calls on the same thread.
+		 */
+		private static class ScratchMats {
+			
+			private final Mat input = new Mat();
+			private final Mat smoothed = new Mat();
+			private final Mat squared = new Mat(), squaredSmoothed = new Mat();
+			private final Mat dx = new Mat(), dy = new Mat();
+			private final Mat dxx = new Mat(), dxy = new Mat(), dyy = new Mat();
+			private final Mat stXX = new Mat(), stXY = new Mat(), stYY = new Mat();
+			private final Mat stXXSmoothed = new Mat(), stXYSmoothed = new Mat(), stYYSmoothed = new Mat();
+			
+		}
+		
+	}
+
+	
 	/**
 	 * Calculate coherence from the max/min eigenvalues of the structure tensor.
 	 * @param stMax
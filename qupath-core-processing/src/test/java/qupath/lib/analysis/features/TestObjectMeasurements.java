@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.analysis.features;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.algorithm.MinimumBoundingCircle;
+import org.locationtech.jts.algorithm.MinimumDiameter;
+import org.locationtech.jts.geom.util.AffineTransformation;
+
+import qupath.lib.analysis.features.ObjectMeasurements.ShapeFeatures;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestObjectMeasurements {
+	
+	@Test
+	public void test_polygonShapeMeasurements() {
+		var cal = new PixelCalibration.Builder().pixelSizeMicrons(0.5, 0.75).build();
+		String um = GeneralTools.micrometerSymbol();
+		var rand = new Random(100L);
+		
+		// Star-shaped polygons are always simple, and so measured directly from their vertices
+		List<PathObject> pathObjects = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			int n = 5 + rand.nextInt(100);
+			double cx = rand.nextDouble() * 10000;
+			double cy = rand.nextDouble() * 10000;
+			double[] x = new double[n];
+			double[] y = new double[n];
+			for (int k = 0; k < n; k++) {
+				double r = 5 + rand.nextDouble() * 20;
+				x[k] = cx + r * Math.cos(2 * Math.PI * k / n);
+				y[k] = cy + r * Math.sin(2 * Math.PI * k / n);
+			}
+			pathObjects.add(PathObjects.createDetectionObject(ROIs.createPolygonROI(x, y, ImagePlane.getDefaultPlane())));
+		}
+		ObjectMeasurements.addShapeMeasurements(pathObjects, cal);
+		
+		var transform = AffineTransformation.scaleInstance(0.5, 0.75);
+		for (var pathObject : pathObjects) {
+			var geom = transform.transform(pathObject.getROI().getGeometry());
+			var ml = pathObject.getMeasurementList();
+			double area = geom.getArea();
+			double length = geom.getLength();
+			assertEquals(area, ml.getMeasurementValue("Area " + um + "^2"), 1e-6);
+			assertEquals(length, ml.getMeasurementValue("Length " + um), 1e-6);
+			assertEquals(4 * Math.PI * area / (length * length), ml.getMeasurementValue("Circularity"), 1e-6);
+			assertEquals(area / geom.convexHull().getArea(), ml.getMeasurementValue("Solidity"), 1e-6);
+			assertEquals(new MinimumBoundingCircle(geom).getRadius() * 2, ml.getMeasurementValue("Max diameter " + um), 1e-4);
+			assertEquals(new MinimumDiameter(geom).getLength(), ml.getMeasurementValue("Min diameter " + um), 1e-4);
+			// Ellipse measurements are only added on request
+			assertTrue(Double.isNaN(ml.getMeasurementValue("Ellipse major axis " + um)));
+		}
+	}
+	
+	@Test
+	public void test_ellipseFit() {
+		int n = 360;
+		double[] x = new double[n];
+		double[] y = new double[n];
+		for (int k = 0; k < n; k++) {
+			x[k] = 100 + 20 * Math.cos(2 * Math.PI * k / n);
+			y[k] = 100 + 5 * Math.sin(2 * Math.PI * k / n);
+		}
+		var roiPolygon = ROIs.createPolygonROI(x, y, ImagePlane.getDefaultPlane());
+		var roiEllipse = ROIs.createEllipseROI(80, 95, 40, 10, ImagePlane.getDefaultPlane());
+		var polygon = PathObjects.createDetectionObject(roiPolygon);
+		var ellipse = PathObjects.createDetectionObject(roiEllipse);
+		// Polygonal geometry with a hole, which requires the geometry-based approach
+		var roiHole = ROIs.createEllipseROI(90, 97.5, 20, 5, ImagePlane.getDefaultPlane());
+		var roiAnnulus = GeometryTools.geometryToROI(roiEllipse.getGeometry().difference(roiHole.getGeometry()), ImagePlane.getDefaultPlane());
+		var annulus = PathObjects.createDetectionObject(roiAnnulus);
+		
+		ObjectMeasurements.addShapeMeasurements(List.of(polygon, ellipse, annulus), null, ShapeFeatures.ELLIPSE);
+		for (var pathObject : List.of(polygon, ellipse, annulus)) {
+			var ml = pathObject.getMeasurementList();
+			assertEquals(3, ml.size());
+			assertEquals(Math.sqrt(1 - 1.0/16.0), ml.getMeasurementValue("Ellipse eccentricity"), 0.01);
+		}
+		assertEquals(40, polygon.getMeasurementList().getMeasurementValue("Ellipse major axis px"), 0.01);
+		assertEquals(10, polygon.getMeasurementList().getMeasurementValue("Ellipse minor axis px"), 0.01);
+		assertEquals(40, ellipse.getMeasurementList().getMeasurementValue("Ellipse major axis px"), 0.01);
+		assertEquals(10, ellipse.getMeasurementList().getMeasurementValue("Ellipse minor axis px"), 0.01);
+		// Removing a concentric ellipse half the size increases the second moments by a factor of 1.25
+		assertEquals(40 * Math.sqrt(1.25), annulus.getMeasurementList().getMeasurementValue("Ellipse major axis px"), 0.5);
+	}
+
+}
@@ -0,0 +1,71 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.dnn;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.junit.jupiter.api.Test;
+
+import qupath.opencv.dnn.DnnModel.Layout;
+
+@SuppressWarnings("javadoc")
+public class DnnToolsTest {
+
+	@Test
+	public void testTensorConversion() {
+		int h = 5, w = 7, c = 3;
+		var mat = new Mat(h, w, opencv_core.CV_32FC(c));
+		try (FloatIndexer idx = mat.createIndexer()) {
+			for (int y = 0; y < h; y++)
+				for (int x = 0; x < w; x++)
+					for (int b = 0; b < c; b++)
+						idx.put(y, x, b, y * 100 + x * 10 + b);
+		}
+
+		var buffer = DnnTools.toTensor(mat, Layout.NCHW, null);
+		assertArrayEquals(new int[] {1, c, h, w}, DnnTools.getTensorShape(mat, Layout.NCHW));
+		assertEquals(h * w * c, buffer.limit());
+		// Channel-first: the second value is the next column of the first channel
+		assertEquals(0f, buffer.get(0));
+		assertEquals(10f, buffer.get(1));
+		assertEquals(1f, buffer.get(h * w));
+
+		// Reuse the buffer for a channel-last tensor
+		var buffer2 = DnnTools.toTensor(mat, Layout.NHWC, buffer);
+		assertSame(buffer, buffer2);
+		assertEquals(1f, buffer2.get(1));
+
+		for (var layout : Layout.values()) {
+			buffer = DnnTools.toTensor(mat, layout, buffer);
+			var mat2 = DnnTools.fromTensor(buffer, DnnTools.getTensorShape(mat, layout), layout);
+			assertEquals(0, opencv_core.norm(mat, mat2, opencv_core.NORM_INF, null));
+			mat2.close();
+		}
+		mat.close();
+	}
+
+}
@@ -0,0 +1,85 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.ml;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("javadoc")
+public class KdTreeIndexTest {
+
+	@Test
+	public void testExactSearch() {
+		int nSamples = 2000;
+		int nFeatures = 5;
+		int k = 7;
+		var rand = new Random(42L);
+		float[] values = new float[nSamples * nFeatures];
+		for (int i = 0; i < values.length; i++)
+			values[i] = (float)rand.nextGaussian();
+		// Include some duplicate samples
+		System.arraycopy(values, 0, values, nFeatures, nFeatures);
+
+		var index = KdTreeIndex.build(values, nFeatures);
+		assertEquals(nSamples, index.size());
+
+		for (int q = 0; q < 100; q++) {
+			float[] query = new float[nFeatures];
+			for (int d = 0; d < nFeatures; d++)
+				query[d] = (float)rand.nextGaussian();
+
+			double[] expected = new double[nSamples];
+			for (int i = 0; i < nSamples; i++)
+				expected[i] = Math.sqrt(distanceSquared(values, i * nFeatures, query, nFeatures));
+			Arrays.sort(expected);
+
+			var neighbors = index.search(query, k, 0);
+			assertEquals(k, neighbors.size());
+			for (int n = 0; n < k; n++) {
+				assertEquals(expected[n], neighbors.getDistance(n), 1e-6);
+				double actual = Math.sqrt(distanceSquared(values, neighbors.getIndex(n) * nFeatures, query, nFeatures));
+				assertEquals(actual, neighbors.getDistance(n), 1e-6);
+			}
+
+			// Approximate search should still return the requested number of neighbors, in order
+			var approx = index.search(query, k, 2);
+			assertEquals(k, approx.size());
+			for (int n = 1; n < k; n++)
+				assertTrue(approx.getDistance(n) >= approx.getDistance(n-1));
+		}
+	}
+
+	private static double distanceSquared(float[] values, int offset, float[] query, int nFeatures) {
+		double dist = 0;
+		for (int d = 0; d < nFeatures; d++) {
+			double diff = values[offset + d] - query[d];
+			dist += diff * diff;
+		}
+		return dist;
+	}
+
+}
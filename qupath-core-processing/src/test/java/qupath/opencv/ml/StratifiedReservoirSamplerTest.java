@@ -0,0 +1,122 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.ml;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.bytedeco.javacpp.indexer.IntIndexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("javadoc")
+public class StratifiedReservoirSamplerTest {
+
+	@Test
+	public void testSampling() {
+		int n = 100_000;
+		int[] labels = new int[n];
+		var rand = new Random(1L);
+		for (int i = 0; i < n; i++) {
+			// Imbalanced classes, with label 3 rare
+			double r = rand.nextDouble();
+			labels[i] = r < 0.7 ? 0 : r < 0.95 ? 1 : r < 0.999 ? 2 : 3;
+		}
+
+		var sampler = createSampler(labels, 1000, 42L);
+		assertEquals(n, sampler.getOfferedCount());
+		assertTrue(sampler.isSubsampled());
+		for (int label = 0; label < 4; label++) {
+			int count = sampler.getOfferedCount(label);
+			assertEquals(Math.min(count, 1000), sampler.getSelectedCount(label));
+			for (int ind : sampler.getSelectedIndices(label))
+				assertEquals(label, labels[ind]);
+		}
+
+		// Selected indices should be sorted & unique
+		int[] indices = sampler.getSelectedIndices();
+		assertEquals(sampler.getSelectedCount(), indices.length);
+		for (int i = 1; i < indices.length; i++)
+			assertTrue(indices[i] > indices[i-1]);
+
+		// Same seed gives the same selection, different seed a different one
+		assertArrayEquals(indices, createSampler(labels, 1000, 42L).getSelectedIndices());
+		assertFalse(Arrays.equals(indices, createSampler(labels, 1000, 43L).getSelectedIndices()));
+
+		// No limit retains everything
+		var all = createSampler(labels, 0, 42L);
+		assertFalse(all.isSubsampled());
+		assertEquals(n, all.getSelectedIndices().length);
+	}
+
+	@Test
+	public void testSelectRowsFromBatches() {
+		// Offer samples in batches of different sizes, with the sample index stored in the second column
+		var rand = new Random(2L);
+		List<Mat> batches = new ArrayList<>();
+		var sampler = new StratifiedReservoirSampler(50, 42L);
+		int ind = 0;
+		for (int b = 0; b < 20; b++) {
+			var mat = new Mat(1 + rand.nextInt(30), 2, opencv_core.CV_32SC1);
+			try (IntIndexer idx = mat.createIndexer()) {
+				for (int r = 0; r < mat.rows(); r++) {
+					idx.put(r, 0, rand.nextInt(3));
+					idx.put(r, 1, ind++);
+				}
+			}
+			sampler.offerRows(mat.col(0));
+			batches.add(mat);
+		}
+		assertTrue(sampler.isSubsampled());
+
+		// Selecting from the batches should give the same result as selecting from the combined matrix
+		var combined = new Mat();
+		for (var mat : batches)
+			combined.push_back(mat);
+		var expected = sampler.selectRows(combined);
+		var selected = sampler.selectRows(batches);
+		int[] indices = sampler.getSelectedIndices();
+		assertEquals(indices.length, selected.rows());
+		try (IntIndexer idxExpected = expected.createIndexer(); IntIndexer idxSelected = selected.createIndexer()) {
+			for (int r = 0; r < indices.length; r++) {
+				assertEquals(indices[r], idxSelected.get(r, 1));
+				assertEquals(idxExpected.get(r, 0), idxSelected.get(r, 0));
+			}
+		}
+	}
+
+	private static StratifiedReservoirSampler createSampler(int[] labels, int maxPerClass, long seed) {
+		var sampler = new StratifiedReservoirSampler(maxPerClass, seed);
+		for (int label : labels)
+			sampler.offer(label);
+		return sampler;
+	}
+
+}
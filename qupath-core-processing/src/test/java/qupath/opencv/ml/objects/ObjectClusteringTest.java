@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.opencv.ml.objects;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.opencv.ml.objects.ObjectClustering.ClusterResult;
+
+@SuppressWarnings("javadoc")
+public class ObjectClusteringTest {
+
+	private static final int N_FEATURES = 2;
+	private static final int N_LARGE = 600;
+	private static final int N_SMALL = 400;
+	private static final int N_OUTLIERS = 5;
+
+	/**
+	 * Two well-separated Gaussian clusters (the larger one first), optionally followed by a few isolated outliers.
+	 */
+	private static float[] createSamples(boolean includeOutliers) {
+		var rand = new Random(100L);
+		int n = N_LARGE + N_SMALL + (includeOutliers ? N_OUTLIERS : 0);
+		var features = new float[n * N_FEATURES];
+		for (int i = 0; i < N_LARGE + N_SMALL; i++) {
+			double center = i < N_LARGE ? 0 : 10;
+			for (int d = 0; d < N_FEATURES; d++)
+				features[i * N_FEATURES + d] = (float)(center + rand.nextGaussian() * 0.3);
+		}
+		for (int i = 0; i < n - N_LARGE - N_SMALL; i++) {
+			int offset = (N_LARGE + N_SMALL + i) * N_FEATURES;
+			features[offset] = -50f + i * 25f;
+			features[offset + 1] = 50f;
+		}
+		return features;
+	}
+
+	private static void checkTwoClusters(ClusterResult result, int nOutliers) {
+		assertEquals(2, result.nClusters());
+		assertEquals(N_LARGE + N_SMALL + nOutliers, result.nSamples());
+		// Clusters are ordered by size, and every sample should be assigned to its own cluster
+		for (int i = 0; i < N_LARGE + N_SMALL; i++)
+			assertEquals(i < N_LARGE ? 0 : 1, result.getLabel(i));
+		assertEquals(N_LARGE, result.getClusterSize(0));
+		assertEquals(N_SMALL, result.getClusterSize(1));
+		// Any outliers should not be assigned to a cluster
+		assertEquals(nOutliers, result.getNoiseCount());
+		for (int i = N_LARGE + N_SMALL; i < result.nSamples(); i++)
+			assertEquals(ObjectClustering.NOISE, result.getLabel(i));
+	}
+
+	@Test
+	public void test_kMeans() {
+		// k-means assigns every sample to a cluster, so isn't expected to handle outliers well
+		var features = createSamples(false);
+		var result = ObjectClustering.kMeans(2)
+				.batchSize(256)
+				.seed(1L)
+				.build()
+				.cluster(features, N_FEATURES);
+		checkTwoClusters(result, 0);
+	}
+
+	@Test
+	public void test_dbscan() {
+		var features = createSamples(true);
+		var result = ObjectClustering.dbscan(1.0, 5)
+				.build()
+				.cluster(features, N_FEATURES);
+		checkTwoClusters(result, N_OUTLIERS);
+	}
+
+	@Test
+	public void test_dbscanSubsampled() {
+		// Samples not included in the subset should be assigned using the nearest core sample
+		var features = createSamples(true);
+		var result = ObjectClustering.dbscan(1.0, 5)
+				.maxSamples(300)
+				.seed(2L)
+				.build()
+				.cluster(features, N_FEATURES);
+		checkTwoClusters(result, N_OUTLIERS);
+	}
+
+	@Test
+	public void test_applyClusters() {
+		var features = createSamples(true);
+		var result = ObjectClustering.dbscan(1.0, 5)
+				.build()
+				.cluster(features, N_FEATURES);
+		var pathObjects = new ArrayList<PathObject>();
+		for (int i = 0; i < result.nSamples(); i++)
+			pathObjects.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(i, 0, 1, 1, ImagePlane.getDefaultPlane())));
+
+		int nChanged = ObjectClustering.applyClusters(null, pathObjects, result, "Cluster");
+		assertEquals(N_LARGE + N_SMALL, nChanged);
+		assertEquals(PathClassFactory.getPathClass("Cluster 1"), pathObjects.get(0).getPathClass());
+		assertEquals(PathClassFactory.getPathClass("Cluster 2"), pathObjects.get(N_LARGE).getPathClass());
+		assertNull(pathObjects.get(pathObjects.size() - 1).getPathClass());
+
+		// Applying the same result again should not change anything
+		assertEquals(0, ObjectClustering.applyClusters(null, pathObjects, result, "Cluster"));
+		assertTrue(pathObjects.stream().allMatch(p -> p.getPathClass() == null || p.getPathClass().getName().startsWith("Cluster")));
+	}
+
+}
@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.opencv.tools;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.bytedeco.javacpp.PointerScope;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.Size;
+import org.junit.jupiter.api.Test;
+
+import qupath.opencv.tools.MultiscaleFeatures.MultiscaleFeature;
+import qupath.opencv.tools.MultiscaleFeatures.MultiscaleResultsBuilder;
+import qupath.opencv.tools.MultiscaleFeatures.ScaleSpaceResultsBuilder;
+
+@SuppressWarnings("javadoc")
+public class MultiscaleFeaturesTest {
+
+	/**
+	 * Check that computing features incrementally across scales gives the same results as computing each scale separately.
+	 */
+	@Test
+	public void testScaleSpaceFeatures() {
+
+		int width = 200;
+		int height = 160;
+		double[] sigmas = {0.5, 1.0, 2.0, 4.0, 8.0};
+		var features = Arrays.stream(MultiscaleFeature.values()).filter(f -> f.supports2D()).toArray(MultiscaleFeature[]::new);
+
+		try (PointerScope scope = new PointerScope()) {
+
+			// Create a reasonably smooth random image
+			var rand = new Random(100L);
+			float[] pixels = new float[width * height];
+			for (int i = 0; i < pixels.length; i++)
+				pixels[i] = rand.nextFloat() * 100f;
+			var mat = new Mat(height, width, opencv_core.CV_32FC1);
+			OpenCVTools.putPixelsFloat(mat, pixels);
+			opencv_imgproc.GaussianBlur(mat, mat, new Size(5, 5), 1.0);
+
+			var scaleSpace = new ScaleSpaceResultsBuilder(Arrays.asList(features))
+					.sigmas(sigmas)
+					.build(mat);
+			assertEquals(sigmas.length, scaleSpace.size());
+
+			// Ignore the boundary, since border handling can differ
+			int pad = (int)Math.ceil(sigmas[sigmas.length-1] * 4) * 2;
+			var rect = new Rect(pad, pad, width - pad*2, height - pad*2);
+
+			for (int i = 0; i < sigmas.length; i++) {
+				var expected = new MultiscaleResultsBuilder(Arrays.asList(features))
+						.sigmaXY(sigmas[i])
+						.build(mat);
+				for (var f : features) {
+					var matExpected = expected.get(f).apply(rect);
+					var matActual = scaleSpace.get(i).get(f).apply(rect);
+					double maxExpected = maxAbs(matExpected);
+					var diff = new Mat();
+					opencv_core.absdiff(matExpected, matActual, diff);
+					double maxDiff = maxAbs(diff);
+					assertTrue(maxDiff <= maxExpected * 1e-2 + 1e-4,
+							String.format("%s (sigma=%.1f): max difference %f for max value %f", f, sigmas[i], maxDiff, maxExpected));
+				}
+			}
+		}
+	}
+
+	private static double maxAbs(Mat mat) {
+		double[] minVal = new double[1];
+		double[] maxVal = new double[1];
+		opencv_core.minMaxLoc(mat, minVal, maxVal, null, null, null);
+		return Math.max(Math.abs(minVal[0]), Math.abs(maxVal[0]));
+	}
+
+}
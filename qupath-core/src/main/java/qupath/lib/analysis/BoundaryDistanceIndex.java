@@ -0,0 +1,409 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
+import org.locationtech.jts.algorithm.locate.PointOnGeometryLocator;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Location;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.util.GeometryCombiner;
+import org.locationtech.jts.index.strtree.ItemBoundable;
+import org.locationtech.jts.index.strtree.ItemDistance;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index to compute the distance from many query points to the closest of a collection of target geometries.
+ * <p>
+ * The boundaries of all target geometries are decomposed into line segments (with points represented as zero-length segments), 
+ * which are stored in an {@link STRtree} so that each query only needs to examine segments close to the query point.
+ * Points inside any polygonal target have a distance of zero.
+ * <p>
+ * For very large numbers of queries, an approximate distance transform can optionally be computed on a regular grid, 
+ * so that each query requires only a lookup and interpolation. Distances are then accurate to within approximately the 
+ * grid resolution.
+ * <p>
+ * Once created, the index is immutable and may be queried from multiple threads.
+ * 
+ * @author Pete Bankhead
+ */
+public class BoundaryDistanceIndex {
+	
+	private final static Logger logger = LoggerFactory.getLogger(BoundaryDistanceIndex.class);
+	
+	/**
+	 * Maximum number of pixels in the distance transform raster.
+	 */
+	private static final long MAX_RASTER_PIXELS = 64L * 1024L * 1024L;
+	
+	private final int nSegments;
+	private final double[] segments;
+	private final STRtree tree;
+	private final PointOnGeometryLocator locator;
+	
+	private final DistanceRaster raster;
+	
+	private BoundaryDistanceIndex(double[] segments, int nSegments, Geometry areaGeometry, double resolution) {
+		this.segments = segments;
+		this.nSegments = nSegments;
+		this.tree = new STRtree();
+		for (int i = 0; i < nSegments; i++) {
+			int ind = i * 4;
+			tree.insert(new Envelope(segments[ind], segments[ind+2], segments[ind+1], segments[ind+3]), Integer.valueOf(i));
+		}
+		// Build now, so that the tree can be safely queried in parallel
+		if (nSegments > 0)
+			tree.build();
+		this.locator = areaGeometry == null ? null : new IndexedPointInAreaLocator(areaGeometry);
+		this.raster = resolution > 0 && nSegments > 0 ? new DistanceRaster(this, resolution) : null;
+	}
+	
+	/**
+	 * Create an index to compute exact distances to a collection of geometries.
+	 * @param geometries the target geometries
+	 * @return the index
+	 */
+	public static BoundaryDistanceIndex create(Collection<? extends Geometry> geometries) {
+		return create(geometries, -1);
+	}
+	
+	/**
+	 * Create an index to compute distances to a collection of geometries, optionally approximating these using a distance transform.
+	 * @param geometries the target geometries
+	 * @param resolution the pixel size of the distance transform raster; if &le; 0, exact distances are computed instead
+	 * @return the index
+	 */
+	public static BoundaryDistanceIndex create(Collection<? extends Geometry> geometries, double resolution) {
+		var builder = new SegmentBuilder();
+		List<Geometry> areas = new ArrayList<>();
+		for (var geometry : geometries)
+			builder.add(geometry, areas);
+		Geometry areaGeometry = null;
+		if (!areas.isEmpty())
+			areaGeometry = areas.size() == 1 ? areas.get(0) : GeometryCombiner.combine(areas);
+		return new BoundaryDistanceIndex(builder.segments, builder.n, areaGeometry, resolution);
+	}
+	
+	/**
+	 * Get the number of boundary segments stored in the index.
+	 * @return
+	 */
+	public int getSegmentCount() {
+		return nSegments;
+	}
+	
+	/**
+	 * Query whether distances are approximated using a distance transform.
+	 * @return
+	 */
+	public boolean isApproximate() {
+		return raster != null;
+	}
+	
+	/**
+	 * Compute the distance from a point to the closest target geometry.
+	 * @param x
+	 * @param y
+	 * @return the distance, or Double.POSITIVE_INFINITY if there are no target geometries
+	 */
+	public double getDistance(double x, double y) {
+		if (locator != null && locator.locate(new Coordinate(x, y)) != Location.EXTERIOR)
+			return 0;
+		if (raster != null) {
+			double d = raster.getDistance(x, y);
+			if (!Double.isNaN(d))
+				return d;
+		}
+		return getBoundaryDistance(x, y);
+	}
+	
+	/**
+	 * Compute distances for many points in parallel.
+	 * @param x x-coordinates of the query points
+	 * @param y y-coordinates of the query points
+	 * @return an array containing the distance for each query point
+	 * @see #getDistance(double, double)
+	 */
+	public double[] getDistances(double[] x, double[] y) {
+		if (x.length != y.length)
+			throw new IllegalArgumentException("Coordinate arrays have different lengths!");
+		double[] distances = new double[x.length];
+		IntStream.range(0, x.length).parallel().forEach(i -> distances[i] = getDistance(x[i], y[i]));
+		return distances;
+	}
+	
+	/**
+	 * Compute the exact distance from a point to the closest boundary segment, ignoring whether or not the point lies inside an area.
+	 */
+	double getBoundaryDistance(double x, double y) {
+		if (nSegments == 0)
+			return Double.POSITIVE_INFINITY;
+		var coord = new Coordinate(x, y);
+		var nearest = (Integer)tree.nearestNeighbour(new Envelope(coord), coord, new SegmentDistance());
+		return Math.sqrt(segmentDistanceSq(x, y, nearest.intValue()));
+	}
+	
+	private double segmentDistanceSq(double px, double py, int segment) {
+		int ind = segment * 4;
+		double x0 = segments[ind];
+		double y0 = segments[ind+1];
+		double dx = segments[ind+2] - x0;
+		double dy = segments[ind+3] - y0;
+		double len2 = dx*dx + dy*dy;
+		double t = len2 == 0 ? 0 : ((px - x0) * dx + (py - y0) * dy) / len2;
+		if (t < 0)
+			t = 0;
+		else if (t > 1)
+			t = 1;
+		double ex = x0 + t * dx - px;
+		double ey = y0 + t * dy - py;
+		return ex*ex + ey*ey;
+	}
+	
+	/**
+	 * Distance between a query {@link Coordinate} and a segment index.
+	 */
+	private class SegmentDistance implements ItemDistance {
+
+		@Override
+		public double distance(ItemBoundable item1, ItemBoundable item2) {
+			var o1 = item1.getItem();
+			var o2 = item2.getItem();
+			if (o1 instanceof Coordinate && o2 instanceof Integer)
+				return Math.sqrt(segmentDistanceSq(((Coordinate)o1).x, ((Coordinate)o1).y, (Integer)o2));
+			if (o2 instanceof Coordinate && o1 instanceof Integer)
+				return Math.sqrt(segmentDistanceSq(((Coordinate)o2).x, ((Coordinate)o2).y, (Integer)o1));
+			// Shouldn't occur, since the query item is not in the tree
+			return Double.POSITIVE_INFINITY;
+		}
+		
+	}
+	
+	
+	/**
+	 * Helper class to decompose geometries into segments.
+	 */
+	private static class SegmentBuilder {
+		
+		private double[] segments = new double[1024];
+		private int n = 0;
+		
+		private void add(Geometry geometry, List<Geometry> areas) {
+			if (geometry == null || geometry.isEmpty())
+				return;
+			if (geometry instanceof Polygon) {
+				var polygon = (Polygon)geometry;
+				areas.add(polygon);
+				add(polygon.getExteriorRing().getCoordinateSequence());
+				for (int i = 0; i < polygon.getNumInteriorRing(); i++)
+					add(polygon.getInteriorRingN(i).getCoordinateSequence());
+			} else if (geometry instanceof LineString) {
+				add(((LineString)geometry).getCoordinateSequence());
+			} else if (geometry instanceof Point) {
+				add(((Point)geometry).getCoordinateSequence());
+			} else {
+				for (int i = 0; i < geometry.getNumGeometries(); i++)
+					add(geometry.getGeometryN(i), areas);
+			}
+		}
+		
+		private void add(CoordinateSequence seq) {
+			int size = seq.size();
+			if (size == 1) {
+				addSegment(seq.getX(0), seq.getY(0), seq.getX(0), seq.getY(0));
+				return;
+			}
+			for (int i = 1; i < size; i++)
+				addSegment(seq.getX(i-1), seq.getY(i-1), seq.getX(i), seq.getY(i));
+		}
+		
+		private void addSegment(double x0, double y0, double x1, double y1) {
+			if (n * 4 + 4 > segments.length)
+				segments = Arrays.copyOf(segments, segments.length * 2);
+			int ind = n * 4;
+			segments[ind] = x0;
+			segments[ind+1] = y0;
+			segments[ind+2] = x1;
+			segments[ind+3] = y1;
+			n++;
+		}
+		
+	}
+	
+	
+	/**
+	 * Approximate distance transform computed on a regular grid covering the boundary segments.
+	 * Grid values correspond to distances at the centre of each pixel.
+	 */
+	private static class DistanceRaster {
+		
+		private final double minX, minY;
+		private final double resolution;
+		private final int width, height;
+		private final float[] distances;
+		
+		private DistanceRaster(BoundaryDistanceIndex index, double resolution) {
+			double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+			double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+			double[] segments = index.segments;
+			for (int i = 0; i < index.nSegments * 4; i += 2) {
+				minX = Math.min(minX, segments[i]);
+				maxX = Math.max(maxX, segments[i]);
+				minY = Math.min(minY, segments[i+1]);
+				maxY = Math.max(maxY, segments[i+1]);
+			}
+			// Pad the raster, since boundaries are often surrounded by the query points
+			double pad = Math.max(maxX - minX, maxY - minY) * 0.25 + resolution;
+			minX -= pad;
+			minY -= pad;
+			maxX += pad;
+			maxY += pad;
+			long nPixels = (long)Math.ceil((maxX - minX) / resolution) * (long)Math.ceil((maxY - minY) / resolution);
+			if (nPixels > MAX_RASTER_PIXELS) {
+				double newResolution = resolution * Math.sqrt((double)nPixels / MAX_RASTER_PIXELS);
+				logger.warn("Distance transform resolution increased from {} to {} to limit memory use", resolution, newResolution);
+				resolution = newResolution;
+			}
+			this.minX = minX;
+			this.minY = minY;
+			this.resolution = resolution;
+			this.width = Math.max(1, (int)Math.ceil((maxX - minX) / resolution));
+			this.height = Math.max(1, (int)Math.ceil((maxY - minY) / resolution));
+			
+			// Seed pixels along every segment
+			float[] f = new float[width * height];
+			Arrays.fill(f, Float.POSITIVE_INFINITY);
+			double step = resolution / 2.0;
+			for (int s = 0; s < index.nSegments; s++) {
+				int ind = s * 4;
+				double x0 = segments[ind], y0 = segments[ind+1];
+				double dx = segments[ind+2] - x0, dy = segments[ind+3] - y0;
+				int nSteps = (int)Math.ceil(Math.sqrt(dx*dx + dy*dy) / step);
+				for (int k = 0; k <= nSteps; k++) {
+					double t = nSteps == 0 ? 0 : (double)k / nSteps;
+					int x = (int)((x0 + t * dx - minX) / resolution);
+					int y = (int)((y0 + t * dy - minY) / resolution);
+					f[y * width + x] = 0f;
+				}
+			}
+			
+			// Compute squared Euclidean distance transform, processing rows and then columns in parallel
+			int w = width, h = height;
+			IntStream.range(0, h).parallel().forEach(y -> {
+				float[] row = Arrays.copyOfRange(f, y * w, (y + 1) * w);
+				float[] output = new float[w];
+				distanceTransform1D(row, output, new int[w], new double[w+1]);
+				System.arraycopy(output, 0, f, y * w, w);
+			});
+			IntStream.range(0, w).parallel().forEach(x -> {
+				float[] col = new float[h];
+				for (int y = 0; y < h; y++)
+					col[y] = f[y * w + x];
+				float[] output = new float[h];
+				distanceTransform1D(col, output, new int[h], new double[h+1]);
+				for (int y = 0; y < h; y++)
+					f[y * w + x] = output[y];
+			});
+			for (int i = 0; i < f.length; i++)
+				f[i] = (float)(Math.sqrt(f[i]) * resolution);
+			this.distances = f;
+		}
+		
+		/**
+		 * Get the interpolated distance at a point, or NaN if the point falls outside the raster.
+		 */
+		private double getDistance(double x, double y) {
+			double px = (x - minX) / resolution - 0.5;
+			double py = (y - minY) / resolution - 0.5;
+			if (px < 0 || py < 0 || px > width - 1 || py > height - 1)
+				return Double.NaN;
+			int x0 = (int)px;
+			int y0 = (int)py;
+			int x1 = Math.min(x0 + 1, width - 1);
+			int y1 = Math.min(y0 + 1, height - 1);
+			double fx = px - x0;
+			double fy = py - y0;
+			double top = distances[y0 * width + x0] * (1 - fx) + distances[y0 * width + x1] * fx;
+			double bottom = distances[y1 * width + x0] * (1 - fx) + distances[y1 * width + x1] * fx;
+			return top * (1 - fy) + bottom * fy;
+		}
+		
+		/**
+		 * 1D squared distance transform of sampled function, using the lower envelope of parabolas
+		 * as described by Felzenszwalb &amp; Huttenlocher.
+		 */
+		private static void distanceTransform1D(float[] f, float[] d, int[] v, double[] z) {
+			int n = f.length;
+			int k = -1;
+			for (int q = 0; q < n; q++) {
+				if (f[q] == Float.POSITIVE_INFINITY)
+					continue;
+				if (k < 0) {
+					k = 0;
+					v[0] = q;
+					z[0] = Double.NEGATIVE_INFINITY;
+					z[1] = Double.POSITIVE_INFINITY;
+					continue;
+				}
+				double s = intersection(f, q, v[k]);
+				while (s <= z[k]) {
+					k--;
+					s = intersection(f, q, v[k]);
+				}
+				k++;
+				v[k] = q;
+				z[k] = s;
+				z[k+1] = Double.POSITIVE_INFINITY;
+			}
+			if (k < 0) {
+				Arrays.fill(d, Float.POSITIVE_INFINITY);
+				return;
+			}
+			k = 0;
+			for (int q = 0; q < n; q++) {
+				while (z[k+1] < q)
+					k++;
+				double diff = q - v[k];
+				d[q] = (float)(diff * diff + f[v[k]]);
+			}
+		}
+		
+		private static double intersection(float[] f, int q, int p) {
+			return ((f[q] + (double)q*q) - (f[p] + (double)p*p)) / (2.0 * (q - p));
+		}
+		
+	}
+
+}
@@ -21,11 +21,10 @@
 
 package qupath.lib.analysis;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -35,7 +34,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.function.BiPredicate;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 import org.locationtech.jts.densify.Densifier;
 import org.locationtech.jts.geom.Coordinate;
@@ -195,6 +193,8 @@ public class DelaunayTools {
 		
 		private Function<PathObject, Collection<Coordinate>> coordinateExtractor;
 		
+		private boolean tiled = false;
+		
 		
 		private Builder(Collection<PathObject> pathObjects) {
 			ImagePlane plane = null;
@@ -274,6 +274,21 @@ public class DelaunayTools {
 			return this;
 		}
 		
+		/**
+		 * Specify whether the triangulation should be computed in overlapping tiles, which are processed in parallel.
+		 * <p>
+		 * This can be much faster and use less memory for large numbers of objects. 
+		 * Neighbors are reconciled exactly at the tile boundaries, so that they match those of a single triangulation.
+		 * However, a single triangulation is still required (and computed on demand) if Voronoi faces are requested.
+		 * 
+		 * @param tiled if true, compute the triangulation in tiles
+		 * @return this builder
+		 */
+		public Builder tiled(boolean tiled) {
+			this.tiled = tiled;
+			return this;
+		}
+		
 		/**
 		 * Build the {@link Subdivision} with the current parameters.
 		 * @return
@@ -308,7 +323,12 @@ public class DelaunayTools {
 			}
 			
 			double tolerance = cal.getAveragedPixelSize().doubleValue() / 1000.0;
-			return new Subdivision(createSubdivision(coords.keySet(), tolerance), pathObjects, coords, plane);
+			if (tiled) {
+				var subdivision = new Subdivision(null, pathObjects, coords, plane, tolerance);
+				subdivision.graph = subdivision.calculateTiledNeighborGraph(TiledDelaunayTriangulator.DEFAULT_POINTS_PER_TILE);
+				return subdivision;
+			}
+			return new Subdivision(createSubdivision(coords.keySet(), tolerance), pathObjects, coords, plane, tolerance);
 		}
 		
 	}
@@ -349,7 +369,7 @@ public class DelaunayTools {
 			var coord = new Coordinate(x, y);
 			coords.put(coord, pathObject);
 		}
-		return new Subdivision(createSubdivision(coords.keySet(), 0.01), pathObjects, coords, plane);
+		return new Subdivision(createSubdivision(coords.keySet(), 0.01), pathObjects, coords, plane, 0.01);
 	}
 	
 	/**
@@ -402,7 +422,7 @@ public class DelaunayTools {
 		
 		// Attempts to call VoronoiDiagramBuilder would sometimes fail when clipping to the envelope - 
 		// Because we do our own clipping anyway, we skip that step by requesting the diagram via the subdivision instead
-		return new Subdivision(createSubdivision(coords.keySet(), 0.001), pathObjects, coords, plane);
+		return new Subdivision(createSubdivision(coords.keySet(), 0.001), pathObjects, coords, plane, 0.001);
 	}
 	
 	
@@ -585,20 +605,40 @@ public class DelaunayTools {
 		private Map<Coordinate, PathObject> coordinateMap = new HashMap<>();
 		private Map<PathObject, List<Coordinate>> objectCoordinateMap = new HashMap<>();
 		private QuadEdgeSubdivision subdivision;
+		private double tolerance;
+		
+		private List<PathObject> objectList;
+		private Map<PathObject, Integer> objectIndex = new HashMap<>();
 		
 		private ImagePlane plane;
 		
+		private transient NeighborGraph graph;
 		private transient Map<PathObject, List<PathObject>> neighbors;
 		private transient Map<PathObject, Geometry> voronoiFaces;
 		
 		
-		private Subdivision(QuadEdgeSubdivision subdivision, Collection<PathObject> pathObjects, Map<Coordinate, PathObject> coordinateMap, ImagePlane plane) {
+		private Subdivision(QuadEdgeSubdivision subdivision, Collection<PathObject> pathObjects, Map<Coordinate, PathObject> coordinateMap, ImagePlane plane, double tolerance) {
 			this.subdivision = subdivision;
+			this.tolerance = tolerance;
 			this.plane = plane;
 			this.pathObjects.addAll(pathObjects);
 			this.coordinateMap.putAll(coordinateMap);
 			this.pathObjects = Collections.unmodifiableSet(this.pathObjects);
 			this.coordinateMap = Collections.unmodifiableMap(this.coordinateMap);
+			this.objectList = List.copyOf(this.pathObjects);
+			for (int i = 0; i < objectList.size(); i++)
+				objectIndex.put(objectList.get(i), i);
+		}
+		
+		/**
+		 * Get the triangulation, computing it if necessary (i.e. if only a tiled triangulation was computed previously).
+		 */
+		private synchronized QuadEdgeSubdivision getSubdivision() {
+			if (subdivision == null) {
+				logger.debug("Computing full triangulation for {} objects", pathObjects.size());
+				subdivision = createSubdivision(coordinateMap.keySet(), tolerance);
+			}
+			return subdivision;
 		}
 		
 		/**
@@ -686,11 +726,22 @@ public class DelaunayTools {
 		 * @return list of neighbors
 		 */
 		public List<PathObject> getFilteredNeighbors(PathObject pathObject, BiPredicate<PathObject, PathObject> predicate) {
-			var allNeighbors = getAllNeighbors();
-			if (predicate != null) {
-				return filterByPredicate(pathObject, allNeighbors.getOrDefault(pathObject, Collections.emptyList()), predicate);
-			} else
-				return allNeighbors.getOrDefault(pathObject, Collections.emptyList());
+			var ind = objectIndex.get(pathObject);
+			if (ind == null)
+				return Collections.emptyList();
+			return getFilteredNeighbors(getNeighborGraph(), ind, predicate);
+		}
+		
+		private List<PathObject> getFilteredNeighbors(NeighborGraph graph, int ind, BiPredicate<PathObject, PathObject> predicate) {
+			var pathObject = objectList.get(ind);
+			int n = graph.getDegree(ind);
+			var list = new ArrayList<PathObject>(n);
+			for (int k = 0; k < n; k++) {
+				var neighbor = objectList.get(graph.getNeighbor(ind, k));
+				if (predicate == null || predicate.test(pathObject, neighbor))
+					list.add(neighbor);
+			}
+			return list;
 		}
 		
 		/**
@@ -710,18 +761,14 @@ public class DelaunayTools {
 		 * @return map in which keys correspond to objects and values represent all corresponding (filtered) neighbors
 		 */
 		public Map<PathObject, List<PathObject>> getFilteredNeighbors(BiPredicate<PathObject, PathObject> predicate) {
-			var allNeighbors = getAllNeighbors();
 			if (predicate != null) {
+				var graph = getNeighborGraph();
 				var map = new LinkedHashMap<PathObject, List<PathObject>>();
-				for (var entry : allNeighbors.entrySet()) {
-					var pathObject = entry.getKey();
-					var list = entry.getValue();
-					map.put(pathObject, 
-							filterByPredicate(pathObject, list, predicate));
-				}
+				for (int i = 0; i < objectList.size(); i++)
+					map.put(objectList.get(i), getFilteredNeighbors(graph, i, predicate));
 				return Collections.unmodifiableMap(map);
 			} else
-				return allNeighbors;
+				return getAllNeighbors();
 		}
 		
 		/**
@@ -732,56 +779,101 @@ public class DelaunayTools {
 		public Map<PathObject, List<PathObject>> getAllNeighbors() {
 			if (neighbors == null) {
 				synchronized (this) {
-					if (neighbors == null)
-						neighbors = Collections.unmodifiableMap(calculateAllNeighbors());
+					if (neighbors == null) {
+						var graph = getNeighborGraph();
+						var map = new LinkedHashMap<PathObject, List<PathObject>>();
+						for (int i = 0; i < objectList.size(); i++)
+							map.put(objectList.get(i), Collections.unmodifiableList(getFilteredNeighbors(graph, i, null)));
+						neighbors = Collections.unmodifiableMap(map);
+					}
 				}
 			}
 			return neighbors;
 		}
 		
+		/**
+		 * Get the graph of neighbor relationships, where each index refers to an object in {@link #getPathObjects()} 
+		 * (following its iteration order).
+		 * @return the neighbor graph
+		 */
+		public NeighborGraph getNeighborGraph() {
+			if (graph == null) {
+				synchronized (this) {
+					if (graph == null)
+						graph = calculateNeighborGraph();
+				}
+			}
+			return graph;
+		}
 		
-		
-		private synchronized Map<PathObject, List<PathObject>> calculateAllNeighbors() {
+		private NeighborGraph calculateNeighborGraph() {
 			
 			logger.debug("Calculating all neighbors for {} objects", getPathObjects().size());
 			
 			@SuppressWarnings("unchecked")
-			var edges = (List<QuadEdge>)subdivision.getVertexUniqueEdges(false);
-			Map<PathObject, List<PathObject>> map = new HashMap<>();
-			var distanceMap = new HashMap<PathObject, Double>();
+			var edges = (List<QuadEdge>)getSubdivision().getVertexUniqueEdges(false);
+			
+			int nEdges = 0;
+			int[] start = new int[edges.size() * 6];
+			int[] end = new int[start.length];
+			double[] lengths = new double[start.length];
 			
 			int missing = 0;
 			for (var edge : edges) {
-				var origin = edge.orig();
-				distanceMap.clear();
-				
-				var pathObject = getPathObject(origin);
-				if (pathObject == null) {
-					logger.warn("No object found for {}", pathObject);
+				var pathObject = getPathObject(edge.orig());
+				Integer ind = pathObject == null ? null : objectIndex.get(pathObject);
+				if (ind == null) {
+					logger.warn("No object found for {}", edge.orig());
 					continue;
 				}
-				
-				var list = new ArrayList<PathObject>();
 				var next = edge;
 				do {
-					var dest = next.dest();
-					var destObject = getPathObject(dest);
-					if (destObject == pathObject) {
-						continue;
-					} else if (destObject == null) {
+					var destObject = getPathObject(next.dest());
+					Integer destInd = destObject == null ? null : objectIndex.get(destObject);
+					if (destInd == null) {
 						missing++;
-					} else {
-						distanceMap.put(destObject, next.getLength());
-						list.add(destObject);
+					} else if (destObject != pathObject) {
+						if (nEdges == start.length) {
+							start = Arrays.copyOf(start, nEdges * 2);
+							end = Arrays.copyOf(end, nEdges * 2);
+							lengths = Arrays.copyOf(lengths, nEdges * 2);
+						}
+						start[nEdges] = ind;
+						end[nEdges] = destInd;
+						lengths[nEdges] = next.getLength();
+						nEdges++;
 					}
 				} while ((next = next.oNext()) != edge);
-				Collections.sort(list, Comparator.comparingDouble(p -> distanceMap.get(p)));
-				
-				map.put(pathObject, Collections.unmodifiableList(list));
 			}
 			if (missing > 0)
 				logger.debug("Number of missing neighbors: {}", missing);
-			return map;
+			return NeighborGraph.fromEdges(objectList.size(), start, end, lengths, nEdges);
+		}
+		
+		/**
+		 * Calculate the neighbor graph from a tiled triangulation of the coordinates.
+		 */
+		private NeighborGraph calculateTiledNeighborGraph(int pointsPerTile) {
+			int n = coordinateMap.size();
+			double[] x = new double[n];
+			double[] y = new double[n];
+			int[] items = new int[n];
+			int count = 0;
+			for (var entry : coordinateMap.entrySet()) {
+				var ind = objectIndex.get(entry.getValue());
+				if (ind == null)
+					continue;
+				x[count] = entry.getKey().x;
+				y[count] = entry.getKey().y;
+				items[count] = ind;
+				count++;
+			}
+			if (count < n) {
+				x = Arrays.copyOf(x, count);
+				y = Arrays.copyOf(y, count);
+				items = Arrays.copyOf(items, count);
+			}
+			return TiledDelaunayTriangulator.computeNeighbors(x, y, items, objectList.size(), tolerance, pointsPerTile);
 		}
 		
 		
@@ -802,7 +894,7 @@ public class DelaunayTools {
 			// We use a new GeometryFactory because we need floating point precision (it seems) to avoid 
 			// invalid polygons being returned
 			@SuppressWarnings("unchecked")
-			var polygons = (List<Polygon>)subdivision.getVoronoiCellPolygons(new GeometryFactory());
+			var polygons = (List<Polygon>)getSubdivision().getVoronoiCellPolygons(new GeometryFactory());
 			
 			// Create a spatial cache
 			var map = new HashMap<PathObject, Geometry>();
@@ -882,7 +974,7 @@ public class DelaunayTools {
 			logger.debug("Calculating Voronoi faces for {} objects", getPathObjects().size());
 
 			@SuppressWarnings("unchecked")
-			var polygons = (List<Polygon>)subdivision.getVoronoiCellPolygons(GeometryTools.getDefaultFactory());
+			var polygons = (List<Polygon>)getSubdivision().getVoronoiCellPolygons(GeometryTools.getDefaultFactory());
 //			var polygons = (List<Polygon>)subdivision.getVoronoiCellPolygons(new GeometryFactory());
 			
 			var map = new HashMap<PathObject, Geometry>();
@@ -938,47 +1030,40 @@ public class DelaunayTools {
 			return map;
 		}
 		
-		private List<PathObject> filterByPredicate(PathObject pathObject, List<? extends PathObject> list, BiPredicate<PathObject, PathObject> predicate) {
-			return list.stream()
-					.filter(p -> predicate.test(pathObject, p))
-					.collect(Collectors.toList());
-		}
-		
 		/**
 		 * Get clusters of connected objects, where connections are made between neighboring objects that meet the specified predicate.
 		 * @param predicate predicate used to determine if two otherwise neighboring objects are considered connected
 		 * @return a list of clusters, where each cluster is a collection of connected objects
 		 */
 		public List<Collection<PathObject>> getClusters(BiPredicate<PathObject, PathObject> predicate) {
-			var alreadyClustered = new HashSet<PathObject>();
+			var graph = getNeighborGraph();
+			int n = objectList.size();
 			var output = new ArrayList<Collection<PathObject>>();
-			var neighbors = getFilteredNeighbors(predicate);
-			for (var pathObject : getPathObjects()) {
-				if (!alreadyClustered.contains(pathObject)) {
-					var cluster = buildCluster(pathObject, neighbors, alreadyClustered);
-					output.add(cluster);
-				}
-			}
-			return output;
-		}
-		
-		private Collection<PathObject> buildCluster(PathObject parent, Map<PathObject, List<PathObject>> neighbors, Collection<PathObject> alreadyClustered) {
-			var cluster = new ArrayList<PathObject>();
-			var deque = new ArrayDeque<PathObject>();
-			deque.add(parent);
-			while (!deque.isEmpty()) {
-				var pathObject = deque.pop();
-				if (!alreadyClustered.add(pathObject))
+			boolean[] clustered = new boolean[n];
+			int[] queue = new int[n];
+			for (int i = 0; i < n; i++) {
+				if (clustered[i])
 					continue;
-				
-				cluster.add(pathObject);
-				
-				for (var neighbor : neighbors.get(pathObject)) {
-					if (!alreadyClustered.contains(neighbor))
-						deque.add(neighbor);
+				// Breadth-first search from the current object
+				var cluster = new ArrayList<PathObject>();
+				int head = 0, tail = 0;
+				queue[tail++] = i;
+				clustered[i] = true;
+				while (head < tail) {
+					int ind = queue[head++];
+					var pathObject = objectList.get(ind);
+					cluster.add(pathObject);
+					for (int k = 0; k < graph.getDegree(ind); k++) {
+						int neighbor = graph.getNeighbor(ind, k);
+						if (!clustered[neighbor] && (predicate == null || predicate.test(pathObject, objectList.get(neighbor)))) {
+							clustered[neighbor] = true;
+							queue[tail++] = neighbor;
+						}
+					}
 				}
+				output.add(cluster);
 			}
-			return cluster;
+			return output;
 		}
 		
 	}
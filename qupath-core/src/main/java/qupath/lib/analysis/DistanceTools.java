@@ -26,21 +26,17 @@ import java.util.Collection;
 import java.util.List;
 import java.util.TreeSet;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.locationtech.jts.algorithm.distance.DistanceToPoint;
 import org.locationtech.jts.algorithm.distance.PointPairDistance;
-import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
 import org.locationtech.jts.algorithm.locate.PointOnGeometryLocator;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.geom.Lineal;
 import org.locationtech.jts.geom.Location;
-import org.locationtech.jts.geom.Polygonal;
 import org.locationtech.jts.geom.PrecisionModel;
-import org.locationtech.jts.geom.Puntal;
 import org.locationtech.jts.geom.util.AffineTransformation;
-import org.locationtech.jts.geom.util.GeometryCombiner;
 import org.locationtech.jts.index.strtree.ItemBoundable;
 import org.locationtech.jts.index.strtree.ItemDistance;
 import org.locationtech.jts.index.strtree.STRtree;
@@ -184,7 +180,28 @@ public class DistanceTools {
 	 * @param pixelHeight pixel height to use in Geometry conversion (use 1 for pixel units)
 	 * @param measurementName the name of the measurement to add to the measurement list
 	 */
-	public static void centroidToBoundsDistance2D(Collection<PathObject> sourceObjects, Collection<PathObject> targetObjects, double pixelWidth, double pixelHeight, String measurementName) {		
+	public static void centroidToBoundsDistance2D(Collection<PathObject> sourceObjects, Collection<PathObject> targetObjects, double pixelWidth, double pixelHeight, String measurementName) {
+		centroidToBoundsDistance2D(sourceObjects, targetObjects, pixelWidth, pixelHeight, measurementName, -1);
+	}
+	
+	/**
+	 * Calculate the distance between source object centroids and the boundary of specified target objects, adding the result to the measurement list of the source objects.
+	 * Calculations are all made in 2D; distances will not be calculated between objects occurring on different z-planes of at different timepoints.
+	 * <p>
+	 * Optionally, distances may be approximated using a distance transform computed at a specified resolution. 
+	 * This can be considerably faster for very large numbers of source objects, at the cost of an error up to approximately the resolution.
+	 * 
+	 * @param sourceObjects source objects; measurements will be added based on centroid distances
+	 * @param targetObjects target objects; no measurements will be added
+	 * @param pixelWidth pixel width to use in Geometry conversion (use 1 for pixel units)
+	 * @param pixelHeight pixel height to use in Geometry conversion (use 1 for pixel units)
+	 * @param measurementName the name of the measurement to add to the measurement list
+	 * @param approximationResolution resolution of the distance transform used to approximate distances, in the same units as the distances;
+	 *                                if &le; 0, exact distances are calculated
+	 * @see BoundaryDistanceIndex
+	 */
+	public static void centroidToBoundsDistance2D(Collection<PathObject> sourceObjects, Collection<PathObject> targetObjects, 
+			double pixelWidth, double pixelHeight, String measurementName, double approximationResolution) {		
 		
 		boolean preferNucleus = true;
 		
@@ -196,19 +213,13 @@ public class DistanceTools {
 		}
 		
 		var transform = pixelWidth == 1 && pixelHeight == 1 ? null : AffineTransformation.scaleInstance(pixelWidth, pixelHeight);
-//		var builder = new GeometryTools.GeometryConverter.Builder()
-//				.pixelSize(pixelWidth, pixelHeight);
-////		
-//		var converter = builder.build();
 
 		for (int t : timePoints) {
 			for (int z : zSlices) {
 				
 				PrecisionModel precision = null;
 				
-				List<Geometry> areaGeometries = new ArrayList<>();
-				List<Geometry> lineGeometries = new ArrayList<>();
-				List<Geometry> pointGeometries = new ArrayList<>();
+				List<Geometry> geometries = new ArrayList<>();
 				for (var annotation : targetObjects) {
 					var roi = annotation.getROI();
 					if (roi != null && roi.getZ() == z && roi.getT() == t) {
@@ -218,79 +229,49 @@ public class DistanceTools {
 							if (precision == null)
 								precision = geom.getPrecisionModel();
 						}
-//						var geom = converter.roiToGeometry(annotation.getROI());
-						if (geom instanceof Puntal)
-							pointGeometries.add(geom);
-						else if (geom instanceof Lineal)
-							lineGeometries.add(geom);
-						else if (geom instanceof Polygonal)
-							areaGeometries.add(geom);
-						else {
-							for (int i = 0; i < geom.getNumGeometries(); i++) {
-								var geom2 = geom.getGeometryN(i);
-								if (geom2 instanceof Puntal)
-									pointGeometries.add(geom2);
-								else if (geom2 instanceof Lineal)
-									lineGeometries.add(geom2);
-								else if (geom2 instanceof Polygonal)
-									areaGeometries.add(geom2);
-								else
-									logger.warn("Unexpected nested Geometry collection, some Geometries may be ignored");
-							}
-						}
+						geometries.add(geom);
 					}
 				}
 		
-				if (areaGeometries.isEmpty() && pointGeometries.isEmpty() && lineGeometries.isEmpty())
+				if (geometries.isEmpty())
 					continue;
 				
 				var precisionModel = precision == null ? GeometryTools.getDefaultFactory().getPrecisionModel() : precision;
 				
-				List<Coordinate> pointCoords = new ArrayList<>();
+				// Get the centroids of all source objects on the current plane
+				List<PathObject> planeObjects = new ArrayList<>();
+				for (var p : sourceObjects) {
+					var roi = PathObjectTools.getROI(p, preferNucleus);
+					if (roi.getZ() == z && roi.getT() == t)
+						planeObjects.add(p);
+				}
+				if (planeObjects.isEmpty())
+					continue;
 				
-				Geometry temp = null;
-				if (!areaGeometries.isEmpty())
-					temp = areaGeometries.size() == 1 ? areaGeometries.get(0) : GeometryCombiner.combine(areaGeometries);
-				Geometry shapeGeometry = temp;
+				long startTime = System.currentTimeMillis();
 				
-				temp = null;
-				if (!lineGeometries.isEmpty())
-					temp = lineGeometries.size() == 1 ? lineGeometries.get(0) : GeometryCombiner.combine(lineGeometries);
-				Geometry lineGeometry = temp;
+				// Precompute an index of the boundaries of all targets, so that only nearby segments need to be checked
+				var index = BoundaryDistanceIndex.create(geometries, approximationResolution);
 				
-				// Identify points, and create an STRtree to find nearest neighbors more quickly if there are a lot of them
-				if (!pointGeometries.isEmpty()) {
-					for (var geom : pointGeometries) {
-						for (var coord : geom.getCoordinates()) {
-							precisionModel.makePrecise(coord);
-							pointCoords.add(coord);
-						}
-					}
+				int n = planeObjects.size();
+				double[] x = new double[n];
+				double[] y = new double[n];
+				for (int i = 0; i < n; i++) {
+					var roi = PathObjectTools.getROI(planeObjects.get(i), preferNucleus);
+					x[i] = precisionModel.makePrecise(roi.getCentroidX() * pixelWidth);
+					y[i] = precisionModel.makePrecise(roi.getCentroidY() * pixelHeight);
 				}
-				STRtree pointTree = pointCoords != null && pointCoords.size() > 1000 ? createCoordinateCache(pointCoords) : null;
-				CoordinateDistance coordinateDistance = new CoordinateDistance();
-				
-				int zi = z;
-				int ti = t;
+				double[] distances = index.getDistances(x, y);
 				
-				
-				var locator = shapeGeometry == null ? null : new IndexedPointInAreaLocator(shapeGeometry);
-				sourceObjects.parallelStream().forEach(p -> {
-					var roi = PathObjectTools.getROI(p, preferNucleus);
-					if (roi.getZ() != zi || roi.getT() != ti)
-						return;
-					Coordinate coord = new Coordinate(roi.getCentroidX() * pixelWidth, roi.getCentroidY() * pixelHeight);
-					precisionModel.makePrecise(coord);
-					
-					double pointDistance = pointCoords == null ? Double.POSITIVE_INFINITY : computeCoordinateDistance(coord, pointCoords, pointTree, coordinateDistance);
-					double lineDistance = lineGeometry == null ? Double.POSITIVE_INFINITY : computeDistance(coord, lineGeometry, null);
-					double shapeDistance = shapeGeometry == null ? Double.POSITIVE_INFINITY : computeDistance(coord, shapeGeometry, locator);
-					double distance = Math.min(lineDistance, Math.min(pointDistance, shapeDistance));
-					
-					try (var ml = p.getMeasurementList()) {
-						ml.putMeasurement(measurementName, distance);
+				IntStream.range(0, n).parallel().forEach(i -> {
+					try (var ml = planeObjects.get(i).getMeasurementList()) {
+						ml.putMeasurement(measurementName, distances[i]);
 					}
 				});
+				
+				long endTime = System.currentTimeMillis();
+				logger.debug("Distances computed for {} objects to {} boundary segments in {} ms (z={}, t={})", 
+						n, index.getSegmentCount(), endTime - startTime, z, t);
 			}
 		}
 	}
@@ -357,20 +338,10 @@ public class DistanceTools {
 		if (tree.isEmpty())
 			return Double.POSITIVE_INFINITY;
 		var env = new Envelope(coord);
-		var nearest = (Coordinate)tree.nearestNeighbour(env, coord, new CoordinateDistance());
+		var nearest = (Coordinate)tree.nearestNeighbour(env, coord, distance);
 		return nearest == null ? Double.POSITIVE_INFINITY : coord.distance(nearest);
 	}
 	
-	private static double computeCoordinateDistance(Coordinate coord, Collection<Coordinate> targets, STRtree tree, ItemDistance distance) {
-		if (tree != null) {
-			return computeCoordinateDistance(coord, tree, distance);
-		}
-		double d = Double.POSITIVE_INFINITY;
-		for (var target : targets)
-			d = Math.min(d, coord.distance(target));
-		return d;
-	}
-	
 	private static class CoordinateDistance implements ItemDistance {
 
 		@Override
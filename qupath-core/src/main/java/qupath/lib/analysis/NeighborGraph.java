@@ -0,0 +1,422 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.analysis;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * Compact, immutable graph of neighbor relationships between indexed items, stored in compressed sparse row format.
+ * <p>
+ * Neighbors of item {@code i} are stored in {@code neighbors[offsets[i]]} to {@code neighbors[offsets[i+1]-1]}, 
+ * sorted by increasing edge length. The graph is undirected, so every edge is stored twice.
+ * <p>
+ * Graphs can be created from a Delaunay triangulation (see {@link DelaunayTools.Subdivision#getNeighborGraph()}), 
+ * or from point coordinates using k-nearest neighbors or a fixed distance. 
+ * Because items are identified by index, neighbor measurements can be aggregated in parallel using primitive arrays.
+ * 
+ * @author Pete Bankhead
+ * @see PathObjectNeighborGraph
+ */
+public class NeighborGraph {
+	
+	private final int[] offsets;
+	private final int[] neighbors;
+	private final float[] lengths;
+	
+	private NeighborGraph(int[] offsets, int[] neighbors, float[] lengths) {
+		this.offsets = offsets;
+		this.neighbors = neighbors;
+		this.lengths = lengths;
+	}
+	
+	/**
+	 * Create a graph from a list of undirected edges.
+	 * Duplicate edges are removed (retaining the shortest length), as are edges connecting an item to itself.
+	 * 
+	 * @param nItems the number of items
+	 * @param edgeStart index of the first item for each edge
+	 * @param edgeEnd index of the second item for each edge
+	 * @param edgeLength length of each edge
+	 * @param nEdges number of edges, which may be less than the array lengths
+	 * @return the graph
+	 */
+	public static NeighborGraph fromEdges(int nItems, int[] edgeStart, int[] edgeEnd, double[] edgeLength, int nEdges) {
+		// Count the degree of each item, storing each edge in both directions
+		int[] offsets = new int[nItems + 1];
+		for (int e = 0; e < nEdges; e++) {
+			if (edgeStart[e] == edgeEnd[e])
+				continue;
+			offsets[edgeStart[e] + 1]++;
+			offsets[edgeEnd[e] + 1]++;
+		}
+		for (int i = 0; i < nItems; i++)
+			offsets[i+1] += offsets[i];
+		
+		int[] neighbors = new int[offsets[nItems]];
+		float[] lengths = new float[neighbors.length];
+		int[] fill = Arrays.copyOf(offsets, nItems);
+		for (int e = 0; e < nEdges; e++) {
+			int a = edgeStart[e];
+			int b = edgeEnd[e];
+			if (a == b)
+				continue;
+			neighbors[fill[a]] = b;
+			lengths[fill[a]++] = (float)edgeLength[e];
+			neighbors[fill[b]] = a;
+			lengths[fill[b]++] = (float)edgeLength[e];
+		}
+		
+		// Sort each row by length & remove duplicates (in parallel), then compact
+		int[] rowCounts = new int[nItems];
+		IntStream.range(0, nItems).parallel().forEach(i -> rowCounts[i] = sortRow(neighbors, lengths, offsets[i], offsets[i+1], false));
+		int[] newOffsets = new int[nItems + 1];
+		for (int i = 0; i < nItems; i++) {
+			newOffsets[i+1] = newOffsets[i] + rowCounts[i];
+			if (newOffsets[i] != offsets[i]) {
+				System.arraycopy(neighbors, offsets[i], neighbors, newOffsets[i], rowCounts[i]);
+				System.arraycopy(lengths, offsets[i], lengths, newOffsets[i], rowCounts[i]);
+			}
+		}
+		int n = newOffsets[nItems];
+		return new NeighborGraph(newOffsets, Arrays.copyOf(neighbors, n), Arrays.copyOf(lengths, n));
+	}
+	
+	/**
+	 * Create a graph connecting each point to its k nearest neighbors.
+	 * <p>
+	 * Because the graph is undirected, a point may have more than k neighbors if it is among the nearest neighbors of other points.
+	 * 
+	 * @param x x-coordinates of the points
+	 * @param y y-coordinates of the points
+	 * @param k the number of nearest neighbors
+	 * @return the graph
+	 */
+	public static NeighborGraph fromNearestNeighbors(double[] x, double[] y, int k) {
+		checkCoordinates(x, y);
+		int n = x.length;
+		int kk = Math.max(0, Math.min(k, n - 1));
+		if (kk == 0)
+			return fromEdges(n, new int[0], new int[0], new double[0], 0);
+		var grid = PointGrid.create(x, y, estimateSpacing(x, y) * Math.sqrt(kk));
+		int[] end = new int[n * kk];
+		double[] lengths = new double[end.length];
+		IntStream.range(0, n).parallel().forEach(i -> {
+			int[] indices = new int[kk];
+			double[] dist2 = new double[kk];
+			int count = grid.getNearest(x[i], y[i], i, kk, indices, dist2);
+			for (int j = 0; j < kk; j++) {
+				// Use self-loops as placeholders (these are removed)
+				end[i*kk + j] = j < count ? indices[j] : i;
+				lengths[i*kk + j] = j < count ? Math.sqrt(dist2[j]) : 0;
+			}
+		});
+		int[] start = new int[end.length];
+		for (int i = 0; i < n; i++)
+			Arrays.fill(start, i*kk, (i+1)*kk, i);
+		return fromEdges(n, start, end, lengths, end.length);
+	}
+	
+	/**
+	 * Create a graph connecting all points separated by no more than a fixed distance.
+	 * 
+	 * @param x x-coordinates of the points
+	 * @param y y-coordinates of the points
+	 * @param maxDistance the maximum distance between neighbors (inclusive)
+	 * @return the graph
+	 */
+	public static NeighborGraph fromDistance(double[] x, double[] y, double maxDistance) {
+		checkCoordinates(x, y);
+		int n = x.length;
+		var grid = PointGrid.create(x, y, maxDistance);
+		// The neighbors found for each point are already symmetric & unique, so rows can be built directly
+		int[][] rowNeighbors = new int[n][];
+		float[][] rowLengths = new float[n][];
+		IntStream.range(0, n).parallel().forEach(i -> {
+			int[] points = grid.getWithinDistance(x[i], y[i], maxDistance);
+			float[] lengths = new float[points.length];
+			int count = 0;
+			for (int j : points) {
+				if (j != i) {
+					double dx = x[j] - x[i];
+					double dy = y[j] - y[i];
+					points[count] = j;
+					lengths[count] = (float)Math.sqrt(dx * dx + dy * dy);
+					count++;
+				}
+			}
+			sortRow(points, lengths, 0, count, true);
+			rowNeighbors[i] = Arrays.copyOf(points, count);
+			rowLengths[i] = Arrays.copyOf(lengths, count);
+		});
+		int[] offsets = new int[n + 1];
+		for (int i = 0; i < n; i++)
+			offsets[i+1] = offsets[i] + rowNeighbors[i].length;
+		int[] neighbors = new int[offsets[n]];
+		float[] lengths = new float[neighbors.length];
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(rowNeighbors[i], 0, neighbors, offsets[i], rowNeighbors[i].length);
+			System.arraycopy(rowLengths[i], 0, lengths, offsets[i], rowLengths[i].length);
+			rowNeighbors[i] = null;
+			rowLengths[i] = null;
+		}
+		return new NeighborGraph(offsets, neighbors, lengths);
+	}
+	
+	private static void checkCoordinates(double[] x, double[] y) {
+		if (x.length != y.length)
+			throw new IllegalArgumentException("Number of x-coordinates (" + x.length + ") and y-coordinates (" + y.length + ") must be the same!");
+	}
+	
+	/**
+	 * Estimate the mean spacing between points, assuming they are evenly distributed within their bounding box.
+	 */
+	private static double estimateSpacing(double[] x, double[] y) {
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < x.length; i++) {
+			minX = Math.min(minX, x[i]);
+			maxX = Math.max(maxX, x[i]);
+			minY = Math.min(minY, y[i]);
+			maxY = Math.max(maxY, y[i]);
+		}
+		double area = (maxX - minX) * (maxY - minY);
+		return area > 0 ? Math.sqrt(area / x.length) : 1.0;
+	}
+	
+	/**
+	 * Create a new graph containing only the edges with lengths no greater than a specified distance.
+	 * @param maxDistance the maximum edge length (inclusive)
+	 * @return the filtered graph
+	 */
+	public NeighborGraph filterByDistance(double maxDistance) {
+		int n = size();
+		int[] newOffsets = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			// Rows are sorted by length, so we only need to find the cutoff
+			int k = offsets[i];
+			while (k < offsets[i+1] && lengths[k] <= maxDistance)
+				k++;
+			newOffsets[i+1] = newOffsets[i] + k - offsets[i];
+		}
+		int[] newNeighbors = new int[newOffsets[n]];
+		float[] newLengths = new float[newNeighbors.length];
+		for (int i = 0; i < n; i++) {
+			int len = newOffsets[i+1] - newOffsets[i];
+			System.arraycopy(neighbors, offsets[i], newNeighbors, newOffsets[i], len);
+			System.arraycopy(lengths, offsets[i], newLengths, newOffsets[i], len);
+		}
+		return new NeighborGraph(newOffsets, newNeighbors, newLengths);
+	}
+	
+	/**
+	 * Count the neighbors of every item that meet a specified criterion.
+	 * The predicate may be called from multiple threads.
+	 * @param predicate predicate applied to the index of each neighbor
+	 * @return an array giving the number of matching neighbors for each item
+	 */
+	public int[] countNeighbors(IntPredicate predicate) {
+		int[] counts = new int[size()];
+		IntStream.range(0, counts.length).parallel().forEach(i -> {
+			int count = 0;
+			for (int k = offsets[i]; k < offsets[i+1]; k++) {
+				if (predicate.test(neighbors[k]))
+					count++;
+			}
+			counts[i] = count;
+		});
+		return counts;
+	}
+	
+	/**
+	 * Compute the sum of a value across the neighbors of every item. NaN values are ignored.
+	 * @param values array containing one value per item
+	 * @return an array giving the sum of the neighbor values for each item
+	 */
+	public double[] sumNeighbors(double[] values) {
+		return aggregateNeighbors(values, false);
+	}
+	
+	/**
+	 * Compute the mean of a value across the neighbors of every item. NaN values are ignored.
+	 * @param values array containing one value per item
+	 * @return an array giving the mean of the neighbor values for each item, or NaN if there are no neighbors with valid values
+	 */
+	public double[] meanNeighbors(double[] values) {
+		return aggregateNeighbors(values, true);
+	}
+	
+	private double[] aggregateNeighbors(double[] values, boolean mean) {
+		if (values.length != size())
+			throw new IllegalArgumentException("Number of values (" + values.length + ") does not match the number of items (" + size() + ")");
+		double[] output = new double[size()];
+		IntStream.range(0, output.length).parallel().forEach(i -> {
+			double sum = 0;
+			int count = 0;
+			for (int k = offsets[i]; k < offsets[i+1]; k++) {
+				double val = values[neighbors[k]];
+				if (!Double.isNaN(val)) {
+					sum += val;
+					count++;
+				}
+			}
+			output[i] = mean ? (count == 0 ? Double.NaN : sum / count) : sum;
+		});
+		return output;
+	}
+	
+	/**
+	 * Sort part of a row by length (and then neighbor index), removing duplicate neighbors so that only the shortest remains.
+	 * The unique neighbors are moved to the start of the row.
+	 * @param unique if true, the neighbors are known to be unique and duplicates need not be removed
+	 * @return the number of unique neighbors
+	 */
+	private static int sortRow(int[] neighbors, float[] lengths, int start, int end, boolean unique) {
+		if (end - start > 32)
+			return sortLongRow(neighbors, lengths, start, end, unique);
+		// Insertion sort for short rows
+		for (int i = start + 1; i < end; i++) {
+			int n = neighbors[i];
+			float len = lengths[i];
+			int j = i - 1;
+			while (j >= start && (lengths[j] > len || (lengths[j] == len && neighbors[j] > n))) {
+				neighbors[j+1] = neighbors[j];
+				lengths[j+1] = lengths[j];
+				j--;
+			}
+			neighbors[j+1] = n;
+			lengths[j+1] = len;
+		}
+		if (unique)
+			return end - start;
+		// Because duplicates are sorted by length too, the first occurrence of each neighbor is the shortest
+		int ind = start;
+		for (int k = start; k < end; k++) {
+			boolean duplicate = false;
+			for (int j = start; j < ind; j++) {
+				if (neighbors[j] == neighbors[k]) {
+					duplicate = true;
+					break;
+				}
+			}
+			if (!duplicate) {
+				neighbors[ind] = neighbors[k];
+				lengths[ind] = lengths[k];
+				ind++;
+			}
+		}
+		return ind - start;
+	}
+	
+	/**
+	 * Sort a long row by packing each neighbor and (non-negative) length into a single long, first to remove duplicates 
+	 * and then to sort by length.
+	 */
+	private static int sortLongRow(int[] neighbors, float[] lengths, int start, int end, boolean unique) {
+		long[] keys = new long[end - start];
+		int count = keys.length;
+		if (unique) {
+			for (int k = start; k < end; k++)
+				keys[k - start] = ((long)Float.floatToIntBits(lengths[k]) << 32) | neighbors[k];
+		} else {
+			for (int k = start; k < end; k++)
+				keys[k - start] = ((long)neighbors[k] << 32) | (Float.floatToIntBits(lengths[k]) & 0xffffffffL);
+			Arrays.sort(keys);
+			count = 0;
+			int previous = -1;
+			for (long key : keys) {
+				int n = (int)(key >>> 32);
+				if (n != previous) {
+					keys[count++] = (key << 32) | n;
+					previous = n;
+				}
+			}
+		}
+		Arrays.sort(keys, 0, count);
+		for (int k = 0; k < count; k++) {
+			neighbors[start + k] = (int)keys[k];
+			lengths[start + k] = Float.intBitsToFloat((int)(keys[k] >>> 32));
+		}
+		return count;
+	}
+	
+	/**
+	 * Get the number of items in the graph.
+	 * @return
+	 */
+	public int size() {
+		return offsets.length - 1;
+	}
+	
+	/**
+	 * Get the total number of undirected edges in the graph.
+	 * @return
+	 */
+	public int getEdgeCount() {
+		return neighbors.length / 2;
+	}
+	
+	/**
+	 * Get the number of neighbors of an item.
+	 * @param item
+	 * @return
+	 */
+	public int getDegree(int item) {
+		return offsets[item+1] - offsets[item];
+	}
+	
+	/**
+	 * Get a neighbor of an item.
+	 * @param item index of the item
+	 * @param k index of the neighbor, where 0 is the closest
+	 * @return the index of the neighbor item
+	 */
+	public int getNeighbor(int item, int k) {
+		return neighbors[offsets[item] + k];
+	}
+	
+	/**
+	 * Get the length of the edge between an item and one of its neighbors.
+	 * @param item index of the item
+	 * @param k index of the neighbor, where 0 is the closest
+	 * @return the length of the edge
+	 */
+	public double getNeighborDistance(int item, int k) {
+		return lengths[offsets[item] + k];
+	}
+	
+	/**
+	 * Get the indices of all neighbors of an item, sorted by increasing edge length.
+	 * @param item
+	 * @return a new array containing the neighbor indices
+	 */
+	public int[] getNeighbors(int item) {
+		return Arrays.copyOfRange(neighbors, offsets[item], offsets[item+1]);
+	}
+	
+	@Override
+	public String toString() {
+		return "NeighborGraph[items=" + size() + ", edges=" + getEdgeCount() + "]";
+	}
+
+}
@@ -0,0 +1,315 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.analysis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectTools;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+
+/**
+ * A {@link NeighborGraph} connecting {@link PathObject PathObjects}, based upon their ROI centroids.
+ * <p>
+ * This provides a reusable structure for neighborhood analysis, e.g. counting the neighbors of each cell with a specified 
+ * classification within a fixed distance. Graphs for the detections in a hierarchy can be cached using 
+ * {@link #getDetectionGraph(PathObjectHierarchy, ImagePlane, PixelCalibration, GraphType, double)}, 
+ * and are reused until the objects in the hierarchy change.
+ * 
+ * @author Pete Bankhead
+ */
+public class PathObjectNeighborGraph {
+	
+	private final static Logger logger = LoggerFactory.getLogger(PathObjectNeighborGraph.class);
+	
+	/**
+	 * The method used to determine neighbors.
+	 */
+	public static enum GraphType {
+		/**
+		 * Neighbors are connected in a Delaunay triangulation. The parameter is the maximum distance between neighbors, 
+		 * or NaN (or &le; 0) if there is no maximum.
+		 */
+		DELAUNAY,
+		/**
+		 * Neighbors are the k nearest objects, where the parameter is k.
+		 */
+		NEAREST_NEIGHBORS,
+		/**
+		 * Neighbors are all objects within a fixed distance, where the parameter is the distance.
+		 */
+		DISTANCE
+	}
+	
+	private static final Map<PathObjectHierarchy, Map<String, CachedGraph>> cache = new WeakHashMap<>();
+	
+	private final List<PathObject> pathObjects;
+	private final Map<PathObject, Integer> indices;
+	private final NeighborGraph graph;
+	
+	private PathObjectNeighborGraph(List<PathObject> pathObjects, NeighborGraph graph) {
+		this.pathObjects = Collections.unmodifiableList(pathObjects);
+		this.graph = graph;
+		this.indices = new HashMap<>();
+		for (int i = 0; i < pathObjects.size(); i++)
+			indices.put(pathObjects.get(i), i);
+	}
+	
+	/**
+	 * Create a graph for the specified objects.
+	 * @param pathObjects the objects; those without ROIs are ignored
+	 * @param cal pixel calibration, used to determine the units of distances (may be null to use pixels)
+	 * @param type the method used to determine neighbors
+	 * @param param parameter for the method, as described by {@link GraphType}
+	 * @return the graph
+	 */
+	public static PathObjectNeighborGraph create(Collection<? extends PathObject> pathObjects, PixelCalibration cal, GraphType type, double param) {
+		var list = new ArrayList<PathObject>();
+		for (var pathObject : pathObjects) {
+			if (pathObject.hasROI())
+				list.add(pathObject);
+		}
+		
+		NeighborGraph delaunay = null;
+		if (type == GraphType.DELAUNAY) {
+			// Triangulate in pixel units, since the calibration is not applied to centroids
+			var subdivision = DelaunayTools.newBuilder(list)
+					.centroids()
+					.preferNucleus(true)
+					.tiled(list.size() > TiledDelaunayTriangulator.DEFAULT_POINTS_PER_TILE)
+					.build();
+			delaunay = subdivision.getNeighborGraph();
+			list = new ArrayList<>(subdivision.getPathObjects());
+		}
+		
+		var objects = list;
+		double pixelWidth = cal == null ? 1.0 : cal.getPixelWidth().doubleValue();
+		double pixelHeight = cal == null ? 1.0 : cal.getPixelHeight().doubleValue();
+		int n = objects.size();
+		double[] x = new double[n];
+		double[] y = new double[n];
+		IntStream.range(0, n).parallel().forEach(i -> {
+			var roi = PathObjectTools.getROI(objects.get(i), true);
+			x[i] = roi.getCentroidX() * pixelWidth;
+			y[i] = roi.getCentroidY() * pixelHeight;
+		});
+		switch (type) {
+		case DELAUNAY:
+			if (pixelWidth != 1.0 || pixelHeight != 1.0)
+				delaunay = updateDistances(delaunay, x, y);
+			if (param > 0)
+				delaunay = delaunay.filterByDistance(param);
+			return new PathObjectNeighborGraph(objects, delaunay);
+		case NEAREST_NEIGHBORS:
+			return new PathObjectNeighborGraph(objects, NeighborGraph.fromNearestNeighbors(x, y, (int)param));
+		case DISTANCE:
+			return new PathObjectNeighborGraph(objects, NeighborGraph.fromDistance(x, y, param));
+		default:
+			throw new IllegalArgumentException("Unsupported graph type " + type);
+		}
+	}
+	
+	/**
+	 * Create a graph with the same edges, but with lengths computed from the specified coordinates.
+	 */
+	private static NeighborGraph updateDistances(NeighborGraph graph, double[] x, double[] y) {
+		int nEdges = graph.getEdgeCount();
+		int[] start = new int[nEdges];
+		int[] end = new int[nEdges];
+		double[] lengths = new double[nEdges];
+		int e = 0;
+		for (int i = 0; i < graph.size(); i++) {
+			for (int k = 0; k < graph.getDegree(i); k++) {
+				int j = graph.getNeighbor(i, k);
+				if (j > i) {
+					start[e] = i;
+					end[e] = j;
+					lengths[e] = Math.hypot(x[j] - x[i], y[j] - y[i]);
+					e++;
+				}
+			}
+		}
+		return NeighborGraph.fromEdges(graph.size(), start, end, lengths, e);
+	}
+	
+	/**
+	 * Get a graph for all the detections on a specified image plane within a hierarchy.
+	 * <p>
+	 * The graph is cached, and reused for subsequent calls with the same parameters until the objects in the 
+	 * hierarchy change (as determined by {@link PathObjectHierarchy#getObjectsVersion()}).
+	 * Changes to measurements or classifications do not invalidate the graph.
+	 * 
+	 * @param hierarchy the hierarchy containing the detections
+	 * @param plane the image plane
+	 * @param cal pixel calibration, used to determine the units of distances (may be null to use pixels)
+	 * @param type the method used to determine neighbors
+	 * @param param parameter for the method, as described by {@link GraphType}
+	 * @return the graph
+	 */
+	public static PathObjectNeighborGraph getDetectionGraph(PathObjectHierarchy hierarchy, ImagePlane plane, PixelCalibration cal, GraphType type, double param) {
+		String key = type + ":" + param + ":" + plane.getZ() + ":" + plane.getT();
+		if (cal != null)
+			key += ":" + cal.getPixelWidth() + ":" + cal.getPixelHeight();
+		long version = hierarchy.getObjectsVersion();
+		synchronized (cache) {
+			var cached = cache.computeIfAbsent(hierarchy, h -> new HashMap<>()).get(key);
+			if (cached != null && cached.version == version)
+				return cached.graph;
+		}
+		var detections = new ArrayList<PathObject>();
+		for (var pathObject : hierarchy.getDetectionObjects()) {
+			var roi = pathObject.getROI();
+			if (roi != null && roi.getZ() == plane.getZ() && roi.getT() == plane.getT())
+				detections.add(pathObject);
+		}
+		long startTime = System.currentTimeMillis();
+		var graph = create(detections, cal, type, param);
+		long endTime = System.currentTimeMillis();
+		logger.debug("Created {} for {} detections in {} ms", graph.getGraph(), detections.size(), endTime - startTime);
+		synchronized (cache) {
+			cache.computeIfAbsent(hierarchy, h -> new HashMap<>()).put(key, new CachedGraph(version, graph));
+		}
+		return graph;
+	}
+	
+	/**
+	 * Get the objects in the graph. The index of each object corresponds to its index in the {@link NeighborGraph}.
+	 * @return an unmodifiable list of objects
+	 */
+	public List<PathObject> getPathObjects() {
+		return pathObjects;
+	}
+	
+	/**
+	 * Get the underlying graph, which uses the indices of objects in {@link #getPathObjects()}.
+	 * @return the graph
+	 */
+	public NeighborGraph getGraph() {
+		return graph;
+	}
+	
+	/**
+	 * Get the index of an object within the graph.
+	 * @param pathObject
+	 * @return the index, or -1 if the object is not in the graph
+	 */
+	public int indexOf(PathObject pathObject) {
+		return indices.getOrDefault(pathObject, -1);
+	}
+	
+	/**
+	 * Get the neighbors of an object.
+	 * @param pathObject
+	 * @return the neighbors, sorted by increasing distance, or an empty list if the object is not in the graph
+	 */
+	public List<PathObject> getNeighbors(PathObject pathObject) {
+		int ind = indexOf(pathObject);
+		if (ind < 0)
+			return Collections.emptyList();
+		var list = new ArrayList<PathObject>(graph.getDegree(ind));
+		for (int k = 0; k < graph.getDegree(ind); k++)
+			list.add(pathObjects.get(graph.getNeighbor(ind, k)));
+		return list;
+	}
+	
+	/**
+	 * Count the neighbors of every object that meet a specified criterion (e.g. having a specified classification).
+	 * The predicate is evaluated once for every object.
+	 * @param predicate
+	 * @return an array giving the number of matching neighbors for each object in {@link #getPathObjects()}
+	 */
+	public int[] countNeighbors(Predicate<PathObject> predicate) {
+		boolean[] matches = new boolean[pathObjects.size()];
+		IntStream.range(0, matches.length).parallel().forEach(i -> matches[i] = predicate.test(pathObjects.get(i)));
+		return graph.countNeighbors(i -> matches[i]);
+	}
+	
+	/**
+	 * Compute the mean value of a measurement across the neighbors of every object. Missing values are ignored.
+	 * @param measurementName the measurement name
+	 * @return an array giving the mean neighbor measurement for each object in {@link #getPathObjects()}
+	 */
+	public double[] meanNeighborMeasurements(String measurementName) {
+		double[] values = new double[pathObjects.size()];
+		IntStream.range(0, values.length).parallel().forEach(i -> values[i] = pathObjects.get(i).getMeasurementList().getMeasurementValue(measurementName));
+		return graph.meanNeighbors(values);
+	}
+	
+	/**
+	 * Add a measurement to every object.
+	 * @param measurementName the measurement name
+	 * @param values array containing the value for each object in {@link #getPathObjects()}
+	 */
+	public void putMeasurements(String measurementName, double[] values) {
+		if (values.length != pathObjects.size())
+			throw new IllegalArgumentException("Number of values (" + values.length + ") does not match the number of objects (" + pathObjects.size() + ")");
+		IntStream.range(0, values.length).parallel().forEach(i -> {
+			try (var ml = pathObjects.get(i).getMeasurementList()) {
+				ml.putMeasurement(measurementName, values[i]);
+			}
+		});
+	}
+	
+	/**
+	 * Add a measurement to every object.
+	 * @param measurementName the measurement name
+	 * @param values array containing the value for each object in {@link #getPathObjects()}
+	 */
+	public void putMeasurements(String measurementName, int[] values) {
+		double[] doubleValues = new double[values.length];
+		for (int i = 0; i < values.length; i++)
+			doubleValues[i] = values[i];
+		putMeasurements(measurementName, doubleValues);
+	}
+	
+	@Override
+	public String toString() {
+		return "PathObjectNeighborGraph[" + graph + "]";
+	}
+	
+	
+	private static class CachedGraph {
+		
+		private final long version;
+		private final PathObjectNeighborGraph graph;
+		
+		private CachedGraph(long version, PathObjectNeighborGraph graph) {
+			this.version = version;
+			this.graph = graph;
+		}
+		
+	}
+
+}
@@ -0,0 +1,232 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.analysis;
+
+import java.util.Arrays;
+
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * Uniform grid to find points within a region, with points stored in a single array sorted by grid cell.
+ * 
+ * @author Pete Bankhead
+ */
+class PointGrid {
+	
+	// Coordinates sorted by grid cell, for better memory locality
+	private final double[] x, y;
+	private final double minX, minY, cellSize;
+	private final int nx, ny;
+	private final int[] cellStart;
+	private final int[] cellPoints;
+	
+	PointGrid(double[] x, double[] y, Envelope bounds, double cellSize) {
+		this.minX = bounds.getMinX();
+		this.minY = bounds.getMinY();
+		// Avoid creating excessively large grids for very unevenly-distributed points
+		long maxCells = Math.max(1024L, x.length * 4L);
+		double cellArea = Math.max(cellSize * cellSize, bounds.getArea() / maxCells);
+		this.cellSize = Math.max(Math.sqrt(cellArea), 1e-6);
+		this.nx = Math.max(1, (int)Math.ceil(bounds.getWidth() / this.cellSize) + 1);
+		this.ny = Math.max(1, (int)Math.ceil(bounds.getHeight() / this.cellSize) + 1);
+		
+		int n = x.length;
+		int[] cell = new int[n];
+		cellStart = new int[nx * ny + 1];
+		for (int i = 0; i < n; i++) {
+			cell[i] = cellY(y[i]) * nx + cellX(x[i]);
+			cellStart[cell[i] + 1]++;
+		}
+		for (int c = 0; c < nx * ny; c++)
+			cellStart[c+1] += cellStart[c];
+		cellPoints = new int[n];
+		int[] fill = Arrays.copyOf(cellStart, nx * ny);
+		this.x = new double[n];
+		this.y = new double[n];
+		for (int i = 0; i < n; i++) {
+			int k = fill[cell[i]]++;
+			cellPoints[k] = i;
+			this.x[k] = x[i];
+			this.y[k] = y[i];
+		}
+	}
+	
+	private int cellX(double x) {
+		return Math.min(nx - 1, Math.max(0, (int)((x - minX) / cellSize)));
+	}
+
+	private int cellY(double y) {
+		return Math.min(ny - 1, Math.max(0, (int)((y - minY) / cellSize)));
+	}
+	
+	/**
+	 * Create a grid containing all the specified points.
+	 * @param x x-coordinates of the points
+	 * @param y y-coordinates of the points
+	 * @param cellSize requested size of each grid cell (which may be increased for sparse points)
+	 * @return the grid
+	 */
+	static PointGrid create(double[] x, double[] y, double cellSize) {
+		var bounds = new Envelope();
+		for (int i = 0; i < x.length; i++)
+			bounds.expandToInclude(x[i], y[i]);
+		return new PointGrid(x, y, bounds, cellSize);
+	}
+	
+	/**
+	 * Find the nearest points to a location, by searching rings of grid cells of increasing size.
+	 * @param cx x-coordinate of the location
+	 * @param cy y-coordinate of the location
+	 * @param exclude index of a point to exclude (e.g. the point at the location), or -1
+	 * @param k maximum number of points to find
+	 * @param indices array of length at least k, used to return the point indices in order of increasing distance
+	 * @param dist2 array of length at least k, used to return the squared distances
+	 * @return the number of points found, which is less than k only if the grid contains fewer points
+	 */
+	int getNearest(double cx, double cy, int exclude, int k, int[] indices, double[] dist2) {
+		int gx = cellX(cx);
+		int gy = cellY(cy);
+		// Distance from the location to the boundary of its own cell (which may be negative if outside the grid)
+		double inset = Math.min(
+				Math.min(cx - (minX + gx * cellSize), minX + (gx + 1) * cellSize - cx),
+				Math.min(cy - (minY + gy * cellSize), minY + (gy + 1) * cellSize - cy));
+		int maxRing = Math.max(Math.max(gx, nx - 1 - gx), Math.max(gy, ny - 1 - gy));
+		int count = 0;
+		for (int r = 0; r <= maxRing; r++) {
+			for (int y = gy - r; y <= gy + r; y++) {
+				if (y < 0 || y >= ny)
+					continue;
+				boolean edgeRow = y == gy - r || y == gy + r;
+				int step = edgeRow ? 1 : 2 * r;
+				for (int x = gx - r; x <= gx + r; x += Math.max(1, step)) {
+					if (x < 0 || x >= nx)
+						continue;
+					int c = y * nx + x;
+					for (int p = cellStart[c]; p < cellStart[c+1]; p++) {
+						int i = cellPoints[p];
+						if (i == exclude)
+							continue;
+						double dx = this.x[p] - cx;
+						double dy = this.y[p] - cy;
+						double d2 = dx * dx + dy * dy;
+						if (count == k && d2 >= dist2[k-1])
+							continue;
+						// Insert in sorted order
+						int j = count < k ? count++ : k - 1;
+						while (j > 0 && dist2[j-1] > d2) {
+							indices[j] = indices[j-1];
+							dist2[j] = dist2[j-1];
+							j--;
+						}
+						indices[j] = i;
+						dist2[j] = d2;
+					}
+				}
+			}
+			// Any points in larger rings must be at least this far away
+			double minDist = r * cellSize + inset;
+			if (count == k && minDist > 0 && dist2[k-1] <= minDist * minDist)
+				break;
+		}
+		return count;
+	}
+	
+	/**
+	 * Get the indices of all points within a fixed distance of a location.
+	 * @param cx x-coordinate of the location
+	 * @param cy y-coordinate of the location
+	 * @param maxDistance the maximum distance (inclusive)
+	 * @return the indices of all points within the distance, in no particular order
+	 */
+	int[] getWithinDistance(double cx, double cy, double maxDistance) {
+		int x1 = cellX(cx - maxDistance), x2 = cellX(cx + maxDistance);
+		int y1 = cellY(cy - maxDistance), y2 = cellY(cy + maxDistance);
+		double max2 = maxDistance * maxDistance;
+		int[] points = new int[16];
+		int n = 0;
+		for (int gy = y1; gy <= y2; gy++) {
+			for (int k = cellStart[gy * nx + x1]; k < cellStart[gy * nx + x2 + 1]; k++) {
+				double dx = x[k] - cx;
+				double dy = y[k] - cy;
+				if (dx * dx + dy * dy <= max2) {
+					if (n == points.length)
+						points = Arrays.copyOf(points, n * 2);
+					points[n++] = cellPoints[k];
+				}
+			}
+		}
+		return Arrays.copyOf(points, n);
+	}
+	
+	/**
+	 * Get the indices of all points within an envelope.
+	 */
+	int[] getPoints(Envelope env) {
+		int x1 = cellX(env.getMinX()), x2 = cellX(env.getMaxX());
+		int y1 = cellY(env.getMinY()), y2 = cellY(env.getMaxY());
+		int count = 0;
+		for (int cy = y1; cy <= y2; cy++)
+			count += cellStart[cy * nx + x2 + 1] - cellStart[cy * nx + x1];
+		int[] points = new int[count];
+		int n = 0;
+		for (int cy = y1; cy <= y2; cy++) {
+			for (int k = cellStart[cy * nx + x1]; k < cellStart[cy * nx + x2 + 1]; k++) {
+				if (env.contains(x[k], y[k]))
+					points[n++] = cellPoints[k];
+			}
+		}
+		return n == count ? points : Arrays.copyOf(points, n);
+	}
+	
+	/**
+	 * Check if any point outside an excluded envelope lies strictly within a circle.
+	 */
+	boolean containsPointInCircle(double cx, double cy, double r2, Envelope searchBounds, Envelope excluded) {
+		int x1 = cellX(searchBounds.getMinX()), x2 = cellX(searchBounds.getMaxX());
+		int y1 = cellY(searchBounds.getMinY()), y2 = cellY(searchBounds.getMaxY());
+		for (int gy = y1; gy <= y2; gy++) {
+			for (int gx = x1; gx <= x2; gx++) {
+				// Skip cells entirely within the excluded region, or entirely outside the circle
+				double cellMinX = minX + gx * cellSize;
+				double cellMinY = minY + gy * cellSize;
+				if (excluded.covers(cellMinX, cellMinY) && excluded.covers(cellMinX + cellSize, cellMinY + cellSize))
+					continue;
+				double dx = Math.max(0, Math.max(cellMinX - cx, cx - (cellMinX + cellSize)));
+				double dy = Math.max(0, Math.max(cellMinY - cy, cy - (cellMinY + cellSize)));
+				if (dx * dx + dy * dy >= r2)
+					continue;
+				int c = gy * nx + gx;
+				for (int k = cellStart[c]; k < cellStart[c+1]; k++) {
+					if (excluded.covers(x[k], y[k]))
+						continue;
+					double px = x[k] - cx;
+					double py = y[k] - cy;
+					if (px * px + py * py < r2)
+						return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+}
+
@@ -0,0 +1,323 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.triangulate.IncrementalDelaunayTriangulator;
+import org.locationtech.jts.triangulate.quadedge.QuadEdge;
+import org.locationtech.jts.triangulate.quadedge.QuadEdgeSubdivision;
+import org.locationtech.jts.triangulate.quadedge.Vertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compute the edges of a Delaunay triangulation by triangulating overlapping tiles in parallel.
+ * <p>
+ * Each point is owned by exactly one tile. A tile is triangulated along with all points within a surrounding halo, 
+ * and the edges of an owned point are accepted only if every triangle around the point can be shown to be globally Delaunay, 
+ * i.e. its circumcircle contains no point excluded from the tile. This is guaranteed if the circumcircle lies within 
+ * the tile and its halo, and is otherwise checked using a spatial index of all points.
+ * Points that cannot be resolved are retried with a larger halo, until the halo covers all points.
+ * <p>
+ * The accepted edges from all tiles are then combined, which reconciles the tiles exactly at their seams.
+ * Four distant 'ghost' points are added to every tile, so that all tiles share the same convex hull.
+ * 
+ * @author Pete Bankhead
+ */
+class TiledDelaunayTriangulator {
+	
+	private final static Logger logger = LoggerFactory.getLogger(TiledDelaunayTriangulator.class);
+	
+	/**
+	 * Default target number of points per tile.
+	 */
+	static final int DEFAULT_POINTS_PER_TILE = 20_000;
+	
+	private final double[] x;
+	private final double[] y;
+	private final double tolerance;
+	
+	private final Envelope bounds;
+	private final PointGrid grid;
+	private final IndexedVertex[] ghosts;
+	
+	private final double tileSize;
+	private final int nTilesX, nTilesY;
+	private final double initialHalo;
+	
+	private TiledDelaunayTriangulator(double[] x, double[] y, double tolerance, int pointsPerTile) {
+		this.x = x;
+		this.y = y;
+		this.tolerance = tolerance;
+		int n = x.length;
+		
+		bounds = new Envelope();
+		for (int i = 0; i < n; i++)
+			bounds.expandToInclude(x[i], y[i]);
+		double size = Math.max(Math.max(bounds.getWidth(), bounds.getHeight()), 1.0);
+		double area = Math.max(bounds.getWidth(), size * 1e-3) * Math.max(bounds.getHeight(), size * 1e-3);
+		
+		// Mean spacing between points, assuming they are evenly distributed
+		double spacing = Math.sqrt(area / Math.max(n, 1));
+		grid = new PointGrid(x, y, bounds, spacing * 2.0);
+		
+		tileSize = Math.max(spacing, Math.sqrt(area * pointsPerTile / Math.max(n, 1)));
+		nTilesX = Math.max(1, (int)Math.ceil(bounds.getWidth() / tileSize));
+		nTilesY = Math.max(1, (int)Math.ceil(bounds.getHeight() / tileSize));
+		initialHalo = spacing * 4.0;
+		
+		double pad = size * 10.0;
+		ghosts = new IndexedVertex[] {
+				new IndexedVertex(bounds.getMinX() - pad, bounds.getMinY() - pad, -1),
+				new IndexedVertex(bounds.getMaxX() + pad, bounds.getMinY() - pad, -1),
+				new IndexedVertex(bounds.getMaxX() + pad, bounds.getMaxY() + pad, -1),
+				new IndexedVertex(bounds.getMinX() - pad, bounds.getMaxY() + pad, -1)
+		};
+	}
+	
+	/**
+	 * Compute a neighbor graph from the Delaunay triangulation of a set of points, where each point belongs to an item.
+	 * Items may have more than one point; neighboring items are those connected by at least one edge, and the length of the 
+	 * connection is the length of the shortest edge.
+	 * 
+	 * @param x x-coordinates of the points
+	 * @param y y-coordinates of the points
+	 * @param items item index for each point
+	 * @param nItems total number of items
+	 * @param tolerance tolerance used to identify coincident points
+	 * @param pointsPerTile approximate number of points to triangulate per tile
+	 * @return the neighbor graph
+	 */
+	static NeighborGraph computeNeighbors(double[] x, double[] y, int[] items, int nItems, double tolerance, int pointsPerTile) {
+		long startTime = System.currentTimeMillis();
+		var triangulator = new TiledDelaunayTriangulator(x, y, tolerance, pointsPerTile);
+		int nTiles = triangulator.nTilesX * triangulator.nTilesY;
+		var tileEdges = IntStream.range(0, nTiles)
+				.parallel()
+				.mapToObj(t -> triangulator.processTile(t % triangulator.nTilesX, t / triangulator.nTilesX))
+				.toArray(EdgeList[]::new);
+		
+		int nEdges = 0;
+		for (var edges : tileEdges)
+			nEdges += edges.size;
+		int[] start = new int[nEdges];
+		int[] end = new int[nEdges];
+		double[] lengths = new double[nEdges];
+		int ind = 0;
+		for (var edges : tileEdges) {
+			for (int e = 0; e < edges.size; e++) {
+				int a = edges.start[e];
+				int b = edges.end[e];
+				start[ind] = items[a];
+				end[ind] = items[b];
+				lengths[ind] = Math.hypot(x[a] - x[b], y[a] - y[b]);
+				ind++;
+			}
+		}
+		var graph = NeighborGraph.fromEdges(nItems, start, end, lengths, nEdges);
+		long endTime = System.currentTimeMillis();
+		logger.debug("Tiled triangulation of {} points with {} tiles in {} ms", x.length, nTiles, endTime - startTime);
+		return graph;
+	}
+	
+	
+	private EdgeList processTile(int tx, int ty) {
+		var core = new Envelope(
+				bounds.getMinX() + tx * tileSize,
+				tx == nTilesX - 1 ? bounds.getMaxX() : bounds.getMinX() + (tx + 1) * tileSize,
+				bounds.getMinY() + ty * tileSize,
+				ty == nTilesY - 1 ? bounds.getMaxY() : bounds.getMinY() + (ty + 1) * tileSize);
+		
+		// Find the points owned by this tile
+		int[] unresolved = Arrays.stream(grid.getPoints(core))
+				.filter(i -> tileX(x[i]) == tx && tileY(y[i]) == ty)
+				.sorted()
+				.toArray();
+		
+		var edges = new EdgeList();
+		double halo = initialHalo;
+		while (unresolved.length > 0) {
+			var expanded = new Envelope(core);
+			expanded.expandBy(halo);
+			boolean isFinal = expanded.covers(bounds);
+			
+			var subdiv = triangulate(grid.getPoints(expanded));
+			
+			boolean[] resolved = new boolean[unresolved.length];
+			var vertexEdges = subdiv.getVertexUniqueEdges(false);
+			for (var obj : vertexEdges) {
+				var edge = (QuadEdge)obj;
+				var origin = (IndexedVertex)edge.orig();
+				int ind = origin.index < 0 ? -1 : Arrays.binarySearch(unresolved, origin.index);
+				if (ind < 0)
+					continue;
+				if (isFinal || isResolved(subdiv, edge, expanded)) {
+					var next = edge;
+					do {
+						var dest = next.dest();
+						if (dest instanceof IndexedVertex && ((IndexedVertex)dest).index >= 0)
+							edges.add(origin.index, ((IndexedVertex)dest).index);
+					} while ((next = next.oNext()) != edge);
+					resolved[ind] = true;
+				}
+			}
+			
+			// Points that are not vertices were merged with a coincident point, and therefore have no edges
+			var present = new boolean[unresolved.length];
+			for (var obj : vertexEdges) {
+				var origin = (IndexedVertex)((QuadEdge)obj).orig();
+				int ind = origin.index < 0 ? -1 : Arrays.binarySearch(unresolved, origin.index);
+				if (ind >= 0)
+					present[ind] = true;
+			}
+			int[] remaining = IntStream.range(0, unresolved.length)
+					.filter(i -> present[i] && !resolved[i])
+					.map(i -> unresolved[i])
+					.toArray();
+			if (remaining.length > 0)
+				logger.trace("Tile ({}, {}): {} points unresolved with halo {}", tx, ty, remaining.length, halo);
+			unresolved = remaining;
+			halo *= 2.0;
+		}
+		return edges;
+	}
+	
+	private int tileX(double x) {
+		return Math.min(nTilesX - 1, Math.max(0, (int)((x - bounds.getMinX()) / tileSize)));
+	}
+
+	private int tileY(double y) {
+		return Math.min(nTilesY - 1, Math.max(0, (int)((y - bounds.getMinY()) / tileSize)));
+	}
+	
+	private QuadEdgeSubdivision triangulate(int[] points) {
+		List<IndexedVertex> vertices = new ArrayList<>(points.length + ghosts.length);
+		for (int i : points)
+			vertices.add(new IndexedVertex(x[i], y[i], i));
+		for (var ghost : ghosts)
+			vertices.add(ghost);
+		// Use a consistent insertion order, so that coincident points are resolved in the same way for every tile
+		vertices.sort(Comparator.comparingDouble(IndexedVertex::getX)
+				.thenComparingDouble(IndexedVertex::getY)
+				.thenComparingInt(v -> v.index));
+		var envelope = new Envelope();
+		for (var v : vertices)
+			envelope.expandToInclude(v.getX(), v.getY());
+		var subdiv = new QuadEdgeSubdivision(envelope, tolerance);
+		subdiv.setLocator(DelaunayTools.getDefaultLocator(subdiv));
+		var triangulator = new IncrementalDelaunayTriangulator(subdiv);
+		for (var v : vertices)
+			triangulator.insertSite(v);
+		return subdiv;
+	}
+	
+	/**
+	 * Check whether all triangles around the origin of an edge are globally Delaunay.
+	 */
+	private boolean isResolved(QuadEdgeSubdivision subdiv, QuadEdge edge, Envelope expanded) {
+		var origin = edge.orig();
+		var next = edge;
+		do {
+			var v1 = next.dest();
+			var v2 = next.oNext().dest();
+			if (subdiv.isFrameVertex(v1) || subdiv.isFrameVertex(v2))
+				return false;
+			if (!isDelaunay(origin, v1, v2, expanded))
+				return false;
+		} while ((next = next.oNext()) != edge);
+		return true;
+	}
+	
+	/**
+	 * Check whether a triangle computed from the points within an envelope has a circumcircle that contains no other points.
+	 */
+	private boolean isDelaunay(Vertex a, Vertex b, Vertex c, Envelope expanded) {
+		// Compute the circumcircle relative to the first vertex, for numerical stability
+		double bx = b.getX() - a.getX();
+		double by = b.getY() - a.getY();
+		double cx = c.getX() - a.getX();
+		double cy = c.getY() - a.getY();
+		double d = 2.0 * (bx * cy - by * cx);
+		if (d == 0)
+			return false;
+		double b2 = bx * bx + by * by;
+		double c2 = cx * cx + cy * cy;
+		double ux = (cy * b2 - by * c2) / d;
+		double uy = (bx * c2 - cx * b2) / d;
+		double r2 = ux * ux + uy * uy;
+		double r = Math.sqrt(r2);
+		ux += a.getX();
+		uy += a.getY();
+		
+		// Only points within the overall bounds matter
+		var circleBounds = new Envelope(ux - r, ux + r, uy - r, uy + r).intersection(bounds);
+		if (circleBounds.isNull() || expanded.covers(circleBounds))
+			return true;
+		
+		// Allow a small relative tolerance, so that co-circular points are not considered to be inside
+		return !grid.containsPointInCircle(ux, uy, r2 * (1.0 - 1e-9), circleBounds, expanded);
+	}
+	
+	
+	/**
+	 * JTS vertex that also stores the index of the corresponding point.
+	 */
+	private static class IndexedVertex extends Vertex {
+		
+		private final int index;
+		
+		private IndexedVertex(double x, double y, int index) {
+			super(x, y);
+			this.index = index;
+		}
+		
+	}
+	
+	
+	/**
+	 * Expandable list of edges, each defined by the indices of two points.
+	 */
+	private static class EdgeList {
+		
+		private int[] start = new int[1024];
+		private int[] end = new int[1024];
+		private int size = 0;
+		
+		private void add(int a, int b) {
+			if (size == start.length) {
+				start = Arrays.copyOf(start, size * 2);
+				end = Arrays.copyOf(end, size * 2);
+			}
+			start[size] = a;
+			end[size] = b;
+			size++;
+		}
+		
+	}
+
+}
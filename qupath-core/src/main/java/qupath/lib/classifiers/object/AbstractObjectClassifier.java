@@ -50,6 +50,14 @@ public abstract class AbstractObjectClassifier<T> implements ObjectClassifier<T>
 	protected AbstractObjectClassifier(final PathObjectFilter filter) {
 		this.filter = filter;
 	}
+	
+	/**
+	 * Get the timestamp representing when the classifier was created or trained.
+	 * @return the timestamp, in milliseconds
+	 */
+	protected long getTimestamp() {
+		return timestamp;
+	}
 
 	@Override
 	public int classifyObjects(ImageData<T> imageData, boolean resetExistingClass) {
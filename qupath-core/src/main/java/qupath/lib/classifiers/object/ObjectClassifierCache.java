@@ -0,0 +1,238 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.classifiers.object;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
+
+/**
+ * Cache for the predictions made by an {@link ObjectClassifier}.
+ * <p>
+ * Each prediction is stored along with a fingerprint of the features used to make it, and a key identifying
+ * the model version. When the same classifier is applied again to an object with identical features, the
+ * cached prediction can be reused rather than calling the model. This is useful when the same classifiers are
+ * applied repeatedly, e.g. within a {@link CompositeClassifier} whose other components are being adjusted.
+ * <p>
+ * Cached predictions are removed when objects are garbage collected, or when a measurement change event is
+ * fired for a hierarchy containing them.
+ * <p>
+ * The default cache is disabled unless requested with {@link #setDefaultCacheEnabled(boolean)}.
+ *
+ * @author Pete Bankhead
+ */
+public class ObjectClassifierCache implements PathObjectHierarchyListener {
+
+	/**
+	 * Maximum number of models for which a prediction is stored per object.
+	 */
+	private static final int MAX_MODELS_PER_OBJECT = 4;
+
+	private static final ObjectClassifierCache DEFAULT_CACHE = new ObjectClassifierCache();
+
+	private static volatile boolean defaultCacheEnabled = false;
+
+	private final Map<PathObject, CachedPrediction[]> map = new WeakHashMap<>();
+
+	private final Set<PathObjectHierarchy> hierarchies = Collections.newSetFromMap(new WeakHashMap<>());
+
+	/**
+	 * Get the default cache, if enabled.
+	 * @return the default cache, or null if caching is disabled
+	 */
+	public static ObjectClassifierCache getDefaultCache() {
+		return defaultCacheEnabled ? DEFAULT_CACHE : null;
+	}
+
+	/**
+	 * Request whether the default cache should be used. Disabling the cache also clears it.
+	 * @param enabled
+	 */
+	public static void setDefaultCacheEnabled(boolean enabled) {
+		defaultCacheEnabled = enabled;
+		if (!enabled)
+			DEFAULT_CACHE.clear();
+	}
+
+	/**
+	 * Query whether the default cache is enabled.
+	 * @return true if the default cache is enabled
+	 */
+	public static boolean isDefaultCacheEnabled() {
+		return defaultCacheEnabled;
+	}
+
+	/**
+	 * Compute a 64-bit fingerprint for a feature vector.
+	 * @param values array containing the feature values
+	 * @param offset offset of the first feature
+	 * @param length number of features
+	 * @return the fingerprint
+	 */
+	public static long fingerprint(float[] values, int offset, int length) {
+		// 64-bit FNV-1a, applied to the bits of each value
+		long hash = 0xcbf29ce484222325L;
+		for (int i = offset; i < offset + length; i++) {
+			int bits = Float.floatToIntBits(values[i]);
+			for (int b = 0; b < 4; b++) {
+				hash ^= (bits >>> (b * 8)) & 0xff;
+				hash *= 0x100000001b3L;
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Listen for measurement changes within a hierarchy, so that cached predictions can be removed when
+	 * they might no longer be valid. Registering the same hierarchy more than once has no effect.
+	 * @param hierarchy
+	 */
+	public synchronized void register(PathObjectHierarchy hierarchy) {
+		if (hierarchy != null && hierarchies.add(hierarchy))
+			hierarchy.addPathObjectListener(this);
+	}
+
+	/**
+	 * Get cached predictions for a list of objects.
+	 * @param pathObjects the objects
+	 * @param modelKey key identifying the model (including its version)
+	 * @param fingerprints feature fingerprints for each object
+	 * @return an array containing the cached prediction for each object, or null entries where no valid prediction is available
+	 */
+	public synchronized CachedPrediction[] get(List<? extends PathObject> pathObjects, String modelKey, long[] fingerprints) {
+		var results = new CachedPrediction[pathObjects.size()];
+		for (int i = 0; i < results.length; i++) {
+			var entries = map.get(pathObjects.get(i));
+			if (entries == null)
+				continue;
+			for (var entry : entries) {
+				if (entry != null && entry.fingerprint == fingerprints[i] && entry.modelKey.equals(modelKey)) {
+					results[i] = entry;
+					break;
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Store a prediction for an object.
+	 * @param pathObject the object
+	 * @param modelKey key identifying the model (including its version)
+	 * @param fingerprint feature fingerprint for the object
+	 * @param pathClass the predicted classification
+	 * @param probability the probability of the prediction, or NaN if unavailable
+	 */
+	public synchronized void put(PathObject pathObject, String modelKey, long fingerprint, PathClass pathClass, double probability) {
+		var entries = map.get(pathObject);
+		if (entries == null) {
+			entries = new CachedPrediction[MAX_MODELS_PER_OBJECT];
+			map.put(pathObject, entries);
+		}
+		// Replace any entry for the same model, otherwise the oldest entry
+		int ind = entries.length - 1;
+		for (int i = 0; i < entries.length; i++) {
+			if (entries[i] == null || entries[i].modelKey.equals(modelKey)) {
+				ind = i;
+				break;
+			}
+		}
+		System.arraycopy(entries, 0, entries, 1, ind);
+		entries[0] = new CachedPrediction(modelKey, fingerprint, pathClass, probability);
+	}
+
+	/**
+	 * Remove cached predictions for specific objects.
+	 * @param pathObjects
+	 */
+	public synchronized void invalidate(Collection<? extends PathObject> pathObjects) {
+		for (var pathObject : pathObjects)
+			map.remove(pathObject);
+	}
+
+	/**
+	 * Remove all cached predictions.
+	 */
+	public synchronized void clear() {
+		map.clear();
+	}
+
+	/**
+	 * Get the number of objects with cached predictions.
+	 * @return the number of objects
+	 */
+	public synchronized int size() {
+		return map.size();
+	}
+
+	@Override
+	public void hierarchyChanged(PathObjectHierarchyEvent event) {
+		if (event.isObjectMeasurementEvent())
+			invalidate(event.getChangedObjects());
+	}
+
+
+	/**
+	 * A cached prediction for a single object.
+	 */
+	public static class CachedPrediction {
+
+		private final String modelKey;
+		private final long fingerprint;
+		private final PathClass pathClass;
+		private final double probability;
+
+		private CachedPrediction(String modelKey, long fingerprint, PathClass pathClass, double probability) {
+			this.modelKey = modelKey;
+			this.fingerprint = fingerprint;
+			this.pathClass = pathClass;
+			this.probability = probability;
+		}
+
+		/**
+		 * Get the predicted classification.
+		 * @return the classification (may be null)
+		 */
+		public PathClass getPathClass() {
+			return pathClass;
+		}
+
+		/**
+		 * Get the probability of the prediction.
+		 * @return the probability, or NaN if unavailable
+		 */
+		public double getProbability() {
+			return probability;
+		}
+
+	}
+
+}
@@ -22,15 +22,15 @@
 package qupath.lib.objects;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.locationtech.jts.algorithm.Centroid;
-import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.util.AffineTransformation;
 import org.locationtech.jts.index.strtree.STRtree;
@@ -91,7 +91,7 @@ public class CellTools {
 	 * @return a new list of cells, potentially containing some of the original cells and other adjusted cells
 	 */
 	public static List<PathObject> constrainCellOverlaps(Collection<? extends PathObject> cells) {
-		var map = new HashMap<PathObject, Geometry>();
+		var map = new LinkedHashMap<PathObject, Geometry>();
 		for (var cell : cells) {
 			if (!cell.isCell()) {
 				logger.warn("{} is not a cell - will be skipped!", cell);
@@ -112,15 +112,17 @@ public class CellTools {
 	 */
 	public static List<PathObject> detectionsToCells(Collection<? extends PathObject> detections, double distance, double nucleusScale) {
 		
-		var transform = new AffineTransformation();
-		
-		var map = new HashMap<PathObject, Geometry>();
-		for (var detection : detections) {
-			var roiNucleus = PathObjectTools.getROI(detection, true);
+		var list = new ArrayList<PathObject>(detections);
+		var boundaries = new Geometry[list.size()];
+		IntStream.range(0, boundaries.length).parallel().forEach(i -> {
+			var roiNucleus = PathObjectTools.getROI(list.get(i), true);
 			var geomNucleus = roiNucleus.getGeometry();
-			var geomCell = estimateCellBoundary(geomNucleus, distance, nucleusScale, transform);
-			map.put(detection, geomCell);
-		}
+			boundaries[i] = estimateCellBoundary(geomNucleus, distance, nucleusScale, new AffineTransformation());
+		});
+		
+		var map = new LinkedHashMap<PathObject, Geometry>();
+		for (int i = 0; i < boundaries.length; i++)
+			map.put(list.get(i), boundaries[i]);
 		return detectionsToCells(map);
 	}
 	
@@ -160,76 +162,84 @@ public class CellTools {
 	/**
 	 * Convert detections to cells, using pre-computed boundary geometry estimates.
 	 * This purpose of this method is to apply an additional Voronoi constraint to refine the estimates.
+	 * <p>
+	 * For large numbers of detections, the constraint is applied using a raster (see {@link RasterCellExpansion}), 
+	 * since creating a large, dense triangulation can be very slow.
 	 * @param cellBoundaryMap
 	 * @return
 	 */
 	private static List<PathObject> detectionsToCells(Map<PathObject, Geometry> cellBoundaryMap) {
-		
-		// Creating a large, dense triangulation can be very slow
-		// Here, we create a spatial cache with a mapping to the preferred expanded Geometry
 		int max = 500;
-		if (cellBoundaryMap.size() > max) {
-			var cache = new STRtree(max);
-			var envelopes = new HashMap<PathObject, Envelope>();
-			var geometries = new HashMap<PathObject, Geometry>();
-			var nucleusGeometries = new HashMap<PathObject, Geometry>();
-			for (var entry : cellBoundaryMap.entrySet()) {
-				var detection = entry.getKey();
-				var roi = PathObjectTools.getROI(detection, true);
-				var geomNucleus = roi.getGeometry();
-				var geomCell = entry.getValue();
-				var env = geomCell.getEnvelopeInternal();
-				envelopes.put(detection, env);
-				geometries.put(detection, geomCell);
-				nucleusGeometries.put(detection, geomNucleus);
-				cache.insert(env, detection);
-			}
-			cache.build();
-			var items = cache.itemsTree();
-			return detectionsToCellsSubtree(cache, items, cellBoundaryMap, envelopes);
-		} else
-			return detectionsToCells(cellBoundaryMap.keySet(), cellBoundaryMap.keySet(), cellBoundaryMap);
+		if (cellBoundaryMap.size() > max)
+			return detectionsToCellsRaster(cellBoundaryMap);
+		return detectionsToCells(cellBoundaryMap.keySet(), cellBoundaryMap.keySet(), cellBoundaryMap);
 	}
 	
-	
-	@SuppressWarnings({ "unchecked", "rawtypes" })
-	private static List<PathObject> detectionsToCellsSubtree(STRtree tree, List<?> list, Map<PathObject, Geometry> cellBoundaryMap, Map<PathObject, Envelope> envelopes) {
-		if (list.isEmpty())
-			return Collections.emptyList();
-		var first = list.get(0);
+	/**
+	 * Convert detections to cells using a raster, which is much faster for dense objects than computing a triangulation.
+	 * Any detections for which this fails are converted using a local triangulation instead.
+	 */
+	private static List<PathObject> detectionsToCellsRaster(Map<PathObject, Geometry> cellBoundaryMap) {
+		var detections = new ArrayList<>(cellBoundaryMap.keySet());
+		int n = detections.size();
+		var nuclei = new Geometry[n];
+		var bounds = new Geometry[n];
+		IntStream.range(0, n).parallel().forEach(i -> {
+			var detection = detections.get(i);
+			nuclei[i] = PathObjectTools.getROI(detection, true).getGeometry();
+			bounds[i] = cellBoundaryMap.get(detection);
+		});
 		
-		boolean doParallel = true;
-
-		if (first instanceof PathObject) {
-			var env = new Envelope();
-			var pathObjects = (Collection<PathObject>)list;
-			for (var pathObject : pathObjects)
-				env.expandToInclude(envelopes.get(pathObject));
-			var allObjects = (List<PathObject>)tree.query(env);
+		long startTime = System.currentTimeMillis();
+		var boundaries = RasterCellExpansion.computeCellBoundaries(
+				Arrays.asList(nuclei), Arrays.asList(bounds), RasterCellExpansion.DEFAULT_RESOLUTION);
+		var cells = new PathObject[n];
+		IntStream.range(0, n).parallel().forEach(i -> {
+			var geomCell = boundaries[i];
+			if (geomCell == null)
+				return;
 			try {
-				return detectionsToCells(pathObjects, allObjects, cellBoundaryMap);
+				geomCell = GeometryTools.ensurePolygonal(VWSimplifier.simplify(geomCell, 1.0));
+				cells[i] = createCell(detections.get(i), geomCell);
 			} catch (Exception e) {
-				logger.error("Error converting detections to cells: " + e.getLocalizedMessage(), e);
-				return Collections.emptyList();
+				logger.debug("Error creating cell from raster boundary: {}", e.getLocalizedMessage());
 			}
-		} else if (first instanceof List) {
-			if (doParallel) {
-				return list.parallelStream()
-						.map(sublist -> detectionsToCellsSubtree(tree, (List)sublist, cellBoundaryMap, envelopes))
-						.flatMap(Collection::stream)
-						.collect(Collectors.toList());
-			} else {
-				var cells = new ArrayList<PathObject>();
-				for (var sublist : list)
-					cells.addAll(detectionsToCellsSubtree(tree, (List)sublist, cellBoundaryMap, envelopes));
-				return cells;
+		});
+		long endTime = System.currentTimeMillis();
+		
+		var output = new ArrayList<PathObject>(n);
+		var failed = new ArrayList<PathObject>();
+		for (int i = 0; i < n; i++) {
+			if (cells[i] == null)
+				failed.add(detections.get(i));
+			else
+				output.add(cells[i]);
+		}
+		logger.debug("Raster cell boundaries computed for {}/{} detections in {} ms", n - failed.size(), n, endTime - startTime);
+		
+		// Use a triangulation of neighboring objects for anything that couldn't be handled with the raster
+		if (!failed.isEmpty()) {
+			var tree = new STRtree();
+			for (var entry : cellBoundaryMap.entrySet())
+				tree.insert(entry.getValue().getEnvelopeInternal(), entry.getKey());
+			tree.build();
+			for (var detection : failed) {
+				@SuppressWarnings("unchecked")
+				var neighbors = (List<PathObject>)tree.query(cellBoundaryMap.get(detection).getEnvelopeInternal());
+				output.addAll(detectionsToCells(Collections.singletonList(detection), neighbors, cellBoundaryMap));
 			}
-		} else
-			throw new IllegalArgumentException("Expected a list of PathObjects or a list of lists, but got a list of " + first.getClass());
+		}
+		return output;
 	}
 	
-	
-	private static List<PathObject> detectionsToCells(Collection<PathObject> detections, Collection<PathObject> allDetections, Map<PathObject, Geometry> cellBoundaryMap) {
+	/**
+	 * Convert detections to cells using a triangulation of all the specified detections.
+	 * @param detections the detections to convert
+	 * @param allDetections all detections that should be included in the triangulation, including neighbors of those to convert
+	 * @param cellBoundaryMap pre-computed boundary estimates for each detection
+	 * @return
+	 */
+	static List<PathObject> detectionsToCells(Collection<PathObject> detections, Collection<PathObject> allDetections, Map<PathObject, Geometry> cellBoundaryMap) {
 		
 		var subdivision = DelaunayTools.newBuilder(allDetections)
 			.preferNucleus(true)
@@ -256,25 +266,32 @@ public class CellTools {
 				} else
 					logger.warn("Error computing intersection between cell boundary and Voronoi face - will use Voronoi result: " + e.getLocalizedMessage(), e);
 			}
-			var roiNucleus = PathObjectTools.getROI(detection, true);
-			var roiCell = roiNucleus;
-			if (geomCell.isEmpty()) {
-				logger.warn("Unable to create cell ROI for {} - I'll use the nucleus ROI instead", detection);
-			} else {
-				var geomNucleus = roiNucleus.getGeometry();
-				if (!geomCell.covers(geomNucleus)) {
-					try {
-						geomNucleus = geomCell.intersection(geomNucleus);
-						roiNucleus = GeometryTools.geometryToROI(geomNucleus, roiNucleus.getImagePlane());
-					} catch (Exception e) {
-						logger.debug("Error constraining nucleus to cell: {}", e.getLocalizedMessage());
-					}
+			cells.add(createCell(detection, geomCell));
+		}
+		return cells;
+	}
+	
+	/**
+	 * Create a cell object from a detection and a cell boundary, constraining the nucleus to fall within the boundary if necessary.
+	 */
+	private static PathObject createCell(PathObject detection, Geometry geomCell) {
+		var roiNucleus = PathObjectTools.getROI(detection, true);
+		var roiCell = roiNucleus;
+		if (geomCell.isEmpty()) {
+			logger.warn("Unable to create cell ROI for {} - I'll use the nucleus ROI instead", detection);
+		} else {
+			var geomNucleus = roiNucleus.getGeometry();
+			if (!geomCell.covers(geomNucleus)) {
+				try {
+					geomNucleus = geomCell.intersection(geomNucleus);
+					roiNucleus = GeometryTools.geometryToROI(geomNucleus, roiNucleus.getImagePlane());
+				} catch (Exception e) {
+					logger.debug("Error constraining nucleus to cell: {}", e.getLocalizedMessage());
 				}
-				roiCell = GeometryTools.geometryToROI(geomCell, roiNucleus.getImagePlane());
 			}
-			cells.add(PathObjects.createCellObject(roiCell, roiNucleus, detection.getPathClass(), detection.getMeasurementList()));
+			roiCell = GeometryTools.geometryToROI(geomCell, roiNucleus.getImagePlane());
 		}
-		return cells;
+		return PathObjects.createCellObject(roiCell, roiNucleus, detection.getPathClass(), detection.getMeasurementList());
 	}
 	
 	
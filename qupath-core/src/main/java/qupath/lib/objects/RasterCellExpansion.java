@@ -0,0 +1,507 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.objects;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.roi.GeometryTools;
+
+/**
+ * Raster-based computation of non-overlapping cell boundaries.
+ * <p>
+ * Each pixel is assigned to the closest nucleus using a labeled Euclidean distance transform, and then retained only 
+ * if it falls within the boundary estimate for that nucleus. This approximates intersecting a Voronoi diagram 
+ * (computed from the nucleus boundaries) with the boundary estimates, but requires only a single pass over each tile.
+ * <p>
+ * Cells are assigned to tiles according to the center of their boundary estimate. Each tile is rasterized with a margin 
+ * large enough to include every nucleus that could compete for its pixels, so that tiles can be processed independently 
+ * and in parallel. All tiles share the same pixel grid, which ensures that neighboring cells computed in different tiles 
+ * are consistent.
+ * 
+ * @author Pete Bankhead
+ */
+class RasterCellExpansion {
+	
+	private final static Logger logger = LoggerFactory.getLogger(RasterCellExpansion.class);
+	
+	/**
+	 * Default pixel size of the raster, relative to the image pixel size.
+	 */
+	static final double DEFAULT_RESOLUTION = 0.5;
+	
+	/**
+	 * Width and height of each tile, in raster pixels (excluding the margin).
+	 */
+	private static final int TILE_SIZE = 512;
+	
+	/**
+	 * Maximum number of raster pixels for a single tile, including the margin.
+	 */
+	private static final long MAX_TILE_PIXELS = 64L * 1024L * 1024L;
+	
+	private static final int EAST = 0, SOUTH = 1, WEST = 2, NORTH = 3;
+	
+	private final List<Geometry> nuclei;
+	private final List<Geometry> bounds;
+	private final double resolution;
+	private final GeometryFactory factory = GeometryTools.getDefaultFactory();
+	
+	private final STRtree nucleusTree;
+	
+	private RasterCellExpansion(List<Geometry> nuclei, List<Geometry> bounds, double resolution) {
+		this.nuclei = nuclei;
+		this.bounds = bounds;
+		this.resolution = resolution;
+		this.nucleusTree = new STRtree();
+		for (int i = 0; i < nuclei.size(); i++)
+			nucleusTree.insert(nuclei.get(i).getEnvelopeInternal(), i);
+		nucleusTree.build();
+	}
+	
+	/**
+	 * Compute cell boundaries, constraining each to contain only pixels that are closer to its nucleus than any other nucleus.
+	 * 
+	 * @param nuclei the nucleus geometries
+	 * @param bounds the boundary estimate for each nucleus (e.g. the buffered nucleus)
+	 * @param resolution the pixel size of the raster used to compute boundaries
+	 * @return an array containing the cell boundary for each nucleus, with null entries where no boundary could be computed
+	 */
+	static Geometry[] computeCellBoundaries(List<Geometry> nuclei, List<Geometry> bounds, double resolution) {
+		if (nuclei.size() != bounds.size())
+			throw new IllegalArgumentException("Number of nuclei (" + nuclei.size() + ") and bounds (" + bounds.size() + ") must be the same!");
+		var results = new Geometry[nuclei.size()];
+		if (results.length == 0)
+			return results;
+		return new RasterCellExpansion(nuclei, bounds, resolution).compute(results);
+	}
+	
+	private Geometry[] compute(Geometry[] results) {
+		// Assign cells to tiles according to the centers of their bounds
+		int n = nuclei.size();
+		double[] cx = new double[n];
+		double[] cy = new double[n];
+		var env = new Envelope();
+		for (int i = 0; i < n; i++) {
+			var e = bounds.get(i).getEnvelopeInternal();
+			cx[i] = e.isNull() ? Double.NaN : e.centre().x;
+			cy[i] = e.isNull() ? Double.NaN : e.centre().y;
+			if (!e.isNull())
+				env.expandToInclude(cx[i], cy[i]);
+		}
+		if (env.isNull())
+			return results;
+		double tileSize = TILE_SIZE * resolution;
+		int nx = (int)Math.floor(env.getWidth() / tileSize) + 1;
+		int ny = (int)Math.floor(env.getHeight() / tileSize) + 1;
+		int[] tileCounts = new int[nx * ny + 1];
+		int[] tiles = new int[n];
+		for (int i = 0; i < n; i++) {
+			if (Double.isNaN(cx[i])) {
+				tiles[i] = -1;
+				continue;
+			}
+			int tx = Math.min(nx - 1, (int)((cx[i] - env.getMinX()) / tileSize));
+			int ty = Math.min(ny - 1, (int)((cy[i] - env.getMinY()) / tileSize));
+			tiles[i] = ty * nx + tx;
+			tileCounts[tiles[i] + 1]++;
+		}
+		for (int t = 0; t < nx * ny; t++)
+			tileCounts[t+1] += tileCounts[t];
+		int[] tileItems = new int[tileCounts[nx * ny]];
+		int[] fill = Arrays.copyOf(tileCounts, nx * ny);
+		for (int i = 0; i < n; i++) {
+			if (tiles[i] >= 0)
+				tileItems[fill[tiles[i]]++] = i;
+		}
+		
+		IntStream.range(0, nx * ny).parallel().forEach(t -> {
+			if (tileCounts[t] == tileCounts[t+1])
+				return;
+			int[] owned = Arrays.copyOfRange(tileItems, tileCounts[t], tileCounts[t+1]);
+			try {
+				processTile(owned, results);
+			} catch (Exception e) {
+				logger.warn("Unable to compute cell boundaries for tile: " + e.getLocalizedMessage(), e);
+			}
+		});
+		return results;
+	}
+	
+	
+	private void processTile(int[] owned, Geometry[] results) {
+		
+		// Determine the raster region, with a margin large enough for any competing nuclei
+		var env = new Envelope();
+		double margin = 0;
+		for (int i : owned) {
+			var e = bounds.get(i).getEnvelopeInternal();
+			env.expandToInclude(e);
+			margin = Math.max(margin, Math.max(e.getWidth(), e.getHeight()));
+		}
+		env.expandBy(margin + resolution);
+		
+		// Use a pixel grid that is shared by all tiles
+		long gx = (long)Math.floor(env.getMinX() / resolution);
+		long gy = (long)Math.floor(env.getMinY() / resolution);
+		double originX = gx * resolution;
+		double originY = gy * resolution;
+		int width = (int)Math.ceil(env.getMaxX() / resolution - gx) + 1;
+		int height = (int)Math.ceil(env.getMaxY() / resolution - gy) + 1;
+		if ((long)width * height > MAX_TILE_PIXELS) {
+			logger.debug("Tile size {}x{} is too large for raster cell expansion", width, height);
+			return;
+		}
+		var raster = new Raster(originX, originY, width, height);
+		
+		// Label all the nuclei that might be closer to a pixel than the nucleus it belongs to
+		int[] labels = new int[width * height];
+		Arrays.fill(labels, -1);
+		@SuppressWarnings("unchecked")
+		var candidates = (List<Integer>)nucleusTree.query(env);
+		for (int ind : candidates) {
+			var nucleus = nuclei.get(ind);
+			if (raster.fill(nucleus, p -> labels[p] = ind) == 0) {
+				// Ensure very small nuclei are represented by at least one pixel
+				var c = nucleus.getCentroid().getCoordinate();
+				int p = c == null ? -1 : raster.index(c.x, c.y);
+				if (p >= 0)
+					labels[p] = ind;
+			}
+		}
+		
+		// Assign every pixel to its closest nucleus
+		computeNearestLabels(labels, width, height);
+		
+		// Trace pixels that are assigned to an owned nucleus, and fall within its bounds
+		int[] cells = new int[labels.length];
+		Arrays.fill(cells, -1);
+		for (int i : owned) {
+			int[] bbox = {Integer.MAX_VALUE, Integer.MAX_VALUE, -1, -1};
+			raster.fill(bounds.get(i), p -> {
+				if (labels[p] == i) {
+					cells[p] = i;
+					int x = p % width;
+					int y = p / width;
+					bbox[0] = Math.min(bbox[0], x);
+					bbox[1] = Math.min(bbox[1], y);
+					bbox[2] = Math.max(bbox[2], x);
+					bbox[3] = Math.max(bbox[3], y);
+				}
+			});
+			if (bbox[2] >= 0)
+				results[i] = trace(cells, raster, i, bbox[0], bbox[1], bbox[2], bbox[3]);
+		}
+	}
+	
+	
+	/**
+	 * Replace every pixel with the label of the closest labeled pixel, using a separable labeled distance transform 
+	 * (following Felzenszwalb and Huttenlocher).
+	 * Pixels with negative labels are unlabeled.
+	 */
+	private static void computeNearestLabels(int[] labels, int width, int height) {
+		// Squared vertical distance to the closest labeled pixel in the same column, and the index of that pixel
+		double[] g = new double[labels.length];
+		int[] source = new int[labels.length];
+		for (int x = 0; x < width; x++) {
+			int last = -1;
+			for (int y = 0; y < height; y++) {
+				int p = y * width + x;
+				if (labels[p] >= 0)
+					last = y;
+				source[p] = last < 0 ? -1 : last * width + x;
+				g[p] = last < 0 ? Double.POSITIVE_INFINITY : (double)(y - last) * (y - last);
+			}
+			last = -1;
+			for (int y = height - 1; y >= 0; y--) {
+				int p = y * width + x;
+				if (labels[p] >= 0)
+					last = y;
+				if (last >= 0) {
+					double d = (double)(last - y) * (last - y);
+					if (d < g[p]) {
+						g[p] = d;
+						source[p] = last * width + x;
+					}
+				}
+			}
+		}
+		
+		// Lower envelope of parabolas along each row
+		int[] output = new int[labels.length];
+		int[] v = new int[width];
+		double[] z = new double[width + 1];
+		for (int y = 0; y < height; y++) {
+			int row = y * width;
+			int k = -1;
+			for (int q = 0; q < width; q++) {
+				double f = g[row + q];
+				if (f == Double.POSITIVE_INFINITY)
+					continue;
+				double s = Double.NEGATIVE_INFINITY;
+				while (k >= 0) {
+					int vk = v[k];
+					s = ((f + (double)q * q) - (g[row + vk] + (double)vk * vk)) / (2.0 * (q - vk));
+					if (s <= z[k])
+						k--;
+					else
+						break;
+				}
+				k++;
+				v[k] = q;
+				z[k] = k == 0 ? Double.NEGATIVE_INFINITY : s;
+				z[k+1] = Double.POSITIVE_INFINITY;
+			}
+			if (k < 0) {
+				Arrays.fill(output, row, row + width, -1);
+				continue;
+			}
+			int j = 0;
+			for (int q = 0; q < width; q++) {
+				while (z[j+1] < q)
+					j++;
+				output[row + q] = labels[source[row + v[j]]];
+			}
+		}
+		System.arraycopy(output, 0, labels, 0, labels.length);
+	}
+	
+	
+	/**
+	 * Trace the boundary of all pixels with a specified label, within a bounding box.
+	 * Pixels that touch only diagonally are treated as disconnected.
+	 */
+	private Geometry trace(int[] cells, Raster raster, int label, int x0, int y0, int x1, int y1) {
+		int w = x1 - x0 + 1;
+		int h = y1 - y0 + 1;
+		int vw = w + 1;
+		// Outgoing boundary edges for each vertex, as a bitmask of directions
+		byte[] edges = new byte[vw * (h + 1)];
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				if (!isLabel(cells, raster.width, label, x0, y0, x1, y1, x, y))
+					continue;
+				// Traverse boundaries with the labeled pixels on the right
+				if (!isLabel(cells, raster.width, label, x0, y0, x1, y1, x, y - 1))
+					edges[y * vw + x] |= 1 << EAST;
+				if (!isLabel(cells, raster.width, label, x0, y0, x1, y1, x + 1, y))
+					edges[y * vw + x + 1] |= 1 << SOUTH;
+				if (!isLabel(cells, raster.width, label, x0, y0, x1, y1, x, y + 1))
+					edges[(y + 1) * vw + x + 1] |= 1 << WEST;
+				if (!isLabel(cells, raster.width, label, x0, y0, x1, y1, x - 1, y))
+					edges[(y + 1) * vw + x] |= 1 << NORTH;
+			}
+		}
+		
+		var shells = new ArrayList<LinearRing>();
+		var holes = new ArrayList<LinearRing>();
+		int[] xy = new int[64];
+		for (int start = 0; start < edges.length; start++) {
+			if (edges[start] == 0)
+				continue;
+			boolean saddle = Integer.bitCount(edges[start]) > 1;
+			int startDir = Integer.numberOfTrailingZeros(edges[start]);
+			int n = 0;
+			xy[n++] = start % vw;
+			xy[n++] = start / vw;
+			int v = start;
+			int dir = startDir;
+			long area2 = 0;
+			while (true) {
+				edges[v] &= ~(1 << dir);
+				int vx = v % vw, vy = v / vw;
+				int next = v + (dir == EAST ? 1 : dir == SOUTH ? vw : dir == WEST ? -1 : -vw);
+				int nx = next % vw, ny = next / vw;
+				area2 += (long)vx * ny - (long)nx * vy;
+				v = next;
+				if (edges[v] == 0 && v != start) {
+					logger.warn("Unable to trace cell boundary - ring is not closed");
+					return null;
+				}
+				// At a saddle, turn right to keep diagonal pixels separate
+				int nextDir;
+				if (Integer.bitCount(edges[v]) > 1 || (v == start && saddle))
+					nextDir = (dir + 1) % 4;
+				else
+					nextDir = Integer.numberOfTrailingZeros(edges[v]);
+				if (v == start && (!saddle || nextDir == startDir)) {
+					// Remove the start point if it isn't a corner
+					if (dir == startDir) {
+						System.arraycopy(xy, 2, xy, 0, n - 2);
+						n -= 2;
+					}
+					break;
+				}
+				if (nextDir != dir) {
+					if (n + 2 > xy.length)
+						xy = Arrays.copyOf(xy, xy.length * 2);
+					xy[n++] = nx;
+					xy[n++] = ny;
+				}
+				dir = nextDir;
+			}
+			var coords = new Coordinate[n / 2 + 1];
+			for (int i = 0; i < n / 2; i++)
+				coords[i] = new Coordinate(raster.originX + (x0 + xy[i*2]) * resolution, raster.originY + (y0 + xy[i*2+1]) * resolution);
+			coords[coords.length - 1] = coords[0];
+			if (coords.length < 4)
+				continue;
+			var ring = factory.createLinearRing(coords);
+			if (area2 > 0)
+				shells.add(ring);
+			else
+				holes.add(ring);
+		}
+		
+		if (shells.isEmpty())
+			return null;
+		var polygons = new ArrayList<Polygon>();
+		if (shells.size() == 1) {
+			polygons.add(factory.createPolygon(shells.get(0), holes.toArray(LinearRing[]::new)));
+		} else {
+			var shellPolygons = new ArrayList<Polygon>();
+			var shellHoles = new ArrayList<List<LinearRing>>();
+			for (var shell : shells) {
+				shellPolygons.add(factory.createPolygon(shell));
+				shellHoles.add(new ArrayList<>());
+			}
+			for (var hole : holes) {
+				for (int i = 0; i < shellPolygons.size(); i++) {
+					if (shellPolygons.get(i).covers(hole)) {
+						shellHoles.get(i).add(hole);
+						break;
+					}
+				}
+			}
+			for (int i = 0; i < shells.size(); i++)
+				polygons.add(factory.createPolygon(shells.get(i), shellHoles.get(i).toArray(LinearRing[]::new)));
+		}
+		return factory.buildGeometry(polygons);
+	}
+	
+	private static boolean isLabel(int[] cells, int width, int label, int x0, int y0, int x1, int y1, int x, int y) {
+		int xx = x0 + x;
+		int yy = y0 + y;
+		if (xx < x0 || yy < y0 || xx > x1 || yy > y1)
+			return false;
+		return cells[yy * width + xx] == label;
+	}
+	
+	
+	/**
+	 * Raster defined on a regular grid, with pixel centers used to determine whether a pixel falls inside a geometry.
+	 */
+	private class Raster {
+		
+		private final double originX, originY;
+		private final int width, height;
+		
+		private Raster(double originX, double originY, int width, int height) {
+			this.originX = originX;
+			this.originY = originY;
+			this.width = width;
+			this.height = height;
+		}
+		
+		private int index(double x, double y) {
+			int px = (int)Math.floor((x - originX) / resolution);
+			int py = (int)Math.floor((y - originY) / resolution);
+			if (px < 0 || py < 0 || px >= width || py >= height)
+				return -1;
+			return py * width + px;
+		}
+		
+		/**
+		 * Call a consumer for the index of every pixel whose center falls within a polygonal geometry, using the even-odd rule.
+		 * @return the number of pixels
+		 */
+		private int fill(Geometry geometry, IntConsumer consumer) {
+			var rings = new ArrayList<CoordinateSequence>();
+			addRings(geometry, rings);
+			if (rings.isEmpty())
+				return 0;
+			var env = geometry.getEnvelopeInternal();
+			int yStart = Math.max(0, (int)Math.ceil((env.getMinY() - originY) / resolution - 0.5));
+			int yEnd = Math.min(height - 1, (int)Math.floor((env.getMaxY() - originY) / resolution - 0.5));
+			double[] crossings = new double[16];
+			int count = 0;
+			for (int y = yStart; y <= yEnd; y++) {
+				double yc = originY + (y + 0.5) * resolution;
+				int nCrossings = 0;
+				for (var seq : rings) {
+					int n = seq.size();
+					for (int i = 0; i < n - 1; i++) {
+						double ya = seq.getY(i), yb = seq.getY(i+1);
+						if ((ya <= yc && yb > yc) || (yb <= yc && ya > yc)) {
+							double xa = seq.getX(i), xb = seq.getX(i+1);
+							if (nCrossings == crossings.length)
+								crossings = Arrays.copyOf(crossings, nCrossings * 2);
+							crossings[nCrossings++] = xa + (yc - ya) * (xb - xa) / (yb - ya);
+						}
+					}
+				}
+				Arrays.sort(crossings, 0, nCrossings);
+				for (int i = 0; i + 1 < nCrossings; i += 2) {
+					int xStart = Math.max(0, (int)Math.ceil((crossings[i] - originX) / resolution - 0.5));
+					int xEnd = Math.min(width, (int)Math.ceil((crossings[i+1] - originX) / resolution - 0.5));
+					for (int x = xStart; x < xEnd; x++) {
+						consumer.accept(y * width + x);
+						count++;
+					}
+				}
+			}
+			return count;
+		}
+		
+		private void addRings(Geometry geometry, List<CoordinateSequence> rings) {
+			if (geometry instanceof Polygon) {
+				var polygon = (Polygon)geometry;
+				rings.add(polygon.getExteriorRing().getCoordinateSequence());
+				for (int i = 0; i < polygon.getNumInteriorRing(); i++)
+					rings.add(polygon.getInteriorRingN(i).getCoordinateSequence());
+			} else {
+				for (int i = 0; i < geometry.getNumGeometries(); i++) {
+					var g = geometry.getGeometryN(i);
+					if (g != geometry)
+						addRings(g, rings);
+				}
+			}
+		}
+		
+	}
+
+}
@@ -25,6 +25,7 @@ package qupath.lib.objects.hierarchy;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -105,6 +106,9 @@ public final class PathObjectHierarchy implements Serializable {
 
 	// Cache enabling faster access of objects according to location
 	transient private PathObjectTileCache tileCache = new PathObjectTileCache(this);
+	
+	// Incremented for every event that could change the objects or their ROIs
+	transient private volatile long objectsVersion = 0L;
 
 	/**
 	 * Default constructor, creates an empty hierarchy.
@@ -143,6 +147,20 @@ public final class PathObjectHierarchy implements Serializable {
 		}
 	}
 	
+	/**
+	 * Get a version number for the objects in the hierarchy.
+	 * This is incremented whenever an event is fired that may indicate objects have been added, removed or changed, 
+	 * but not when only measurements or classifications have changed.
+	 * It can therefore be used to determine whether cached information derived from the objects and their ROIs is still valid.
+	 * <p>
+	 * Note that the version is not persistent, and it is only meaningful in comparison with other versions from the same hierarchy.
+	 * 
+	 * @return the current version
+	 */
+	public long getObjectsVersion() {
+		return objectsVersion;
+	}
+	
 	/**
 	 * Get the root object. All other objects in the hierarchy are descendants of the root.
 	 * @return
@@ -799,19 +817,56 @@ public final class PathObjectHierarchy implements Serializable {
 		if (pathObjects.isEmpty() || !roi.isArea() || roi.isEmpty())
 			return Collections.emptyList();
 		
-		var locator = tileCache.getLocator(roi, false);
-		var preparedGeometry = tileCache.getPreparedGeometry(tileCache.getGeometry(roi));
-		return pathObjects.parallelStream().filter(child -> {
-			// Test plane first
+		var batchLocator = tileCache.getBatchLocator(roi);
+		if (batchLocator == null) {
+			var locator = tileCache.getLocator(roi, false);
+			var preparedGeometry = tileCache.getPreparedGeometry(tileCache.getGeometry(roi));
+			return pathObjects.parallelStream().filter(child -> {
+				// Test plane first
+				if (!samePlane(roi, child.getROI(), false))
+					return false;
+				
+				if (child.isDetection())
+					return tileCache.containsCentroid(locator, child);
+				else {
+					return tileCache.covers(preparedGeometry, tileCache.getGeometry(child));
+				}
+			}).collect(Collectors.toList());
+		}
+		
+		// Test all detection centroids together, and other objects individually
+		var list = new ArrayList<>(pathObjects);
+		int n = list.size();
+		boolean[] keep = new boolean[n];
+		List<PathObject> detections = new ArrayList<>();
+		int[] detectionInds = new int[n];
+		int[] otherInds = new int[n];
+		int nOthers = 0;
+		for (int i = 0; i < n; i++) {
+			var child = list.get(i);
 			if (!samePlane(roi, child.getROI(), false))
-				return false;
-			
-			if (child.isDetection())
-				return tileCache.containsCentroid(locator, child);
-			else {
-				return tileCache.covers(preparedGeometry, tileCache.getGeometry(child));
-			}
-		}).collect(Collectors.toList());
+				continue;
+			if (child.isDetection()) {
+				detectionInds[detections.size()] = i;
+				detections.add(child);
+			} else
+				otherInds[nOthers++] = i;
+		}
+		if (!detections.isEmpty()) {
+			boolean[] contains = tileCache.containsCentroids(batchLocator, detections);
+			for (int i = 0; i < contains.length; i++)
+				keep[detectionInds[i]] = contains[i];
+		}
+		if (nOthers > 0) {
+			var preparedGeometry = tileCache.getPreparedGeometry(tileCache.getGeometry(roi));
+			Arrays.stream(otherInds, 0, nOthers).parallel().forEach(i -> keep[i] = tileCache.covers(preparedGeometry, tileCache.getGeometry(list.get(i))));
+		}
+		List<PathObject> results = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			if (keep[i])
+				results.add(list.get(i));
+		}
+		return results;
 	}
 	
 	
@@ -937,6 +992,8 @@ public final class PathObjectHierarchy implements Serializable {
 	
 	
 	synchronized void fireEvent(PathObjectHierarchyEvent event) {
+		if (!event.isObjectMeasurementEvent() && !event.isObjectClassificationEvent())
+			objectsVersion++;
 		synchronized(listeners) {
 			for (PathObjectHierarchyListener listener : listeners)
 				listener.hierarchyChanged(event);
@@ -57,6 +57,8 @@ import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
 import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
 import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent.HierarchyEventType;
 import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.BatchPointInAreaLocator;
+import qupath.lib.roi.PolygonROI;
 import qupath.lib.roi.interfaces.ROI;
 
 /**
@@ -102,6 +104,7 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	 */
 	final private static Map<ROI, Geometry> geometryMap = Collections.synchronizedMap(new WeakHashMap<>());
 	final private static Map<ROI, PointOnGeometryLocator> locatorMap = Collections.synchronizedMap(new WeakHashMap<>());
+	final private static Map<ROI, BatchPointInAreaLocator> batchLocatorMap = Collections.synchronizedMap(new WeakHashMap<>());
 //	final private static Map<ROI, Coordinate> centroidMap = Collections.synchronizedMap(new WeakHashMap<>());
 
 	private PathObjectHierarchy hierarchy;
@@ -186,10 +189,20 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 		}
 	}
 
+	/**
+	 * Get a geometry for a ROI, avoiding a copy of the coordinates where possible.
+	 * The geometry is only used for queries here, and must not be modified.
+	 */
+	private static Geometry toGeometry(ROI roi) {
+		if (roi instanceof PolygonROI)
+			return ((PolygonROI)roi).getGeometryView();
+		return roi.getGeometry();
+	}
+
 	Geometry getGeometry(ROI roi) {
 		var geometry = geometryMap.get(roi);
 		if (geometry == null)
-			return roi.getGeometry();
+			return toGeometry(roi);
 		else
 			return geometry;
 	}
@@ -198,7 +211,7 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 		ROI roi = pathObject.getROI();
 		Geometry geometry = geometryMap.get(roi);
 		if (geometry == null) {
-			geometry = roi.getGeometry();
+			geometry = toGeometry(roi);
 			if (pathObject.isAnnotation() || pathObject.isTMACore()) {
 				geometryMap.put(roi, geometry);
 			}
@@ -242,6 +255,23 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 		return locator;
 	}
 	
+	/**
+	 * Get a locator that can test many centroids without creating a {@link Coordinate} for each.
+	 * @param roi
+	 * @return the locator, or null if the ROI does not have a polygonal geometry
+	 */
+	BatchPointInAreaLocator getBatchLocator(ROI roi) {
+		var locator = batchLocatorMap.get(roi);
+		if (locator == null) {
+			var geometry = getGeometry(roi);
+			if (!(geometry instanceof Polygonal))
+				return null;
+			locator = BatchPointInAreaLocator.create(geometry);
+			batchLocatorMap.put(roi, locator);
+		}
+		return locator;
+	}
+	
 //	public boolean covers(PathObject possibleParent, PathObject possibleChild) {
 //		return getGeometry(possibleParent).covers(getGeometry(possibleChild));
 //	}
@@ -300,9 +330,30 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 		if (possibleParent.isDetection())
 			return SimplePointInAreaLocator.locate(
 					centroid, getGeometry(possibleParent)) != Location.EXTERIOR;
+		var batchLocator = getBatchLocator(possibleParent.getROI());
+		if (batchLocator != null)
+			return batchLocator.contains(centroid.x, centroid.y);
 		return getLocator(possibleParent.getROI(), true).locate(centroid) != Location.EXTERIOR;
 	}
 	
+	/**
+	 * Test whether the centroids of multiple objects fall inside a ROI, using a batch locator.
+	 * @param locator the locator for the ROI
+	 * @param possibleChildren the objects to test
+	 * @return an array with an entry for each object, set to true if its centroid is inside the ROI
+	 */
+	boolean[] containsCentroids(BatchPointInAreaLocator locator, List<? extends PathObject> possibleChildren) {
+		int n = possibleChildren.size();
+		double[] x = new double[n];
+		double[] y = new double[n];
+		for (int i = 0; i < n; i++) {
+			ROI roi = PathObjectTools.getROI(possibleChildren.get(i), true);
+			x[i] = roi.getCentroidX();
+			y[i] = roi.getCentroidY();
+		}
+		return locator.contains(x, y);
+	}
+	
 	boolean containsCentroid(PointOnGeometryLocator locator, PathObject possibleChild) {
 		Coordinate centroid = getCentroidCoordinate(possibleChild);
 		if (centroid == null)
@@ -0,0 +1,484 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.projects;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathRootObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.plugins.SimpleProgressMonitor;
+
+/**
+ * Headless exporter for the measurements of many entries in a project.
+ * <p>
+ * Unlike the table-based export used by the GUI, this does not build an observable table model for each image.
+ * Instead, hierarchies are read in parallel (with a bounded number of images open at any one time) and
+ * each object is streamed to a compact temporary file as soon as it is visited.
+ * Once all images have been read, the temporary files are merged into a single delimited text file
+ * (optionally gzip-compressed) using the union of all column names.
+ * Memory use is therefore determined by the size of the largest single hierarchy, not by the total number of objects exported.
+ * <p>
+ * The columns are 'Image', 'Name', 'Class', 'Parent', 'ROI', the centroid coordinates and then all
+ * measurements in each object's {@link qupath.lib.measurements.MeasurementList}.
+ */
+public class ProjectMeasurementExporter {
+
+	private final static Logger logger = LoggerFactory.getLogger(ProjectMeasurementExporter.class);
+
+	private static final byte TYPE_STRING = 1;
+	private static final byte TYPE_NUMBER = 2;
+
+	private List<? extends ProjectImageEntry<?>> imageList = new ArrayList<>();
+
+	private Class<? extends PathObject> type = PathRootObject.class;
+
+	private List<String> includeOnlyColumns = new ArrayList<>();
+	private List<String> excludeColumns = new ArrayList<>();
+
+	private String separator = "\t";
+	private boolean compress = false;
+	private boolean calibrated = false;
+	private int nThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	private int decimalPlaces = 4;
+	private SimpleProgressMonitor monitor;
+
+	/**
+	 * Create a new exporter for the specified image entries.
+	 * @param imageList
+	 */
+	public ProjectMeasurementExporter(Collection<? extends ProjectImageEntry<?>> imageList) {
+		this.imageList = new ArrayList<>(imageList);
+	}
+
+	/**
+	 * Specify what type of object should be exported.
+	 * Default: image (root object).
+	 * @param type
+	 * @return this exporter
+	 */
+	public ProjectMeasurementExporter exportType(Class<? extends PathObject> type) {
+		this.type = type;
+		return this;
+	}
+
+	/**
+	 * Specify the columns that will be included in the export.
+	 * The column names are case sensitive.
+	 * @param includeOnlyColumns
+	 * @return this exporter
+	 */
+	public ProjectMeasurementExporter includeOnlyColumns(String... includeOnlyColumns) {
+		this.includeOnlyColumns = Arrays.asList(includeOnlyColumns);
+		return this;
+	}
+
+	/**
+	 * Specify the columns that will be excluded during the export.
+	 * The column names are case sensitive.
+	 * @param excludeColumns
+	 * @return this exporter
+	 */
+	public ProjectMeasurementExporter excludeColumns(String... excludeColumns) {
+		this.excludeColumns = Arrays.asList(excludeColumns);
+		return this;
+	}
+
+	/**
+	 * Specify the separator used between measurement values. Default is tab.
+	 * @param sep
+	 * @return this exporter
+	 */
+	public ProjectMeasurementExporter separator(String sep) {
+		this.separator = sep;
+		return this;
+	}
+
+	/**
+	 * Specify whether the output should be gzip-compressed.
+	 * @param compress
+	 * @return this exporter
+	 */
+	public ProjectMeasurementExporter compress(boolean compress) {
+		this.compress = compress;
+		return this;
+	}
+
+	/**
+	 * Specify whether centroids should be exported in calibrated units (where available).
+	 * This requires the image server for each entry to be opened, and so is slower.
+	 * Default is false, i.e. only the hierarchy is read and centroids are given in pixels.
+	 * @param calibrated
+	 * @return this exporter
+	 */
+	public ProjectMeasurementExporter calibrated(boolean calibrated) {
+		this.calibrated = calibrated;
+		return this;
+	}
+
+	/**
+	 * Specify the maximum number of images that may be read in parallel.
+	 * @param nThreads
+	 * @return this exporter
+	 */
+	public ProjectMeasurementExporter parallelism(int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+		return this;
+	}
+
+	/**
+	 * Specify the maximum number of decimal places used for numeric values.
+	 * @param decimalPlaces
+	 * @return this exporter
+	 */
+	public ProjectMeasurementExporter decimalPlaces(int decimalPlaces) {
+		this.decimalPlaces = decimalPlaces;
+		return this;
+	}
+
+	/**
+	 * Specify an optional progress monitor. This is updated once for each image that has been read, 
+	 * and may be used to cancel the export.
+	 * Note that the monitor may be updated from multiple threads.
+	 * @param monitor
+	 * @return this exporter
+	 */
+	public ProjectMeasurementExporter progressMonitor(SimpleProgressMonitor monitor) {
+		this.monitor = monitor;
+		return this;
+	}
+
+	/**
+	 * Export measurements to a file.
+	 * If the file name ends with '.gz' then the output will be compressed, regardless of the {@link #compress(boolean)} setting.
+	 * @param file
+	 * @throws IOException if the export failed, or an {@link InterruptedIOException} if it was cancelled
+	 */
+	public void exportMeasurements(File file) throws IOException {
+		boolean doCompress = compress || file.getName().toLowerCase().endsWith(".gz");
+		try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(file))) {
+			if (doCompress) {
+				try (var gzip = new GZIPOutputStream(stream)) {
+					writeMeasurements(gzip);
+				}
+			} else
+				writeMeasurements(stream);
+		}
+	}
+
+	/**
+	 * Export measurements to an output stream.
+	 * The output is not compressed, regardless of the {@link #compress(boolean)} setting;
+	 * the stream is not closed.
+	 * @param stream
+	 * @throws IOException if the export failed, or an {@link InterruptedIOException} if it was cancelled
+	 */
+	public void exportMeasurements(OutputStream stream) throws IOException {
+		writeMeasurements(stream);
+	}
+
+
+	private void writeMeasurements(OutputStream stream) throws IOException {
+		long startTime = System.currentTimeMillis();
+
+		Path tempDir = Files.createTempDirectory("qupath-export");
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads, ThreadTools.createThreadFactory("measurement-export-", true));
+		List<Future<ImagePart>> futures = new ArrayList<>();
+		if (monitor != null)
+			monitor.startMonitoring("Exporting measurements", imageList.size(), true);
+		try {
+			int count = 0;
+			for (var entry : imageList) {
+				File file = tempDir.resolve("part-" + (count++) + ".bin").toFile();
+				futures.add(pool.submit(() -> writePart(entry, file)));
+			}
+			pool.shutdown();
+
+			List<ImagePart> parts = new ArrayList<>();
+			for (var future : futures) {
+				try {
+					var part = future.get();
+					if (part != null)
+						parts.add(part);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Measurement export interrupted");
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException)
+						throw (IOException)e.getCause();
+					throw new IOException(e.getCause());
+				}
+			}
+			if (isCancelled())
+				throw new InterruptedIOException("Measurement export cancelled");
+
+			List<String> columns = getColumns(parts);
+			var writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+			writeRow(writer, columns.toArray(String[]::new));
+
+			long nRows = 0;
+			for (var part : parts) {
+				nRows += mergePart(part, columns, writer);
+				part.file.delete();
+			}
+			writer.flush();
+
+			long endTime = System.currentTimeMillis();
+			logger.info("Exported {} rows from {} images in {} seconds", nRows, parts.size(), GeneralTools.formatNumber((endTime - startTime)/1000.0, 2));
+			if (monitor != null)
+				monitor.pluginCompleted("Exported " + nRows + " rows");
+		} finally {
+			pool.shutdownNow();
+			for (var file : tempDir.toFile().listFiles())
+				file.delete();
+			Files.deleteIfExists(tempDir);
+		}
+	}
+
+
+	private boolean isCancelled() {
+		return (monitor != null && monitor.cancelled()) || Thread.currentThread().isInterrupted();
+	}
+
+
+	/**
+	 * Get the output columns, preserving the order in which they were first encountered.
+	 */
+	private List<String> getColumns(List<ImagePart> parts) {
+		var set = new LinkedHashSet<String>();
+		for (var part : parts)
+			set.addAll(part.columns);
+		set.removeAll(excludeColumns);
+		if (!includeOnlyColumns.isEmpty())
+			set.retainAll(includeOnlyColumns);
+		return new ArrayList<>(set);
+	}
+
+
+	/**
+	 * Read the hierarchy for a single entry and stream its rows to a temporary file.
+	 * Each row is stored sparsely as (column index, value) pairs, since the full set of columns
+	 * is only known once all objects have been visited.
+	 */
+	private ImagePart writePart(ProjectImageEntry<?> entry, File file) throws IOException {
+		if (isCancelled())
+			return null;
+		try {
+			return writePartUnmonitored(entry, file);
+		} finally {
+			if (monitor != null)
+				monitor.updateProgress(1, "Read " + entry.getImageName(), null);
+		}
+	}
+
+	private ImagePart writePartUnmonitored(ProjectImageEntry<?> entry, File file) throws IOException {
+		PathObjectHierarchy hierarchy;
+		PixelCalibration cal = PixelCalibration.getDefaultInstance();
+		if (calibrated) {
+			ImageData<?> imageData = entry.readImageData();
+			hierarchy = imageData.getHierarchy();
+			cal = imageData.getServer().getPixelCalibration();
+			try {
+				imageData.getServer().close();
+			} catch (Exception e) {
+				logger.debug("Error closing server: " + e.getLocalizedMessage(), e);
+			}
+		} else
+			hierarchy = entry.readHierarchy();
+
+		if (hierarchy == null) {
+			logger.warn("No hierarchy found for {}", entry.getImageName());
+			return null;
+		}
+
+		boolean useMicrons = cal.hasPixelSizeMicrons();
+		String units = useMicrons ? GeneralTools.micrometerSymbol() : "px";
+		double scaleX = useMicrons ? cal.getPixelWidthMicrons() : 1.0;
+		double scaleY = useMicrons ? cal.getPixelHeightMicrons() : 1.0;
+
+		Map<String, Integer> columns = new LinkedHashMap<>();
+		int colImage = getColumnIndex(columns, "Image");
+		int colName = getColumnIndex(columns, "Name");
+		int colClass = getColumnIndex(columns, "Class");
+		int colParent = getColumnIndex(columns, "Parent");
+		int colROI = getColumnIndex(columns, "ROI");
+		int colX = getColumnIndex(columns, "Centroid X " + units);
+		int colY = getColumnIndex(columns, "Centroid Y " + units);
+
+		String imageName = entry.getImageName();
+		long nRows = 0;
+
+		try (var out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))))) {
+			for (var pathObject : hierarchy.getObjects(null, type)) {
+				var roi = pathObject.getROI();
+				var measurements = pathObject.getMeasurementList();
+				int n = measurements.size();
+
+				out.writeInt(7 + n);
+				writeString(out, colImage, imageName);
+				writeString(out, colName, pathObject.getDisplayedName());
+				writeString(out, colClass, pathObject.getPathClass() == null ? null : pathObject.getPathClass().toString());
+				writeString(out, colParent, pathObject.getParent() == null ? null : pathObject.getParent().getDisplayedName());
+				writeString(out, colROI, roi == null ? null : roi.getRoiName());
+				writeNumber(out, colX, roi == null ? Double.NaN : roi.getCentroidX() * scaleX);
+				writeNumber(out, colY, roi == null ? Double.NaN : roi.getCentroidY() * scaleY);
+				for (int i = 0; i < n; i++) {
+					writeNumber(out, getColumnIndex(columns, measurements.getMeasurementName(i)), measurements.getMeasurementValue(i));
+				}
+				nRows++;
+			}
+		}
+		logger.debug("Read {} objects from {}", nRows, imageName);
+		return new ImagePart(file, new ArrayList<>(columns.keySet()));
+	}
+
+	private static int getColumnIndex(Map<String, Integer> columns, String name) {
+		return columns.computeIfAbsent(name, n -> columns.size());
+	}
+
+	private static void writeString(DataOutputStream out, int col, String value) throws IOException {
+		out.writeInt(col);
+		if (value == null)
+			out.writeByte(0);
+		else {
+			out.writeByte(TYPE_STRING);
+			// Avoid writeUTF, which is limited to 65535 encoded bytes
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static void writeNumber(DataOutputStream out, int col, double value) throws IOException {
+		out.writeInt(col);
+		out.writeByte(TYPE_NUMBER);
+		out.writeDouble(value);
+	}
+
+
+	/**
+	 * Stream the rows of a temporary file to the output, mapping local column indices to the output columns.
+	 */
+	private long mergePart(ImagePart part, List<String> columns, Writer writer) throws IOException {
+		int[] mapping = new int[part.columns.size()];
+		for (int i = 0; i < mapping.length; i++)
+			mapping[i] = columns.indexOf(part.columns.get(i));
+
+		String[] row = new String[columns.size()];
+		long nRows = 0;
+		try (var in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(part.file.toPath()))))) {
+			while (true) {
+				int n;
+				try {
+					n = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				Arrays.fill(row, null);
+				for (int i = 0; i < n; i++) {
+					int col = mapping[in.readInt()];
+					String value = null;
+					byte valueType = in.readByte();
+					if (valueType == TYPE_STRING) {
+						byte[] bytes = new byte[in.readInt()];
+						in.readFully(bytes);
+						value = new String(bytes, StandardCharsets.UTF_8);
+					} else if (valueType == TYPE_NUMBER) {
+						double val = in.readDouble();
+						// NaN values -> blank
+						if (!Double.isNaN(val))
+							value = GeneralTools.formatNumber(val, decimalPlaces);
+					}
+					if (col >= 0)
+						row[col] = value;
+				}
+				writeRow(writer, row);
+				nRows++;
+			}
+		}
+		return nRows;
+	}
+
+	private void writeRow(Writer writer, String[] values) throws IOException {
+		for (int i = 0; i < values.length; i++) {
+			String val = values[i];
+			if (val != null) {
+				if (val.contains(separator))
+					writer.write("\"" + val + "\"");
+				else
+					writer.write(val);
+			}
+			if (i < values.length - 1)
+				writer.write(separator);
+		}
+		writer.write(System.lineSeparator());
+	}
+
+
+	private static class ImagePart {
+
+		private final File file;
+		private final List<String> columns;
+
+		private ImagePart(File file, List<String> columns) {
+			this.file = file;
+			this.columns = columns;
+		}
+
+	}
+
+}
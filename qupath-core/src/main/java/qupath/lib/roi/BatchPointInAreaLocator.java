@@ -0,0 +1,221 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.roi;
+
+import java.util.stream.IntStream;
+
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.Polygonal;
+
+/**
+ * Test whether many points fall inside a polygonal geometry, using primitive coordinate arrays.
+ * <p>
+ * The edges of the geometry are indexed once into horizontal bands, so that each query only needs to 
+ * check the edges whose vertical extent overlaps the point, using the even-odd (ray crossing) rule. 
+ * Points on the boundary are considered to be inside, for consistency with a JTS locator 
+ * returning anything other than {@code Location.EXTERIOR}.
+ * <p>
+ * This is intended for classifying large numbers of points (e.g. detection centroids) without 
+ * creating a {@link org.locationtech.jts.geom.Coordinate} for each. Instances are immutable and thread-safe.
+ * 
+ * @author Pete Bankhead
+ */
+public class BatchPointInAreaLocator {
+	
+	/**
+	 * Number of points classified together within a single parallel task.
+	 */
+	private static final int CHUNK_SIZE = 4096;
+	
+	/**
+	 * Approximate number of edges per band.
+	 */
+	private static final int EDGES_PER_BAND = 4;
+	
+	/**
+	 * Maximum average number of bands that each edge may be stored in.
+	 */
+	private static final int MAX_ENTRIES_PER_EDGE = 8;
+	
+	private final double minX, minY, maxX, maxY;
+	private final double bandHeight;
+	private final int nBands;
+	
+	/**
+	 * Offsets into the edge array for each band (of length nBands+1).
+	 */
+	private final int[] bandStart;
+	
+	/**
+	 * Packed edge coordinates (x1, y1, x2, y2) in band order; edges spanning multiple bands are repeated.
+	 */
+	private final double[] edges;
+	
+	private BatchPointInAreaLocator(Geometry geometry) {
+		var env = geometry.getEnvelopeInternal();
+		minX = env.getMinX();
+		minY = env.getMinY();
+		maxX = env.getMaxX();
+		maxY = env.getMaxY();
+		
+		int nEdges = 0;
+		for (int i = 0; i < geometry.getNumGeometries(); i++) {
+			var polygon = (Polygon)geometry.getGeometryN(i);
+			nEdges += Math.max(0, polygon.getExteriorRing().getNumPoints() - 1);
+			for (int h = 0; h < polygon.getNumInteriorRing(); h++)
+				nEdges += Math.max(0, polygon.getInteriorRingN(h).getNumPoints() - 1);
+		}
+		
+		// Use fewer bands if many edges would be repeated across bands (e.g. for long vertical edges)
+		double height = maxY - minY;
+		int n = height > 0 ? Math.max(1, nEdges / EDGES_PER_BAND) : 1;
+		while (n > 1 && countEntries(geometry, minY, height / n, n) > (long)MAX_ENTRIES_PER_EDGE * nEdges)
+			n /= 2;
+		nBands = n;
+		bandHeight = height > 0 ? height / nBands : 1;
+		
+		// Count the edges in each band, then fill
+		bandStart = new int[nBands + 1];
+		forEachEdge(geometry, (x1, y1, x2, y2) -> {
+			int b2 = getBand(Math.max(y1, y2));
+			for (int b = getBand(Math.min(y1, y2)); b <= b2; b++)
+				bandStart[b + 1]++;
+		});
+		for (int b = 0; b < nBands; b++)
+			bandStart[b + 1] += bandStart[b];
+		edges = new double[bandStart[nBands] * 4];
+		int[] counts = new int[nBands];
+		forEachEdge(geometry, (x1, y1, x2, y2) -> {
+			int b2 = getBand(Math.max(y1, y2));
+			for (int b = getBand(Math.min(y1, y2)); b <= b2; b++) {
+				int k = (bandStart[b] + counts[b]++) * 4;
+				edges[k] = x1;
+				edges[k+1] = y1;
+				edges[k+2] = x2;
+				edges[k+3] = y2;
+			}
+		});
+	}
+	
+	/**
+	 * Create a locator for a polygonal geometry.
+	 * @param geometry the geometry; this must be {@link Polygonal}
+	 * @return the locator
+	 * @throws IllegalArgumentException if the geometry is not polygonal
+	 */
+	public static BatchPointInAreaLocator create(Geometry geometry) throws IllegalArgumentException {
+		if (!(geometry instanceof Polygonal))
+			throw new IllegalArgumentException("Geometry must be polygonal, but found " + geometry.getGeometryType());
+		return new BatchPointInAreaLocator(geometry);
+	}
+	
+	/**
+	 * Test whether a single point falls inside the geometry or on its boundary.
+	 * @param x
+	 * @param y
+	 * @return true if the point is inside or on the boundary, false otherwise (including if either coordinate is NaN)
+	 */
+	public boolean contains(double x, double y) {
+		if (!(x >= minX && x <= maxX && y >= minY && y <= maxY))
+			return false;
+		int b = getBand(y);
+		boolean inside = false;
+		for (int i = bandStart[b]; i < bandStart[b+1]; i++) {
+			int k = i * 4;
+			double x1 = edges[k], y1 = edges[k+1], x2 = edges[k+2], y2 = edges[k+3];
+			if (y < Math.min(y1, y2) || y > Math.max(y1, y2))
+				continue;
+			// Check for the point being on the edge
+			if (x >= Math.min(x1, x2) && x <= Math.max(x1, x2) && (x2 - x1) * (y - y1) - (y2 - y1) * (x - x1) == 0)
+				return true;
+			// Count crossings of a ray to the right, treating the upper vertex as being above the ray
+			if ((y1 > y) != (y2 > y)) {
+				double xIntersect = x1 + (y - y1) * (x2 - x1) / (y2 - y1);
+				if (xIntersect > x)
+					inside = !inside;
+			}
+		}
+		return inside;
+	}
+	
+	/**
+	 * Test whether multiple points fall inside the geometry or on its boundary.
+	 * Points are classified in parallel.
+	 * @param x x-coordinates of the points
+	 * @param y y-coordinates of the points
+	 * @return an array with an entry for each point, set to true if the point is inside or on the boundary
+	 * @throws IllegalArgumentException if the coordinate arrays have different lengths
+	 */
+	public boolean[] contains(double[] x, double[] y) throws IllegalArgumentException {
+		if (x.length != y.length)
+			throw new IllegalArgumentException("Number of x-coordinates " + x.length + " does not match number of y-coordinates " + y.length);
+		int n = x.length;
+		var results = new boolean[n];
+		int nChunks = (n + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		IntStream.range(0, nChunks).parallel().forEach(c -> {
+			int end = Math.min(n, (c + 1) * CHUNK_SIZE);
+			for (int i = c * CHUNK_SIZE; i < end; i++)
+				results[i] = contains(x[i], y[i]);
+		});
+		return results;
+	}
+	
+	private int getBand(double y) {
+		return getBand(y, minY, bandHeight, nBands);
+	}
+	
+	private static int getBand(double y, double minY, double bandHeight, int nBands) {
+		return Math.max(0, Math.min(nBands - 1, (int)((y - minY) / bandHeight)));
+	}
+	
+	private static long countEntries(Geometry geometry, double minY, double bandHeight, int nBands) {
+		long[] count = new long[1];
+		forEachEdge(geometry, (x1, y1, x2, y2) -> {
+			count[0] += getBand(Math.max(y1, y2), minY, bandHeight, nBands) - getBand(Math.min(y1, y2), minY, bandHeight, nBands) + 1;
+		});
+		return count[0];
+	}
+	
+	
+	private static interface EdgeConsumer {
+		void accept(double x1, double y1, double x2, double y2);
+	}
+	
+	private static void forEachEdge(Geometry geometry, EdgeConsumer consumer) {
+		for (int i = 0; i < geometry.getNumGeometries(); i++) {
+			var polygon = (Polygon)geometry.getGeometryN(i);
+			forEachEdge(polygon.getExteriorRing().getCoordinateSequence(), consumer);
+			for (int h = 0; h < polygon.getNumInteriorRing(); h++)
+				forEachEdge(polygon.getInteriorRingN(h).getCoordinateSequence(), consumer);
+		}
+	}
+	
+	private static void forEachEdge(CoordinateSequence ring, EdgeConsumer consumer) {
+		int n = ring.size();
+		for (int i = 0; i < n - 1; i++)
+			consumer.accept(ring.getX(i), ring.getY(i), ring.getX(i+1), ring.getY(i+1));
+	}
+
+}
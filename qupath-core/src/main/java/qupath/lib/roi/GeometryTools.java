@@ -250,6 +250,21 @@ public class GeometryTools {
     public static Geometry roiToGeometry(ROI roi) {
     	return DEFAULT_INSTANCE.roiToGeometry(roi);
     }
+    
+    /**
+     * Create a polygon whose shell is a view of the specified vertices, without copying the coordinates.
+     * The polygon is not checked for validity.
+     * @param vertices
+     * @return the polygon, or null if there are too few vertices to form a ring
+     */
+    static Polygon verticesToPolygon(Vertices vertices) {
+    	if (vertices == null)
+    		return null;
+    	var sequence = new VerticesCoordinateSequence(vertices, true, DEFAULT_FACTORY.getPrecisionModel());
+    	if (sequence.size() < 4)
+    		return null;
+    	return DEFAULT_FACTORY.createPolygon(DEFAULT_FACTORY.createLinearRing(sequence));
+    }
 
     /**
      * Convert a JTS Geometry to a java.awt.Shape.
@@ -279,10 +294,29 @@ public class GeometryTools {
     
     /**
      * Calculate the union of multiple Geometry objects.
+     * <p>
+     * For large numbers of polygonal geometries, the union is computed in parallel by partitioning 
+     * the geometries spatially into grid cells, unioning each cell and then merging neighboring cells.
      * @param geometries
      * @return
      */
     public static Geometry union(Collection<? extends Geometry> geometries) {
+    	if (TiledGeometryUnion.isSuitable(geometries)) {
+    		try {
+    			return TiledGeometryUnion.union(geometries);
+    		} catch (Exception e) {
+    			logger.warn("Exception attempting tiled union: {}", e.getLocalizedMessage());
+    		}
+    	}
+    	return union(geometries, false);
+    }
+    
+    /**
+     * Calculate the union of multiple Geometry objects in a single thread, without spatial partitioning.
+     * @param geometries
+     * @return
+     */
+    static Geometry unionSequential(Collection<? extends Geometry> geometries) {
     	return union(geometries, false);
     }
     
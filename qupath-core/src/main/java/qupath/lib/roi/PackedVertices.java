@@ -0,0 +1,223 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.roi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import qupath.lib.geom.Point2;
+
+/**
+ * Immutable vertices stored in a single packed primitive array.
+ * <p>
+ * Where possible, coordinates are encoded as unsigned 16-bit offsets from the minimum x and y values,
+ * on a fixed grid (e.g. integer or half-pixel coordinates). This typically applies to contours traced from labelled images,
+ * and halves the memory required compared to storing separate float arrays.
+ * Offsets are relative to a single origin (rather than to the previous vertex) so that random access remains constant-time.
+ * <p>
+ * Encoding is lossless: if any coordinate cannot be reproduced exactly, the coordinates are instead stored as a single
+ * interleaved float array.
+ * 
+ * @author Pete Bankhead
+ */
+class PackedVertices implements Vertices {
+	
+	/**
+	 * Grid scales to try when encoding coordinates, in order of preference.
+	 */
+	private static final int[] SCALES = {1, 2, 4, 8, 10, 16, 32, 64, 100, 128, 256};
+	
+	private static final int MAX_OFFSET = 0xffff;
+	
+	/**
+	 * Origin, in units of 1/scale.
+	 */
+	private final int originX, originY;
+	private final int scale;
+	
+	/**
+	 * Interleaved x,y offsets from the origin, in units of 1/scale; null if the coordinates are stored as floats.
+	 */
+	private final short[] offsets;
+	
+	/**
+	 * Interleaved x,y coordinates; null if the coordinates are stored as offsets.
+	 */
+	private final float[] xy;
+	
+	private PackedVertices(int originX, int originY, int scale, short[] offsets, float[] xy) {
+		this.originX = originX;
+		this.originY = originY;
+		this.scale = scale;
+		this.offsets = offsets;
+		this.xy = xy;
+	}
+	
+	/**
+	 * Create packed vertices from arrays of x and y coordinates.
+	 * The arrays are not retained.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	static PackedVertices create(float[] x, float[] y) {
+		if (x.length != y.length)
+			throw new IllegalArgumentException("Array lengths " + x.length + " and " + y.length + " do not match!");
+		int n = x.length;
+		float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+		float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			minX = Math.min(minX, x[i]);
+			maxX = Math.max(maxX, x[i]);
+			minY = Math.min(minY, y[i]);
+			maxY = Math.max(maxY, y[i]);
+		}
+		if (n > 0 && Float.isFinite(minX) && Float.isFinite(minY) && Float.isFinite(maxX) && Float.isFinite(maxY)) {
+			double range = Math.max((double)maxX - minX, (double)maxY - minY);
+			short[] offsets = new short[n * 2];
+			for (int scale : SCALES) {
+				if (range * scale > MAX_OFFSET - 1)
+					break;
+				double originX = Math.floor((double)minX * scale);
+				double originY = Math.floor((double)minY * scale);
+				if (Math.abs(originX) >= Integer.MAX_VALUE - MAX_OFFSET || Math.abs(originY) >= Integer.MAX_VALUE - MAX_OFFSET)
+					break;
+				if (encode(x, (int)originX, scale, offsets, 0) && encode(y, (int)originY, scale, offsets, 1))
+					return new PackedVertices((int)originX, (int)originY, scale, offsets, null);
+			}
+		}
+		float[] xy = new float[n * 2];
+		for (int i = 0; i < n; i++) {
+			xy[i*2] = x[i];
+			xy[i*2+1] = y[i];
+		}
+		return new PackedVertices(0, 0, 0, null, xy);
+	}
+	
+	/**
+	 * Try to encode coordinates as offsets, returning false if this cannot be done without loss.
+	 */
+	private static boolean encode(float[] values, int origin, int scale, short[] offsets, int start) {
+		for (int i = 0; i < values.length; i++) {
+			long q = Math.round((double)values[i] * scale) - origin;
+			if (q < 0 || q > MAX_OFFSET || decode(origin, scale, (int)q) != values[i])
+				return false;
+			offsets[i*2+start] = (short)q;
+		}
+		return true;
+	}
+	
+	private static float decode(int origin, int scale, int offset) {
+		return (float)((double)(origin + offset) / scale);
+	}
+	
+	/**
+	 * Query whether the coordinates are stored as 16-bit offsets, rather than as floats.
+	 * @return
+	 */
+	boolean isOffsetEncoded() {
+		return offsets != null;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@Override
+	public int size() {
+		return offsets == null ? xy.length / 2 : offsets.length / 2;
+	}
+
+	@Override
+	public float[] getX(float[] xArray) {
+		return getArray(xArray, 0);
+	}
+
+	@Override
+	public float[] getY(float[] yArray) {
+		return getArray(yArray, 1);
+	}
+	
+	private float[] getArray(float[] dst, int start) {
+		int n = size();
+		if (dst == null || dst.length < n)
+			dst = new float[n];
+		for (int i = 0; i < n; i++)
+			dst[i] = getValue(i*2+start);
+		return dst;
+	}
+	
+	private float getValue(int ind) {
+		if (offsets == null)
+			return xy[ind];
+		return decode((ind & 1) == 0 ? originX : originY, scale, offsets[ind] & MAX_OFFSET);
+	}
+
+	@Override
+	public Point2 get(int idx) {
+		return new Point2(getX(idx), getY(idx));
+	}
+
+	@Override
+	public float getX(int idx) {
+		if (idx >= size())
+			throw new ArrayIndexOutOfBoundsException(idx + " is greater than size " + size());
+		return getValue(idx*2);
+	}
+
+	@Override
+	public float getY(int idx) {
+		if (idx >= size())
+			throw new ArrayIndexOutOfBoundsException(idx + " is greater than size " + size());
+		return getValue(idx*2+1);
+	}
+
+	@Override
+	public List<Point2> getPoints() {
+		int n = size();
+		List<Point2> points = new ArrayList<>(n);
+		for (int i = 0; i < n; i++)
+			points.add(new Point2(getValue(i*2), getValue(i*2+1)));
+		return points;
+	}
+
+	/**
+	 * Returns this object, since packed vertices are immutable.
+	 */
+	@Override
+	public Vertices duplicate() {
+		return this;
+	}
+
+	/**
+	 * Does nothing, since packed vertices are already compact.
+	 */
+	@Override
+	public void compact() {}
+	
+	@Override
+	public String toString() {
+		return "PackedVertices[" + size() + (offsets == null ? " float" : " offset, scale=" + scale) + "]";
+	}
+
+}
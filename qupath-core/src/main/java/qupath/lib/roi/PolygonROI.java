@@ -31,6 +31,8 @@ import java.io.Serializable;
 import java.util.List;
 import java.util.stream.Collectors;
 
+import org.locationtech.jts.geom.Geometry;
+
 import qupath.lib.common.GeneralTools;
 import qupath.lib.geom.Point2;
 import qupath.lib.regions.ImagePlane;
@@ -55,6 +57,12 @@ public class PolygonROI extends AbstractPathROI implements Serializable {
 	
 	transient private ClosedShapeStatistics stats = null;
 	
+	/**
+	 * Flag indicating whether a polygon created directly from the vertices is valid: 
+	 * 0 if this has not yet been checked, 1 if valid and -1 if invalid.
+	 */
+	transient private byte geometryValidity = 0;
+	
 
 	PolygonROI() {
 		super();
@@ -77,7 +85,8 @@ public class PolygonROI extends AbstractPathROI implements Serializable {
 	
 	PolygonROI(double x, double y, ImagePlane plane) {
 		super(plane);
-		vertices = VerticesFactory.createVertices(new float[]{(float)x, (float)x}, new float[]{(float)y, (float)y}, false);
+		vertices = VerticesFactory.createPackedVertices(new float[]{(float)x, (float)x}, new float[]{(float)y, (float)y});
+		calculateShapeMeasurements();
 //		vertices = VerticesFactory.createMutableVertices();
 //		vertices.add(x, y);
 //		vertices.close();
@@ -95,12 +104,15 @@ public class PolygonROI extends AbstractPathROI implements Serializable {
 			x[i] = (float)p.getX();
 			y[i] = (float)p.getY();
 		}
-		vertices = VerticesFactory.createVertices(x, y, false);
+		vertices = VerticesFactory.createPackedVertices(x, y);
+		calculateShapeMeasurements();
 	}
 	
 	
 	PolygonROI(float[] x, float[] y, ImagePlane plane) {
-		this(x, y, plane, true);
+		super(plane);
+		vertices = VerticesFactory.createPackedVertices(x, y);
+		calculateShapeMeasurements();
 //		List<Point2> points = new ArrayList<>();
 //		for (int i = 0; i < x.length; i++) {
 //			points.add(new Point2(x[i], y[i]));
@@ -111,12 +123,6 @@ public class PolygonROI extends AbstractPathROI implements Serializable {
 	}
 	
 	
-	PolygonROI(float[] x, float[] y, ImagePlane plane, boolean copyVertices) {
-		super(plane);
-		vertices = VerticesFactory.createVertices(x, y, copyVertices);
-	}
-	
-	
 //	public PolygonROI(Vertices vertices, int c, int z, int t) {
 //		super(c, z, t);
 //		this.vertices = Vertices.createMutableVertices(vertices.size());
@@ -135,6 +141,25 @@ public class PolygonROI extends AbstractPathROI implements Serializable {
 	}
 	
 	
+	/**
+	 * Get the x-coordinates of the polygon vertices, without creating intermediate point objects.
+	 * @param array optional array to fill; a new array is created if this is null or shorter than the number of vertices
+	 * @return an array containing the x-coordinates in its first {@link #nVertices()} entries
+	 */
+	public float[] getVerticesX(float[] array) {
+		return vertices.getX(array);
+	}
+
+	/**
+	 * Get the y-coordinates of the polygon vertices, without creating intermediate point objects.
+	 * @param array optional array to fill; a new array is created if this is null or shorter than the number of vertices
+	 * @return an array containing the y-coordinates in its first {@link #nVertices()} entries
+	 */
+	public float[] getVerticesY(float[] array) {
+		return vertices.getY(array);
+	}
+
+
 	/* (non-Javadoc)
 	 * @see qupath.lib.rois.PolygonROI#duplicate()
 	 */
@@ -274,6 +299,44 @@ public class PolygonROI extends AbstractPathROI implements Serializable {
 		return vertices;
 	}
 	
+	/**
+	 * Get a polygon created directly from the vertices, if this is valid, or otherwise the result of the 
+	 * default (slower, but more robust) conversion.
+	 * The returned geometry may be modified freely.
+	 * @see #getGeometryView()
+	 */
+	@Override
+	public Geometry getGeometry() {
+		var polygon = getValidPolygonView();
+		return polygon == null ? super.getGeometry() : polygon.copy();
+	}
+	
+	/**
+	 * Get a read-only geometry for this ROI, which may be backed by a view of the vertices rather than a copy.
+	 * <p>
+	 * This avoids copying the coordinates, and so is preferable for queries (e.g. intersection tests) 
+	 * that do not modify the geometry. Any attempt to modify the coordinates of the geometry 
+	 * (e.g. with {@link Geometry#normalize()}) may throw an {@link UnsupportedOperationException}; 
+	 * {@link #getGeometry()} should be used instead whenever a modifiable geometry is needed.
+	 * @return a geometry that must not be modified
+	 */
+	public Geometry getGeometryView() {
+		var polygon = getValidPolygonView();
+		return polygon == null ? super.getGeometry() : polygon;
+	}
+	
+	/**
+	 * Get a polygon backed by a view of the vertices, or null if this would not be valid.
+	 */
+	private Geometry getValidPolygonView() {
+		if (geometryValidity < 0)
+			return null;
+		var polygon = GeometryTools.verticesToPolygon(vertices);
+		if (geometryValidity == 0)
+			geometryValidity = polygon != null && polygon.isValid() ? (byte)1 : (byte)-1;
+		return geometryValidity > 0 ? polygon : null;
+	}
+	
 //	public VerticesIterator getVerticesIterator() {
 //		return vertices.getIterator();
 //	}
@@ -414,8 +477,9 @@ public class PolygonROI extends AbstractPathROI implements Serializable {
 		}
 		
 		private Object readResolve() {
-			PolygonROI roi = new PolygonROI(x, y, ImagePlane.getPlaneWithChannel(c, z, t), false);
-			roi.stats = this.stats; // Doesn't matter if this is null...
+			PolygonROI roi = new PolygonROI(x, y, ImagePlane.getPlaneWithChannel(c, z, t));
+			if (this.stats != null)
+				roi.stats = this.stats;
 //			if (roi.stats == null) {
 //				System.err.println("Null count: " + (++nullCounter));
 //			}
@@ -64,16 +64,12 @@ public class PolylineROI extends AbstractPathROI implements Serializable {
 			x[i] = (float)p.getX();
 			y[i] = (float)p.getY();
 		}
-		vertices = VerticesFactory.createVertices(x, y, false);
+		vertices = VerticesFactory.createPackedVertices(x, y);
 	}
 	
 	PolylineROI(final float[] x, final float[] y, ImagePlane plane) {
-		this(x, y, plane, true);
-	}
-	
-	private PolylineROI(final float[] x, final float[] y, ImagePlane plane, boolean copyVertices) {
 		super(plane);
-		this.vertices = VerticesFactory.createVertices(x, y, copyVertices);
+		this.vertices = VerticesFactory.createPackedVertices(x, y);
 	}
 		
 	@Override
@@ -144,7 +140,7 @@ public class PolylineROI extends AbstractPathROI implements Serializable {
 			x[i] = (float)(x[i] + dx);
 			y[i] = (float)(y[i] + dy);
 		}
-		return new PolylineROI(x, y, getImagePlane(), false);
+		return new PolylineROI(x, y, getImagePlane());
 	}
 
 	@Override
@@ -300,7 +296,7 @@ public class PolylineROI extends AbstractPathROI implements Serializable {
 		}
 		
 		private Object readResolve() {
-			return new PolylineROI(x, y, ImagePlane.getPlaneWithChannel(c, z, t), false);
+			return new PolylineROI(x, y, ImagePlane.getPlaneWithChannel(c, z, t));
 		}
 		
 	}
@@ -40,6 +40,7 @@ import java.util.List;
 import java.util.Map;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.util.AffineTransformation;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,6 +59,11 @@ import qupath.lib.roi.interfaces.ROI;
 public class RoiTools {
 
 	private final static Logger logger = LoggerFactory.getLogger(RoiTools.class);
+	
+	/**
+	 * Minimum number of vertices for an area ROI to be split into tiles by {@link #simplify(ROI, double)}.
+	 */
+	public static final int MIN_TILED_SIMPLIFY_VERTICES = TiledSimplifier.MIN_TILED_VERTICES;
 
 	/**
 	 * Methods of combining two ROIs.
@@ -253,6 +259,23 @@ public class RoiTools {
 	}
 
 
+	/**
+	 * Simplify a ROI by removing vertices, while preserving its topology.
+	 * <p>
+	 * Area ROIs with very many vertices (e.g. created from pixel classification) are split into tiles
+	 * that are simplified in parallel. Results are cached for each tolerance, so that repeated requests
+	 * for the same ROI are fast.
+	 *
+	 * @param roi the ROI to simplify
+	 * @param distanceTolerance the maximum distance between the original and simplified boundaries, in pixels
+	 * @return the simplified ROI, or the original ROI if it could not be simplified
+	 * @see TopologyPreservingSimplifier
+	 */
+	public static ROI simplify(ROI roi, double distanceTolerance) {
+		return TiledSimplifier.simplify(roi, distanceTolerance);
+	}
+
+
 	/**
 	 * Get a {@link ROI} from an Area.
 	 * This will try to return a simple representation of the ROI if possible (e.g. a rectangle or polygon).
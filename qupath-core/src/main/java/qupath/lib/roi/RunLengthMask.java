@@ -0,0 +1,654 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+
+package qupath.lib.roi;
+
+import java.awt.Shape;
+import java.awt.geom.Path2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Polygon;
+
+/**
+ * A binary mask stored as horizontal runs of pixels, intended for fast interactive editing of area ROIs.
+ * <p>
+ * The mask has a fixed working resolution, defined by a downsample factor relative to the full-resolution image. 
+ * Mask pixel (c, r) covers the square with top left corner (c * downsample, r * downsample) and side length equal 
+ * to the downsample, and is set whenever its center falls inside a geometry that is added.
+ * <p>
+ * Each row stores a sorted list of non-overlapping runs, so that adding or subtracting a shape only updates 
+ * the rows that the shape spans. The cost of an edit therefore depends upon the size of the shape being added 
+ * or subtracted, but not on the complexity of whatever is already in the mask.
+ * <p>
+ * Conversion back to a {@link Geometry} is performed lazily by tracing the run boundaries, and the result is 
+ * cached until the mask is next modified. Diagonally-adjacent pixels are not considered to be connected.
+ * For display purposes, {@link #toShape()} provides a much cheaper alternative that does not require any tracing.
+ * <p>
+ * This class is not thread-safe.
+ * 
+ * @author Pete Bankhead
+ */
+public class RunLengthMask {
+	
+	private final double downsample;
+	
+	/**
+	 * Index of the mask row stored in rows[0].
+	 */
+	private int rowOffset = 0;
+	
+	/**
+	 * Runs for each row, stored as (start, end) column pairs with the end exclusive.
+	 */
+	private int[][] rows = new int[0][];
+	
+	/**
+	 * Number of values used within each row array (i.e. twice the number of runs).
+	 */
+	private int[] rowLengths = new int[0];
+	
+	private Geometry geometry;
+	
+	private Shape shape;
+	
+	/**
+	 * Create a new, empty mask.
+	 * @param downsample downsample factor defining the working resolution of the mask
+	 * @throws IllegalArgumentException if the downsample is not a finite value &gt; 0
+	 */
+	public RunLengthMask(double downsample) throws IllegalArgumentException {
+		if (!(downsample > 0) || Double.isInfinite(downsample))
+			throw new IllegalArgumentException("Downsample must be a finite value > 0, but was " + downsample);
+		this.downsample = downsample;
+	}
+	
+	/**
+	 * Create a new mask containing the specified geometry.
+	 * @param geometry the geometry; only polygonal components are used
+	 * @param downsample downsample factor defining the working resolution of the mask
+	 * @return the mask
+	 * @throws IllegalArgumentException if the downsample is not a finite value &gt; 0
+	 */
+	public static RunLengthMask create(Geometry geometry, double downsample) throws IllegalArgumentException {
+		var mask = new RunLengthMask(downsample);
+		mask.add(geometry);
+		return mask;
+	}
+	
+	/**
+	 * Get the downsample factor defining the working resolution of the mask.
+	 * @return
+	 */
+	public double getDownsample() {
+		return downsample;
+	}
+	
+	/**
+	 * Add a geometry to the mask. Only polygonal components are used.
+	 * @param geometry
+	 * @return true if the mask was changed, false otherwise
+	 */
+	public boolean add(Geometry geometry) {
+		return apply(geometry, false);
+	}
+	
+	/**
+	 * Subtract a geometry from the mask. Only polygonal components are used.
+	 * @param geometry
+	 * @return true if the mask was changed, false otherwise
+	 */
+	public boolean subtract(Geometry geometry) {
+		return apply(geometry, true);
+	}
+	
+	/**
+	 * Query whether the mask contains any pixels.
+	 * @return
+	 */
+	public boolean isEmpty() {
+		for (int len : rowLengths) {
+			if (len > 0)
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Get the number of pixels in the mask, at the working resolution.
+	 * @return
+	 */
+	public long getPixelCount() {
+		long count = 0;
+		for (int i = 0; i < rows.length; i++) {
+			for (int k = 0; k < rowLengths[i]; k += 2)
+				count += rows[i][k+1] - rows[i][k];
+		}
+		return count;
+	}
+	
+	/**
+	 * Query whether the mask pixel containing a specified point is set.
+	 * @param x x-coordinate in the full-resolution image
+	 * @param y y-coordinate in the full-resolution image
+	 * @return
+	 */
+	public boolean contains(double x, double y) {
+		int ind = (int)Math.floor(y / downsample) - rowOffset;
+		if (ind < 0 || ind >= rows.length || Double.isNaN(x))
+			return false;
+		int c = (int)Math.floor(x / downsample);
+		int[] row = rows[ind];
+		for (int k = 0; k < rowLengths[ind] && row[k] <= c; k += 2) {
+			if (c < row[k+1])
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Get a polygonal geometry representing the mask, with coordinates in the full-resolution image.
+	 * The geometry is cached, and only recomputed if the mask has been modified.
+	 * @return the geometry; this is empty if the mask is empty
+	 */
+	public Geometry toGeometry() {
+		if (geometry == null)
+			geometry = traceGeometry(GeometryTools.getDefaultFactory());
+		return geometry;
+	}
+	
+	/**
+	 * Get a shape representing the mask, with coordinates in the full-resolution image.
+	 * This is composed of one rectangle per run, and so is suitable for painting but not for further processing; 
+	 * use {@link #toGeometry()} whenever the boundary is needed.
+	 * The shape is cached, and only recomputed if the mask has been modified.
+	 * @return the shape
+	 */
+	public Shape toShape() {
+		if (shape == null) {
+			var path = new Path2D.Double(Path2D.WIND_NON_ZERO);
+			for (int ind = 0; ind < rows.length; ind++) {
+				double y1 = (rowOffset + ind) * downsample;
+				double y2 = y1 + downsample;
+				for (int k = 0; k < rowLengths[ind]; k += 2) {
+					double x1 = rows[ind][k] * downsample;
+					double x2 = rows[ind][k+1] * downsample;
+					path.moveTo(x1, y1);
+					path.lineTo(x2, y1);
+					path.lineTo(x2, y2);
+					path.lineTo(x1, y2);
+					path.closePath();
+				}
+			}
+			shape = path;
+		}
+		return shape;
+	}
+	
+	
+	private boolean apply(Geometry geometry, boolean subtract) {
+		if (geometry == null || geometry.isEmpty())
+			return false;
+		boolean changed = false;
+		for (int i = 0; i < geometry.getNumGeometries(); i++) {
+			var g = geometry.getGeometryN(i);
+			if (g instanceof Polygon)
+				changed = applyPolygon((Polygon)g, subtract) || changed;
+			else if (g instanceof GeometryCollection && g != geometry)
+				changed = apply(g, subtract) || changed;
+		}
+		if (changed) {
+			this.geometry = null;
+			this.shape = null;
+		}
+		return changed;
+	}
+	
+	/**
+	 * Scan convert a polygon using the even-odd rule, updating every row that it spans.
+	 */
+	private boolean applyPolygon(Polygon polygon, boolean subtract) {
+		if (polygon.isEmpty())
+			return false;
+		
+		// Extract non-horizontal edges in mask coordinates, along with the rows they cross
+		int nEdges = polygon.getExteriorRing().getNumPoints();
+		for (int h = 0; h < polygon.getNumInteriorRing(); h++)
+			nEdges += polygon.getInteriorRingN(h).getNumPoints();
+		double[] edges = new double[nEdges * 4];
+		int[] edgeRows = new int[nEdges * 2];
+		int n = addEdges(polygon.getExteriorRing().getCoordinateSequence(), edges, edgeRows, 0);
+		for (int h = 0; h < polygon.getNumInteriorRing(); h++)
+			n = addEdges(polygon.getInteriorRingN(h).getCoordinateSequence(), edges, edgeRows, n);
+		if (n == 0)
+			return false;
+		
+		int rMin = Integer.MAX_VALUE;
+		int rMax = Integer.MIN_VALUE;
+		for (int e = 0; e < n; e++) {
+			rMin = Math.min(rMin, edgeRows[e*2]);
+			rMax = Math.max(rMax, edgeRows[e*2+1]);
+		}
+		if (subtract) {
+			if (rMin >= rowOffset + rows.length || rMax <= rowOffset)
+				return false;
+		} else
+			ensureRows(rMin, rMax);
+		
+		// Bucket edges according to their first row
+		int nRows = rMax - rMin;
+		int[] bucketStart = new int[nRows + 1];
+		for (int e = 0; e < n; e++)
+			bucketStart[edgeRows[e*2] - rMin + 1]++;
+		for (int r = 0; r < nRows; r++)
+			bucketStart[r + 1] += bucketStart[r];
+		int[] buckets = new int[n];
+		int[] counts = new int[nRows];
+		for (int e = 0; e < n; e++) {
+			int b = edgeRows[e*2] - rMin;
+			buckets[bucketStart[b] + counts[b]++] = e;
+		}
+		
+		int[] active = new int[n];
+		int nActive = 0;
+		double[] crossings = new double[n];
+		int[] runs = new int[16];
+		boolean changed = false;
+		for (int r = rMin; r < rMax; r++) {
+			// Update the active edges
+			int nKeep = 0;
+			for (int i = 0; i < nActive; i++) {
+				if (edgeRows[active[i]*2+1] > r)
+					active[nKeep++] = active[i];
+			}
+			nActive = nKeep;
+			for (int i = bucketStart[r - rMin]; i < bucketStart[r - rMin + 1]; i++)
+				active[nActive++] = buckets[i];
+			
+			int ind = r - rowOffset;
+			if (ind < 0 || ind >= rows.length)
+				continue;
+			
+			// Find where the row center crosses each edge
+			double y = r + 0.5;
+			for (int i = 0; i < nActive; i++) {
+				int k = active[i] * 4;
+				double x1 = edges[k], y1 = edges[k+1], x2 = edges[k+2], y2 = edges[k+3];
+				crossings[i] = x1 + (y - y1) * (x2 - x1) / (y2 - y1);
+			}
+			Arrays.sort(crossings, 0, nActive);
+			
+			// Convert pairs of crossings to runs of pixels whose centers lie between them
+			int nRuns = 0;
+			for (int i = 0; i + 1 < nActive; i += 2) {
+				int c1 = (int)Math.ceil(crossings[i] - 0.5);
+				int c2 = (int)Math.ceil(crossings[i+1] - 0.5);
+				if (c2 <= c1)
+					continue;
+				if (nRuns > 0 && c1 <= runs[nRuns-1]) {
+					runs[nRuns-1] = Math.max(runs[nRuns-1], c2);
+				} else {
+					if (nRuns + 2 > runs.length)
+						runs = Arrays.copyOf(runs, runs.length * 2);
+					runs[nRuns++] = c1;
+					runs[nRuns++] = c2;
+				}
+			}
+			if (nRuns > 0)
+				changed = updateRow(ind, runs, nRuns, subtract) || changed;
+		}
+		return changed;
+	}
+	
+	/**
+	 * Add the non-horizontal edges of a ring, scaled to mask coordinates.
+	 * For each edge, the first row it crosses and the row after the last are stored.
+	 */
+	private int addEdges(CoordinateSequence seq, double[] edges, int[] edgeRows, int n) {
+		int nPoints = seq.size();
+		if (nPoints < 2)
+			return n;
+		double x1 = seq.getX(0) / downsample;
+		double y1 = seq.getY(0) / downsample;
+		for (int i = 1; i < nPoints; i++) {
+			double x2 = seq.getX(i) / downsample;
+			double y2 = seq.getY(i) / downsample;
+			// An edge crosses the center of row r if min(y1, y2) <= r + 0.5 < max(y1, y2)
+			int r1 = (int)Math.ceil(Math.min(y1, y2) - 0.5);
+			int r2 = (int)Math.ceil(Math.max(y1, y2) - 0.5);
+			if (r2 > r1) {
+				int k = n * 4;
+				edges[k] = x1;
+				edges[k+1] = y1;
+				edges[k+2] = x2;
+				edges[k+3] = y2;
+				edgeRows[n*2] = r1;
+				edgeRows[n*2+1] = r2;
+				n++;
+			}
+			x1 = x2;
+			y1 = y2;
+		}
+		return n;
+	}
+	
+	private boolean updateRow(int ind, int[] runs, int nRuns, boolean subtract) {
+		int[] row = rows[ind];
+		int len = rowLengths[ind];
+		if (row == null)
+			row = new int[0];
+		int[] output = new int[len + nRuns];
+		int nOutput = subtract ? difference(row, len, runs, nRuns, output) : union(row, len, runs, nRuns, output);
+		if (nOutput == len && Arrays.equals(row, 0, len, output, 0, len))
+			return false;
+		rows[ind] = output;
+		rowLengths[ind] = nOutput;
+		return true;
+	}
+	
+	/**
+	 * Ensure rows are available from r1 (inclusive) to r2 (exclusive).
+	 */
+	private void ensureRows(int r1, int r2) {
+		if (rows.length == 0) {
+			rowOffset = r1;
+			rows = new int[r2 - r1][];
+			rowLengths = new int[r2 - r1];
+			return;
+		}
+		int start = rowOffset;
+		int end = rowOffset + rows.length;
+		if (r1 >= start && r2 <= end)
+			return;
+		// Grow with some margin, since strokes tend to move gradually
+		int margin = Math.max(16, rows.length / 4);
+		int newStart = r1 < start ? r1 - margin : start;
+		int newEnd = r2 > end ? r2 + margin : end;
+		int[][] newRows = new int[newEnd - newStart][];
+		int[] newLengths = new int[newEnd - newStart];
+		System.arraycopy(rows, 0, newRows, start - newStart, rows.length);
+		System.arraycopy(rowLengths, 0, newLengths, start - newStart, rows.length);
+		rows = newRows;
+		rowLengths = newLengths;
+		rowOffset = newStart;
+	}
+	
+	/**
+	 * Compute the union of two sorted lists of runs. 
+	 * The output array must have a length of at least na + nb.
+	 */
+	static int union(int[] a, int na, int[] b, int nb, int[] output) {
+		int i = 0, j = 0, n = 0;
+		while (i < na || j < nb) {
+			int start, end;
+			if (j >= nb || (i < na && a[i] <= b[j])) {
+				start = a[i];
+				end = a[i+1];
+				i += 2;
+			} else {
+				start = b[j];
+				end = b[j+1];
+				j += 2;
+			}
+			if (n > 0 && start <= output[n-1]) {
+				if (end > output[n-1])
+					output[n-1] = end;
+			} else {
+				output[n++] = start;
+				output[n++] = end;
+			}
+		}
+		return n;
+	}
+	
+	/**
+	 * Subtract one sorted list of runs from another. 
+	 * The output array must have a length of at least na + nb.
+	 */
+	static int difference(int[] a, int na, int[] b, int nb, int[] output) {
+		int n = 0, j = 0;
+		for (int i = 0; i < na; i += 2) {
+			int start = a[i];
+			int end = a[i+1];
+			while (j < nb && b[j+1] <= start)
+				j += 2;
+			for (int k = j; k < nb && b[k] < end && start < end; k += 2) {
+				if (b[k] > start) {
+					output[n++] = start;
+					output[n++] = b[k];
+				}
+				start = Math.max(start, b[k+1]);
+			}
+			if (start < end) {
+				output[n++] = start;
+				output[n++] = end;
+			}
+		}
+		return n;
+	}
+	
+	
+	/**
+	 * Trace the boundaries between set and unset pixels to create polygons.
+	 * <p>
+	 * Every boundary edge is directed so that the set pixels are on its right (with y increasing downwards), 
+	 * which means that shells have a positive signed area and holes a negative one. 
+	 * Where two edges leave the same vertex (i.e. at diagonally-touching pixels), the right turn is taken.
+	 */
+	private Geometry traceGeometry(GeometryFactory factory) {
+		// Collect directed edges as (x1, y1, x2, y2) in mask coordinates
+		int[] edges = new int[64];
+		int n = 0;
+		int[] above = new int[0];
+		int nAbove = 0;
+		int[] temp = new int[16];
+		for (int ind = 0; ind <= rows.length; ind++) {
+			int y = rowOffset + ind;
+			int[] below = ind < rows.length && rows[ind] != null ? rows[ind] : new int[0];
+			int nBelow = ind < rows.length ? rowLengths[ind] : 0;
+			if (nAbove + nBelow > temp.length)
+				temp = new int[(nAbove + nBelow) * 2];
+			if (n + (nAbove + nBelow) * 4 * 2 > edges.length)
+				edges = Arrays.copyOf(edges, Math.max(edges.length * 2, n + (nAbove + nBelow) * 8));
+			// Top edges of the row below, directed to the right
+			int nt = difference(below, nBelow, above, nAbove, temp);
+			for (int k = 0; k < nt; k += 2)
+				n = addEdge(edges, n, temp[k], y, temp[k+1], y);
+			// Bottom edges of the row above, directed to the left
+			nt = difference(above, nAbove, below, nBelow, temp);
+			for (int k = 0; k < nt; k += 2)
+				n = addEdge(edges, n, temp[k+1], y, temp[k], y);
+			// Left edges directed upwards, right edges downwards
+			for (int k = 0; k < nBelow; k += 2) {
+				n = addEdge(edges, n, below[k], y+1, below[k], y);
+				n = addEdge(edges, n, below[k+1], y, below[k+1], y+1);
+			}
+			above = below;
+			nAbove = nBelow;
+		}
+		int nEdges = n / 4;
+		if (nEdges == 0)
+			return factory.createPolygon();
+		
+		// Index the vertices where each edge starts
+		long[] keys = new long[nEdges];
+		for (int e = 0; e < nEdges; e++)
+			keys[e] = vertexKey(edges[e*4], edges[e*4+1]);
+		long[] vertices = keys.clone();
+		Arrays.sort(vertices);
+		int nVertices = 0;
+		for (int i = 0; i < vertices.length; i++) {
+			if (i == 0 || vertices[i] != vertices[i-1])
+				vertices[nVertices++] = vertices[i];
+		}
+		int[] out1 = new int[nVertices];
+		int[] out2 = new int[nVertices];
+		Arrays.fill(out1, -1);
+		Arrays.fill(out2, -1);
+		for (int e = 0; e < nEdges; e++) {
+			int v = Arrays.binarySearch(vertices, 0, nVertices, keys[e]);
+			if (out1[v] < 0)
+				out1[v] = e;
+			else
+				out2[v] = e;
+		}
+		
+		// Follow edges to create rings, retaining only vertices where the direction changes
+		List<int[]> shells = new ArrayList<>();
+		List<int[]> holes = new ArrayList<>();
+		List<double[]> holePoints = new ArrayList<>();
+		boolean[] used = new boolean[nEdges];
+		int[] ringEdges = new int[64];
+		for (int start = 0; start < nEdges; start++) {
+			if (used[start])
+				continue;
+			int nRing = 0;
+			int e = start;
+			do {
+				used[e] = true;
+				if (nRing == ringEdges.length)
+					ringEdges = Arrays.copyOf(ringEdges, nRing * 2);
+				ringEdges[nRing++] = e;
+				int v = Arrays.binarySearch(vertices, 0, nVertices, vertexKey(edges[e*4+2], edges[e*4+3]));
+				int next = out1[v];
+				if (out2[v] >= 0 && turn(edges, e, next) <= 0)
+					next = out2[v];
+				e = next;
+			} while (e != start);
+			
+			int[] corners = new int[nRing * 2];
+			int nCorners = 0;
+			for (int i = 0; i < nRing; i++) {
+				int ePrevious = ringEdges[i == 0 ? nRing - 1 : i - 1];
+				int eCurrent = ringEdges[i];
+				if (turn(edges, ePrevious, eCurrent) != 0) {
+					corners[nCorners++] = edges[eCurrent*4];
+					corners[nCorners++] = edges[eCurrent*4+1];
+				}
+			}
+			corners = Arrays.copyOf(corners, nCorners);
+			if (signedArea(corners) > 0)
+				shells.add(corners);
+			else {
+				// Store the center of the set pixel adjacent to the first edge, to find the shell later
+				int k = start * 4;
+				int dx = Integer.signum(edges[k+2] - edges[k]);
+				int dy = Integer.signum(edges[k+3] - edges[k+1]);
+				holes.add(corners);
+				holePoints.add(new double[] {edges[k] + 0.5 * (dx - dy), edges[k+1] + 0.5 * (dy + dx)});
+			}
+		}
+		
+		// Assign each hole to the smallest shell that contains it
+		double[] shellAreas = new double[shells.size()];
+		for (int s = 0; s < shells.size(); s++)
+			shellAreas[s] = signedArea(shells.get(s));
+		List<List<LinearRing>> shellHoles = new ArrayList<>();
+		for (int s = 0; s < shells.size(); s++)
+			shellHoles.add(new ArrayList<>());
+		for (int h = 0; h < holes.size(); h++) {
+			double[] p = holePoints.get(h);
+			int best = -1;
+			for (int s = 0; s < shells.size(); s++) {
+				if ((best < 0 || shellAreas[s] < shellAreas[best]) && ringContains(shells.get(s), p[0], p[1]))
+					best = s;
+			}
+			if (best >= 0)
+				shellHoles.get(best).add(createRing(factory, holes.get(h)));
+		}
+		
+		var polygons = new Polygon[shells.size()];
+		for (int s = 0; s < shells.size(); s++) {
+			var holesForShell = shellHoles.get(s);
+			polygons[s] = factory.createPolygon(createRing(factory, shells.get(s)), holesForShell.toArray(LinearRing[]::new));
+		}
+		Geometry result = polygons.length == 1 ? polygons[0] : factory.createMultiPolygon(polygons);
+		// Rings may touch themselves at diagonally-adjacent pixels, which JTS considers invalid
+		if (!result.isValid())
+			result = result.buffer(0);
+		return result;
+	}
+	
+	private static int addEdge(int[] edges, int n, int x1, int y1, int x2, int y2) {
+		edges[n++] = x1;
+		edges[n++] = y1;
+		edges[n++] = x2;
+		edges[n++] = y2;
+		return n;
+	}
+	
+	private static long vertexKey(int x, int y) {
+		return ((long)y << 32) | (x & 0xffffffffL);
+	}
+	
+	/**
+	 * Compute the cross product of the directions of two edges; this is positive for a right turn 
+	 * (with y increasing downwards) and zero if the edges are parallel.
+	 */
+	private static int turn(int[] edges, int e1, int e2) {
+		int dx1 = Integer.signum(edges[e1*4+2] - edges[e1*4]);
+		int dy1 = Integer.signum(edges[e1*4+3] - edges[e1*4+1]);
+		int dx2 = Integer.signum(edges[e2*4+2] - edges[e2*4]);
+		int dy2 = Integer.signum(edges[e2*4+3] - edges[e2*4+1]);
+		return dx1 * dy2 - dy1 * dx2;
+	}
+	
+	private static double signedArea(int[] corners) {
+		long sum = 0;
+		int n = corners.length / 2;
+		for (int i = 0; i < n; i++) {
+			int j = (i + 1) % n;
+			sum += (long)corners[i*2] * corners[j*2+1] - (long)corners[j*2] * corners[i*2+1];
+		}
+		return sum / 2.0;
+	}
+	
+	private static boolean ringContains(int[] corners, double x, double y) {
+		boolean inside = false;
+		int n = corners.length / 2;
+		for (int i = 0, j = n - 1; i < n; j = i++) {
+			double xi = corners[i*2], yi = corners[i*2+1];
+			double xj = corners[j*2], yj = corners[j*2+1];
+			if ((yi > y) != (yj > y) && x < (xj - xi) * (y - yi) / (yj - yi) + xi)
+				inside = !inside;
+		}
+		return inside;
+	}
+	
+	private LinearRing createRing(GeometryFactory factory, int[] corners) {
+		int n = corners.length / 2;
+		var coords = new Coordinate[n + 1];
+		for (int i = 0; i < n; i++)
+			coords[i] = new Coordinate(corners[i*2] * downsample, corners[i*2+1] * downsample);
+		coords[n] = coords[0];
+		return factory.createLinearRing(coords);
+	}
+	
+}
@@ -0,0 +1,237 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.roi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygonal;
+import org.locationtech.jts.geom.util.PolygonExtracter;
+import org.locationtech.jts.operation.union.UnaryUnionOp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spatially partitioned union of many polygonal geometries.
+ * <p>
+ * Geometries are assigned to the cells of a regular grid according to the centers of their envelopes. 
+ * Each cell is unioned independently, and neighboring cells are then merged hierarchically by recursively 
+ * splitting the grid in two. When merging, only polygons whose envelopes intersect the common envelope of 
+ * the two parts are passed to the overlay operation; all others are retained unchanged.
+ * <p>
+ * All work is performed using a fork-join pool. Since the grid and merge order depend only upon the input 
+ * (including its order), the result is deterministic.
+ * 
+ * @author Pete Bankhead
+ */
+class TiledGeometryUnion {
+	
+	private final static Logger logger = LoggerFactory.getLogger(TiledGeometryUnion.class);
+	
+	/**
+	 * Minimum number of geometries for which a tiled union is used.
+	 */
+	static final int MIN_GEOMETRIES = 256;
+	
+	/**
+	 * Target number of geometries per grid cell.
+	 */
+	private static final int GEOMETRIES_PER_CELL = 64;
+	
+	// Suppressed default constructor for non-instantiability
+	private TiledGeometryUnion() {
+		throw new AssertionError();
+	}
+	
+	/**
+	 * Query whether a tiled union is suitable for a collection of geometries. 
+	 * This requires that there are at least {@link #MIN_GEOMETRIES} geometries, and all are polygonal.
+	 * @param geometries
+	 * @return
+	 */
+	static boolean isSuitable(Collection<? extends Geometry> geometries) {
+		if (geometries.size() < MIN_GEOMETRIES)
+			return false;
+		for (var geometry : geometries) {
+			if (!(geometry instanceof Polygonal))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Calculate the union of polygonal geometries.
+	 * @param geometries the geometries; these must all be polygonal
+	 * @return the union
+	 */
+	static Geometry union(Collection<? extends Geometry> geometries) {
+		long startTime = System.currentTimeMillis();
+		
+		var list = new ArrayList<Geometry>(geometries);
+		var factory = list.get(0).getFactory();
+		var envelope = new Envelope();
+		for (var geometry : list)
+			envelope.expandToInclude(geometry.getEnvelopeInternal());
+		
+		// Create a grid with approximately square cells
+		int n = list.size();
+		int nCells = Math.max(1, (n + GEOMETRIES_PER_CELL - 1) / GEOMETRIES_PER_CELL);
+		double width = envelope.getWidth();
+		double height = envelope.getHeight();
+		int nx, ny;
+		if (width <= 0 || height <= 0) {
+			nx = width > 0 ? nCells : 1;
+			ny = height > 0 ? nCells : 1;
+		} else {
+			nx = (int)Math.max(1, Math.min(nCells, Math.round(Math.sqrt(nCells * width / height))));
+			ny = Math.max(1, (nCells + nx - 1) / nx);
+		}
+		
+		@SuppressWarnings("unchecked")
+		List<Geometry>[] cells = new List[nx * ny];
+		for (var geometry : list) {
+			var env = geometry.getEnvelopeInternal();
+			int x = cellIndex((env.getMinX() + env.getMaxX()) / 2.0, envelope.getMinX(), width, nx);
+			int y = cellIndex((env.getMinY() + env.getMaxY()) / 2.0, envelope.getMinY(), height, ny);
+			int ind = y * nx + x;
+			if (cells[ind] == null)
+				cells[ind] = new ArrayList<>();
+			cells[ind].add(geometry);
+		}
+		
+		var result = ForkJoinPool.commonPool().invoke(new UnionTask(cells, nx, 0, 0, nx, ny, factory));
+		if (result == null)
+			result = factory.createPolygon();
+		
+		long endTime = System.currentTimeMillis();
+		logger.debug("Tiled union of {} geometries with {}x{} grid ({} ms)", n, nx, ny, endTime - startTime);
+		return result;
+	}
+	
+	private static int cellIndex(double value, double min, double length, int nCells) {
+		if (length <= 0)
+			return 0;
+		int ind = (int)((value - min) / length * nCells);
+		return Math.max(0, Math.min(nCells - 1, ind));
+	}
+	
+	/**
+	 * Union two geometries, which are each assumed to be valid polygonal geometries.
+	 * Only polygons that might interact are passed to the overlay operation.
+	 * @param g0
+	 * @param g1
+	 * @param factory
+	 * @return
+	 */
+	static Geometry unionInteracting(Geometry g0, Geometry g1, GeometryFactory factory) {
+		if (g0 == null || g0.isEmpty())
+			return g1;
+		if (g1 == null || g1.isEmpty())
+			return g0;
+		var common = g0.getEnvelopeInternal().intersection(g1.getEnvelopeInternal());
+		
+		List<Geometry> output = new ArrayList<>();
+		List<Geometry> interacting0 = new ArrayList<>();
+		List<Geometry> interacting1 = new ArrayList<>();
+		splitInteracting(g0, common, interacting0, output);
+		splitInteracting(g1, common, interacting1, output);
+		
+		if (!interacting0.isEmpty() && !interacting1.isEmpty()) {
+			var union = factory.buildGeometry(interacting0).union(factory.buildGeometry(interacting1));
+			PolygonExtracter.getPolygons(union, output);
+		} else {
+			output.addAll(interacting0);
+			output.addAll(interacting1);
+		}
+		if (output.isEmpty())
+			return factory.createPolygon();
+		return factory.buildGeometry(output);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static void splitInteracting(Geometry geometry, Envelope envelope, List<Geometry> interacting, List<Geometry> disjoint) {
+		for (var polygon : (List<Geometry>)PolygonExtracter.getPolygons(geometry)) {
+			if (!envelope.isNull() && envelope.intersects(polygon.getEnvelopeInternal()))
+				interacting.add(polygon);
+			else
+				disjoint.add(polygon);
+		}
+	}
+	
+	
+	/**
+	 * Task to union the geometries in a rectangular block of grid cells.
+	 */
+	private static class UnionTask extends RecursiveTask<Geometry> {
+
+		private static final long serialVersionUID = 1L;
+		
+		private final List<Geometry>[] cells;
+		private final int nx;
+		private final int x0, y0, x1, y1;
+		private final GeometryFactory factory;
+		
+		private UnionTask(List<Geometry>[] cells, int nx, int x0, int y0, int x1, int y1, GeometryFactory factory) {
+			this.cells = cells;
+			this.nx = nx;
+			this.x0 = x0;
+			this.y0 = y0;
+			this.x1 = x1;
+			this.y1 = y1;
+			this.factory = factory;
+		}
+
+		@Override
+		protected Geometry compute() {
+			int w = x1 - x0;
+			int h = y1 - y0;
+			if (w == 1 && h == 1) {
+				var cell = cells[y0 * nx + x0];
+				if (cell == null || cell.isEmpty())
+					return null;
+				return UnaryUnionOp.union(cell);
+			}
+			UnionTask task0, task1;
+			if (w >= h) {
+				int xm = x0 + w / 2;
+				task0 = new UnionTask(cells, nx, x0, y0, xm, y1, factory);
+				task1 = new UnionTask(cells, nx, xm, y0, x1, y1, factory);
+			} else {
+				int ym = y0 + h / 2;
+				task0 = new UnionTask(cells, nx, x0, y0, x1, ym, factory);
+				task1 = new UnionTask(cells, nx, x0, ym, x1, y1, factory);
+			}
+			task1.fork();
+			var g0 = task0.compute();
+			var g1 = task1.join();
+			return unionInteracting(g0, g1, factory);
+		}
+		
+	}
+
+}
@@ -0,0 +1,329 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.roi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.stream.IntStream;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.Polygonal;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Topology-preserving simplification for large polygonal geometries.
+ * <p>
+ * Each ring is split into runs of consecutive vertices falling within the same spatial tile. 
+ * The runs within each tile are simplified together in parallel using a {@link TopologyPreservingSimplifier}, 
+ * while the vertices where a ring passes from one tile to the next are retained unchanged, so that 
+ * the simplified runs can be joined again without gaps. 
+ * If the joined result is not valid, the entire geometry is simplified in one step instead.
+ * <p>
+ * Simplified ROIs are cached by tolerance, so that repeated requests (e.g. when repainting) are fast.
+ * 
+ * @author Pete Bankhead
+ */
+class TiledSimplifier {
+	
+	private final static Logger logger = LoggerFactory.getLogger(TiledSimplifier.class);
+	
+	/**
+	 * Minimum number of vertices before a geometry is split into tiles.
+	 */
+	static final int MIN_TILED_VERTICES = 50_000;
+	
+	/**
+	 * Approximate number of vertices per tile.
+	 */
+	static final int VERTICES_PER_TILE = 20_000;
+	
+	/**
+	 * Maximum number of simplified versions cached for each ROI.
+	 */
+	private static final int MAX_CACHED_PER_ROI = 4;
+	
+	private static final Map<ROI, CachedSimplification[]> cache = Collections.synchronizedMap(new WeakHashMap<>());
+	
+	/**
+	 * Simplify a ROI, using a cached result if available.
+	 * @param roi the ROI to simplify
+	 * @param distanceTolerance the distance tolerance
+	 * @return the simplified ROI, or the original ROI if simplification does not reduce the number of vertices
+	 */
+	static ROI simplify(ROI roi, double distanceTolerance) {
+		if (distanceTolerance <= 0 || roi.isPoint() || roi instanceof RectangleROI || roi instanceof EllipseROI || roi instanceof LineROI)
+			return roi;
+		
+		var entries = cache.get(roi);
+		if (entries != null) {
+			synchronized (entries) {
+				for (var entry : entries) {
+					if (entry != null && entry.tolerance == distanceTolerance)
+						return entry.roi == null ? roi : entry.roi;
+				}
+			}
+		}
+		
+		var geometry = roi.getGeometry();
+		var simplified = simplifyGeometry(geometry, distanceTolerance);
+		ROI result = roi;
+		if (simplified.getNumPoints() < geometry.getNumPoints() && !simplified.isEmpty())
+			result = GeometryTools.geometryToROI(simplified, roi.getImagePlane());
+		
+		// Avoid storing the key in the map, since this would prevent it from being garbage collected
+		var entry = new CachedSimplification(distanceTolerance, result == roi ? null : result);
+		entries = cache.computeIfAbsent(roi, r -> new CachedSimplification[MAX_CACHED_PER_ROI]);
+		synchronized (entries) {
+			System.arraycopy(entries, 0, entries, 1, entries.length - 1);
+			entries[0] = entry;
+		}
+		return result;
+	}
+	
+	/**
+	 * Simplify a geometry, splitting polygonal geometries into tiles if they have many vertices.
+	 * @param geometry the geometry to simplify
+	 * @param distanceTolerance the distance tolerance
+	 * @return the simplified geometry
+	 */
+	static Geometry simplifyGeometry(Geometry geometry, double distanceTolerance) {
+		int nPoints = geometry.getNumPoints();
+		if (nPoints < MIN_TILED_VERTICES || !(geometry instanceof Polygonal))
+			return TopologyPreservingSimplifier.simplify(geometry, distanceTolerance);
+		
+		try {
+			var result = simplifyTiled(geometry, distanceTolerance);
+			if (result != null && result.isValid())
+				return result;
+			logger.debug("Tiled simplification gave an invalid result - will simplify the full geometry instead");
+		} catch (Exception e) {
+			logger.debug("Tiled simplification failed: " + e.getLocalizedMessage(), e);
+		}
+		return TopologyPreservingSimplifier.simplify(geometry, distanceTolerance);
+	}
+	
+	/**
+	 * Simplify a polygonal geometry by splitting its rings into tiles, without any fallback.
+	 * The result is not checked for validity.
+	 * @param geometry the polygonal geometry to simplify
+	 * @param distanceTolerance the distance tolerance
+	 * @return the simplified geometry
+	 * @throws IllegalStateException if the pieces in any tile could not be simplified consistently
+	 */
+	static Geometry simplifyTiled(Geometry geometry, double distanceTolerance) {
+		var factory = geometry.getFactory();
+		var env = geometry.getEnvelopeInternal();
+		
+		// Choose square tiles containing roughly the same number of vertices (assuming they are evenly spread)
+		int nPoints = geometry.getNumPoints();
+		int nTilesTarget = Math.max(1, nPoints / VERTICES_PER_TILE);
+		double tileSize = Math.sqrt(Math.max(env.getWidth(), 1) * Math.max(env.getHeight(), 1) / nTilesTarget);
+		tileSize = Math.max(tileSize, distanceTolerance * 20);
+		var tiling = new Tiling(env, tileSize);
+		
+		// Split all the rings into pieces
+		List<Polygon> polygons = new ArrayList<>();
+		List<RingPieces> rings = new ArrayList<>();
+		List<List<Piece>> tilePieces = new ArrayList<>();
+		for (int t = 0; t < tiling.nTiles(); t++)
+			tilePieces.add(new ArrayList<>());
+		for (int i = 0; i < geometry.getNumGeometries(); i++) {
+			var polygon = (Polygon)geometry.getGeometryN(i);
+			if (polygon.isEmpty())
+				continue;
+			polygons.add(polygon);
+			rings.add(splitRing(polygon.getExteriorRing(), tiling, tilePieces, factory));
+			for (int h = 0; h < polygon.getNumInteriorRing(); h++)
+				rings.add(splitRing(polygon.getInteriorRingN(h), tiling, tilePieces, factory));
+		}
+		
+		// Simplify all the pieces in each tile together, so that they cannot come to intersect one another
+		IntStream.range(0, tilePieces.size()).parallel().forEach(t -> {
+			var pieces = tilePieces.get(t);
+			if (pieces.isEmpty())
+				return;
+			var lines = new Geometry[pieces.size()];
+			for (int i = 0; i < lines.length; i++)
+				lines[i] = pieces.get(i).line;
+			var simplified = TopologyPreservingSimplifier.simplify(factory.createGeometryCollection(lines), distanceTolerance);
+			if (simplified.getNumGeometries() != lines.length)
+				throw new IllegalStateException("Unexpected number of simplified lines in tile " + t);
+			for (int i = 0; i < lines.length; i++)
+				pieces.get(i).simplified = simplified.getGeometryN(i).getCoordinates();
+		});
+		
+		// Join the simplified pieces
+		List<Polygon> output = new ArrayList<>();
+		int ringIndex = 0;
+		for (var polygon : polygons) {
+			var shell = rings.get(ringIndex++).join(factory);
+			List<LinearRing> holes = new ArrayList<>();
+			for (int h = 0; h < polygon.getNumInteriorRing(); h++) {
+				var hole = rings.get(ringIndex++).join(factory);
+				if (hole != null)
+					holes.add(hole);
+			}
+			if (shell != null)
+				output.add(factory.createPolygon(shell, holes.toArray(LinearRing[]::new)));
+		}
+		if (output.size() == 1)
+			return output.get(0);
+		return factory.createMultiPolygon(output.toArray(Polygon[]::new));
+	}
+	
+	/**
+	 * Split a ring into pieces of consecutive vertices within the same tile.
+	 * Each piece ends with the first vertex of the next piece.
+	 */
+	private static RingPieces splitRing(LineString ring, Tiling tiling, List<List<Piece>> tilePieces, GeometryFactory factory) {
+		var coords = ring.getCoordinates();
+		int n = coords.length - 1;
+		var ringPieces = new RingPieces();
+		
+		// Find a vertex where the ring passes into a new tile
+		int start = -1;
+		int tilePrevious = tiling.getTile(coords[n-1]);
+		for (int i = 0; i < n; i++) {
+			int tile = tiling.getTile(coords[i]);
+			if (tile != tilePrevious) {
+				start = i;
+				break;
+			}
+			tilePrevious = tile;
+		}
+		
+		// Keep the ring intact if it is entirely within one tile
+		if (start < 0) {
+			var piece = new Piece(factory.createLinearRing(coords));
+			tilePieces.get(tiling.getTile(coords[0])).add(piece);
+			ringPieces.pieces.add(piece);
+			return ringPieces;
+		}
+		
+		int pieceStart = start;
+		int pieceTile = tiling.getTile(coords[start]);
+		for (int k = 1; k <= n; k++) {
+			int i = (start + k) % n;
+			int tile = k == n ? -1 : tiling.getTile(coords[i]);
+			if (tile == pieceTile)
+				continue;
+			// Piece runs from pieceStart up to & including the vertex at i
+			int length = k - (pieceStart >= start ? pieceStart - start : pieceStart + n - start) + 1;
+			var pieceCoords = new Coordinate[length];
+			for (int j = 0; j < length; j++)
+				pieceCoords[j] = coords[(pieceStart + j) % n];
+			var piece = new Piece(factory.createLineString(pieceCoords));
+			tilePieces.get(pieceTile).add(piece);
+			ringPieces.pieces.add(piece);
+			pieceStart = i;
+			pieceTile = tile;
+		}
+		return ringPieces;
+	}
+	
+	
+	private static class Tiling {
+		
+		private final double minX, minY, tileSize;
+		private final int nx, ny;
+		
+		private Tiling(Envelope env, double tileSize) {
+			this.minX = env.getMinX();
+			this.minY = env.getMinY();
+			this.tileSize = tileSize;
+			this.nx = Math.max(1, (int)Math.ceil(env.getWidth() / tileSize));
+			this.ny = Math.max(1, (int)Math.ceil(env.getHeight() / tileSize));
+		}
+		
+		private int nTiles() {
+			return nx * ny;
+		}
+		
+		private int getTile(Coordinate c) {
+			int x = Math.min(nx - 1, (int)((c.x - minX) / tileSize));
+			int y = Math.min(ny - 1, (int)((c.y - minY) / tileSize));
+			return y * nx + x;
+		}
+		
+	}
+	
+	private static class Piece {
+		
+		private final LineString line;
+		private Coordinate[] simplified;
+		
+		private Piece(LineString line) {
+			this.line = line;
+		}
+		
+	}
+	
+	private static class RingPieces {
+		
+		private final List<Piece> pieces = new ArrayList<>();
+		
+		/**
+		 * Join the simplified pieces to create a ring.
+		 * @return the ring, or null if it has collapsed
+		 */
+		private LinearRing join(GeometryFactory factory) {
+			List<Coordinate> coords = new ArrayList<>();
+			for (var piece : pieces) {
+				var simplified = piece.simplified;
+				// Skip the first vertex of each piece after the first, since it duplicates the last vertex of the previous piece
+				for (int i = coords.isEmpty() ? 0 : 1; i < simplified.length; i++)
+					coords.add(simplified[i]);
+			}
+			if (coords.size() < 4)
+				return null;
+			return factory.createLinearRing(coords.toArray(Coordinate[]::new));
+		}
+		
+	}
+	
+	private static class CachedSimplification {
+		
+		private final double tolerance;
+		private final ROI roi;
+		
+		private CachedSimplification(double tolerance, ROI roi) {
+			this.tolerance = tolerance;
+			this.roi = roi;
+		}
+		
+	}
+
+}
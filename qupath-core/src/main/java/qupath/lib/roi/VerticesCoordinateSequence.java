@@ -0,0 +1,153 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.roi;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.CoordinateXY;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.PrecisionModel;
+import org.locationtech.jts.geom.impl.CoordinateArraySequence;
+
+/**
+ * Read-only {@link CoordinateSequence} that provides a view of {@link Vertices}, without copying the coordinates.
+ * <p>
+ * Optionally, the first vertex can be repeated at the end to form a closed ring, as required for a {@link org.locationtech.jts.geom.LinearRing}.
+ * Coordinates are made precise according to a {@link PrecisionModel} as they are requested.
+ * <p>
+ * Because the underlying vertices are immutable, {@link #setOrdinate(int, int, double)} is not supported; 
+ * {@link #copy()} should be used whenever a modifiable sequence is required.
+ * 
+ * @author Pete Bankhead
+ */
+class VerticesCoordinateSequence implements CoordinateSequence {
+	
+	private final Vertices vertices;
+	private final int size;
+	private final PrecisionModel precisionModel;
+	
+	/**
+	 * Constructor.
+	 * @param vertices the vertices to wrap
+	 * @param close if true, repeat the first vertex at the end of the sequence if it differs from the last
+	 * @param precisionModel the precision model used to round coordinates; may be null
+	 */
+	VerticesCoordinateSequence(Vertices vertices, boolean close, PrecisionModel precisionModel) {
+		this.vertices = vertices;
+		int n = vertices.size();
+		if (close && n > 0 && (vertices.getX(0) != vertices.getX(n-1) || vertices.getY(0) != vertices.getY(n-1)))
+			n++;
+		this.size = n;
+		this.precisionModel = precisionModel;
+	}
+	
+	private int vertexIndex(int index) {
+		return index == vertices.size() && size > index ? 0 : index;
+	}
+
+	@Override
+	public int getDimension() {
+		return 2;
+	}
+
+	@Override
+	public Coordinate getCoordinate(int i) {
+		return new CoordinateXY(getX(i), getY(i));
+	}
+
+	@Override
+	public Coordinate getCoordinateCopy(int i) {
+		return getCoordinate(i);
+	}
+
+	@Override
+	public void getCoordinate(int index, Coordinate coord) {
+		coord.x = getX(index);
+		coord.y = getY(index);
+	}
+
+	@Override
+	public double getX(int index) {
+		double x = vertices.getX(vertexIndex(index));
+		return precisionModel == null ? x : precisionModel.makePrecise(x);
+	}
+
+	@Override
+	public double getY(int index) {
+		double y = vertices.getY(vertexIndex(index));
+		return precisionModel == null ? y : precisionModel.makePrecise(y);
+	}
+
+	@Override
+	public double getOrdinate(int index, int ordinateIndex) {
+		switch (ordinateIndex) {
+		case CoordinateSequence.X:
+			return getX(index);
+		case CoordinateSequence.Y:
+			return getY(index);
+		default:
+			return Double.NaN;
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void setOrdinate(int index, int ordinateIndex, double value) {
+		throw new UnsupportedOperationException("Coordinate sequence is read-only - use copy() to create a modifiable sequence");
+	}
+
+	@Override
+	public Coordinate[] toCoordinateArray() {
+		var coords = new Coordinate[size];
+		for (int i = 0; i < size; i++)
+			coords[i] = getCoordinate(i);
+		return coords;
+	}
+
+	@Override
+	public Envelope expandEnvelope(Envelope env) {
+		for (int i = 0; i < size; i++)
+			env.expandToInclude(getX(i), getY(i));
+		return env;
+	}
+
+	@Override
+	@Deprecated
+	public Object clone() {
+		return copy();
+	}
+
+	@Override
+	public CoordinateSequence copy() {
+		return new CoordinateArraySequence(toCoordinateArray(), 2);
+	}
+	
+	@Override
+	public String toString() {
+		return "VerticesCoordinateSequence[" + size + "]";
+	}
+
+}
@@ -43,6 +43,10 @@ class VerticesFactory {
 		return new DefaultVertices(x, y, copyArrays);
 	}
 
+	public static Vertices createPackedVertices(final float[] x, final float[] y) {
+		return PackedVertices.create(x, y);
+	}
+
 	public static Vertices createVertices() {
 		return createVertices(DefaultVertices.DEFAULT_CAPACITY);
 	}
@@ -0,0 +1,117 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.analysis;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestDelaunayTools {
+	
+	private final static Logger logger = LoggerFactory.getLogger(TestDelaunayTools.class);
+	
+	@Test
+	public void test_tiledNeighbors() {
+		
+		var rand = new Random(100L);
+		int n = 5000;
+		double[] x = new double[n];
+		double[] y = new double[n];
+		int[] items = new int[n];
+		var pathObjects = new ArrayList<PathObject>();
+		for (int i = 0; i < n; i++) {
+			x[i] = Math.round(rand.nextDouble() * 2000 * 1000) / 1000.0;
+			y[i] = Math.round(rand.nextDouble() * 1000 * 1000) / 1000.0;
+			items[i] = i;
+			pathObjects.add(PathObjects.createDetectionObject(ROIs.createPointsROI(x[i], y[i], ImagePlane.getDefaultPlane())));
+		}
+		
+		long startTime = System.currentTimeMillis();
+		var subdivision = DelaunayTools.newBuilder(pathObjects).build();
+		var allNeighbors = subdivision.getAllNeighbors();
+		long endTime = System.currentTimeMillis();
+		logger.debug("Full triangulation neighbors: {} ms", endTime - startTime);
+		
+		// Use small tiles so that many seams need to be stitched
+		startTime = System.currentTimeMillis();
+		var graph = TiledDelaunayTriangulator.computeNeighbors(x, y, items, n, 0.001, 200);
+		endTime = System.currentTimeMillis();
+		logger.debug("Tiled triangulation neighbors: {} ms", endTime - startTime);
+		
+		assertEquals(n, graph.size());
+		for (int i = 0; i < n; i++) {
+			var expected = new HashSet<>(allNeighbors.get(pathObjects.get(i)));
+			var actual = new HashSet<PathObject>();
+			for (int k = 0; k < graph.getDegree(i); k++)
+				actual.add(pathObjects.get(graph.getNeighbor(i, k)));
+			assertEquals(expected, actual);
+		}
+		
+		// Tiled builder should give the same neighbors & clusters
+		var tiled = DelaunayTools.newBuilder(pathObjects).tiled(true).build();
+		assertEquals(allNeighbors, tiled.getAllNeighbors());
+		assertEquals(1, tiled.getClusters((p1, p2) -> true).size());
+		
+		// Clusters should never connect objects that fail the predicate
+		var clusters = subdivision.getClusters((p1, p2) -> p1.getROI().getCentroidX() < 1000 == p2.getROI().getCentroidX() < 1000);
+		assertTrue(clusters.size() >= 2);
+		int count = 0;
+		for (var cluster : clusters) {
+			count += cluster.size();
+			var first = cluster.iterator().next();
+			boolean left = first.getROI().getCentroidX() < 1000;
+			assertTrue(cluster.stream().allMatch(p -> p.getROI().getCentroidX() < 1000 == left));
+		}
+		assertEquals(n, count);
+	}
+	
+	@Test
+	public void test_neighborGraph() {
+		// Duplicate edges & self-loops should be dropped, neighbors sorted by distance
+		var graph = NeighborGraph.fromEdges(4,
+				new int[] {0, 0, 1, 0, 2},
+				new int[] {1, 2, 0, 0, 3},
+				new double[] {2.0, 1.0, 2.0, 0.0, 5.0},
+				5);
+		assertEquals(4, graph.size());
+		assertEquals(3, graph.getEdgeCount());
+		assertEquals(2, graph.getDegree(0));
+		assertEquals(2, graph.getNeighbor(0, 0));
+		assertEquals(1, graph.getNeighbor(0, 1));
+		assertEquals(1, graph.getDegree(1));
+		assertEquals(2, graph.getDegree(2));
+		assertEquals(1, graph.getDegree(3));
+	}
+
+}
@@ -26,16 +26,27 @@ package qupath.lib.analysis;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
 
 import org.junit.jupiter.api.Test;
+import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Location;
+import org.locationtech.jts.geom.util.GeometryCombiner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import qupath.lib.objects.PathObjects;
 import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryTools;
 import qupath.lib.roi.ROIs;
 
 @SuppressWarnings("javadoc")
 public class TestDistanceTools {
 	
+	private final static Logger logger = LoggerFactory.getLogger(TestDistanceTools.class);
+	
 	@Test
 	public void test_centroidToBoundsDistance2D() {
 		
@@ -73,4 +84,68 @@ public class TestDistanceTools {
 		assertTrue(Double.isNaN(detection.getMeasurementList().getMeasurementValue("Distance 4")));
 	}
 	
+	@Test
+	public void test_boundaryDistanceIndex() {
+		
+		// Create an irregular 'tumor' annotation with many vertices, plus a line & some points
+		var random = new Random(100L);
+		int nVertices = 2000;
+		var coords = new Coordinate[nVertices+1];
+		for (int i = 0; i < nVertices; i++) {
+			double theta = 2 * Math.PI * i / nVertices;
+			double radius = 2000 + 200 * Math.sin(theta * 7) + random.nextDouble() * 20;
+			coords[i] = new Coordinate(5000 + Math.cos(theta) * radius, 5000 + Math.sin(theta) * radius);
+		}
+		coords[nVertices] = coords[0];
+		var factory = GeometryTools.getDefaultFactory();
+		var tumor = factory.createPolygon(coords);
+		var line = factory.createLineString(new Coordinate[] {new Coordinate(100, 100), new Coordinate(1000, 300)});
+		var points = factory.createMultiPointFromCoords(new Coordinate[] {new Coordinate(9000, 9000), new Coordinate(9000, 200)});
+		var geometries = Arrays.asList(tumor, line, points);
+		var combined = GeometryCombiner.combine(geometries);
+		
+		int n = 20_000;
+		double[] x = new double[n];
+		double[] y = new double[n];
+		for (int i = 0; i < n; i++) {
+			x[i] = random.nextDouble() * 10000;
+			y[i] = random.nextDouble() * 10000;
+		}
+		
+		long startTime = System.currentTimeMillis();
+		var locator = new IndexedPointInAreaLocator(tumor);
+		double[] expected = new double[n];
+		for (int i = 0; i < n; i++) {
+			var coord = new Coordinate(x[i], y[i]);
+			expected[i] = locator.locate(coord) == Location.EXTERIOR ? DistanceTools.computeDistance(coord, combined, null) : 0;
+		}
+		long endTime = System.currentTimeMillis();
+		long timeDefault = endTime - startTime;
+		
+		startTime = System.currentTimeMillis();
+		var index = BoundaryDistanceIndex.create(geometries);
+		double[] distances = index.getDistances(x, y);
+		endTime = System.currentTimeMillis();
+		long timeIndex = endTime - startTime;
+		
+		startTime = System.currentTimeMillis();
+		double resolution = 4.0;
+		var approx = BoundaryDistanceIndex.create(geometries, resolution);
+		double[] distancesApprox = approx.getDistances(x, y);
+		endTime = System.currentTimeMillis();
+		long timeApprox = endTime - startTime;
+		
+		logger.info("Distances for {} points: {} ms (geometry), {} ms (segment index), {} ms (distance transform)",
+				n, timeDefault, timeIndex, timeApprox);
+		
+		assertFalse(index.isApproximate());
+		assertTrue(approx.isApproximate());
+		for (int i = 0; i < n; i++) {
+			assertEquals(expected[i], distances[i], 1e-6);
+			assertEquals(expected[i], distancesApprox[i], resolution);
+		}
+		
+		assertEquals(Double.POSITIVE_INFINITY, BoundaryDistanceIndex.create(Collections.emptyList()).getDistance(0, 0));
+	}
+	
 }
@@ -0,0 +1,163 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.analysis;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.analysis.PathObjectNeighborGraph.GraphType;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestNeighborGraph {
+	
+	@Test
+	public void test_nearestNeighbors() {
+		var rand = new Random(1L);
+		int n = 2000;
+		double[] x = new double[n];
+		double[] y = new double[n];
+		for (int i = 0; i < n; i++) {
+			x[i] = rand.nextDouble() * 1000;
+			// Use an uneven distribution
+			y[i] = i % 3 == 0 ? rand.nextDouble() * 10 : rand.nextDouble() * 1000;
+		}
+		
+		int k = 5;
+		var graph = NeighborGraph.fromNearestNeighbors(x, y, k);
+		assertEquals(n, graph.size());
+		for (int i = 0; i < n; i++) {
+			double[] dist = bruteForceDistances(x, y, i);
+			// The k nearest neighbors must always be included, although there may be more
+			assertTrue(graph.getDegree(i) >= k);
+			for (int j = 0; j < k; j++)
+				assertEquals(dist[j], graph.getNeighborDistance(i, j), 1e-3);
+			// Neighbors should be sorted by distance
+			for (int j = 1; j < graph.getDegree(i); j++)
+				assertTrue(graph.getNeighborDistance(i, j) >= graph.getNeighborDistance(i, j-1));
+		}
+	}
+	
+	@Test
+	public void test_distance() {
+		var rand = new Random(2L);
+		int n = 2000;
+		double[] x = new double[n];
+		double[] y = new double[n];
+		for (int i = 0; i < n; i++) {
+			x[i] = rand.nextDouble() * 1000;
+			y[i] = rand.nextDouble() * 500;
+		}
+		
+		double maxDistance = 40;
+		var graph = NeighborGraph.fromDistance(x, y, maxDistance);
+		for (int i = 0; i < n; i++) {
+			double[] dist = bruteForceDistances(x, y, i);
+			long count = Arrays.stream(dist).filter(d -> d <= maxDistance).count();
+			assertEquals(count, graph.getDegree(i));
+		}
+		
+		// Filtering should match a graph created with a smaller distance
+		var filtered = graph.filterByDistance(20);
+		var graph2 = NeighborGraph.fromDistance(x, y, 20);
+		assertEquals(graph2.getEdgeCount(), filtered.getEdgeCount());
+		for (int i = 0; i < n; i++)
+			assertArrayEquals(graph2.getNeighbors(i), filtered.getNeighbors(i));
+		
+		// Aggregation
+		double[] values = new double[n];
+		for (int i = 0; i < n; i++)
+			values[i] = i % 2 == 0 ? 1.0 : Double.NaN;
+		int[] counts = graph.countNeighbors(i -> i % 2 == 0);
+		double[] sums = graph.sumNeighbors(values);
+		double[] means = graph.meanNeighbors(values);
+		for (int i = 0; i < n; i++) {
+			assertEquals(counts[i], sums[i], 1e-6);
+			if (counts[i] == 0)
+				assertTrue(Double.isNaN(means[i]));
+			else
+				assertEquals(1.0, means[i], 1e-6);
+		}
+	}
+	
+	@Test
+	public void test_cachedDetectionGraph() {
+		var hierarchy = new PathObjectHierarchy();
+		var rand = new Random(3L);
+		var pathClass = PathClassFactory.getPathClass("Tumor");
+		var detections = new ArrayList<PathObject>();
+		for (int i = 0; i < 1000; i++) {
+			var roi = ROIs.createEllipseROI(rand.nextDouble() * 1000, rand.nextDouble() * 1000, 5, 5, ImagePlane.getDefaultPlane());
+			detections.add(PathObjects.createDetectionObject(roi, i % 4 == 0 ? pathClass : null));
+		}
+		hierarchy.addPathObjects(detections);
+		
+		for (var type : GraphType.values()) {
+			double param = type == GraphType.NEAREST_NEIGHBORS ? 4 : 50;
+			var graph = PathObjectNeighborGraph.getDetectionGraph(hierarchy, ImagePlane.getDefaultPlane(), null, type, param);
+			assertEquals(detections.size(), graph.getPathObjects().size());
+			assertSame(graph, PathObjectNeighborGraph.getDetectionGraph(hierarchy, ImagePlane.getDefaultPlane(), null, type, param));
+			
+			int[] counts = graph.countNeighbors(p -> p.getPathClass() == pathClass);
+			for (int i = 0; i < counts.length; i++) {
+				var pathObject = graph.getPathObjects().get(i);
+				assertEquals(i, graph.indexOf(pathObject));
+				long expected = graph.getNeighbors(pathObject).stream().filter(p -> p.getPathClass() == pathClass).count();
+				assertEquals(expected, counts[i]);
+			}
+			// Measurements shouldn't invalidate the cache
+			graph.putMeasurements("Tumor neighbors", counts);
+			hierarchy.fireObjectMeasurementsChangedEvent(this, graph.getPathObjects());
+			assertSame(graph, PathObjectNeighborGraph.getDetectionGraph(hierarchy, ImagePlane.getDefaultPlane(), null, type, param));
+		}
+		
+		// Changing objects should invalidate the cache
+		var graph = PathObjectNeighborGraph.getDetectionGraph(hierarchy, ImagePlane.getDefaultPlane(), null, GraphType.DELAUNAY, 50);
+		hierarchy.removeObject(detections.get(0), false);
+		var graph2 = PathObjectNeighborGraph.getDetectionGraph(hierarchy, ImagePlane.getDefaultPlane(), null, GraphType.DELAUNAY, 50);
+		assertNotSame(graph, graph2);
+		assertEquals(detections.size() - 1, graph2.getPathObjects().size());
+		assertEquals(-1, graph2.indexOf(detections.get(0)));
+	}
+	
+	private static double[] bruteForceDistances(double[] x, double[] y, int ind) {
+		double[] dist = new double[x.length - 1];
+		int k = 0;
+		for (int j = 0; j < x.length; j++) {
+			if (j != ind)
+				dist[k++] = Math.sqrt((x[j] - x[ind]) * (x[j] - x[ind]) + (y[j] - y[ind]) * (y[j] - y[ind]));
+		}
+		Arrays.sort(dist);
+		return dist;
+	}
+
+}
@@ -0,0 +1,117 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.objects;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Geometry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestCellTools {
+	
+	private final static Logger logger = LoggerFactory.getLogger(TestCellTools.class);
+	
+	@Test
+	public void test_detectionsToCells() {
+		
+		var rand = new Random(1L);
+		var detections = new ArrayList<PathObject>();
+		// Densely-packed nuclei, with some gaps
+		for (int y = 0; y < 30; y++) {
+			for (int x = 0; x < 30; x++) {
+				if (rand.nextDouble() < 0.1)
+					continue;
+				double w = 4 + rand.nextDouble() * 4;
+				double h = 4 + rand.nextDouble() * 4;
+				var roi = ROIs.createEllipseROI(x * 12 + rand.nextDouble() * 4, y * 12 + rand.nextDouble() * 4, w, h, ImagePlane.getDefaultPlane());
+				detections.add(PathObjects.createDetectionObject(roi));
+			}
+		}
+		assertTrue(detections.size() > 500);
+		
+		double distance = 8.0;
+		long startTime = System.currentTimeMillis();
+		var cells = CellTools.detectionsToCells(detections, distance, -1);
+		long endTime = System.currentTimeMillis();
+		logger.debug("Raster cells: {} ms", endTime - startTime);
+		
+		var map = new LinkedHashMap<PathObject, Geometry>();
+		for (var detection : detections)
+			map.put(detection, CellTools.estimateCellBoundary(detection.getROI().getGeometry(), distance, -1));
+		startTime = System.currentTimeMillis();
+		var cellsTriangulated = CellTools.detectionsToCells(map.keySet(), map.keySet(), map);
+		endTime = System.currentTimeMillis();
+		logger.debug("Triangulated cells: {} ms", endTime - startTime);
+		
+		assertEquals(detections.size(), cells.size());
+		assertEquals(detections.size(), cellsTriangulated.size());
+		
+		// Cells should be non-overlapping, contain their nuclei, and be similar to those computed with a triangulation
+		var union = GeometryTools.union(cells.stream().map(c -> c.getROI().getGeometry()).collect(Collectors.toList()));
+		double totalArea = 0;
+		double totalIoU = 0;
+		for (var cell : cells) {
+			assertTrue(cell.isCell());
+			var geomCell = cell.getROI().getGeometry();
+			var geomNucleus = ((PathCellObject)cell).getNucleusROI().getGeometry();
+			assertEquals(geomNucleus.getArea(), geomCell.intersection(geomNucleus).getArea(), geomNucleus.getArea() * 0.02);
+			
+			var geomExpected = findClosestCell(cellsTriangulated, cell).getROI().getGeometry();
+			double iou = geomCell.intersection(geomExpected).getArea() / geomCell.union(geomExpected).getArea();
+			assertTrue(iou > 0.75, "Intersection over union " + iou + " is too low");
+			totalIoU += iou;
+			totalArea += geomCell.getArea();
+		}
+		assertTrue(totalIoU / cells.size() > 0.9);
+		// Total area equals the area of the union (within simplification tolerance) only if cells don't overlap
+		assertEquals(union.getArea(), totalArea, totalArea * 0.02);
+	}
+	
+	private static PathObject findClosestCell(Collection<PathObject> cells, PathObject cell) {
+		var roi = ((PathCellObject)cell).getNucleusROI();
+		PathObject closest = null;
+		double minDist = Double.POSITIVE_INFINITY;
+		for (var other : cells) {
+			var roiOther = ((PathCellObject)other).getNucleusROI();
+			double dist = Math.hypot(roi.getCentroidX() - roiOther.getCentroidX(), roi.getCentroidY() - roiOther.getCentroidY());
+			if (dist < minDist) {
+				minDist = dist;
+				closest = other;
+			}
+		}
+		return closest;
+	}
+
+}
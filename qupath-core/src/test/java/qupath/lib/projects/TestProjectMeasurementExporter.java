@@ -0,0 +1,184 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.projects;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.plugins.SimpleProgressMonitor;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestProjectMeasurementExporter {
+	
+	@Test
+	public void test_export() throws Exception {
+		// Images with different (overlapping) measurements
+		var entry1 = createEntry("Image 1", 3, "A", "B");
+		var entry2 = createEntry("Image 2", 2, "B", "C");
+		var entry3 = createEntry("Image 3", 0);
+		
+		var bytes = new ByteArrayOutputStream();
+		new ProjectMeasurementExporter(Arrays.asList(entry1, entry2, entry3))
+			.exportType(PathDetectionObject.class)
+			.parallelism(2)
+			.exportMeasurements(bytes);
+		
+		var lines = new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\\R");
+		assertEquals(6, lines.length);
+		var header = Arrays.asList(lines[0].split("\t", -1));
+		assertEquals("Image", header.get(0));
+		assertEquals(List.of("A", "B", "C"), header.subList(header.size()-3, header.size()));
+		int colA = header.indexOf("A");
+		int colC = header.indexOf("C");
+		
+		// Rows are in image order, with blanks for missing measurements
+		for (int i = 1; i < lines.length; i++) {
+			var row = lines[i].split("\t", -1);
+			assertEquals(header.size(), row.length);
+			if (i <= 3) {
+				assertEquals("Image 1", row[0]);
+				assertEquals(Integer.toString(i-1), row[colA]);
+				assertEquals("", row[colC]);
+			} else {
+				assertEquals("Image 2", row[0]);
+				assertEquals("", row[colA]);
+				assertEquals(Integer.toString(i-4), row[colC]);
+			}
+		}
+		
+		// Check column filtering
+		bytes.reset();
+		new ProjectMeasurementExporter(Arrays.asList(entry1, entry2))
+			.exportType(PathDetectionObject.class)
+			.includeOnlyColumns("Image", "B")
+			.exportMeasurements(bytes);
+		lines = new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\\R");
+		assertEquals("Image\tB", lines[0]);
+		assertEquals(6, lines.length);
+	}
+	
+	@Test
+	public void test_longStrings() throws Exception {
+		// Strings exceeding 65535 bytes in modified UTF-8 should be exported intact
+		String name = "\u00e9".repeat(40_000);
+		var bytes = new ByteArrayOutputStream();
+		new ProjectMeasurementExporter(List.of(createEntry(name, 2, "A")))
+			.exportType(PathDetectionObject.class)
+			.exportMeasurements(bytes);
+		var lines = new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\\R");
+		assertEquals(3, lines.length);
+		assertEquals(name, lines[1].split("\t", -1)[0]);
+		assertEquals(name, lines[2].split("\t", -1)[0]);
+	}
+	
+	@Test
+	public void test_cancel() {
+		var entries = new ArrayList<ProjectImageEntry<?>>();
+		for (int i = 0; i < 10; i++)
+			entries.add(createEntry("Image " + i, 5, "A"));
+		var monitor = new CancellingMonitor();
+		var exporter = new ProjectMeasurementExporter(entries)
+				.exportType(PathDetectionObject.class)
+				.parallelism(1)
+				.progressMonitor(monitor);
+		assertThrows(InterruptedIOException.class, () -> exporter.exportMeasurements(new ByteArrayOutputStream()));
+		assertTrue(monitor.started);
+		assertFalse(monitor.completed);
+	}
+	
+	
+	/**
+	 * Create an entry where only the image name & hierarchy are available.
+	 */
+	private static ProjectImageEntry<?> createEntry(String name, int nDetections, String... measurements) {
+		var hierarchy = new PathObjectHierarchy();
+		for (int i = 0; i < nDetections; i++) {
+			var detection = PathObjects.createDetectionObject(ROIs.createRectangleROI(i * 10, 0, 5, 5, ImagePlane.getDefaultPlane()));
+			for (var m : measurements)
+				detection.getMeasurementList().putMeasurement(m, i);
+			hierarchy.addPathObject(detection);
+		}
+		return (ProjectImageEntry<?>)Proxy.newProxyInstance(
+				ProjectImageEntry.class.getClassLoader(),
+				new Class<?>[] {ProjectImageEntry.class},
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getImageName":
+						return name;
+					case "readHierarchy":
+						return hierarchy;
+					case "toString":
+						return name;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+	
+	private static class CancellingMonitor implements SimpleProgressMonitor {
+		
+		private boolean started = false;
+		private boolean completed = false;
+		private int progress = 0;
+
+		@Override
+		public void startMonitoring(String message, int maxProgress, boolean mayCancel) {
+			started = true;
+		}
+
+		@Override
+		public synchronized void updateProgress(int increment, String message, ImageRegion region) {
+			progress += increment;
+		}
+
+		@Override
+		public void pluginCompleted(String message) {
+			completed = true;
+		}
+
+		@Override
+		public synchronized boolean cancelled() {
+			return progress >= 2;
+		}
+		
+	}
+
+}
@@ -0,0 +1,86 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.roi;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Location;
+
+/**
+ * Test {@link BatchPointInAreaLocator}.
+ */
+@SuppressWarnings("javadoc")
+public class TestBatchPointInAreaLocator {
+	
+	@Test
+	public void test_compareToJts() {
+		var factory = GeometryTools.getDefaultFactory();
+		var rand = new Random(10L);
+		
+		// Create overlapping & separate circles, then subtract some smaller circles to create holes
+		List<Geometry> circles = new ArrayList<>();
+		for (int i = 0; i < 20; i++)
+			circles.add(factory.createPoint(new Coordinate(rand.nextDouble() * 1000, rand.nextDouble() * 1000)).buffer(20 + rand.nextDouble() * 80));
+		var geometry = GeometryTools.union(circles);
+		for (int i = 0; i < 20; i++)
+			geometry = geometry.difference(factory.createPoint(new Coordinate(rand.nextDouble() * 1000, rand.nextDouble() * 1000)).buffer(5 + rand.nextDouble() * 20));
+		assertTrue(geometry.getNumGeometries() > 1);
+		
+		var locator = BatchPointInAreaLocator.create(geometry);
+		var jtsLocator = new IndexedPointInAreaLocator(geometry);
+		
+		int n = 100_000;
+		double[] x = new double[n];
+		double[] y = new double[n];
+		for (int i = 0; i < n; i++) {
+			x[i] = rand.nextDouble() * 1200 - 100;
+			y[i] = rand.nextDouble() * 1200 - 100;
+		}
+		boolean[] contains = locator.contains(x, y);
+		for (int i = 0; i < n; i++) {
+			boolean expected = jtsLocator.locate(new Coordinate(x[i], y[i])) != Location.EXTERIOR;
+			assertEquals(expected, contains[i]);
+			assertEquals(expected, locator.contains(x[i], y[i]));
+		}
+		
+		// Vertices are on the boundary, and so should be included
+		for (var c : geometry.getCoordinates())
+			assertTrue(locator.contains(c.x, c.y));
+		
+		assertFalse(locator.contains(Double.NaN, 500));
+		assertThrows(IllegalArgumentException.class, () -> locator.contains(new double[2], new double[3]));
+		assertThrows(IllegalArgumentException.class, () -> BatchPointInAreaLocator.create(factory.createPoint(new Coordinate(1, 2))));
+	}
+
+}
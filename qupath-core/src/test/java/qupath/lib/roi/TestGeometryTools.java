@@ -33,12 +33,17 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 import java.util.stream.Collectors;
 
 import org.junit.jupiter.api.Test;
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.Polygon;
 import org.locationtech.jts.geom.util.AffineTransformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 
@@ -47,6 +52,8 @@ import qupath.lib.objects.hierarchy.PathObjectHierarchy;
  */
 public class TestGeometryTools {
 	
+	private final static Logger logger = LoggerFactory.getLogger(TestGeometryTools.class);
+	
 	/**
 	 * Compare conversion of {@link AffineTransform} and {@link AffineTransformation} objects.
 	 */
@@ -134,5 +141,45 @@ public class TestGeometryTools {
 		
 	}
 	
+	/**
+	 * Compare the tiled union with the sequential union, logging the time taken by each.
+	 */
+	@Test
+	public void testTiledUnion() {
+		var rand = new Random(100L);
+		List<Geometry> geometries = new ArrayList<>();
+		// Overlapping tiles of different sizes, with some gaps
+		for (int y = 0; y < 50; y++) {
+			for (int x = 0; x < 50; x++) {
+				if (rand.nextDouble() < 0.1)
+					continue;
+				double size = 20 + rand.nextDouble() * 10;
+				var geometry = GeometryTools.createRectangle(x * 20 + rand.nextDouble() * 5, y * 20 + rand.nextDouble() * 5, size, size);
+				if (rand.nextBoolean())
+					geometry = geometry.buffer(2.0);
+				geometries.add(geometry);
+			}
+		}
+		assertTrue(TiledGeometryUnion.isSuitable(geometries));
+		
+		long startTime = System.currentTimeMillis();
+		var sequential = GeometryTools.unionSequential(geometries);
+		long sequentialTime = System.currentTimeMillis() - startTime;
+		
+		startTime = System.currentTimeMillis();
+		var tiled = TiledGeometryUnion.union(geometries);
+		long tiledTime = System.currentTimeMillis() - startTime;
+		
+		logger.info("Union of {} geometries: sequential {} ms, tiled {} ms", geometries.size(), sequentialTime, tiledTime);
+		
+		assertTrue(tiled.isValid());
+		double area = sequential.getArea();
+		assertEquals(area, tiled.getArea(), area * 1e-9);
+		assertEquals(0.0, sequential.symDifference(tiled).getArea(), area * 1e-9);
+		assertEquals(sequential.getNumGeometries(), tiled.getNumGeometries());
+		
+		// Result should be deterministic
+		assertTrue(tiled.equalsExact(TiledGeometryUnion.union(geometries)));
+	}
 
-}
\ No newline at end of file
+}
@@ -32,6 +32,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.nio.file.Files;
 import java.util.List;
+import java.util.Random;
 import java.util.stream.Collectors;
 
 import org.junit.jupiter.api.Test;
@@ -258,4 +259,54 @@ public class TestROIs {
 		}
 	}
 
+	
+	/**
+	 * Check packed vertices store coordinates losslessly, and that polygon geometries created from a view of them 
+	 * match those from the default conversion.
+	 */
+	@Test
+	public void testPackedVertices() {
+		var random = new Random(100L);
+		int n = 100;
+		float[] xGrid = new float[n];
+		float[] yGrid = new float[n];
+		float[] xAny = new float[n];
+		float[] yAny = new float[n];
+		for (int i = 0; i < n; i++) {
+			double theta = 2 * Math.PI * i / n;
+			double radius = 20 + random.nextDouble() * 5;
+			xGrid[i] = (float)(Math.round((1000 + Math.cos(theta) * radius) * 2) / 2.0);
+			yGrid[i] = (float)(Math.round((2000 + Math.sin(theta) * radius) * 2) / 2.0);
+			xAny[i] = (float)(1000 + Math.cos(theta) * radius);
+			yAny[i] = (float)(2000 + Math.sin(theta) * radius);
+		}
+		var packedGrid = PackedVertices.create(xGrid, yGrid);
+		assertTrue(packedGrid.isOffsetEncoded());
+		assertArrayEquals(xGrid, packedGrid.getX(null));
+		assertArrayEquals(yGrid, packedGrid.getY(null));
+		
+		var packedAny = PackedVertices.create(xAny, yAny);
+		assertFalse(packedAny.isOffsetEncoded());
+		assertArrayEquals(xAny, packedAny.getX(null));
+		assertArrayEquals(yAny, packedAny.getY(null));
+		
+		for (var points : List.of(packedGrid.getPoints(), packedAny.getPoints())) {
+			var roi = ROIs.createPolygonROI(points, ImagePlane.getDefaultPlane());
+			var geometry = roi.getGeometry();
+			var geometryDefault = GeometryTools.roiToGeometry(roi);
+			assertTrue(geometry.isValid());
+			assertEquals(geometryDefault.getArea(), geometry.getArea(), 0.01);
+			assertEquals(roi.getArea(), geometry.getArea(), 0.01);
+			assertTrue(geometry.equalsExact(geometry.copy()));
+			assertTrue(geometry.equalsExact(((PolygonROI)roi).getGeometryView()));
+			// Geometries returned by getGeometry() should be modifiable
+			geometry.normalize();
+			assertEquals(roi.getArea(), geometry.getArea(), 0.01);
+		}
+		
+		// Self-intersecting polygons should still give a valid geometry
+		var bowtie = ROIs.createPolygonROI(new double[] {0, 10, 10, 0}, new double[] {0, 10, 0, 10}, ImagePlane.getDefaultPlane());
+		assertTrue(bowtie.getGeometry().isValid());
+	}
+
 }
\ No newline at end of file
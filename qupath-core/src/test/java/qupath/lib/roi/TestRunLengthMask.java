@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+
+package qupath.lib.roi;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Polygon;
+
+/**
+ * Test {@link RunLengthMask}.
+ */
+@SuppressWarnings("javadoc")
+public class TestRunLengthMask {
+	
+	@Test
+	public void test_rectangles() {
+		var mask = new RunLengthMask(1.0);
+		assertTrue(mask.isEmpty());
+		assertTrue(mask.toGeometry().isEmpty());
+		
+		var rectangle = GeometryTools.createRectangle(10, 20, 30, 40);
+		assertTrue(mask.add(rectangle));
+		assertFalse(mask.add(rectangle));
+		assertEquals(1200, mask.getPixelCount());
+		assertTrue(mask.contains(15, 25));
+		assertFalse(mask.contains(5, 25));
+		assertEquals(0, mask.toGeometry().symDifference(rectangle).getArea(), 1e-6);
+		
+		// Subtracting from the middle should create a hole
+		assertFalse(mask.subtract(GeometryTools.createRectangle(100, 100, 10, 10)));
+		assertTrue(mask.subtract(GeometryTools.createRectangle(20, 30, 10, 10)));
+		var geometry = mask.toGeometry();
+		assertTrue(geometry instanceof Polygon);
+		assertEquals(1, ((Polygon)geometry).getNumInteriorRing());
+		assertEquals(1100, geometry.getArea(), 1e-6);
+		
+		// The shape used for display should match, without needing to be traced
+		var shape = mask.toShape();
+		assertEquals(geometry.getEnvelopeInternal().getWidth(), shape.getBounds2D().getWidth(), 1e-6);
+		assertEquals(geometry.getEnvelopeInternal().getHeight(), shape.getBounds2D().getHeight(), 1e-6);
+		assertTrue(shape.contains(15, 25));
+		assertFalse(shape.contains(25, 35));
+		
+		// Subtracting everything should give an empty mask
+		assertTrue(mask.subtract(GeometryTools.createRectangle(0, 0, 100, 100)));
+		assertTrue(mask.isEmpty());
+		assertTrue(mask.toGeometry().isEmpty());
+		
+		assertThrows(IllegalArgumentException.class, () -> new RunLengthMask(0));
+		assertThrows(IllegalArgumentException.class, () -> new RunLengthMask(Double.NaN));
+	}
+	
+	@Test
+	public void test_diagonalPixels() {
+		// Pixels touching only at corners form separate polygons, which must still be valid
+		var mask = new RunLengthMask(2.0);
+		List<Geometry> squares = new ArrayList<>();
+		for (int i = 0; i < 5; i++)
+			squares.add(GeometryTools.createRectangle(i * 2, i * 2, 2, 2));
+		for (var square : squares)
+			mask.add(square);
+		// Add a checkerboard enclosed by a frame, so that rings touch themselves
+		mask.add(GeometryTools.createRectangle(20, 20, 20, 20));
+		mask.subtract(GeometryTools.createRectangle(22, 22, 16, 16));
+		for (int y = 22; y < 38; y += 2) {
+			for (int x = 22 + (y % 4); x < 38; x += 4)
+				mask.add(GeometryTools.createRectangle(x, y, 2, 2));
+		}
+		var geometry = mask.toGeometry();
+		assertTrue(geometry.isValid());
+		assertEquals(mask.getPixelCount() * 4, geometry.getArea(), 1e-6);
+	}
+	
+	@Test
+	public void test_compareToJts() {
+		var factory = GeometryTools.getDefaultFactory();
+		double downsample = 2.0;
+		
+		var circle = factory.createPoint(new Coordinate(200, 200)).buffer(150);
+		var mask = RunLengthMask.create(circle, downsample);
+		
+		// Paint & erase using strokes, as the brush tool would
+		var expected = circle;
+		for (int i = 0; i < 20; i++) {
+			var stroke = factory.createLineString(new Coordinate[] {
+					new Coordinate(i * 20, 0), new Coordinate(400 - i * 10, 400)
+			}).buffer(5 + i);
+			if (i % 3 == 0) {
+				mask.subtract(stroke);
+				expected = expected.difference(stroke);
+			} else {
+				mask.add(stroke);
+				expected = expected.union(stroke);
+			}
+		}
+		var geometry = mask.toGeometry();
+		assertTrue(geometry.isValid());
+		assertEquals(mask.getPixelCount() * downsample * downsample, geometry.getArea(), 1e-6);
+		
+		// Differences should only occur close to the boundary
+		double tolerance = expected.getLength() * downsample;
+		assertTrue(geometry.symDifference(expected).getArea() < tolerance);
+	}
+	
+}
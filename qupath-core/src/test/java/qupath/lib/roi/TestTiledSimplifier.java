@@ -0,0 +1,94 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.roi;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
+
+import qupath.lib.regions.ImagePlane;
+
+/**
+ * Test {@link TiledSimplifier}.
+ */
+@SuppressWarnings("javadoc")
+public class TestTiledSimplifier {
+	
+	@Test
+	public void test_tiledSimplification() {
+		var factory = GeometryTools.getDefaultFactory();
+		var rand = new Random(42L);
+		// Jagged ring with enough vertices to require tiling, containing a jagged hole (both star-shaped, so always simple)
+		var shell = createJaggedRing(5000, 5000, 4000, 200_000, rand);
+		var hole = createJaggedRing(5000, 5000, 1000, 50_000, rand);
+		var geometry = factory.createPolygon(shell, new LinearRing[] {hole});
+		assertTrue(geometry.isValid());
+		assertTrue(geometry.getNumPoints() > TiledSimplifier.MIN_TILED_VERTICES);
+		
+		double tolerance = 2.0;
+		// Use the tiled path directly, so that the test cannot pass because of the fallback
+		Geometry simplified = TiledSimplifier.simplifyTiled(geometry, tolerance);
+		assertNotNull(simplified);
+		assertTrue(simplified.isValid());
+		assertEquals(1, simplified.getNumGeometries());
+		assertTrue(simplified.getNumPoints() < geometry.getNumPoints() / 10);
+		assertEquals(geometry.getArea(), simplified.getArea(), geometry.getArea() * 0.005);
+		assertTrue(geometry.symDifference(simplified).getArea() < geometry.getLength() * tolerance);
+		
+		// Retaining vertices at tile boundaries should only slightly increase the number of vertices
+		var simplifiedFull = TopologyPreservingSimplifier.simplify(geometry, tolerance);
+		assertTrue(simplified.getNumPoints() < simplifiedFull.getNumPoints() * 2);
+		
+		// Since the tiled result is valid, it should be used without falling back
+		assertTrue(simplified.equalsExact(TiledSimplifier.simplifyGeometry(geometry, tolerance)));
+		
+		// ROIs are cached by tolerance
+		var roi = GeometryTools.geometryToROI(geometry, ImagePlane.getDefaultPlane());
+		var roiSimplified = RoiTools.simplify(roi, tolerance);
+		assertTrue(roiSimplified.getNumPoints() < roi.getNumPoints());
+		assertSame(roiSimplified, RoiTools.simplify(roi, tolerance));
+		assertTrue(RoiTools.simplify(roi, tolerance * 2).getNumPoints() < roiSimplified.getNumPoints());
+		assertSame(roi, RoiTools.simplify(roi, 0));
+	}
+	
+	private static LinearRing createJaggedRing(double cx, double cy, double radius, int n, Random rand) {
+		var coords = new Coordinate[n+1];
+		for (int i = 0; i < n; i++) {
+			double theta = 2 * Math.PI * i / n;
+			double r = radius + rand.nextDouble() - 0.5;
+			coords[i] = new Coordinate(cx + r * Math.cos(theta), cy + r * Math.sin(theta));
+		}
+		coords[n] = coords[0];
+		return GeometryTools.getDefaultFactory().createLinearRing(coords);
+	}
+
+}
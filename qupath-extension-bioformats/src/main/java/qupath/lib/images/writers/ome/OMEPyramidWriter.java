@@ -321,6 +321,7 @@ public class OMEPyramidWriter {
 		private ByteOrder endian = ByteOrder.BIG_ENDIAN;
 		
 		private boolean parallelExport = false;
+		private int nThreads = 4;
 		
 		private Boolean bigTiff;
 		private ChannelExportType channelExportType = ChannelExportType.DEFAULT;
@@ -621,7 +622,7 @@ public class OMEPyramidWriter {
 								}).collect(Collectors.toList());
 								
 								if (parallelExport) {
-									var pool = Executors.newWorkStealingPool(4);
+									var pool = Executors.newWorkStealingPool(nThreads);
 									for (var task : tasks) {
 										pool.submit(task);
 									}
@@ -1001,6 +1002,19 @@ public class OMEPyramidWriter {
 			series.parallelExport = doParallel;
 			return this;
 		}
+		
+		/**
+		 * Parallelize tile export using the specified number of threads.
+		 * This is useful whenever tiles are expensive to generate (e.g. when rendering), rather than only read.
+		 * 
+		 * @param nThreads number of threads to use; if &lt;= 1, tiles will be written sequentially
+		 * @return this builder
+		 */
+		public Builder parallelize(int nThreads) {
+			series.parallelExport = nThreads > 1;
+			series.nThreads = Math.max(1, nThreads);
+			return this;
+		}
 
 		/**
 		 * Request that all z-slices are exported.
@@ -0,0 +1,295 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.onnxruntime;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.SessionOptions;
+import ai.onnxruntime.OrtSession.SessionOptions.ExecutionMode;
+import ai.onnxruntime.OrtSession.SessionOptions.OptLevel;
+import ai.onnxruntime.TensorInfo;
+import qupath.opencv.dnn.DnnBackend;
+import qupath.opencv.dnn.DnnModel;
+import qupath.opencv.dnn.DnnModel.Layout;
+import qupath.opencv.dnn.DnnOptions;
+import qupath.opencv.dnn.DnnTools;
+
+/**
+ * {@link DnnBackend} using ONNX Runtime to apply ONNX models on the CPU.
+ * <p>
+ * A single session is created for each model, which is shared between threads. 
+ * {@link DnnOptions#getIntraOpThreads()} and {@link DnnOptions#getInterOpThreads()} are passed to the session options, 
+ * with the parallel execution mode used only if more than one inter-op thread is requested.
+ * {@link DnnOptions#getMaxConcurrentPredictions()} determines the number of predictions that may run concurrently, 
+ * each using its own preallocated input tensor.
+ * Output tensors are not preallocated, because the ONNX Runtime Java API (as of v1.4) does not support binding outputs: 
+ * each prediction allocates a new output tensor, which is copied to a {@link Mat} and closed immediately.
+ * <p>
+ * If the layout is not specified in the options, it is determined from the model input shape: 
+ * {@link Layout#NHWC} is used if the last dimension is fixed to 1, 3 or 4 and the second is not, 
+ * otherwise {@link Layout#NCHW}.
+ * 
+ * @author Pete Bankhead
+ */
+public class OnnxRuntimeBackend implements DnnBackend {
+	
+	private final static Logger logger = LoggerFactory.getLogger(OnnxRuntimeBackend.class);
+	
+	/**
+	 * Name of the backend.
+	 */
+	public static final String NAME = "ONNX Runtime";
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public boolean supportsModel(String modelPath) {
+		var lower = modelPath.toLowerCase(Locale.ROOT);
+		return lower.endsWith(".onnx") || lower.endsWith(".ort");
+	}
+
+	@Override
+	public DnnModel loadModel(String modelPath, DnnOptions options) throws IOException {
+		if (options == null)
+			options = DnnOptions.getDefaultInstance();
+		try {
+			return new OnnxRuntimeModel(modelPath, options);
+		} catch (OrtException e) {
+			throw new IOException("Unable to load model from " + modelPath, e);
+		}
+	}
+	
+	
+	private static int[] toIntArray(long[] shape) {
+		int[] output = new int[shape.length];
+		for (int i = 0; i < shape.length; i++)
+			output[i] = (int)shape[i];
+		return output;
+	}
+	
+	private static long[] toLongArray(int[] shape) {
+		long[] output = new long[shape.length];
+		for (int i = 0; i < shape.length; i++)
+			output[i] = shape[i];
+		return output;
+	}
+	
+	
+	/**
+	 * Input tensor backed by a preallocated direct buffer, which is reused while the input shape is unchanged.
+	 */
+	private static class InputTensor {
+		
+		private int[] shape;
+		private FloatBuffer buffer;
+		private OnnxTensor tensor;
+		
+		private OnnxTensor update(OrtEnvironment env, Mat mat, Layout layout) throws OrtException {
+			int[] shape = DnnTools.getTensorShape(mat, layout);
+			if (tensor == null || !Arrays.equals(shape, this.shape)) {
+				close();
+				buffer = DnnTools.allocateBuffer(shape);
+				// Tensors created from direct buffers use the buffer without copying
+				tensor = OnnxTensor.createTensor(env, buffer, toLongArray(shape));
+				this.shape = shape;
+			}
+			DnnTools.toTensor(mat, layout, buffer);
+			return tensor;
+		}
+		
+		private void close() {
+			if (tensor != null)
+				tensor.close();
+			tensor = null;
+			buffer = null;
+			shape = null;
+		}
+		
+	}
+	
+	
+	private static class OnnxRuntimeModel implements DnnModel {
+		
+		private final String modelPath;
+		private final DnnOptions options;
+		
+		private final OrtEnvironment env;
+		private final OrtSession session;
+		
+		private final String inputName;
+		private final String outputName;
+		private final int[] inputShape;
+		private final int[] outputShape;
+		private final Layout layout;
+		
+		private final BlockingQueue<InputTensor> inputs;
+		
+		private OnnxRuntimeModel(String modelPath, DnnOptions options) throws OrtException {
+			this.modelPath = modelPath;
+			this.options = options;
+			
+			env = OrtEnvironment.getEnvironment();
+			try (var sessionOptions = new SessionOptions()) {
+				sessionOptions.setOptimizationLevel(OptLevel.ALL_OPT);
+				if (options.getIntraOpThreads() > 0)
+					sessionOptions.setIntraOpNumThreads(options.getIntraOpThreads());
+				if (options.getInterOpThreads() > 1) {
+					sessionOptions.setExecutionMode(ExecutionMode.PARALLEL);
+					sessionOptions.setInterOpNumThreads(options.getInterOpThreads());
+				}
+				session = env.createSession(modelPath, sessionOptions);
+			}
+			
+			var inputInfo = session.getInputInfo();
+			inputName = options.getInputName() == null ? inputInfo.keySet().iterator().next() : options.getInputName();
+			if (inputInfo.size() > 1)
+				logger.warn("Only one input currently supported, but model has {} - will use {}", inputInfo.size(), inputName);
+			inputShape = getShape(inputInfo.get(inputName));
+			
+			var outputInfo = session.getOutputInfo();
+			outputName = options.getOutputName() == null ? outputInfo.keySet().iterator().next() : options.getOutputName();
+			outputShape = getShape(outputInfo.get(outputName));
+			
+			layout = options.getLayout() == null ? estimateLayout(inputShape) : options.getLayout();
+			
+			int nInputs = Math.max(1, options.getMaxConcurrentPredictions());
+			inputs = new ArrayBlockingQueue<>(nInputs);
+			for (int i = 0; i < nInputs; i++)
+				inputs.add(new InputTensor());
+			
+			logger.info("Loaded {}", this);
+		}
+		
+		private int[] getShape(NodeInfo info) throws OrtException {
+			if (info == null)
+				throw new OrtException("Node not found in " + modelPath);
+			if (!(info.getInfo() instanceof TensorInfo))
+				throw new OrtException("Node " + info.getName() + " is not a tensor");
+			return toIntArray(((TensorInfo)info.getInfo()).getShape());
+		}
+		
+		private static Layout estimateLayout(int[] shape) {
+			if (shape.length == 4 && isChannelCount(shape[3]) && !isChannelCount(shape[1]))
+				return Layout.NHWC;
+			return Layout.NCHW;
+		}
+		
+		private static boolean isChannelCount(int n) {
+			return n == 1 || n == 3 || n == 4;
+		}
+
+		@Override
+		public String getBackendName() {
+			return NAME;
+		}
+
+		@Override
+		public Layout getLayout() {
+			return layout;
+		}
+
+		@Override
+		public int[] getInputShape() {
+			return inputShape.clone();
+		}
+
+		/**
+		 * Get the output shape declared by the model, using the corresponding input dimensions for any that are not fixed.
+		 */
+		@Override
+		public int[] getOutputShape(int... inputShape) throws IOException {
+			int[] shape = outputShape.clone();
+			for (int i = 0; i < Math.min(shape.length, inputShape.length); i++) {
+				if (shape[i] <= 0)
+					shape[i] = inputShape[i];
+			}
+			return shape;
+		}
+
+		@Override
+		public Mat predict(Mat mat) throws IOException {
+			InputTensor input;
+			try {
+				input = inputs.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for model", e);
+			}
+			try {
+				long startTime = System.currentTimeMillis();
+				var tensor = input.update(env, mat, layout);
+				try (var result = session.run(Collections.singletonMap(inputName, tensor), Collections.singleton(outputName))) {
+					var output = (OnnxTensor)result.get(0);
+					var buffer = output.getFloatBuffer();
+					if (buffer == null)
+						throw new IOException("Output " + outputName + " is not a float tensor");
+					var shape = toIntArray(output.getInfo().getShape());
+					var matOutput = DnnTools.fromTensor(buffer, shape, layout);
+					long endTime = System.currentTimeMillis();
+					logger.trace("Prediction time: {} ms", endTime - startTime);
+					return matOutput;
+				}
+			} catch (OrtException | ClassCastException e) {
+				throw new IOException("Error applying " + modelPath, e);
+			} finally {
+				inputs.offer(input);
+			}
+		}
+
+		@Override
+		public void close() {
+			for (var input : inputs)
+				input.close();
+			try {
+				session.close();
+			} catch (OrtException e) {
+				logger.warn("Error closing session: " + e.getLocalizedMessage(), e);
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("ONNX Runtime model: %s (input=%s %s, output=%s %s, layout=%s)",
+					modelPath, inputName, Arrays.toString(inputShape), outputName, Arrays.toString(outputShape), layout);
+		}
+		
+	}
+
+}
@@ -0,0 +1,4 @@
+/**
+ * Inference backend to apply ONNX models using ONNX Runtime.
+ */
+package qupath.onnxruntime;
@@ -29,8 +29,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javafx.application.Platform;
+import javafx.beans.property.BooleanProperty;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyCodeCombination;
+import qupath.lib.classifiers.object.ObjectClassifierCache;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.gui.ActionTools;
 import qupath.lib.gui.ActionTools.ActionAccelerator;
@@ -39,6 +41,7 @@ import qupath.lib.gui.ActionTools.ActionMenu;
 import qupath.lib.gui.commands.Commands;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.extensions.QuPathExtension;
+import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.gui.tools.IconFactory;
 import qupath.lib.gui.tools.IconFactory.PathIcons;
 import qupath.lib.gui.viewer.tools.PathTools;
@@ -293,12 +296,25 @@ public class ProcessingExtension implements QuPathExtension {
     	qupath.installActions(ActionTools.getAnnotatedActions(new LegacyClassifiers(qupath)));
     	
     	installWand(qupath);
+    	installObjectClassifierCache(qupath);
     	
     	// This is needed for Gson serialization
     	new ImageOps();
     }
     
     
+    private static BooleanProperty cacheObjectClassifierPredictions = PathPrefs.createPersistentPreference("cacheObjectClassifierPredictions", false);
+    
+    private void installObjectClassifierCache(QuPathGUI qupath) {
+    	ObjectClassifierCache.setDefaultCacheEnabled(cacheObjectClassifierPredictions.get());
+    	cacheObjectClassifierPredictions.addListener((v, o, n) -> ObjectClassifierCache.setDefaultCacheEnabled(n));
+    	qupath.getPreferencePane().addPropertyPreference(cacheObjectClassifierPredictions, Boolean.class,
+    			"Cache object classifier predictions",
+    			"Objects",
+    			"Reuse previous object classifier predictions when features and the classifier are unchanged - this makes reapplying classifiers much faster, but requires more memory");
+    }
+    
+    
     private void installWand(QuPathGUI qupath) {
     	var t = new Thread(() -> {
 	    	// TODO: Check if openblas multithreading continues to have trouble with Mac/Linux
@@ -24,9 +24,8 @@
 package qupath.process.gui.commands;
 
 import java.awt.image.BufferedImage;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -47,10 +46,7 @@ import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
-import org.bytedeco.javacpp.indexer.UByteIndexer;
-import org.bytedeco.opencv.global.opencv_core;
 import org.bytedeco.opencv.opencv_core.Mat;
-import org.bytedeco.opencv.opencv_core.Scalar;
 import org.bytedeco.opencv.opencv_ml.ANN_MLP;
 import org.bytedeco.opencv.opencv_ml.KNearest;
 import org.bytedeco.opencv.opencv_ml.RTrees;
@@ -120,10 +116,12 @@ import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
 import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
+import qupath.lib.plugins.parameters.ParameterList;
 import qupath.lib.projects.ProjectImageEntry;
 import qupath.opencv.ml.OpenCVClassifiers;
 import qupath.opencv.ml.OpenCVClassifiers.OpenCVStatModel;
 import qupath.opencv.ml.OpenCVClassifiers.RTreesClassifier;
+import qupath.opencv.ml.StratifiedReservoirSampler;
 import qupath.opencv.ml.objects.OpenCVMLClassifier;
 import qupath.opencv.ml.objects.features.FeatureExtractor;
 import qupath.opencv.ml.objects.features.FeatureExtractors;
@@ -293,6 +291,13 @@ public class ObjectClassifierCommand implements Runnable {
 
 		private DoubleProperty pcaRetainedVariance = new SimpleDoubleProperty(-1.0);
 
+		/**
+		 * Maximum number of training objects per class (&le; 0 means no limit)
+		 */
+		private int maxSamplesPerClass = 0;
+
+		private int rngSeed = 100;
+
 		//		private ObjectClassifier<BufferedImage> classifier;
 		private Set<PathClass> selectedClasses = new HashSet<>();
 
@@ -321,6 +326,16 @@ public class ObjectClassifierCommand implements Runnable {
 
 		private Map<ProjectImageEntry<BufferedImage>, ImageData<BufferedImage>> trainingMap = new WeakHashMap<>();
 
+		/**
+		 * Cache of training features, so that these do not need to be recomputed for unchanged objects
+		 */
+		private ObjectTrainingFeatureCache featureCache;
+
+		/**
+		 * Hierarchies we are currently listening to, i.e. those open in any viewer that can contribute training data.
+		 * This should only be accessed from the Application thread.
+		 */
+		private Set<PathObjectHierarchy> listenedHierarchies = Collections.newSetFromMap(new WeakHashMap<>());
 
 
 		/**
@@ -333,6 +348,7 @@ public class ObjectClassifierCommand implements Runnable {
 
 		ObjectClassifierPane(QuPathGUI qupath) {
 			this.qupath = qupath;
+			this.featureCache = ObjectTrainingFeatureCache.create(qupath.getProject());
 			selectedClasses.addAll(qupath.getAvailablePathClasses());
 			initialize();
 		}
@@ -411,11 +427,30 @@ public class ObjectClassifierCommand implements Runnable {
 		 * @return
 		 */
 		private Collection<ImageData<BufferedImage>> getTrainingImageData() {
+			var list = getOpenTrainingImageData();
+			if (list.isEmpty())
+				return list;
+
+			// Read any other requested images for the project
+			for (var entry : getUnopenedTrainingEntries()) {
+				var tempData = readTrainingImageData(entry);
+				if (tempData != null)
+					list.add(tempData);
+			}
+
+			return list;
+		}
+
+		/**
+		 * Get the {@link ImageData} for all images that are currently open in a viewer.
+		 * @return
+		 */
+		private List<ImageData<BufferedImage>> getOpenTrainingImageData() {
 			// We use the current viewer to determine the image type
 			var imageData = qupath.getImageData();
 			if (imageData == null) {
 				logger.warn("Cannot train classifier - a valid image needs to be open in the current viewer");
-				return Collections.emptyList();
+				return new ArrayList<>();
 			}
 
 			// Read annotations from all compatible images (which here means same channel names)
@@ -425,34 +460,54 @@ public class ObjectClassifierCommand implements Runnable {
 				if (tempData != null)
 					list.add(tempData);
 			}
+			return list;
+		}
 
-			// Read any other requested images for the project
-			if (!trainingEntries.isEmpty()) {
-				var currentEntries = ProjectDialogs.getCurrentImages(qupath);
-				for (var entry : trainingEntries) {
-					try {
-						if (currentEntries.contains(entry)) {
-							logger.debug("Will not load data for {} - will use the training annotations from the open viewer");
-							var tempData = trainingMap.remove(entry);
-							if (tempData != null)
-								tempData.getServer().close();
-						} else {
-							var tempData = trainingMap.get(entry);
-							if (tempData == null) {
-								tempData = entry.readImageData();
-								trainingMap.put(entry, tempData);
-							}
-							list.add(tempData);
+		/**
+		 * Get the project entries requested for training that are not currently open in a viewer.
+		 * @return
+		 */
+		private List<ProjectImageEntry<BufferedImage>> getUnopenedTrainingEntries() {
+			if (trainingEntries.isEmpty())
+				return Collections.emptyList();
+			var currentEntries = ProjectDialogs.getCurrentImages(qupath);
+			List<ProjectImageEntry<BufferedImage>> list = new ArrayList<>();
+			for (var entry : trainingEntries) {
+				if (currentEntries.contains(entry)) {
+					logger.debug("Will not load data for {} - will use the training annotations from the open viewer", entry.getImageName());
+					var tempData = trainingMap.remove(entry);
+					if (tempData != null) {
+						try {
+							tempData.getServer().close();
+						} catch (Exception e) {
+							logger.warn("Error closing server: " + e.getLocalizedMessage(), e);
 						}
-					} catch (Exception e) {
-						logger.error(e.getLocalizedMessage(), e);
 					}
-				}
+				} else
+					list.add(entry);
 			}
-
 			return list;
 		}
 
+		/**
+		 * Read the {@link ImageData} for a project entry, reusing any previously-read data where possible.
+		 * @param entry
+		 * @return the image data, or null if it could not be read
+		 */
+		private synchronized ImageData<BufferedImage> readTrainingImageData(ProjectImageEntry<BufferedImage> entry) {
+			try {
+				var tempData = trainingMap.get(entry);
+				if (tempData == null) {
+					tempData = entry.readImageData();
+					trainingMap.put(entry, tempData);
+				}
+				return tempData;
+			} catch (Exception e) {
+				logger.error(e.getLocalizedMessage(), e);
+				return null;
+			}
+		}
+
 		
 		
 		private boolean promptToLoadTrainingImages() {
@@ -497,12 +552,14 @@ public class ObjectClassifierCommand implements Runnable {
 				return null;
 			}
 
-			var imageDataCollection = getTrainingImageData();
+			var imageDataCollection = getOpenTrainingImageData();
+			updateHierarchyListeners(imageDataCollection);
 			if (imageDataCollection.isEmpty()) {
 				logger.warn("No image - cannot update classifier");
 				resetPieChart();
 				return null;
 			}
+			var entries = getUnopenedTrainingEntries();
 
 			// Get key parameters
 			var annotations = trainingAnnotations.get();
@@ -511,6 +568,7 @@ public class ObjectClassifierCommand implements Runnable {
 			var norm = this.normalization.get();
 
 			double pcaRetained = pcaRetainedVariance.get();
+			var sampler = new StratifiedReservoirSampler(maxSamplesPerClass, rngSeed);
 			boolean multiclass = doMulticlass.get() && statModel.supportsMulticlass();
 
 			// Determine the measurements to use
@@ -525,21 +583,59 @@ public class ObjectClassifierCommand implements Runnable {
 			FeatureExtractor<BufferedImage> extractor = FeatureExtractors
 					.createMeasurementListFeatureExtractor(measurements);
 
+			// Cached features can only be reused if everything that determines the training data is unchanged
+			var validClasses = output == OutputClasses.ALL ? null : selectedClasses;
+			String signature = ObjectTrainingFeatureCache.createSignature(extractor,
+					String.format("filter=%s, annotations=%s, classes=%s", filter, annotations,
+							validClasses == null ? "all" : validClasses.stream().map(p -> String.valueOf(p)).sorted().collect(Collectors.joining(", "))));
+
 			return new FutureTask<>(() -> {
-				var training = new ArrayList<TrainingData<BufferedImage>>();
+				var training = new ArrayList<TrainingData>();
 				for (var imageData : imageDataCollection) {
 					var temp = createTrainingData(
+							featureCache,
+							null,
 							filter,
 							imageData,
 							annotations,
-							output == OutputClasses.ALL ? null : selectedClasses);
+							validClasses,
+							extractor,
+							signature);
+					if (temp == null)
+						return null;
 					training.add(temp);
 				}
 
+				// For images that aren't open, use cached features if we can - to avoid reading the data at all.
+				// Otherwise, features are only extracted for objects that have changed since they were cached.
+				for (var entry : entries) {
+					var features = featureCache.getCachedFeatures(entry, signature);
+					if (features == null) {
+						var imageData = readTrainingImageData(entry);
+						if (imageData == null)
+							continue;
+						var temp = createTrainingData(
+								featureCache,
+								entry,
+								filter,
+								imageData,
+								annotations,
+								validClasses,
+								extractor,
+								signature);
+						if (temp == null)
+							return null;
+						training.add(temp);
+					} else {
+						logger.debug("Using cached training features for {}", entry.getImageName());
+						training.add(new TrainingData(features));
+					}
+				}
+
 				if (training.isEmpty() || Thread.interrupted())
 					return null;
-				
-				long nTrainingObjects = training.stream().mapToLong(t -> t.map.size()).sum();
+
+				long nTrainingObjects = training.stream().mapToLong(t -> t.getPathClasses().size()).sum();
 				if (nTrainingObjects <= 1L) {
 					Dialogs.showErrorNotification("Object classifier", "You need to annotate objects with at least two classifications to train a classifier!");
 					return null;
@@ -552,6 +648,7 @@ public class ObjectClassifierCommand implements Runnable {
 						extractor,
 						norm,
 						pcaRetained,
+						sampler,
 						multiclass
 						);
 				
@@ -647,13 +744,17 @@ public class ObjectClassifierCommand implements Runnable {
 
 		private List<String> getRequestedMeasurements() {
 
+			// Selected measurements don't require any other images to be read
+			if (trainingFeatures.get() == TrainingFeatures.SELECTED) {
+				if (qupath.getImageData() == null)
+					return Collections.emptyList();
+				return new ArrayList<>(selectedMeasurements);
+			}
+
 			var trainingImageData = getTrainingImageData();
 			if (trainingImageData.isEmpty())
 				return Collections.emptyList();
 
-			if (trainingFeatures.get() == TrainingFeatures.SELECTED)
-				return new ArrayList<>(selectedMeasurements);
-
 			// Get all the available measurements
 			var allMeasurements = getAllMeasurements(trainingImageData, true);
 			
@@ -678,18 +779,27 @@ public class ObjectClassifierCommand implements Runnable {
 
 
 		/**
-		 * Create a map of training data, with target classes as keys and collections of training objects as values.
+		 * Create training data, using the target classes and training objects found in an image.
+		 * Features are extracted for the training objects, reusing cached features wherever possible.
+		 * @param featureCache cache of previously-extracted features
+		 * @param entry project entry from which the image was read, if it is not open; features will then be cached for the entry
 		 * @param filter
 		 * @param imageData
 		 * @param training
 		 * @param selectedClasses optional collection containing valid output classes; if null, all classes will be used
+		 * @param extractor feature extractor
+		 * @param signature signature for the features and settings, used to determine whether cached features are valid
 		 * @return
 		 */
-		private static <T> TrainingData<T> createTrainingData(
+		private static <T> TrainingData createTrainingData(
+				ObjectTrainingFeatureCache featureCache,
+				ProjectImageEntry<?> entry,
 				PathObjectFilter filter,
 				ImageData<T> imageData,
 				TrainingAnnotations training,
-				Collection<PathClass> selectedClasses) {
+				Collection<PathClass> selectedClasses,
+				FeatureExtractor<T> extractor,
+				String signature) {
 
 			Map<PathClass, Set<PathObject>> map = new TreeMap<>();
 
@@ -723,7 +833,11 @@ public class ObjectClassifierCommand implements Runnable {
 			}
 
 			map.entrySet().removeIf(e -> e.getValue().isEmpty());
-			return new TrainingData<>(imageData, map);
+			if (Thread.interrupted())
+				return null;
+			if (entry == null)
+				return new TrainingData(featureCache.extractFeatures(imageData, extractor, signature, map));
+			return new TrainingData(featureCache.extractFeatures(entry, imageData, extractor, signature, map));
 		}
 
 		/**
@@ -735,16 +849,18 @@ public class ObjectClassifierCommand implements Runnable {
 		 * @param extractor {@link FeatureExtractor} able to extract features from the training objects
 		 * @param normalization type of normalization that should be applied
 		 * @param pcaRetainedVariance variance to retain if PCA is applied to reduce features (not currently used or tested!)
+		 * @param sampler sampler used to select a subset of training objects for each class
 		 * @param doMulticlass if true, try to create a multi-class classifier instead of a 'regular' classifier
 		 * @return the trained object classifier, or null if insufficient information was provided or the thread was interrupted during training
 		 */
 		private static ObjectClassifier<BufferedImage> createClassifier(
-				Collection<TrainingData<BufferedImage>> training,
+				Collection<TrainingData> training,
 				PathObjectFilter filter,
 				OpenCVStatModel statModel,
 				FeatureExtractor<BufferedImage> extractor,
 				Normalization normalization,
 				double pcaRetainedVariance,
+				StratifiedReservoirSampler sampler,
 				boolean doMulticlass) {
 
 			var pathClasses = getPathClasses(training);
@@ -763,6 +879,7 @@ public class ObjectClassifierCommand implements Runnable {
 					extractor,
 					normalization,
 					pcaRetainedVariance,
+					sampler,
 					doMulticlass);
 
 			return OpenCVMLClassifier
@@ -774,16 +891,16 @@ public class ObjectClassifierCommand implements Runnable {
 			updatePieChart(Collections.emptyMap());
 		}
 
-		<T> void updatePieChart(Collection<TrainingData<T>> training) {
+		void updatePieChart(Collection<TrainingData> training) {
 			if (!Platform.isFxApplicationThread()) {
 				Platform.runLater(() -> updatePieChart(training));
 				return;
 			}
 			var counts = new LinkedHashMap<PathClass, Integer>();
 			for (var t : training) {
-				for (var entry : t.map.entrySet()) {
+				for (var entry : t.features.getClassCounts().entrySet()) {
 					var key = entry.getKey();
-					Integer total = counts.getOrDefault(key, 0) + entry.getValue().size();
+					Integer total = counts.getOrDefault(key, 0) + entry.getValue();
 					counts.put(entry.getKey(), total);
 				}
 			}
@@ -804,24 +921,22 @@ public class ObjectClassifierCommand implements Runnable {
 
 
 
-		static class TrainingData<T>{
+		static class TrainingData {
 
-			private ImageData<T> imageData;
-			private Map<PathClass, Set<PathObject>> map;
+			private ObjectTrainingFeatureCache.CachedFeatures features;
 
-			private TrainingData(ImageData<T> imageData, Map<PathClass, Set<PathObject>> map) {
-				this.imageData = imageData;
-				this.map = map;
+			private TrainingData(ObjectTrainingFeatureCache.CachedFeatures features) {
+				this.features = features;
 			}
 
 			public Collection<PathClass> getPathClasses() {
-				return map.keySet();
+				return features.getPathClasses();
 			}
 
 		}
 		
 		
-		static <T> List<PathClass> getPathClasses(Collection<TrainingData<T>> training) {
+		static List<PathClass> getPathClasses(Collection<TrainingData> training) {
 			Set<PathClass> classSet = new HashSet<>();
 			for (var t : training) {
 				classSet.addAll(t.getPathClasses());
@@ -840,16 +955,18 @@ public class ObjectClassifierCommand implements Runnable {
 		 * @param extractor
 		 * @param normalization
 		 * @param pcaRetainedVariance
+		 * @param sampler sampler used to select a subset of training objects for each class, or null if all objects should be used
 		 * @param doMulticlass
 		 * @return the updated feature extractor, with any normalization/PCA reduction incorporated, 
 		 * or null if the training was unsuccessful (e.g. it was interrupted)
 		 */
 		private static <T> FeatureExtractor<T> updateFeatureExtractorAndTrainClassifier(
 				OpenCVStatModel classifier,
-				Collection<TrainingData<T>> trainingCollection,
+				Collection<TrainingData> trainingCollection,
 				FeatureExtractor<T> extractor,
 				Normalization normalization,
 				double pcaRetainedVariance,
+				StratifiedReservoirSampler sampler,
 				boolean doMulticlass) {
 
 			var pathClasses = getPathClasses(trainingCollection);
@@ -857,64 +974,11 @@ public class ObjectClassifierCommand implements Runnable {
 			List<Mat> matFeaturesList = new ArrayList<>();
 			List<Mat> matTargetsList = new ArrayList<>();
 
+			// Features have already been extracted (or retrieved from the cache) - we just need to build the matrices
 			for (var training : trainingCollection) {
-				var imageData = training.imageData;
-				var map = training.map;
-
-				int nFeatures = extractor.nFeatures();
-				int nSamples = map.values().stream().mapToInt(l -> l.size()).sum();
-				int nClasses = pathClasses.size();
-				if (nSamples == 0)
+				if (training.features.size() == 0)
 					continue;
-
-				Mat matTargets;
-				Mat matFeatures;
-				if (doMulticlass) {
-					// For multiclass, it's quite likely we have samples represented more than once
-					var sampleSet = new LinkedHashSet<PathObject>();
-					for (var entry : map.entrySet()) {
-						sampleSet.addAll(entry.getValue());
-					}
-					nSamples = sampleSet.size();
-
-					matFeatures = new Mat(nSamples, nFeatures, opencv_core.CV_32FC1);
-					FloatBuffer buffer = matFeatures.createBuffer();
-					matTargets = new Mat(nSamples, nClasses, opencv_core.CV_8UC1, Scalar.ZERO);
-					UByteIndexer idxTargets = matTargets.createIndexer();
-
-					extractor.extractFeatures(imageData, sampleSet, buffer);
-
-					int row = 0;
-					for (var sample : sampleSet) {
-						for (int col = 0; col < nClasses; col++) {
-							var pathClass = pathClasses.get(col);
-							if (map.get(pathClass).contains(sample)) {
-								idxTargets.put(row, col, 1);
-							}
-						}
-						row++;
-					}
-					idxTargets.release();				
-				} else {
-					matFeatures = new Mat(nSamples, nFeatures, opencv_core.CV_32FC1);
-					FloatBuffer buffer = matFeatures.createBuffer();
-
-					matTargets = new Mat(nSamples, 1, opencv_core.CV_32SC1, Scalar.ZERO);
-					IntBuffer bufTargets = matTargets.createBuffer();
-
-					for (var entry : map.entrySet()) {
-						// Extract features
-						var pathClass = entry.getKey();
-						var pathObjects = entry.getValue();
-						extractor.extractFeatures(imageData, pathObjects, buffer);
-						// Update targets
-						int pathClassIndex = pathClasses.indexOf(pathClass);
-						for (int i = 0; i < pathObjects.size(); i++)
-							bufTargets.put(pathClassIndex);
-					}
-				}
-				matFeaturesList.add(matFeatures);
-				matTargetsList.add(matTargets);
+				training.features.toMats(pathClasses, doMulticlass, matFeaturesList, matTargetsList);
 			}
 			
 			if (matFeaturesList.isEmpty()) {
@@ -922,8 +986,30 @@ public class ObjectClassifierCommand implements Runnable {
 				return null;
 			}
 
-			var matFeatures = OpenCVTools.vConcat(matFeaturesList, null);
-			var matTargets = OpenCVTools.vConcat(matTargetsList, null);
+			// Select a stratified random subset of training objects, if required
+			if (sampler != null) {
+				for (var mat : matTargetsList)
+					sampler.offerRows(mat);
+				if (sampler.isSubsampled()) {
+					for (int label : sampler.getLabels()) {
+						if (sampler.getSelectedCount(label) < sampler.getOfferedCount(label))
+							logger.info("Selected {} of {} training objects for {}", sampler.getSelectedCount(label), sampler.getOfferedCount(label),
+									label >= 0 && label < pathClasses.size() ? pathClasses.get(label) : "Unclassified");
+					}
+				}
+			}
+
+			// If we are subsampling, copy only the selected rows rather than combining all the matrices first
+			Mat matFeatures, matTargets;
+			if (sampler != null && sampler.isSubsampled()) {
+				matFeatures = sampler.selectRows(matFeaturesList);
+				matTargets = sampler.selectRows(matTargetsList);
+			} else {
+				matFeatures = OpenCVTools.vConcat(matFeaturesList, null);
+				matTargets = OpenCVTools.vConcat(matTargetsList, null);
+			}
+			matFeaturesList.forEach(Mat::close);
+			matTargetsList.forEach(Mat::close);
 
 
 			// Create & apply feature normalizer if we need one
@@ -950,6 +1036,7 @@ public class ObjectClassifierCommand implements Runnable {
 				return null;
 			}
 
+			classifier.setNumOutputClasses(pathClasses.size());
 			trainClassifier(classifier, matFeatures, matTargets, doMulticlass);
 
 			if (classifier instanceof RTreesClassifier) {
@@ -963,7 +1050,6 @@ public class ObjectClassifierCommand implements Runnable {
 
 		static boolean trainClassifier(OpenCVStatModel classifier, Mat matFeatures, Mat matTargets, boolean doMulticlass) {		
 			// Train classifier
-			// TODO: Optionally limit the number of training samples we use
 			long startTime = System.currentTimeMillis();
 			var trainData = classifier.createTrainData(matFeatures, matTargets, null, doMulticlass);
 			classifier.train(trainData);
@@ -1022,10 +1108,25 @@ public class ObjectClassifierCommand implements Runnable {
 			//					"Choose feature normalization",
 			//					labelNormalization, comboNormalization);
 
-			var norm = Dialogs.showChoiceDialog("Advanced options", "Feature normalization", Normalization.values(), normalization.get());
-			if (norm == null || norm == normalization.get())
+			var params = new ParameterList()
+					.addTitleParameter("Training data")
+					.addIntParameter("maxSamplesPerClass", "Maximum objects per class", maxSamplesPerClass, null, "Maximum number of training objects for each class, selected randomly if more are available - reduces training time if you have a lot of training objects (use 0 for no limit)")
+					.addIntParameter("rngSeed", "RNG seed", rngSeed, null, "Seed for the random number generator used when selecting training objects")
+					.addTitleParameter("Preprocessing")
+					.addChoiceParameter("normalization", "Feature normalization", normalization.get(),
+							Arrays.asList(Normalization.values()), "Method to normalize features - use only if needed, may make no difference with some common classifiers");
+
+			if (!Dialogs.showParameterDialog("Advanced options", params))
+				return false;
+
+			var norm = (Normalization)params.getChoiceParameterValue("normalization");
+			int maxSamples = params.getIntParameterValue("maxSamplesPerClass");
+			int seed = params.getIntParameterValue("rngSeed");
+			if (norm == normalization.get() && maxSamples == maxSamplesPerClass && seed == rngSeed)
 				return false;
 			normalization.set(norm);
+			maxSamplesPerClass = maxSamples;
+			rngSeed = seed;
 			return true;
 		}
 
@@ -1423,6 +1524,31 @@ public class ObjectClassifierCommand implements Runnable {
 			qupath.imageDataProperty().removeListener(this);
 			changed(qupath.imageDataProperty(), qupath.getImageData(), null);
 		}
+
+		/**
+		 * Ensure we are listening to the hierarchy of every image that contributes training data (and no others), 
+		 * so that any changes invalidate the classifier and the cached features.
+		 * @param imageDataCollection the images that contribute training data
+		 */
+		private void updateHierarchyListeners(Collection<ImageData<BufferedImage>> imageDataCollection) {
+			var required = new HashSet<PathObjectHierarchy>();
+			for (var imageData : imageDataCollection)
+				required.add(imageData.getHierarchy());
+			var iter = listenedHierarchies.iterator();
+			while (iter.hasNext()) {
+				var hierarchy = iter.next();
+				if (!required.contains(hierarchy)) {
+					hierarchy.removePathObjectListener(this);
+					// We won't be notified of any further changes, so can't reuse the features
+					featureCache.invalidate(hierarchy);
+					iter.remove();
+				}
+			}
+			for (var hierarchy : required) {
+				if (listenedHierarchies.add(hierarchy))
+					hierarchy.addPathObjectListener(this);
+			}
+		}
 		
 		private void cleanup(QuPathGUI qupath) {
 			deregisterListeners(qupath);
@@ -1436,17 +1562,14 @@ public class ObjectClassifierCommand implements Runnable {
 			}
 			trainingEntries.clear();
 			trainingMap.clear();
+			featureCache.clear();
 		}
 		
 
 		@Override
 		public void changed(ObservableValue<? extends ImageData<BufferedImage>> source, ImageData<BufferedImage> imageDataOld,
 				ImageData<BufferedImage> imageDataNew) {
-			if (imageDataOld != null)
-				imageDataOld.getHierarchy().removePathObjectListener(this);
-			if (imageDataNew != null)
-				imageDataNew.getHierarchy().addPathObjectListener(this);
-
+			updateHierarchyListeners(imageDataNew == null ? Collections.emptyList() : getOpenTrainingImageData());
 			invalidateClassifier();
 		}
 
@@ -1458,6 +1581,11 @@ public class ObjectClassifierCommand implements Runnable {
 			}
 			if (event.isChanging())
 				return;
+			// Ensure we don't reuse features for objects that have changed
+			if (event.isObjectMeasurementEvent() || event.isAddedOrRemovedEvent())
+				featureCache.invalidate(event.getHierarchy(), event.getChangedObjects());
+			else if (event.isStructureChangeEvent() && event.getStructureChangeBase() == event.getHierarchy().getRootObject())
+				featureCache.invalidate(event.getHierarchy());
 			var filter = objectFilter.get();
 			if (event.isObjectClassificationEvent()) {
 				if (event.getChangedObjects().stream().allMatch(filter))
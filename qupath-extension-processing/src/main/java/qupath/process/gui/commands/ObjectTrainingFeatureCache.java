@@ -0,0 +1,632 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.process.gui.commands;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.javacpp.indexer.IntIndexer;
+import org.bytedeco.javacpp.indexer.UByteIndexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.roi.interfaces.ROI;
+import qupath.opencv.ml.objects.features.FeatureExtractor;
+
+/**
+ * Cache for the features and targets used to train an object classifier.
+ * <p>
+ * For images that are open, features are cached in memory for each training object and reused whenever
+ * the classifier is retrained, so that only objects that are new (or whose measurements have changed) require
+ * features to be extracted again.
+ * <p>
+ * For other images in a project, the complete training data (features and classifications) is also written to disk.
+ * This can be reused without reading the image data at all, provided that neither the image data nor the training
+ * settings have changed since the cache was written. If the image data has changed, it must be read again - but
+ * features are only extracted for objects that have changed since the cache was written.
+ * <p>
+ * Objects do not have persistent IDs, and so are identified by a key derived from their ROIs.
+ * Because keys can collide, cached features are only reused if the object still has the same ROI instance, 
+ * or if it has the same fingerprint (derived from all its ROI coordinates and measurements).
+ */
+class ObjectTrainingFeatureCache {
+
+	private final static Logger logger = LoggerFactory.getLogger(ObjectTrainingFeatureCache.class);
+
+	private static final int VERSION = 2;
+	private static final String EXT = ".features.gz";
+
+	private final Path dir;
+
+	private final Map<String, CachedFeatures> entryCache = new HashMap<>();
+	private final Map<PathObjectHierarchy, CachedFeatures> liveCache = new WeakHashMap<>();
+
+	/**
+	 * Constructor.
+	 * @param dir directory in which to store cached features; if null, features are only cached in memory
+	 */
+	ObjectTrainingFeatureCache(Path dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Create a feature cache that stores features within a project directory.
+	 * @param project the project; if null or not on a local file system, the cache will only store features in memory
+	 * @return
+	 */
+	static ObjectTrainingFeatureCache create(Project<?> project) {
+		Path path = project == null ? null : project.getPath();
+		if (path != null && !Files.isDirectory(path))
+			path = path.getParent();
+		if (path != null)
+			path = path.resolve("cache").resolve("object_training");
+		return new ObjectTrainingFeatureCache(path);
+	}
+
+	/**
+	 * Create a signature for the features and settings used to determine training data.
+	 * Cached features can only be reused if their signature matches.
+	 * @param extractor the feature extractor
+	 * @param settings any other settings that influence which objects are used for training, or their classifications
+	 * @return
+	 */
+	static String createSignature(FeatureExtractor<?> extractor, String settings) {
+		return settings + "\n" + String.join("\n", extractor.getFeatureNames());
+	}
+
+	/**
+	 * Get the training data previously cached for a project entry.
+	 * @param entry the entry
+	 * @param signature the signature of the features and settings; see {@link #createSignature(FeatureExtractor, String)}
+	 * @return the cached features, or null if no features are cached with the same signature, or the entry has changed
+	 *         since the features were cached
+	 */
+	synchronized CachedFeatures getCachedFeatures(ProjectImageEntry<?> entry, String signature) {
+		long timestamp = getTimestamp(entry);
+		var cached = getEntryFeatures(entry.getID());
+		if (cached == null || timestamp <= 0 || cached.timestamp != timestamp || !cached.signature.equals(signature))
+			return null;
+		return cached;
+	}
+
+	/**
+	 * Get the features cached for a project entry, regardless of whether they are still valid.
+	 * @param id the entry ID
+	 * @return
+	 */
+	private CachedFeatures getEntryFeatures(String id) {
+		var cached = entryCache.get(id);
+		if (cached == null) {
+			cached = readCachedFeatures(id);
+			if (cached != null)
+				entryCache.put(id, cached);
+		}
+		return cached;
+	}
+
+	/**
+	 * Store the training data for a project entry, writing it to disk if possible.
+	 * @param entry
+	 * @param features
+	 */
+	synchronized void putCachedFeatures(ProjectImageEntry<?> entry, CachedFeatures features) {
+		String id = entry.getID();
+		var cached = new CachedFeatures(features, getTimestamp(entry));
+		entryCache.put(id, cached);
+		try {
+			writeCachedFeatures(id, cached);
+		} catch (IOException e) {
+			logger.warn("Unable to write cached training features for {} ({})", entry.getImageName(), e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Get the training data for an image, reusing cached features for any objects that have not changed.
+	 * @param <T>
+	 * @param imageData the image containing the training objects
+	 * @param extractor the feature extractor
+	 * @param signature the signature of the features and settings; see {@link #createSignature(FeatureExtractor, String)}
+	 * @param map map of classifications and the training objects for each classification
+	 * @return
+	 */
+	<T> CachedFeatures extractFeatures(ImageData<T> imageData, FeatureExtractor<T> extractor, String signature, Map<PathClass, ? extends Collection<PathObject>> map) {
+		var hierarchy = imageData.getHierarchy();
+		CachedFeatures previous;
+		synchronized (this) {
+			previous = liveCache.get(hierarchy);
+		}
+		var cached = extractFeatures(imageData, extractor, signature, map, previous);
+		synchronized (this) {
+			liveCache.put(hierarchy, cached);
+		}
+		return cached;
+	}
+	
+	/**
+	 * Get the training data for an image read from a project entry, reusing features previously cached for the entry 
+	 * for any objects that have not changed. The result is then cached for the entry, as with 
+	 * {@link #putCachedFeatures(ProjectImageEntry, CachedFeatures)}.
+	 * @param <T>
+	 * @param entry the project entry from which the image was read
+	 * @param imageData the image containing the training objects
+	 * @param extractor the feature extractor
+	 * @param signature the signature of the features and settings; see {@link #createSignature(FeatureExtractor, String)}
+	 * @param map map of classifications and the training objects for each classification
+	 * @return
+	 */
+	<T> CachedFeatures extractFeatures(ProjectImageEntry<?> entry, ImageData<T> imageData, FeatureExtractor<T> extractor, String signature, Map<PathClass, ? extends Collection<PathObject>> map) {
+		CachedFeatures previous;
+		synchronized (this) {
+			previous = getEntryFeatures(entry.getID());
+		}
+		var cached = extractFeatures(imageData, extractor, signature, map, previous);
+		putCachedFeatures(entry, cached);
+		return cached;
+	}
+
+	private <T> CachedFeatures extractFeatures(ImageData<T> imageData, FeatureExtractor<T> extractor, String signature, Map<PathClass, ? extends Collection<PathObject>> map, CachedFeatures previous) {
+		if (previous != null && !previous.signature.equals(signature))
+			previous = null;
+
+		// Determine the unique samples and their classifications
+		List<PathClass> pathClasses = new ArrayList<>(map.keySet());
+		var samples = new LinkedHashMap<PathObject, BitSet>();
+		int c = 0;
+		for (var entry : map.entrySet()) {
+			for (var pathObject : entry.getValue())
+				samples.computeIfAbsent(pathObject, p -> new BitSet()).set(c);
+			c++;
+		}
+
+		int nFeatures = extractor.nFeatures();
+		int n = samples.size();
+		long[] keys = new long[n];
+		ROI[] rois = new ROI[n];
+		long[] fingerprints = new long[n];
+		BitSet[] classes = new BitSet[n];
+		float[] features = new float[n * nFeatures];
+
+		// Reuse what we can & extract features for the rest
+		List<PathObject> toExtract = new ArrayList<>();
+		List<Integer> toExtractRows = new ArrayList<>();
+		int row = 0;
+		for (var entry : samples.entrySet()) {
+			var pathObject = entry.getKey();
+			long key = getKey(pathObject);
+			keys[row] = key;
+			rois[row] = pathObject.getROI();
+			classes[row] = entry.getValue();
+			int previousRow = previous == null ? -1 : previous.getRow(key, rois[row]);
+			if (previousRow >= 0)
+				fingerprints[row] = previous.fingerprints[previousRow];
+			else {
+				fingerprints[row] = getFingerprint(pathObject);
+				previousRow = previous == null ? -1 : previous.getRow(key, fingerprints[row]);
+			}
+			if (previousRow >= 0)
+				System.arraycopy(previous.features, previousRow * nFeatures, features, row * nFeatures, nFeatures);
+			else {
+				toExtract.add(pathObject);
+				toExtractRows.add(row);
+			}
+			row++;
+		}
+		if (!toExtract.isEmpty()) {
+			var buffer = FloatBuffer.allocate(toExtract.size() * nFeatures);
+			extractor.extractFeatures(imageData, toExtract, buffer);
+			buffer.flip();
+			for (int r : toExtractRows)
+				buffer.get(features, r * nFeatures, nFeatures);
+		}
+		logger.debug("Training features extracted for {}/{} objects ({} reused)", toExtract.size(), n, n - toExtract.size());
+
+		return new CachedFeatures(signature, 0L, pathClasses, nFeatures, keys, rois, fingerprints, classes, features);
+	}
+
+	/**
+	 * Invalidate cached features for specific objects, e.g. because their measurements have changed.
+	 * @param hierarchy hierarchy containing the objects
+	 * @param pathObjects the objects to invalidate
+	 */
+	synchronized void invalidate(PathObjectHierarchy hierarchy, Collection<? extends PathObject> pathObjects) {
+		var cached = liveCache.get(hierarchy);
+		if (cached == null)
+			return;
+		for (var pathObject : pathObjects)
+			cached.invalidate(getKey(pathObject));
+	}
+
+	/**
+	 * Invalidate all cached features for a hierarchy.
+	 * @param hierarchy
+	 */
+	synchronized void invalidate(PathObjectHierarchy hierarchy) {
+		liveCache.remove(hierarchy);
+	}
+
+	/**
+	 * Remove all features cached in memory. Features that have been written to disk are retained.
+	 */
+	synchronized void clear() {
+		liveCache.clear();
+		entryCache.clear();
+	}
+
+
+	/**
+	 * Get a key for an object based upon its ROI.
+	 * This is not guaranteed to be unique, and so should only be used to find candidate matches.
+	 * @param pathObject
+	 * @return
+	 */
+	static long getKey(PathObject pathObject) {
+		ROI roi = pathObject.getROI();
+		if (roi == null)
+			return System.identityHashCode(pathObject);
+		long key = 17L;
+		key = key * 31L + Double.doubleToLongBits(roi.getCentroidX());
+		key = key * 31L + Double.doubleToLongBits(roi.getCentroidY());
+		key = key * 31L + Double.doubleToLongBits(roi.getBoundsWidth());
+		key = key * 31L + Double.doubleToLongBits(roi.getBoundsHeight());
+		key = key * 31L + roi.getZ();
+		key = key * 31L + roi.getT();
+		key = key * 31L + roi.getNumPoints();
+		return key;
+	}
+
+	/**
+	 * Get a fingerprint for an object based upon all its ROI coordinates and measurements.
+	 * Objects with the same key and fingerprint are assumed to have the same features.
+	 * @param pathObject
+	 * @return
+	 */
+	static long getFingerprint(PathObject pathObject) {
+		long fingerprint = getKey(pathObject);
+		ROI roi = pathObject.getROI();
+		if (roi != null) {
+			for (var p : roi.getAllPoints()) {
+				fingerprint = fingerprint * 31L + Double.doubleToLongBits(p.getX());
+				fingerprint = fingerprint * 31L + Double.doubleToLongBits(p.getY());
+			}
+		}
+		var measurements = pathObject.getMeasurementList();
+		for (int i = 0; i < measurements.size(); i++) {
+			fingerprint = fingerprint * 31L + measurements.getMeasurementName(i).hashCode();
+			fingerprint = fingerprint * 31L + Double.doubleToLongBits(measurements.getMeasurementValue(i));
+		}
+		return fingerprint;
+	}
+
+	/**
+	 * Get a timestamp representing the last time the data for a project entry was changed.
+	 * @param entry
+	 * @return the timestamp, or 0 if it cannot be determined
+	 */
+	private static long getTimestamp(ProjectImageEntry<?> entry) {
+		try {
+			var path = entry.getEntryPath();
+			if (path == null || !Files.isDirectory(path))
+				return 0L;
+			long timestamp = 0L;
+			try (var stream = Files.list(path)) {
+				for (var p : (Iterable<Path>)stream::iterator)
+					timestamp = Math.max(timestamp, Files.getLastModifiedTime(p).toMillis());
+			}
+			return timestamp;
+		} catch (Exception e) {
+			logger.debug("Unable to get timestamp for {} ({})", entry.getImageName(), e.getLocalizedMessage());
+			return 0L;
+		}
+	}
+
+	private Path getPath(String id) {
+		return dir == null ? null : dir.resolve(id + EXT);
+	}
+
+	private CachedFeatures readCachedFeatures(String id) {
+		var path = getPath(id);
+		if (path == null || !Files.isRegularFile(path))
+			return null;
+		try (var stream = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(path))))) {
+			if (stream.readInt() != VERSION)
+				return null;
+			String signature = readString(stream);
+			long timestamp = stream.readLong();
+			int nClasses = stream.readInt();
+			List<PathClass> pathClasses = new ArrayList<>();
+			for (int i = 0; i < nClasses; i++)
+				pathClasses.add(PathClassFactory.getPathClass(readString(stream)));
+			int nFeatures = stream.readInt();
+			int n = stream.readInt();
+			long[] keys = new long[n];
+			long[] fingerprints = new long[n];
+			BitSet[] classes = new BitSet[n];
+			float[] features = new float[n * nFeatures];
+			int ind = 0;
+			for (int row = 0; row < n; row++) {
+				keys[row] = stream.readLong();
+				fingerprints[row] = stream.readLong();
+				long[] bits = new long[stream.readInt()];
+				for (int i = 0; i < bits.length; i++)
+					bits[i] = stream.readLong();
+				classes[row] = BitSet.valueOf(bits);
+				for (int f = 0; f < nFeatures; f++)
+					features[ind++] = stream.readFloat();
+			}
+			return new CachedFeatures(signature, timestamp, pathClasses, nFeatures, keys, null, fingerprints, classes, features);
+		} catch (IOException e) {
+			logger.warn("Unable to read cached training features from {} ({})", path, e.getLocalizedMessage());
+			return null;
+		}
+	}
+
+	private void writeCachedFeatures(String id, CachedFeatures cached) throws IOException {
+		var path = getPath(id);
+		if (path == null)
+			return;
+		Files.createDirectories(path.getParent());
+		// Write to a temp file first, so that we never leave a partial cache file behind
+		var pathTemp = Files.createTempFile(path.getParent(), id, ".tmp");
+		try (var stream = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(pathTemp))))) {
+			stream.writeInt(VERSION);
+			writeString(stream, cached.signature);
+			stream.writeLong(cached.timestamp);
+			stream.writeInt(cached.pathClasses.size());
+			for (var pathClass : cached.pathClasses)
+				writeString(stream, pathClass.toString());
+			stream.writeInt(cached.nFeatures);
+			stream.writeInt(cached.keys.length);
+			int ind = 0;
+			for (int row = 0; row < cached.keys.length; row++) {
+				stream.writeLong(cached.keys[row]);
+				stream.writeLong(cached.fingerprints[row]);
+				long[] bits = cached.classes[row].toLongArray();
+				stream.writeInt(bits.length);
+				for (long b : bits)
+					stream.writeLong(b);
+				for (int f = 0; f < cached.nFeatures; f++)
+					stream.writeFloat(cached.features[ind++]);
+			}
+		}
+		Files.move(pathTemp, path, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	// Avoid the 64k limit of writeUTF, since signatures can include many feature names
+	private static void writeString(DataOutputStream stream, String s) throws IOException {
+		var bytes = s.getBytes(StandardCharsets.UTF_8);
+		stream.writeInt(bytes.length);
+		stream.write(bytes);
+	}
+
+	private static String readString(DataInputStream stream) throws IOException {
+		var bytes = new byte[stream.readInt()];
+		stream.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+
+	/**
+	 * Features and classifications for the training objects from a single image.
+	 * Features are stored as a compact, row-major float array, with one row per object.
+	 */
+	static class CachedFeatures {
+
+		private final String signature;
+		private final long timestamp;
+		private final List<PathClass> pathClasses;
+		private final int nFeatures;
+		private final long[] keys;
+		private final ROI[] rois;
+		private final long[] fingerprints;
+		private final BitSet[] classes;
+		private final float[] features;
+
+		private transient Map<Long, Integer> rowMap;
+		private transient Set<Long> invalid;
+
+		private CachedFeatures(String signature, long timestamp, List<PathClass> pathClasses, int nFeatures, long[] keys, ROI[] rois, long[] fingerprints, BitSet[] classes, float[] features) {
+			this.signature = signature;
+			this.timestamp = timestamp;
+			this.pathClasses = Collections.unmodifiableList(new ArrayList<>(pathClasses));
+			this.nFeatures = nFeatures;
+			this.keys = keys;
+			this.rois = rois;
+			this.fingerprints = fingerprints;
+			this.classes = classes;
+			this.features = features;
+		}
+
+		private CachedFeatures(CachedFeatures features, long timestamp) {
+			this(features.signature, timestamp, features.pathClasses, features.nFeatures, features.keys, null, features.fingerprints, features.classes, features.features);
+		}
+
+		/**
+		 * Get the row containing the features for an object with the specified key and ROI.
+		 * @param key
+		 * @param roi
+		 * @return the row, or -1 if no features are available (or if they can't be verified to belong to the same object)
+		 */
+		private synchronized int getRow(long key, ROI roi) {
+			if (rois == null)
+				return -1;
+			int row = findRow(key);
+			// ROIs are immutable, so the same instance indicates the object is unchanged; otherwise the key may have collided
+			if (row >= 0 && (roi == null || rois[row] != roi))
+				return -1;
+			return row;
+		}
+		
+		/**
+		 * Get the row containing the features for an object with the specified key and fingerprint.
+		 * @param key
+		 * @param fingerprint
+		 * @return the row, or -1 if no features are available for an object with the same fingerprint
+		 * @see ObjectTrainingFeatureCache#getFingerprint(PathObject)
+		 */
+		private synchronized int getRow(long key, long fingerprint) {
+			int row = findRow(key);
+			if (row >= 0 && fingerprints[row] != fingerprint)
+				return -1;
+			return row;
+		}
+		
+		private int findRow(long key) {
+			if (invalid != null && invalid.contains(key))
+				return -1;
+			if (rowMap == null) {
+				rowMap = new HashMap<>();
+				for (int i = 0; i < keys.length; i++)
+					rowMap.putIfAbsent(keys[i], i);
+			}
+			return rowMap.getOrDefault(key, -1);
+		}
+
+		private synchronized void invalidate(long key) {
+			if (invalid == null)
+				invalid = new HashSet<>();
+			invalid.add(key);
+		}
+
+		/**
+		 * Get the classifications represented within the training data.
+		 * @return
+		 */
+		public List<PathClass> getPathClasses() {
+			return pathClasses;
+		}
+
+		/**
+		 * Get the number of training objects for each classification.
+		 * @return
+		 */
+		public Map<PathClass, Integer> getClassCounts() {
+			var counts = new LinkedHashMap<PathClass, Integer>();
+			for (int c = 0; c < pathClasses.size(); c++) {
+				int count = 0;
+				for (var bits : classes) {
+					if (bits.get(c))
+						count++;
+				}
+				counts.put(pathClasses.get(c), count);
+			}
+			return counts;
+		}
+
+		/**
+		 * Create feature and target matrices suitable for training.
+		 * @param allClasses all classes used for training, which determines the target values
+		 * @param doMulticlass if true, create multiclass targets (one column per class); otherwise, create one row for each
+		 *                     object and classification with a single target column
+		 * @param matFeatures list to which the feature matrix should be added
+		 * @param matTargets list to which the target matrix should be added
+		 */
+		void toMats(List<PathClass> allClasses, boolean doMulticlass, List<Mat> matFeatures, List<Mat> matTargets) {
+			int[] classIndices = pathClasses.stream().mapToInt(p -> allClasses.indexOf(p)).toArray();
+			int nClasses = allClasses.size();
+			if (doMulticlass) {
+				int n = keys.length;
+				var mat = new Mat(n, nFeatures, opencv_core.CV_32FC1);
+				FloatIndexer idxFeatures = mat.createIndexer();
+				idxFeatures.put(0L, features, 0, n * nFeatures);
+				idxFeatures.release();
+				var targets = new Mat(n, nClasses, opencv_core.CV_8UC1, Scalar.ZERO);
+				UByteIndexer idxTargets = targets.createIndexer();
+				for (int row = 0; row < n; row++) {
+					var bits = classes[row];
+					for (int c = bits.nextSetBit(0); c >= 0; c = bits.nextSetBit(c+1)) {
+						if (classIndices[c] >= 0)
+							idxTargets.put(row, classIndices[c], 1);
+					}
+				}
+				idxTargets.release();
+				matFeatures.add(mat);
+				matTargets.add(targets);
+			} else {
+				int n = 0;
+				for (var bits : classes)
+					n += bits.cardinality();
+				if (n == 0)
+					return;
+				var mat = new Mat(n, nFeatures, opencv_core.CV_32FC1);
+				var targets = new Mat(n, 1, opencv_core.CV_32SC1, Scalar.ZERO);
+				FloatIndexer idxFeatures = mat.createIndexer();
+				IntIndexer idxTargets = targets.createIndexer();
+				long rowOut = 0;
+				for (int c = 0; c < pathClasses.size(); c++) {
+					for (int row = 0; row < keys.length; row++) {
+						if (!classes[row].get(c))
+							continue;
+						idxFeatures.put(rowOut, features, row * nFeatures, nFeatures);
+						idxTargets.put(rowOut, classIndices[c]);
+						rowOut++;
+					}
+				}
+				idxFeatures.release();
+				idxTargets.release();
+				matFeatures.add(mat);
+				matTargets.add(targets);
+			}
+		}
+
+		/**
+		 * Get the number of training objects.
+		 * @return
+		 */
+		public int size() {
+			return keys.length;
+		}
+
+	}
+
+}
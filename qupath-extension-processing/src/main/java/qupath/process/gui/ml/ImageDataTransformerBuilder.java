@@ -400,11 +400,8 @@ abstract class ImageDataTransformerBuilder {
 //				scale = SmoothingScale.get3DIsotropic(localNormalizeSigma);
 //			scale = SmoothingScale.get2D(localNormalizeSigma);
 
-			List<ImageOp> ops = new ArrayList<>();
-			for (var sigma : sigmas) {
-				ops.add(ImageOps.Filters.features(Arrays.asList(features), sigma, sigma));
-			}
-			var op = ImageOps.Core.splitMerge(ops);
+			// Compute all scales together, so that the Gaussian scale-space can be reused
+			var op = ImageOps.Filters.features(Arrays.asList(features), sigmas);
 			
 			// Handle normalization if needed
 			double localNormalizeSigma = normalizationSigma.get();
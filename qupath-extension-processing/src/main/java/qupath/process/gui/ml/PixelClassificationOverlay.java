@@ -53,14 +53,17 @@ import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 import org.slf4j.Logger;
@@ -71,6 +74,11 @@ import javafx.beans.value.ObservableBooleanValue;
 
 /**
  * {@link PathOverlay} that gives the results of pixel classification.
+ * <p>
+ * Tiles are classified on demand while the overlay is being viewed (if live prediction is on).
+ * Requests are prioritized so that lower resolutions are handled first, and then tiles closest to the center of the view.
+ * Requests that are no longer needed for the current view are dropped whenever the overlay is repainted, 
+ * and all requests are cancelled whenever the overlay is stopped (e.g. because the classifier has changed).
  * 
  * @author Pete Bankhead
  *
@@ -82,11 +90,17 @@ public class PixelClassificationOverlay extends AbstractOverlay  {
     private ImageRenderer renderer;
     private long rendererLastTimestamp = 0L;
 
-    private Map<RegionRequest, BufferedImage> cacheRGB = Collections.synchronizedMap(new HashMap<>());
+    private RGBCache cacheRGB = new RGBCache(Math.min(Runtime.getRuntime().maxMemory() / 16, 256L * 1024L * 1024L));
     private Set<TileRequest> pendingRequests = Collections.synchronizedSet(new HashSet<>());
     private Set<TileRequest> currentRequests = Collections.synchronizedSet(new HashSet<>());
     
-    private ExecutorService pool;
+    private ThreadPoolExecutor pool;
+    
+    /**
+     * Generation of tile requests; requests from an earlier generation are stale, and should be discarded
+     */
+    private AtomicLong generation = new AtomicLong();
+    private AtomicLong counter = new AtomicLong();
     
     private Function<ImageData<BufferedImage>, ImageServer<BufferedImage>> fun;
     
@@ -106,8 +120,8 @@ public class PixelClassificationOverlay extends AbstractOverlay  {
         // TODO: Permit classifier to control request
 //        if (classifierServer.getClassifier() instanceof OpenCVPixelClassifierDNN)
 //        	nThreads = 1;
-        pool = Executors.newFixedThreadPool(
-        		nThreads, ThreadTools.createThreadFactory(
+        pool = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+        		new PriorityBlockingQueue<>(), ThreadTools.createThreadFactory(
         				"classifier-overlay", true, Thread.NORM_PRIORITY-2));
         
         this.fun = fun;
@@ -311,9 +325,7 @@ public class PixelClassificationOverlay extends AbstractOverlay  {
         
         
         Collection<TileRequest> tiles = server.getTileRequestManager().getTileRequests(fullRequest);
-
-        // Clear pending requests, since we'll insert new ones (perhaps in a different order)
-    	this.pendingRequests.clear();
+        List<TileRequest> missingTiles = new ArrayList<>();
 
 //        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR)
 
@@ -338,9 +350,13 @@ public class PixelClassificationOverlay extends AbstractOverlay  {
             
             // Request a tile
             if (livePrediction)
-            	requestTile(tile, imageData, server);
+            	missingTiles.add(tile);
         }
         gCopy.dispose();
+        
+        // Replace pending requests, since priorities depend upon the current view
+        if (livePrediction)
+        	requestTiles(missingTiles, imageData, server, fullRequest);
     }
     
     /**
@@ -385,7 +401,9 @@ public class PixelClassificationOverlay extends AbstractOverlay  {
      * Stop the overlap, halting any pending tile requests.
      */
     public void stop() {
+    	generation.incrementAndGet();
     	List<Runnable> pending = this.pool.shutdownNow();
+    	pendingRequests.clear();
     	cacheRGB.clear();
     	logger.debug("Stopped classification overlay, dropped {} requests", pending.size());
     }
@@ -400,48 +418,169 @@ public class PixelClassificationOverlay extends AbstractOverlay  {
     }
     
 
+    /**
+     * Request classification for the tiles needed for the current view.
+     * Any queued requests that have not yet started are replaced, so that tiles no longer visible are dropped 
+     * and the remaining tiles are reprioritized according to the current view.
+     * 
+     * @param tiles the tiles to request
+     * @param imageData the image data
+     * @param classifierServer the server used to classify tiles
+     * @param view the current view, used to prioritize tiles closest to its center
+     */
+    synchronized void requestTiles(Collection<TileRequest> tiles, ImageData<BufferedImage> imageData, ImageServer<BufferedImage> classifierServer, ImageRegion view) {
+    	if (pool.isShutdown())
+    		return;
+    	pool.getQueue().clear();
+    	pendingRequests.clear();
+    	long currentGeneration = generation.get();
+    	double cx = view.getX() + view.getWidth() / 2.0;
+    	double cy = view.getY() + view.getHeight() / 2.0;
+    	for (var tile : tiles) {
+    		if (currentRequests.contains(tile) || !pendingRequests.add(tile))
+    			continue;
+    		double dx = tile.getImageX() + tile.getImageWidth() / 2.0 - cx;
+    		double dy = tile.getImageY() + tile.getImageHeight() / 2.0 - cy;
+    		pool.execute(new TileTask(tile, imageData, classifierServer, currentGeneration, dx*dx + dy*dy));
+    	}
+    }
+    
+    /**
+     * Request classification for a single tile, if it is not already pending.
+     * @param tile
+     * @param imageData
+     * @param classifierServer
+     */
     void requestTile(TileRequest tile, ImageData<BufferedImage> imageData, ImageServer<BufferedImage> classifierServer) {
         // Make the request, if it isn't already pending
-        if (!pool.isShutdown() && pendingRequests.add(tile)) {
-            pool.submit(() -> {
-            	if (pool.isShutdown())
-            		return;
-            	// Check we still need to make the request
-            	if (!pendingRequests.contains(tile) || !currentRequests.add(tile)) {
+        if (!pool.isShutdown() && pendingRequests.add(tile))
+        	pool.execute(new TileTask(tile, imageData, classifierServer, generation.get(), 0));
+    }
+    
+    
+    /**
+     * Task to classify a single tile.
+     * Tasks are ordered with lower resolutions first, and then by distance from the center of the view.
+     */
+    private class TileTask implements Runnable, Comparable<TileTask> {
+    	
+    	private final TileRequest tile;
+    	private final ImageData<BufferedImage> imageData;
+    	private final ImageServer<BufferedImage> classifierServer;
+    	private final long taskGeneration;
+    	private final double distance;
+    	private final long order = counter.incrementAndGet();
+    	
+    	TileTask(TileRequest tile, ImageData<BufferedImage> imageData, ImageServer<BufferedImage> classifierServer, long taskGeneration, double distance) {
+    		this.tile = tile;
+    		this.imageData = imageData;
+    		this.classifierServer = classifierServer;
+    		this.taskGeneration = taskGeneration;
+    		this.distance = distance;
+    	}
+    	
+    	private boolean isStale() {
+    		return taskGeneration != generation.get() || pool.isShutdown();
+    	}
+
+		@Override
+		public void run() {
+        	if (isStale())
+        		return;
+        	// Check we still need to make the request
+        	if (!pendingRequests.contains(tile) || !currentRequests.add(tile)) {
+        		return;
+        	}
+        	var changed = new ArrayList<PathObject>();
+            var hierarchy = imageData == null ? null : imageData.getHierarchy();
+            try {
+            	classifierServer.readBufferedImage(tile.getRegionRequest());
+            	// Don't trigger any updates if the classifier has changed in the meantime
+            	if (isStale())
             		return;
-            	}
-//            	System.err.println(tile.hashCode() + " - " + ImageRegion.createInstance(tile.getImageX(), tile.getImageY(), tile.getImageWidth(), tile.getImageHeight(), tile.getZ(), tile.getT()));
-            	var changed = new ArrayList<PathObject>();
-                var hierarchy = imageData == null ? null : imageData.getHierarchy();
-                try {
-                	classifierServer.readBufferedImage(tile.getRegionRequest());
-//                    viewer.repaint();
-                	QuPathGUI.getInstance().repaintViewers();
-                    var channelType = classifierServer.getMetadata().getChannelType();
-                    if (channelType == ChannelType.CLASSIFICATION || channelType == ChannelType.PROBABILITY || channelType == ChannelType.MULTICLASS_PROBABILITY) {
-		                if (hierarchy != null) {
-//		                	if (pendingRequests.size() <= 1)
-//		                		changed.add(hierarchy.getRootObject());
-	                		changed.add(hierarchy.getRootObject());
-		                	hierarchy.getObjectsForRegion(PathAnnotationObject.class, tile.getRegionRequest(), changed);
-//		                	changed.addAll(hierarchy.getAnnotationObjects());
-		                }
-                    }
-                } catch (Exception e) {
-                   logger.error("Error requesting tile classification: ", e.getLocalizedMessage(), e);
-                } finally {
-                    currentRequests.remove(tile);
-                    pendingRequests.remove(tile);
-                    if (hierarchy != null && !changed.isEmpty()) {
-	                	Platform.runLater(() -> {
-	                		// TODO: We don't want to fire a load of 'heavy' events, so we state that isChanging = true (beware this may need revised!)
-	                		hierarchy.fireObjectMeasurementsChangedEvent(this, changed, true); //!pendingRequests.isEmpty());
-	                	});
-                    }
+            	QuPathGUI.getInstance().repaintViewers();
+                var channelType = classifierServer.getMetadata().getChannelType();
+                if (channelType == ChannelType.CLASSIFICATION || channelType == ChannelType.PROBABILITY || channelType == ChannelType.MULTICLASS_PROBABILITY) {
+	                if (hierarchy != null) {
+                		changed.add(hierarchy.getRootObject());
+	                	hierarchy.getObjectsForRegion(PathAnnotationObject.class, tile.getRegionRequest(), changed);
+	                }
                 }
-            });
-        }
+            } catch (Exception e) {
+            	if (!isStale())
+            		logger.error("Error requesting tile classification: ", e.getLocalizedMessage(), e);
+            } finally {
+                currentRequests.remove(tile);
+                pendingRequests.remove(tile);
+                if (hierarchy != null && !changed.isEmpty()) {
+                	Platform.runLater(() -> {
+                		// TODO: We don't want to fire a load of 'heavy' events, so we state that isChanging = true (beware this may need revised!)
+                		hierarchy.fireObjectMeasurementsChangedEvent(PixelClassificationOverlay.this, changed, true);
+                	});
+                }
+            }
+		}
+
+		@Override
+		public int compareTo(TileTask o) {
+			// Higher downsamples (lower resolutions) first
+			int cmp = -Double.compare(tile.getDownsample(), o.tile.getDownsample());
+			if (cmp != 0)
+				return cmp;
+			cmp = Double.compare(distance, o.distance);
+			if (cmp != 0)
+				return cmp;
+			return Long.compare(order, o.order);
+		}
+    	
+    }
+    
+    
+    /**
+     * Cache for RGB tiles, bounded by the (approximate) number of bytes required to store the images.
+     * The least recently used tiles are removed first.
+     */
+    private static class RGBCache {
+    	
+    	private final long maxBytes;
+    	private long currentBytes = 0L;
+    	private final Map<RegionRequest, BufferedImage> map = new LinkedHashMap<>(16, 0.75f, true);
+    	
+    	RGBCache(long maxBytes) {
+    		this.maxBytes = maxBytes;
+    	}
+    	
+    	synchronized BufferedImage get(RegionRequest request) {
+    		return map.get(request);
+    	}
+    	
+    	synchronized void put(RegionRequest request, BufferedImage img) {
+    		if (img == null)
+    			return;
+    		var previous = map.put(request, img);
+    		if (previous != null)
+    			currentBytes -= estimateBytes(previous);
+    		currentBytes += estimateBytes(img);
+    		Iterator<BufferedImage> iter = map.values().iterator();
+    		while (currentBytes > maxBytes && iter.hasNext()) {
+    			var next = iter.next();
+    			if (next == img)
+    				break;
+    			currentBytes -= estimateBytes(next);
+    			iter.remove();
+    		}
+    	}
+    	
+    	synchronized void clear() {
+    		map.clear();
+    		currentBytes = 0L;
+    	}
+    	
+    	private static long estimateBytes(BufferedImage img) {
+    		long bytesPerPixel = Math.max(1, img.getColorModel().getPixelSize() / 8);
+    		return (long)img.getWidth() * img.getHeight() * bytesPerPixel;
+    	}
+    	
     }
 	
-
-}
\ No newline at end of file
+}
@@ -817,7 +817,7 @@ public class PixelClassifierPane {
 		
 		var params = new ParameterList()
 				.addTitleParameter("Training data")
-				.addIntParameter("maxSamples", "Maximum samples", maxSamples, null, "Maximum number of training samples - only needed if you have a lot of annotations, slowing down training")
+				.addIntParameter("maxSamples", "Maximum samples", maxSamples, null, "Maximum number of training samples, divided equally between classes and selected randomly if more are available - reduces training time if you have a lot of annotations (use 0 for no limit)")
 				.addIntParameter("rngSeed", "RNG seed", rngSeed, null, "Seed for the random number generator used when selecting training samples")
 				.addBooleanParameter("reweightSamples", "Reweight samples", reweightSamples, "Weight training samples according to frequency")
 				.addTitleParameter("Preprocessing")
@@ -886,6 +886,8 @@ public class PixelClassifierPane {
 			var trainingImages = getTrainingImageData();
 			if (trainingImages.size() > 1)
 				logger.info("Creating training data from {} images", trainingImages.size());
+			helper.setMaxSamples(maxSamples);
+			helper.setSeed(rngSeed);
 			trainingData = helper.createTrainingData(trainingImages);
 		} catch (Exception e) {
 			logger.error("Error when updating training data", e);
@@ -896,20 +898,12 @@ public class PixelClassifierPane {
 			 return;
 		 }
 
-		 // TODO: Optionally limit the number of training samples we use
-		 //	     		var trainData = classifier.createTrainData(matFeatures, matTargets);
-
 		 // Ensure we seed the RNG for reproducibility
 		 opencv_core.setRNGSeed(rngSeed);
 		 
-		 // TODO: Prevent training K nearest neighbor with a huge number of samples (very slow!)
-		 var actualMaxSamples = this.maxSamples;
-		 
+		 // The number of samples per class has already been limited when creating the training data
 		 var trainData = trainingData.getTrainData();
-		 if (actualMaxSamples > 0 && trainData.getNTrainSamples() > actualMaxSamples)
-			 trainData.setTrainTestSplit(actualMaxSamples, true);
-		 else
-			 trainData.shuffleTrainTest();
+		 trainData.shuffleTrainTest();
 
 //		 System.err.println("Train: " + trainData.getTrainResponses());
 //		 System.err.println("Test: " + trainData.getTestResponses());
@@ -961,6 +955,7 @@ public class PixelClassifierPane {
 		 trainData = model.createTrainData(trainSamples, trainResponses, weights, false);
 		 
 		 logger.info("Training data: {} x {}, Target data: {} x {}", trainSamples.rows(), trainSamples.cols(), trainResponses.rows(), trainResponses.cols());
+		 model.setNumOutputClasses(labels.values().stream().mapToInt(i -> i).max().orElse(-1) + 1);
 		 model.train(trainData);
 		 
 		 // Calculate accuracy using whatever we can, as a rough guide to progress
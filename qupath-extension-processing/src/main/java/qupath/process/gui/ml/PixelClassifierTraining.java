@@ -21,47 +21,35 @@
 
 package qupath.process.gui.ml;
 
-import org.bytedeco.opencv.global.opencv_core;
 import org.bytedeco.opencv.global.opencv_ml;
 import org.bytedeco.opencv.opencv_ml.TrainData;
-import org.bytedeco.javacpp.indexer.FloatIndexer;
-import org.bytedeco.javacpp.indexer.IntIndexer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import qupath.lib.color.ColorToolsAwt;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.PixelCalibration;
 
 import org.bytedeco.opencv.opencv_core.Mat;
-import org.bytedeco.opencv.opencv_core.MatVector;
-import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.classes.PathClassFactory;
 import qupath.lib.objects.classes.PathClassFactory.StandardPathClasses;
-import qupath.lib.regions.RegionRequest;
-import qupath.lib.roi.interfaces.ROI;
+import qupath.opencv.ml.StratifiedReservoirSampler;
 import qupath.opencv.ops.ImageDataOp;
 import qupath.opencv.ops.ImageDataServer;
 import qupath.opencv.ops.ImageOps;
 
-import java.awt.BasicStroke;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.WeakHashMap;
 
 /**
  * Helper class for training a pixel classifier.
@@ -78,8 +66,10 @@ public class PixelClassifierTraining {
 	private PixelCalibration resolution = PixelCalibration.getDefaultInstance();
     private ImageDataOp featureCalculator;
     
-    private Mat matTraining;
-    private Mat matTargets;
+    private final PixelTrainingDataStore store = new PixelTrainingDataStore();
+    
+    private int maxSamples = -1;
+    private long seed = 100L;
     
     
     /**
@@ -135,7 +125,45 @@ public class PixelClassifierTraining {
         if (Objects.equals(this.featureCalculator, featureOp))
             return;
         this.featureCalculator = featureOp;
-        resetTrainingData();
+        store.clear();
+    }
+    
+    /**
+     * Get the maximum total number of training samples to use.
+     * @return the maximum number of samples, or a value &le; 0 if all samples are used
+     */
+    public synchronized int getMaxSamples() {
+    	return maxSamples;
+    }
+
+    /**
+     * Set the maximum total number of training samples to use.
+     * The limit is divided equally between the classifications, and if more samples are available for a 
+     * classification then a random subset is selected for it independently of the others.
+     * This limits the time and memory required for training when there are large training annotations, 
+     * and reduces class imbalance.
+     * @param maxSamples the maximum number of samples; if &le; 0, all samples are used
+     * @see StratifiedReservoirSampler
+     */
+    public synchronized void setMaxSamples(int maxSamples) {
+    	this.maxSamples = maxSamples;
+    }
+    
+    /**
+     * Get the seed used when selecting a random subset of training samples.
+     * @return
+     */
+    public synchronized long getSeed() {
+    	return seed;
+    }
+
+    /**
+     * Set the seed used when selecting a random subset of training samples.
+     * @param seed
+     * @see #setMaxSamples(int)
+     */
+    public synchronized void setSeed(long seed) {
+    	this.seed = seed;
     }
 
     private synchronized ClassifierTrainingData updateTrainingData(Map<PathClass, Integer> labelMap, Collection<ImageData<BufferedImage>> imageDataCollection) throws IOException {
@@ -175,26 +203,6 @@ public class PixelClassifierTraining {
         }
         
         
-        List<Mat> allFeatures = new ArrayList<>();
-        List<Mat> allTargets = new ArrayList<>();
-
-        for (var imageData : imageDataCollection) {
-	        // Get features & targets for all the tiles that we need
-	        var featureServer = getFeatureServer(imageData);
-	        if (featureServer != null) {
-		        var tiles = featureServer.getTileRequestManager().getAllTileRequests();
-		        for (var tile : tiles) {
-		            var tileFeatures = getTileFeatures(tile.getRegionRequest(), featureServer, boundaryStrategy, labels);
-		        	if (tileFeatures != null) {
-		        		allFeatures.add(tileFeatures.getFeatures());
-		        		allTargets.add(tileFeatures.getTargets());
-		        	}
-		        }
-	        } else {
-	        	logger.warn("Unable to generate features for {}", imageData);
-	        }
-        }
-        
         // We need at least two classes for anything very meaningful to happen
         int nTargets = labels.size();
         if (nTargets <= 1) {
@@ -202,17 +210,38 @@ public class PixelClassifierTraining {
             resetTrainingData();
             return null;
         }
-         
-        if (matTraining == null)
-            matTraining = new Mat();
-        if (matTargets == null)
-            matTargets = new Mat();
-        opencv_core.vconcat(new MatVector(allFeatures.toArray(Mat[]::new)), matTraining);
-        opencv_core.vconcat(new MatVector(allTargets.toArray(Mat[]::new)), matTargets);
+        
+        List<ImageDataServer<BufferedImage>> featureServers = new ArrayList<>();
+        for (var imageData : imageDataCollection) {
+	        var featureServer = getFeatureServer(imageData);
+	        if (featureServer != null)
+	        	featureServers.add(featureServer);
+	        else
+	        	logger.warn("Unable to generate features for {}", imageData);
+        }
+        
+        // Get features & targets for all the tiles that we need - only recomputing tiles that have changed.
+        // A stratified random subset of samples is selected as the tiles are processed, so that only the 
+        // selected samples are ever combined.
+        int maxSamplesPerClass = maxSamples <= 0 ? -1 : (int)Math.ceil(maxSamples / (double)nTargets);
+        var sampler = new StratifiedReservoirSampler(maxSamplesPerClass, seed);
+        if (!store.update(featureServers, boundaryStrategy, labels, sampler)) {
+        	logger.warn("No training samples found!");
+        	return null;
+        }
+        if (sampler.isSubsampled()) {
+        	for (var entry : labels.entrySet()) {
+        		int label = entry.getValue();
+        		if (sampler.getSelectedCount(label) < sampler.getOfferedCount(label))
+        			logger.info("Selected {} of {} training samples for {}", sampler.getSelectedCount(label), sampler.getOfferedCount(label), entry.getKey());
+        	}
+        }
+        var matTraining = store.getFeatures(sampler);
+        var matTargets = store.getTargets(sampler);
 
         logger.debug("Training data: {} x {}, Target data: {} x {}", matTraining.rows(), matTraining.cols(), matTargets.rows(), matTargets.cols());
         
-        return new ClassifierTrainingData(labels, matTraining, matTargets);
+        return new ClassifierTrainingData(labels, matTraining, matTargets, sampler);
     }
     
     
@@ -245,7 +274,7 @@ public class PixelClassifierTraining {
     	if (this.boundaryStrategy == strategy)
     		return;
     	this.boundaryStrategy = strategy == null ? BoundaryStrategy.getSkipBoundaryStrategy() : strategy;
-    	resetTrainingData();
+    	store.clear();
     }
     
     /**
@@ -259,12 +288,7 @@ public class PixelClassifierTraining {
     
     
     private synchronized void resetTrainingData() {
-        if (matTraining != null)
-            matTraining.release();
-        matTraining = null;
-        if (matTargets != null)
-            matTargets.release();
-        matTargets = null;
+        store.reset();
     }
 
     
@@ -277,11 +301,14 @@ public class PixelClassifierTraining {
     	private Mat matTargets;
 
     	private Map<PathClass, Integer> pathClassesLabels;
+    	
+    	private StratifiedReservoirSampler sampler;
 
-    	private ClassifierTrainingData(Map<PathClass, Integer> pathClassesLabels, Mat matTraining, Mat matTargets) {
+    	private ClassifierTrainingData(Map<PathClass, Integer> pathClassesLabels, Mat matTraining, Mat matTargets, StratifiedReservoirSampler sampler) {
     		this.pathClassesLabels = Collections.unmodifiableMap(new LinkedHashMap<>(pathClassesLabels));
     		this.matTraining = matTraining;
     		this.matTargets = matTargets;
+    		this.sampler = sampler;
     	}
 
     	/**
@@ -299,6 +326,17 @@ public class PixelClassifierTraining {
     	public TrainData getTrainData() {
     		return TrainData.create(matTraining.clone(), opencv_ml.ROW_SAMPLE, matTargets.clone());
     	}
+    	
+    	/**
+    	 * Get the sampler used to select the training samples.
+    	 * This can be used to determine which of the available samples were selected, where the index of each sample 
+    	 * corresponds to its row when the samples for all training tiles are combined (in order).
+    	 * @return
+    	 * @see PixelClassifierTraining#setMaxSamples(int)
+    	 */
+    	public StratifiedReservoirSampler getSampler() {
+    		return sampler;
+    	}
 
     }
     
@@ -333,215 +371,5 @@ public class PixelClassifierTraining {
     public ClassifierTrainingData createTrainingDataForLabelMap(Collection<ImageData<BufferedImage>> imageData, Map<PathClass, Integer> labels) throws IOException {
         return updateTrainingData(labels, imageData);
     }
-    
-    
-	private static Map<RegionRequest, TileFeatures> cache = Collections.synchronizedMap(new WeakHashMap<>());
-    
-    private static TileFeatures getTileFeatures(RegionRequest request, ImageDataServer<BufferedImage> featureServer, BoundaryStrategy strategy, Map<PathClass, Integer> labels) {
-		TileFeatures features = cache.get(request);
-		Map<ROI, PathClass> rois = null;
-		
-		var annotations = featureServer.getImageData().getHierarchy().getObjectsForRegion(PathAnnotationObject.class, request, null);
-		if (annotations != null && !annotations.isEmpty()) {
-    		rois = new HashMap<>();
-    		for (var annotation : annotations) {
-    			// Don't train from locked annotations
-    			if (!isTrainableAnnotation(annotation))
-    				continue;
-    			
-    			var roi = annotation.getROI();
-    			// For points, make sure at least one point is in the region
-    			if (roi != null && roi.isPoint()) {
-        			boolean containsPoint = false;
-    				for (var p : roi.getAllPoints()) {
-    					if (request.contains((int)p.getX(), (int)p.getY(), roi.getZ(), roi.getT())) {
-    						containsPoint = true;
-    						break;
-    					}
-    				}
-    				if (!containsPoint)
-    					continue;
-    			}
-    			
-    			var pathClass = annotation.getPathClass();
-    			if (roi != null && labels.containsKey(pathClass)) {
-    				rois.put(roi, pathClass);
-    			}
-    		}
-		}
-		
-		// We don't have any features
-		if (rois == null || rois.isEmpty()) {
-    		if (features != null)
-				cache.remove(request);
-			return null;
-		}
-
-		// Check if we can return cached features
-		if (features != null) {
-			if (features.featureServer.equals(featureServer) &&
-					features.labels.equals(labels) &&
-					features.strategy.equals(strategy) &&
-					features.rois.equals(rois) &&
-					features.request.equals(request))
-				return features;
-		}
-		
-		// Calculate new features
-		try {
-//			System.err.println("Calculating " + request);
-    		features = new TileFeatures(request, featureServer, strategy, rois, labels);
-    		cache.put(request, features);
-		} catch (IOException e) {
-			cache.remove(request);
-			logger.error("Error requesting features for " + request, e);
-		}
-		
-		return features;
-	}
-    
-    
-    private static class TileFeatures {
-    	    	    	
-    	private Map<PathClass, Integer> labels;
-    	private ImageDataServer<BufferedImage> featureServer;
-    	private RegionRequest request;
-    	private Map<ROI, PathClass> rois;
-    	private BoundaryStrategy strategy;
-    	private Mat matFeatures;
-    	private Mat matTargets;
-    	
-    	private TileFeatures(RegionRequest request, ImageDataServer<BufferedImage> featureServer, BoundaryStrategy strategy, Map<ROI, PathClass> rois, Map<PathClass, Integer> labels) throws IOException {
-    		this.request = request;
-    		this.strategy = strategy;
-    		this.featureServer = featureServer;
-    		this.rois = rois;
-    		this.labels = labels;
-    		ensureFeaturesCalculated();
-    	};
-    	
-    	/**
-    	 * Note that this implementation supports only one target per pixel, i.e. not multi-class classifications.
-    	 * @throws IOException
-    	 */
-    	private void ensureFeaturesCalculated() throws IOException {
-    		if (matFeatures != null && matTargets != null)
-    			return;
-    		
-    		var features = featureServer.readBufferedImage(request);
-    		
-    		// TODO: Handle differing boundary thicknesses
-    		double downsample = request.getDownsample();
-    		double boundaryThickness = strategy.getBoundaryThickness();
-    		BasicStroke stroke = boundaryThickness > 0 ? new BasicStroke((float)(downsample * boundaryThickness)) : null;
-    		BasicStroke singleStroke = new BasicStroke((float)downsample);
-    		
-    		int width = features.getWidth();
-    		int height = features.getHeight();
-    		var imgLabels = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-    		var raster = imgLabels.getRaster();
-    		
-    		// Create labels one annotation at a time - we want to permit overlapping annotations for multiclass classification
-    		for (var entry : rois.entrySet()) {
-    			var roi = entry.getKey();
-    			var pathClass = entry.getValue();
-    			Integer label = labels.get(pathClass);
-    			if (label == null)
-    				continue;
-    			// Need to add 1 because we want to ignore zeros as being unpainted
-    			int lab = label.intValue() + 1;
-    			
-    			boolean isArea = roi.isArea();
-    			boolean isLine = roi.isLine();
-    			
-    			if (roi.isPoint()) {
-    				for (var p : roi.getAllPoints()) {
-        				int x = (int)Math.round((p.getX() - request.getX()) / downsample);    					
-        				int y = (int)Math.round((p.getY() - request.getY()) / downsample); 
-        				if (x >= 0 && y >= 0 && x < width && y < height)
-        					raster.setSample(x, y, 0, lab);
-    				}
-    			} else {
-	    			var g2d = imgLabels.createGraphics();
-	    			g2d.scale(1.0/downsample, 1.0/downsample);
-	                g2d.translate(-request.getX(), -request.getY());
-	                g2d.setColor(ColorToolsAwt.getCachedColor(lab, lab, lab));
-	                
-	                var shape = entry.getKey().getShape();
-	                if (isArea) {
-	                	g2d.fill(shape);
-	                	// Do not train on boundaries if these should be classified some other way
-	                	var boundaryClass = strategy.getBoundaryClass(pathClass);
-	                	Integer boundaryLabel = boundaryClass == null ? null : labels.get(boundaryClass);
-	                	if (stroke != null && boundaryLabel != null) {
-	                		int boundaryLab = boundaryLabel.intValue() + 1;
-	                		g2d.setColor(ColorToolsAwt.getCachedColor(boundaryLab, boundaryLab, boundaryLab));
-	                    	g2d.setStroke(stroke);
-	                    	g2d.draw(shape);                        		
-	                	}
-	                } else if (isLine) {
-	                	g2d.setStroke(stroke == null ? singleStroke : stroke);
-	                	g2d.draw(shape);
-	                }
-	        		g2d.dispose();
-    			}
-    		}
-    		// Allocate buffers
-    		int capacity = width * height;
-    		int nFeatures = features.getRaster().getNumBands();
-    		float[] buf = new float[nFeatures];
-    		var extracted = FloatBuffer.allocate(capacity * nFeatures);    		
-    		var targets = IntBuffer.allocate(capacity);
-    		var rasterFeatures = features.getRaster();
-    		for (int y = 0; y < height; y++) {
-        		for (int x = 0; x < width; x++) {
-        			int label = raster.getSample(x, y, 0);
-        			if (label != 0) {
-        				buf = rasterFeatures.getPixel(x, y, buf);
-        				extracted.put(buf);
-        				targets.put(label-1);
-        			}
-        		}    			
-    		}
-    		
-    		// Create Mats
-    		int n = targets.position();
-    		matFeatures = new Mat(n, nFeatures, opencv_core.CV_32FC1);
-    		matTargets = new Mat(n, 1, opencv_core.CV_32SC1);
-
-    		if (n == 0) {
-//    			new ImagePlus("Mask", IJTools.convertToImageProcessor(imgLabels, 0)).show(); 
-//    			for (var r : rois.keySet())
-//    				System.err.println(r.getArea());
-    			// This can happen if a training annotation falls exactly on a tile boundary
-    			// (However note that the boundary strategy can still make some annotations useful sometimes)
-    			logger.debug("I thought I'd have features but I don't! " + rois.size() + " - " + request);
-    			return;
-    		}
-
-    		IntIndexer idxTargets = matTargets.createIndexer();
-    		FloatIndexer idxFeatures = matFeatures.createIndexer();
-    		int t = 0;
-    		for (int i = 0; i < n; i++) {
-    			for (int j = 0; j < nFeatures; j++) {
-    				idxFeatures.put(t, extracted.get(t));
-    				t++;
-    			}
-    			idxTargets.put(i, targets.get(i));
-    		}
-    		idxTargets.release();
-    		idxFeatures.release();
-    	}
-    	
-    	public Mat getFeatures() {
-    		return matFeatures;
-    	}
-
-    	public Mat getTargets() {
-    		return matTargets;
-    	}
-
-    }
-    
 
-}
\ No newline at end of file
+}
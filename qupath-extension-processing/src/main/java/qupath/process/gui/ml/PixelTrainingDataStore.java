@@ -0,0 +1,413 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.process.gui.ml;
+
+import java.awt.BasicStroke;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.javacpp.indexer.IntIndexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.color.ColorToolsAwt;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
+import qupath.opencv.ml.StratifiedReservoirSampler;
+import qupath.opencv.ops.ImageDataServer;
+
+/**
+ * Incremental store for pixel classifier training samples.
+ * <p>
+ * Samples (features and labels) are extracted per tile, and cached in a bounded LRU cache.
+ * When the training data is updated, tiles are only recomputed if the training annotations that overlap them have changed.
+ * Tiles are processed in parallel, using a thread pool shared by all stores.
+ * <p>
+ * The samples from all tiles are never combined into a single matrix. Rather, each tile's targets are offered to a 
+ * {@link StratifiedReservoirSampler} in turn, and only the selected samples are then copied from the tiles.
+ */
+class PixelTrainingDataStore {
+
+	private static final Logger logger = LoggerFactory.getLogger(PixelTrainingDataStore.class);
+
+	private final long maxBytes;
+	private long currentBytes = 0L;
+	private final Map<RegionRequest, TileFeatures> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * Shared pool, so that threads are not created (and left idle) for every store.
+	 */
+	private static final ExecutorService pool = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(),
+			ThreadTools.createThreadFactory("pixel-classifier-training-", true));
+
+	private List<TileFeatures> segments = new ArrayList<>();
+
+	/**
+	 * Constructor.
+	 * @param maxBytes maximum number of bytes to use for cached tile samples (approximately)
+	 */
+	PixelTrainingDataStore(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Constructor using a default cache size, based upon available memory.
+	 */
+	PixelTrainingDataStore() {
+		this(Math.min(Runtime.getRuntime().maxMemory() / 8, 1024L * 1024L * 1024L));
+	}
+
+	/**
+	 * Update the training samples, recomputing features only for tiles where the training annotations have changed.
+	 * <p>
+	 * The targets for each tile are offered to the sampler as soon as they are available, in a deterministic order. 
+	 * The selected samples can then be retrieved with {@link #getFeatures(StratifiedReservoirSampler)} and 
+	 * {@link #getTargets(StratifiedReservoirSampler)}.
+	 * @param featureServers feature servers for each training image
+	 * @param strategy strategy to handle area annotation boundaries
+	 * @param labels map of classifications to labels
+	 * @param sampler sampler used to select the training samples; this should not have been offered any samples previously
+	 * @return true if at least one tile contains samples, false otherwise (or if the request was interrupted)
+	 */
+	synchronized boolean update(Collection<ImageDataServer<BufferedImage>> featureServers, BoundaryStrategy strategy, Map<PathClass, Integer> labels, StratifiedReservoirSampler sampler) {
+		// Submit all tiles
+		List<Future<TileFeatures>> futures = new ArrayList<>();
+		for (var featureServer : featureServers) {
+			var tiles = featureServer.getTileRequestManager().getAllTileRequests();
+			for (var tile : tiles) {
+				var request = tile.getRegionRequest();
+				futures.add(pool.submit(() -> getTileFeatures(request, featureServer, strategy, labels)));
+			}
+		}
+
+		// Gather the results in order, so that the output is deterministic
+		List<TileFeatures> newSegments = new ArrayList<>();
+		try {
+			for (var future : futures) {
+				var features = future.get();
+				if (features != null && features.nSamples() > 0) {
+					sampler.offerRows(features.matTargets);
+					newSegments.add(features);
+				}
+			}
+		} catch (InterruptedException e) {
+			logger.warn("Training data update interrupted");
+			futures.forEach(f -> f.cancel(true));
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			logger.error("Error updating training data: " + e.getLocalizedMessage(), e);
+			futures.forEach(f -> f.cancel(true));
+			return false;
+		}
+
+		segments = newSegments;
+		logger.debug("Training samples available from {} tile(s)", newSegments.size());
+		return !newSegments.isEmpty();
+	}
+
+	/**
+	 * Get the features for the selected samples, with one row per sample.
+	 * @param sampler the sampler passed to the most recent call to {@link #update(Collection, BoundaryStrategy, Map, StratifiedReservoirSampler)}
+	 * @return a new matrix containing the selected features
+	 */
+	synchronized Mat getFeatures(StratifiedReservoirSampler sampler) {
+		return sampler.selectRows(segments.stream().map(s -> s.matFeatures).collect(Collectors.toList()));
+	}
+
+	/**
+	 * Get the targets for the selected samples, with one row per sample.
+	 * @param sampler the sampler passed to the most recent call to {@link #update(Collection, BoundaryStrategy, Map, StratifiedReservoirSampler)}
+	 * @return a new matrix containing the selected targets
+	 */
+	synchronized Mat getTargets(StratifiedReservoirSampler sampler) {
+		return sampler.selectRows(segments.stream().map(s -> s.matTargets).collect(Collectors.toList()));
+	}
+
+	/**
+	 * Reset the training data, without clearing the cache.
+	 */
+	synchronized void reset() {
+		segments = new ArrayList<>();
+	}
+
+	/**
+	 * Reset the training data and clear the cache.
+	 * This should be called whenever the features or boundary strategy change, since no cached samples can be reused.
+	 */
+	synchronized void clear() {
+		reset();
+		synchronized (cache) {
+			cache.clear();
+			currentBytes = 0L;
+		}
+	}
+
+
+	private TileFeatures getCachedTileFeatures(RegionRequest request) {
+		synchronized (cache) {
+			return cache.get(request);
+		}
+	}
+
+	private void removeCachedTileFeatures(RegionRequest request) {
+		synchronized (cache) {
+			var removed = cache.remove(request);
+			if (removed != null)
+				currentBytes -= removed.nBytes();
+		}
+	}
+
+	private void putCachedTileFeatures(RegionRequest request, TileFeatures features) {
+		synchronized (cache) {
+			var previous = cache.put(request, features);
+			if (previous != null)
+				currentBytes -= previous.nBytes();
+			currentBytes += features.nBytes();
+			Iterator<TileFeatures> iter = cache.values().iterator();
+			while (currentBytes > maxBytes && iter.hasNext()) {
+				var next = iter.next();
+				if (next == features)
+					break;
+				currentBytes -= next.nBytes();
+				iter.remove();
+			}
+		}
+	}
+
+
+	private TileFeatures getTileFeatures(RegionRequest request, ImageDataServer<BufferedImage> featureServer, BoundaryStrategy strategy, Map<PathClass, Integer> labels) {
+		TileFeatures features = getCachedTileFeatures(request);
+		Map<ROI, PathClass> rois = null;
+
+		var imageData = featureServer.getImageData();
+		var annotations = imageData.getHierarchy().getObjectsForRegion(PathAnnotationObject.class, request, null);
+		if (annotations != null && !annotations.isEmpty()) {
+			rois = new LinkedHashMap<>();
+			for (var annotation : annotations) {
+				// Don't train from locked annotations
+				if (!PixelClassifierTraining.isTrainableAnnotation(annotation))
+					continue;
+
+				var roi = annotation.getROI();
+				// For points, make sure at least one point is in the region
+				if (roi != null && roi.isPoint()) {
+					boolean containsPoint = false;
+					for (var p : roi.getAllPoints()) {
+						if (request.contains((int)p.getX(), (int)p.getY(), roi.getZ(), roi.getT())) {
+							containsPoint = true;
+							break;
+						}
+					}
+					if (!containsPoint)
+						continue;
+				}
+
+				var pathClass = annotation.getPathClass();
+				if (roi != null && labels.containsKey(pathClass)) {
+					rois.put(roi, pathClass);
+				}
+			}
+		}
+
+		// We don't have any features
+		if (rois == null || rois.isEmpty()) {
+			if (features != null)
+				removeCachedTileFeatures(request);
+			return null;
+		}
+
+		// Check if we can return cached features
+		if (features != null && features.isValid(imageData, strategy, rois, labels))
+			return features;
+
+		// Calculate new features
+		try {
+			features = new TileFeatures(request, featureServer, strategy, rois, labels);
+			putCachedTileFeatures(request, features);
+		} catch (IOException e) {
+			removeCachedTileFeatures(request);
+			logger.error("Error requesting features for " + request, e);
+			features = null;
+		}
+		return features;
+	}
+
+
+	private static class TileFeatures {
+
+		private Map<PathClass, Integer> labels;
+		private WeakReference<ImageData<BufferedImage>> imageData;
+		private Map<ROI, PathClass> rois;
+		private BoundaryStrategy strategy;
+		private Mat matFeatures;
+		private Mat matTargets;
+
+		private TileFeatures(RegionRequest request, ImageDataServer<BufferedImage> featureServer, BoundaryStrategy strategy, Map<ROI, PathClass> rois, Map<PathClass, Integer> labels) throws IOException {
+			this.strategy = strategy;
+			this.imageData = new WeakReference<>(featureServer.getImageData());
+			this.rois = rois;
+			this.labels = labels;
+			calculateFeatures(request, featureServer);
+		};
+
+		private boolean isValid(ImageData<BufferedImage> imageData, BoundaryStrategy strategy, Map<ROI, PathClass> rois, Map<PathClass, Integer> labels) {
+			return this.imageData.get() == imageData &&
+					this.labels.equals(labels) &&
+					this.strategy.equals(strategy) &&
+					this.rois.equals(rois);
+		}
+
+		private int nSamples() {
+			return matTargets == null ? 0 : matTargets.rows();
+		}
+
+		private long nBytes() {
+			return nSamples() * (matFeatures.cols() + 1L) * 4L;
+		}
+
+		/**
+		 * Note that this implementation supports only one target per pixel, i.e. not multi-class classifications.
+		 * @throws IOException
+		 */
+		private void calculateFeatures(RegionRequest request, ImageDataServer<BufferedImage> featureServer) throws IOException {
+			var features = featureServer.readBufferedImage(request);
+
+			// TODO: Handle differing boundary thicknesses
+			double downsample = request.getDownsample();
+			double boundaryThickness = strategy.getBoundaryThickness();
+			BasicStroke stroke = boundaryThickness > 0 ? new BasicStroke((float)(downsample * boundaryThickness)) : null;
+			BasicStroke singleStroke = new BasicStroke((float)downsample);
+
+			int width = features.getWidth();
+			int height = features.getHeight();
+			var imgLabels = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+			var raster = imgLabels.getRaster();
+
+			// Create labels one annotation at a time - we want to permit overlapping annotations for multiclass classification
+			for (var entry : rois.entrySet()) {
+				var roi = entry.getKey();
+				var pathClass = entry.getValue();
+				Integer label = labels.get(pathClass);
+				if (label == null)
+					continue;
+				// Need to add 1 because we want to ignore zeros as being unpainted
+				int lab = label.intValue() + 1;
+
+				boolean isArea = roi.isArea();
+				boolean isLine = roi.isLine();
+
+				if (roi.isPoint()) {
+					for (var p : roi.getAllPoints()) {
+						int x = (int)Math.round((p.getX() - request.getX()) / downsample);
+						int y = (int)Math.round((p.getY() - request.getY()) / downsample);
+						if (x >= 0 && y >= 0 && x < width && y < height)
+							raster.setSample(x, y, 0, lab);
+					}
+				} else {
+					var g2d = imgLabels.createGraphics();
+					g2d.scale(1.0/downsample, 1.0/downsample);
+					g2d.translate(-request.getX(), -request.getY());
+					g2d.setColor(ColorToolsAwt.getCachedColor(lab, lab, lab));
+
+					var shape = roi.getShape();
+					if (isArea) {
+						g2d.fill(shape);
+						// Do not train on boundaries if these should be classified some other way
+						var boundaryClass = strategy.getBoundaryClass(pathClass);
+						Integer boundaryLabel = boundaryClass == null ? null : labels.get(boundaryClass);
+						if (stroke != null && boundaryLabel != null) {
+							int boundaryLab = boundaryLabel.intValue() + 1;
+							g2d.setColor(ColorToolsAwt.getCachedColor(boundaryLab, boundaryLab, boundaryLab));
+							g2d.setStroke(stroke);
+							g2d.draw(shape);
+						}
+					} else if (isLine) {
+						g2d.setStroke(stroke == null ? singleStroke : stroke);
+						g2d.draw(shape);
+					}
+					g2d.dispose();
+				}
+			}
+			// Allocate buffers
+			int capacity = width * height;
+			int nFeatures = features.getRaster().getNumBands();
+			float[] buf = new float[nFeatures];
+			var extracted = FloatBuffer.allocate(capacity * nFeatures);
+			var targets = IntBuffer.allocate(capacity);
+			var rasterFeatures = features.getRaster();
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					int label = raster.getSample(x, y, 0);
+					if (label != 0) {
+						buf = rasterFeatures.getPixel(x, y, buf);
+						extracted.put(buf);
+						targets.put(label-1);
+					}
+				}
+			}
+
+			// Create Mats
+			int n = targets.position();
+			matFeatures = new Mat(n, nFeatures, opencv_core.CV_32FC1);
+			matTargets = new Mat(n, 1, opencv_core.CV_32SC1);
+
+			if (n == 0) {
+				// This can happen if a training annotation falls exactly on a tile boundary
+				// (However note that the boundary strategy can still make some annotations useful sometimes)
+				logger.debug("I thought I'd have features but I don't! " + rois.size() + " - " + request);
+				return;
+			}
+
+			IntIndexer idxTargets = matTargets.createIndexer();
+			FloatIndexer idxFeatures = matFeatures.createIndexer();
+			idxFeatures.put(0L, extracted.array(), 0, n * nFeatures);
+			idxTargets.put(0L, targets.array(), 0, n);
+			idxTargets.release();
+			idxFeatures.release();
+		}
+
+	}
+
+}
@@ -654,7 +654,7 @@ public class StarDist2D {
 		
 		// Add shape measurements, if needed
 		if (measureShape)
-			detections.parallelStream().forEach(c -> ObjectMeasurements.addShapeMeasurements(c, cal));
+			ObjectMeasurements.addShapeMeasurements(detections, cal);
 		
 		// Add intensity measurements, if needed
 		if (!detections.isEmpty() && !measurements.isEmpty()) {
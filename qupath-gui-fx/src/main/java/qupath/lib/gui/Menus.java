@@ -760,6 +760,10 @@ class Menus {
 		@ActionMenu("Show memory monitor")
 		public final Action MEMORY_MONITORY = Commands.createSingleStageAction(() -> Commands.createMemoryMonitorDialog(qupath));
 		
+		@ActionDescription("Show a dialog to profile the time taken to paint the active viewer, including tiles, display transforms and overlays.")
+		@ActionMenu("Show viewer paint profiler")
+		public final Action PAINT_PROFILER = Commands.createSingleStageAction(() -> Commands.createViewerPaintProfilerDialog(qupath));
+		
 		@ActionDescription("Show the log. This is very helpful for identifying and debugging errors. "
 				+ "\n\nIf you wish to report a problem using QuPath, please check the log for relevant information to provide.")
 		@ActionMenu("Show log")
@@ -234,6 +234,8 @@ import qupath.lib.projects.Projects;
 import qupath.lib.roi.RoiTools;
 import qupath.lib.roi.interfaces.ROI;
 import qupath.lib.gui.scripting.DefaultScriptEditor;
+import qupath.opencv.dnn.DnnBackend;
+import qupath.opencv.dnn.DnnBackends;
 
 
 
@@ -1559,6 +1561,8 @@ public class QuPathGUI {
 		// Set the ImageServer to also look on the same search path
 		List<ImageServerBuilder<?>> serverBuildersBefore = ImageServerProvider.getInstalledImageServerBuilders();
 		ImageServerProvider.setServiceLoader(ServiceLoader.load(ImageServerBuilder.class, extensionClassLoader));
+		// Also look for inference backends
+		DnnBackends.setServiceLoader(ServiceLoader.load(DnnBackend.class, extensionClassLoader));
 		if (showNotification) {
 			// A bit convoluted... but try to show new servers that have been loaded by comparing with the past
 			List<String> serverBuilders = serverBuildersBefore.stream().map(s -> s.getName()).collect(Collectors.toList());
@@ -4223,6 +4227,8 @@ public class QuPathGUI {
 				}
 			}
 			this.activeViewerProperty.set(viewer);
+			if (imageRegionStore != null)
+				imageRegionStore.setFocusedRequester(viewer);
 			lastX = Double.NaN;
 			lastY = Double.NaN;
 			lastDownsample = Double.NaN;
@@ -1751,6 +1751,15 @@ public class Commands {
 	public static Stage createMemoryMonitorDialog(QuPathGUI qupath) {
 		return new MemoryMonitorDialog(qupath).getStage();
 	}
+	
+	/**
+	 * Create a dialog to profile the time taken to paint the active viewer.
+	 * @param qupath
+	 * @return
+	 */
+	public static Stage createViewerPaintProfilerDialog(QuPathGUI qupath) {
+		return new ViewerPaintProfilerDialog(qupath).getStage();
+	}
 
 	/**
 	 * Show a mini viewer window associated with a specific viewer.
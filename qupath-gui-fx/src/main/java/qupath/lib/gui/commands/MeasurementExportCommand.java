@@ -25,6 +25,8 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
@@ -61,6 +63,7 @@ import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.ComboBox;
 import javafx.scene.control.Dialog;
 import javafx.scene.control.Label;
@@ -85,9 +88,12 @@ import qupath.lib.objects.PathDetectionObject;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathRootObject;
 import qupath.lib.objects.TMACoreObject;
+import qupath.lib.plugins.SimpleProgressMonitor;
 import qupath.lib.projects.Project;
 import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.projects.ProjectMeasurementExporter;
 import qupath.lib.projects.Projects;
+import qupath.lib.regions.ImageRegion;
 
 /**
  * Dialog box to export measurements
@@ -115,6 +121,7 @@ public class MeasurementExportCommand implements Runnable {
 	private ComboBox<String> pathObjectCombo;
 	private ComboBox<String> separatorCombo;
 	private CheckComboBox<String> includeCombo;
+	private CheckBox cbStreamed = new CheckBox("Stream stored measurements only (faster, lower memory)");
 	
 	private ButtonType btnExport = new ButtonType("Export", ButtonData.OK_DONE);
 	
@@ -261,6 +268,11 @@ public class MeasurementExportCommand implements Runnable {
 				outputText.setText(currentOut.replace(".tsv", ".csv"));
 		});
 
+		PaneTools.addGridRow(optionPane, row++, 0, 
+				"Read images in parallel & write objects as they are read, rather than building a measurement table for each image.\n" + 
+				"Only measurements stored for each object are exported, not values that are computed for display (e.g. ROI areas, or counts of cells within annotations).",
+				cbStreamed, cbStreamed, cbStreamed, cbStreamed, cbStreamed);
+		
 		PaneTools.getContentsOfType(optionPane, Label.class, false).forEach(e -> e.setMinWidth(160));
 		PaneTools.setToExpandGridPaneWidth(outputText, pathObjectCombo, separatorCombo, includeCombo);
 		btnPopulateColumns.setMinWidth(100);
@@ -328,7 +340,7 @@ public class MeasurementExportCommand implements Runnable {
 			.includeOnlyColumns(include)
 			.exportType(type);
 		
-		ExportTask worker = new ExportTask(exporter, outputText.getText());
+		ExportTask worker = new ExportTask(exporter, outputText.getText(), cbStreamed.isSelected());
 		
 		ProgressDialog progress = new ProgressDialog(worker);
 		progress.setWidth(600);
@@ -383,13 +395,15 @@ public class MeasurementExportCommand implements Runnable {
 		private List<String> excludeColumns;
 		private List<String> includeOnlyColumns;
 		private String separator;
+		private boolean streamed;
 		
 		// Default: Exporting image
 		private Class<? extends PathObject> type = PathAnnotationObject.class;
 		
 		
-		public ExportTask(MeasurementExporter exporter, String pathOut) {
+		public ExportTask(MeasurementExporter exporter, String pathOut, boolean streamed) {
 			this.pathOut = pathOut;
+			this.streamed = streamed;
 			this.imageList = exporter.getImageList();
 			this.excludeColumns = exporter.getExcludeColumns();
 			this.includeOnlyColumns = exporter.getIncludeColumns();
@@ -411,6 +425,9 @@ public class MeasurementExportCommand implements Runnable {
 
 		@Override
 		protected Void call() {
+			if (streamed)
+				return callStreamed();
+			
 			long startTime = System.currentTimeMillis();
 	
 			Map<ProjectImageEntry<?>, String[]> imageCols = new HashMap<ProjectImageEntry<?>, String[]>();
@@ -540,5 +557,65 @@ public class MeasurementExportCommand implements Runnable {
 			Dialogs.showMessageDialog("Export completed", "Successful export!");
 			return null;
 		}
+		
+		/**
+		 * Export using a {@link ProjectMeasurementExporter}, which streams objects to the output without building a table model for each image.
+		 */
+		private Void callStreamed() {
+			var exporter = new ProjectMeasurementExporter(imageList)
+					.exportType(type)
+					.separator(separator)
+					.includeOnlyColumns(includeOnlyColumns.toArray(String[]::new))
+					.excludeColumns(excludeColumns.toArray(String[]::new))
+					.progressMonitor(new TaskProgressMonitor());
+			try {
+				exporter.exportMeasurements(new File(pathOut));
+			} catch (InterruptedIOException e) {
+				logger.warn("Export cancelled");
+				return null;
+			} catch (IOException e) {
+				logger.error(e.getLocalizedMessage(), e);
+				Dialogs.showErrorMessage("Export failed", e);
+				return null;
+			}
+			logger.info("Measurements exported to " + pathOut);
+			Dialogs.showMessageDialog("Export completed", "Successful export!");
+			return null;
+		}
+		
+		/**
+		 * Pass progress updates from the streamed exporter to this task.
+		 */
+		private class TaskProgressMonitor implements SimpleProgressMonitor {
+			
+			private int maxProgress = 1;
+			private int progress = 0;
+
+			@Override
+			public void startMonitoring(String message, int maxProgress, boolean mayCancel) {
+				this.maxProgress = Math.max(1, maxProgress);
+				updateMessage(message);
+				ExportTask.this.updateProgress(0, this.maxProgress);
+			}
+
+			@Override
+			public synchronized void updateProgress(int increment, String message, ImageRegion region) {
+				progress += increment;
+				updateMessage(message + " (" + progress + "/" + maxProgress + ")");
+				ExportTask.this.updateProgress(progress, maxProgress);
+			}
+
+			@Override
+			public void pluginCompleted(String message) {
+				updateMessage(message);
+			}
+
+			@Override
+			public boolean cancelled() {
+				return isQuietlyCancelled() || isCancelled();
+			}
+			
+		}
+		
 	}
 }
\ No newline at end of file
@@ -558,6 +558,7 @@ public class MiniViewers {
 				
 				// Paint viewer
 				mainViewer.getImageRegionStore().paintRegion(
+						this,
 						mainViewer.getServer(),
 						g2d,
 						g2d.getClip(),
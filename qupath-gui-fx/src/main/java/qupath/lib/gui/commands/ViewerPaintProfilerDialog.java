@@ -0,0 +1,235 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.commands;
+
+import java.io.File;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.beans.binding.Bindings;
+import javafx.geometry.Insets;
+import javafx.geometry.Side;
+import javafx.scene.Scene;
+import javafx.scene.chart.LineChart;
+import javafx.scene.chart.NumberAxis;
+import javafx.scene.chart.XYChart;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.ToggleButton;
+import javafx.scene.control.Tooltip;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.GridPane;
+import javafx.scene.layout.Priority;
+import javafx.stage.Stage;
+import javafx.util.Duration;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.dialogs.Dialogs;
+import qupath.lib.gui.viewer.ViewerPaintProfiler;
+
+/**
+ * A basic GUI to show where the time is spent when painting the active viewer.
+ * <p>
+ * This shows the total paint time for recent frames, split into time spent painting image tiles
+ * (including waiting for the tile cache), applying display transforms and painting overlays.
+ * Profiling is only active while the dialog is showing, and the results can be exported as CSV
+ * for comparison across versions or datasets.
+ */
+class ViewerPaintProfilerDialog {
+
+	private final static Logger logger = LoggerFactory.getLogger(ViewerPaintProfilerDialog.class);
+
+	/**
+	 * Maximum number of frames to show in the chart.
+	 */
+	private final static int MAX_DISPLAYED_FRAMES = 200;
+
+	private QuPathGUI qupath;
+
+	private Stage stage;
+
+	private XYChart.Series<Number, Number> seriesTotal = new XYChart.Series<>();
+	private XYChart.Series<Number, Number> seriesTiles = new XYChart.Series<>();
+	private XYChart.Series<Number, Number> seriesTransform = new XYChart.Series<>();
+	private XYChart.Series<Number, Number> seriesOverlays = new XYChart.Series<>();
+
+	private Label labelSummary = new Label();
+	private Label labelLastFrame = new Label();
+
+	private Timeline timeline;
+
+	ViewerPaintProfilerDialog(QuPathGUI qupath) {
+		this.qupath = qupath;
+
+		var xAxis = new NumberAxis();
+		xAxis.setLabel("Frame");
+		xAxis.setForceZeroInRange(false);
+		var yAxis = new NumberAxis();
+		yAxis.setLabel("Paint time (ms)");
+		var chart = new LineChart<Number, Number>(xAxis, yAxis);
+		seriesTotal.setName("Total");
+		seriesTiles.setName("Tiles");
+		seriesTransform.setName("Transform");
+		seriesOverlays.setName("Overlays");
+		chart.getData().add(seriesTotal);
+		chart.getData().add(seriesTiles);
+		chart.getData().add(seriesTransform);
+		chart.getData().add(seriesOverlays);
+		chart.setLegendVisible(true);
+		chart.setLegendSide(Side.TOP);
+		chart.setAnimated(false);
+		chart.setCreateSymbols(false);
+
+		var btnToggleProfiling = new ToggleButton();
+		btnToggleProfiling.textProperty().bind(Bindings.createStringBinding(() -> {
+			if (btnToggleProfiling.isSelected())
+				return "Stop profiling";
+			else
+				return "Start profiling";
+		}, btnToggleProfiling.selectedProperty()));
+		btnToggleProfiling.setMaxWidth(Double.MAX_VALUE);
+		btnToggleProfiling.selectedProperty().addListener((v, o, n) -> {
+			for (var viewer : qupath.getViewers())
+				viewer.getPaintProfiler().setEnabled(n);
+			if (n)
+				timeline.play();
+			else
+				timeline.stop();
+		});
+
+		var btnClear = new Button("Clear");
+		btnClear.setTooltip(new Tooltip("Remove all recorded frames"));
+		btnClear.setOnAction(e -> {
+			for (var viewer : qupath.getViewers())
+				viewer.getPaintProfiler().clear();
+			refresh();
+		});
+		btnClear.setMaxWidth(Double.MAX_VALUE);
+
+		var btnExport = new Button("Export");
+		btnExport.setTooltip(new Tooltip("Export paint times for the active viewer as CSV"));
+		btnExport.setOnAction(e -> exportProfile());
+		btnExport.setMaxWidth(Double.MAX_VALUE);
+
+		var paneRight = new GridPane();
+		int row = 0;
+		paneRight.add(labelSummary, 0, row++);
+		paneRight.add(labelLastFrame, 0, row++);
+
+		var padding = new BorderPane();
+		paneRight.add(padding, 0, row++);
+		padding.setMaxHeight(Double.MAX_VALUE);
+		GridPane.setFillHeight(padding, Boolean.TRUE);
+		GridPane.setVgrow(padding, Priority.ALWAYS);
+
+		paneRight.add(btnToggleProfiling, 0, row++);
+		paneRight.add(btnClear, 0, row++);
+		paneRight.add(btnExport, 0, row++);
+		paneRight.setPadding(new Insets(10));
+		paneRight.setVgap(5);
+		paneRight.setPrefWidth(260);
+
+		var pane = new BorderPane(chart);
+		pane.setRight(paneRight);
+
+		timeline = new Timeline(new KeyFrame(Duration.millis(500), e -> refresh()));
+		timeline.setCycleCount(Timeline.INDEFINITE);
+
+		stage = new Stage();
+		stage.initOwner(qupath.getStage());
+		stage.setScene(new Scene(pane));
+		stage.setTitle("Viewer paint profiler");
+
+		stage.setOnShowing(e -> btnToggleProfiling.setSelected(true));
+		stage.setOnHiding(e -> btnToggleProfiling.setSelected(false));
+	}
+
+
+	public Stage getStage() {
+		return stage;
+	}
+
+
+	private ViewerPaintProfiler getProfiler() {
+		var viewer = qupath.getViewer();
+		return viewer == null ? null : viewer.getPaintProfiler();
+	}
+
+
+	private void refresh() {
+		var profiler = getProfiler();
+		seriesTotal.getData().clear();
+		seriesTiles.getData().clear();
+		seriesTransform.getData().clear();
+		seriesOverlays.getData().clear();
+		if (profiler == null || profiler.size() == 0) {
+			labelSummary.setText("No frames recorded");
+			labelLastFrame.setText("");
+			return;
+		}
+		var frames = profiler.getFrames();
+		int start = Math.max(0, frames.size() - MAX_DISPLAYED_FRAMES);
+		for (int i = start; i < frames.size(); i++) {
+			var frame = frames.get(i);
+			double overlays = frame.getOverlayMillis().values().stream().mapToDouble(d -> d).sum();
+			seriesTotal.getData().add(new XYChart.Data<>(i, frame.getTotalMillis()));
+			seriesTiles.getData().add(new XYChart.Data<>(i, frame.getTileMillis()));
+			seriesTransform.getData().add(new XYChart.Data<>(i, frame.getTransformMillis()));
+			seriesOverlays.getData().add(new XYChart.Data<>(i, overlays));
+		}
+		labelSummary.setText(String.format("Frames: %d%nMedian: %.1f ms%n95th percentile: %.1f ms%nMax: %.1f ms",
+				frames.size(),
+				profiler.getTotalMillisPercentile(50),
+				profiler.getTotalMillisPercentile(95),
+				profiler.getTotalMillisPercentile(100)));
+		var last = frames.get(frames.size()-1);
+		var sb = new StringBuilder();
+		sb.append(String.format("Last frame: %.1f ms%n", last.getTotalMillis()));
+		sb.append(String.format("  Tiles: %.1f ms%n", last.getTileMillis()));
+		sb.append(String.format("  Transform: %.1f ms%n", last.getTransformMillis()));
+		for (var entry : last.getOverlayMillis().entrySet())
+			sb.append(String.format("  %s: %.1f ms%n", entry.getKey(), entry.getValue()));
+		sb.append(String.format("Objects painted: %d", last.getObjectCount()));
+		labelLastFrame.setText(sb.toString());
+	}
+
+
+	private void exportProfile() {
+		var profiler = getProfiler();
+		if (profiler == null || profiler.size() == 0) {
+			Dialogs.showErrorMessage("Export paint times", "No frames recorded - nothing to export!");
+			return;
+		}
+		File fileExport = Dialogs.getChooser(stage).promptToSaveFile("Export paint times", null, "paint-times", "CSV", ".csv");
+		if (fileExport == null)
+			return;
+		try {
+			profiler.writeCSV(fileExport);
+		} catch (Exception e) {
+			logger.error("Error exporting paint times", e);
+			Dialogs.showErrorMessage("Export paint times", e);
+		}
+	}
+
+}
@@ -31,10 +31,12 @@ import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
+import qupath.lib.display.ChannelDisplayInfo;
 import qupath.lib.display.ImageDisplay;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.images.stores.DefaultImageRegionStore;
 import qupath.lib.gui.images.stores.ImageRegionStoreFactory;
+import qupath.lib.gui.images.stores.ImageRenderer;
 import qupath.lib.gui.viewer.QuPathViewer;
 import qupath.lib.gui.viewer.overlays.PathOverlay;
 import qupath.lib.images.ImageData;
@@ -51,6 +53,10 @@ import qupath.lib.images.servers.TileRequest;
 /**
  * An ImageServer that can display a rendered image, with optional overlays.
  * This is intended for use when exporting 'flattened' RGB images.
+ * <p>
+ * Tiles may be rendered concurrently: the display channels are captured when the server is created, 
+ * and neither the server nor its overlays require the JavaFX toolkit. 
+ * This means it can also be used headless, e.g. for batch export of large rendered pyramids.
  * 
  * @author Pete Bankhead
  */
@@ -59,7 +65,7 @@ public class RenderedImageServer extends AbstractTileableImageServer implements
 	private DefaultImageRegionStore store;
 	private ImageData<BufferedImage> imageData;
 	private List<PathOverlay> overlayLayers = new ArrayList<>();
-	private ImageDisplay display;
+	private ImageRenderer renderer;
 	
 	private ImageServerMetadata metadata;
 	
@@ -68,7 +74,7 @@ public class RenderedImageServer extends AbstractTileableImageServer implements
 		this.store = store;
 		if (overlayLayers != null)
 			this.overlayLayers.addAll(overlayLayers);
-		this.display = display;
+		this.renderer = display == null ? null : new DisplaySnapshot(display);
 		this.imageData = imageData;
 		var builder = new ImageServerMetadata.Builder(imageData.getServer().getMetadata())
 				.rgb(true)
@@ -86,7 +92,8 @@ public class RenderedImageServer extends AbstractTileableImageServer implements
 	 * <ul>
 	 * <li>the server uses fixed downsample values, while the viewer can adapt annotation line thickness continuously - 
 	 * therefore the agreement is not exact</li>
-	 * <li>changing display settings in the viewer may impact how later tiles are rendered</li>
+	 * <li>the channels selected for display are fixed when the server is created, but changing other display settings 
+	 * (e.g. brightness/contrast) in the viewer may impact how later tiles are rendered</li>
 	 * <li>the server cannot be serialized to JSON</li>
 	 * </ul>
 	 * The intention is to treat this as a throwaway server used to create rendered images including color transforms and overlays, 
@@ -249,7 +256,7 @@ public class RenderedImageServer extends AbstractTileableImageServer implements
 		store.paintRegionCompletely(
 				imageData.getServer(), g2d, g2d.getClip(),
 				tileRequest.getZ(), tileRequest.getT(),
-				downsample, null, display,
+				downsample, null, renderer,
 				Integer.MAX_VALUE);
 		
 		
@@ -261,6 +268,42 @@ public class RenderedImageServer extends AbstractTileableImageServer implements
 		return img;
 	}
 
+	/**
+	 * Snapshot of the channels selected within an {@link ImageDisplay}.
+	 * Unlike the display itself, this is safe to use from multiple threads because the list of channels cannot 
+	 * be changed (e.g. on the JavaFX Application Thread) during rendering.
+	 */
+	private static class DisplaySnapshot implements ImageRenderer {
+		
+		private final List<ChannelDisplayInfo> channels;
+		private final boolean useGrayscaleLuts;
+		private final long timestamp;
+		private final String id;
+		
+		DisplaySnapshot(ImageDisplay display) {
+			this.channels = new ArrayList<>(display.selectedChannels());
+			this.useGrayscaleLuts = display.useGrayscaleLuts();
+			this.timestamp = display.getLastChangeTimestamp();
+			this.id = display.getUniqueID();
+		}
+
+		@Override
+		public BufferedImage applyTransforms(BufferedImage imgInput, BufferedImage imgOutput) {
+			return ImageDisplay.applyTransforms(imgInput, imgOutput, channels, useGrayscaleLuts);
+		}
+
+		@Override
+		public long getLastChangeTimestamp() {
+			return timestamp;
+		}
+
+		@Override
+		public String getUniqueID() {
+			return id;
+		}
+		
+	}
+
 	@Override
 	protected ServerBuilder<BufferedImage> createServerBuilder() {
 		throw new UnsupportedOperationException("Unable to create builder for " + getClass());
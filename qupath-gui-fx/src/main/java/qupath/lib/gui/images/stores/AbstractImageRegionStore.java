@@ -36,8 +36,6 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
 import java.util.stream.Collectors;
 
@@ -50,10 +48,11 @@ import com.google.common.cache.RemovalCause;
 import com.google.common.cache.Weigher;
 
 import qupath.lib.awt.common.AwtTools;
-import qupath.lib.common.ThreadTools;
-import qupath.lib.gui.images.stores.TileWorker;
+import qupath.lib.gui.images.stores.TileRequestScheduler.Lane;
+import qupath.lib.gui.images.stores.TileRequestScheduler.ViewRequest;
 import qupath.lib.images.servers.GeneratingImageServer;
 import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ServerTools;
 import qupath.lib.regions.RegionRequest;
 
 
@@ -105,11 +104,10 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	
 	private TileRequestManager manager = new TileRequestManager(10);
 	
-	// Create two threadpools: a larger one for images that need to be fetched (e.g. from disk, cloud storage), and a smaller one
+	// Use separate threadpools: a larger one for images that need to be fetched (e.g. from disk, cloud storage), and a smaller one
 	// for painting image tiles... the reason being that the high latency of distantly-stored images otherwise risks lowering
-	// repainting performance
-	private ExecutorService pool = Executors.newFixedThreadPool(Math.max(8, Math.min(Runtime.getRuntime().availableProcessors() * 4, 32)), ThreadTools.createThreadFactory("region-store-", false));
-	private ExecutorService poolLocal = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), ThreadTools.createThreadFactory("region-store-local-", false));
+	// repainting performance. Thumbnails have their own lane, and requests within each lane are prioritized.
+	private TileRequestScheduler scheduler = new TileRequestScheduler();
 	
 	
 
@@ -236,6 +234,60 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		return cache;
 	}
 	
+	/**
+	 * Set the requester (usually a viewer) that currently has the focus.
+	 * Tiles requested on its behalf are prioritized above those for other requesters.
+	 * @param requester
+	 */
+	public void setFocusedRequester(Object requester) {
+		scheduler.setFocusedRequester(requester);
+	}
+	
+	/**
+	 * Get the number of tile requests currently waiting to be processed.
+	 * @return
+	 */
+	public int getQueueDepth() {
+		return scheduler.getQueueDepth();
+	}
+	
+	/**
+	 * Get a percentile of the latency between a tile being requested and it becoming available, 
+	 * computed from the most recently completed requests.
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the latency in milliseconds, or NaN if no requests have been completed
+	 */
+	public double getLatencyPercentile(double percentile) {
+		return scheduler.getLatencyPercentile(percentile);
+	}
+	
+	/**
+	 * Register the view for which tiles are about to be requested. 
+	 * Any queued or running requests made earlier by the same requester for tiles that are no longer required 
+	 * (because they are outside the view, on a different plane or at a finer resolution than needed) are cancelled, 
+	 * and the priorities of the remaining requests are updated.
+	 * <p>
+	 * Running requests are cancelled without interrupting the thread, because interrupts can close the 
+	 * channels used by some image readers; the tile is read in full, but is then discarded.
+	 * @param requester the requester, usually a viewer; if null, no requests are cancelled
+	 * @param server
+	 * @param clipShape
+	 * @param downsampleFactor the downsample at which the view is painted
+	 * @param zPosition
+	 * @param tPosition
+	 * @return a view that can be passed to {@link #requestImageTile(ImageServer, RegionRequest, Map, boolean, ViewRequest)}
+	 */
+	synchronized ViewRequest registerView(final Object requester, final ImageServer<T> server, final Shape clipShape, final double downsampleFactor, final int zPosition, final int tPosition) {
+		double downsample = ServerTools.getPreferredDownsampleFactor(server, downsampleFactor);
+		var view = new ViewRequest(requester, server.getPath(), clipShape, downsample, zPosition, tPosition);
+		for (var worker : scheduler.removeStale(view)) {
+			waitingMap.remove(worker.getRequest(), worker);
+			workers.remove(worker);
+			worker.cancel(false);
+		}
+		return view;
+	}
+	
 	
 	/* (non-Javadoc)
 	 * @see qupath.lib.images.stores.ImageRegionStore#removeTileListener(qupath.lib.images.stores.TileListener)
@@ -307,12 +359,16 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	
 	
 	protected T getCachedRegion(final ImageServer<T> server, final RegionRequest request) {
+		return getCachedRegion(server, request, null);
+	}
+	
+	T getCachedRegion(final ImageServer<T> server, final RegionRequest request, final ViewRequest view) {
 		if (server == null)
 			return null;
 		// Only need to use server path & region as the hash key, because we are relying on the tile size never changing...
 		// so different requests should never end up wanting the same region
 		// If this gives trouble, the downsample could be added
-		Object result = requestImageTile(server, request, cache, false);
+		Object result = requestImageTile(server, request, cache, false, view);
 		if (!(result == null || result instanceof TileWorker<?>)) {
 			@SuppressWarnings("unchecked")
 			T img = (T)result;
@@ -345,7 +401,21 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	 * @param ensureTileReturned 
 	 * @return
 	 */
-	protected synchronized Object requestImageTile(final ImageServer<T> server, final RegionRequest request, final Map<RegionRequest, T> cache, final boolean ensureTileReturned) {
+	protected Object requestImageTile(final ImageServer<T> server, final RegionRequest request, final Map<RegionRequest, T> cache, final boolean ensureTileReturned) {
+		return requestImageTile(server, request, cache, ensureTileReturned, null);
+	}
+	
+	/**
+	 * Request an image tile, prioritized according to the view for which it is required.
+	 * @param server
+	 * @param request
+	 * @param cache
+	 * @param ensureTileReturned
+	 * @param view the view for which the tile is requested; may be null
+	 * @return
+	 * @see #requestImageTile(ImageServer, RegionRequest, Map, boolean)
+	 */
+	synchronized Object requestImageTile(final ImageServer<T> server, final RegionRequest request, final Map<RegionRequest, T> cache, final boolean ensureTileReturned, final ViewRequest view) {
 		T img = cache.get(request);
 		if (img != null)
 			return img;
@@ -365,20 +435,20 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		if (worker == null) {
 			worker = createTileWorker(server, request, cache, ensureTileReturned);
 			workers.add(worker);
-			if (server instanceof GeneratingImageServer) {
-				if (poolLocal.isShutdown())
-					return null;
-				poolLocal.execute(worker);
-			}
-			else {
-				if (pool.isShutdown())
-					return null;
-				pool.execute(worker);
-			}
+			Lane lane;
+			if (cache == thumbnailCache)
+				lane = Lane.THUMBNAILS;
+			else if (server instanceof GeneratingImageServer)
+				lane = Lane.LOCAL;
+			else
+				lane = Lane.TILES;
+			if (!scheduler.execute(worker, lane, view))
+				return null;
 //			worker.execute();
 //				System.out.println("Event dispatch putting: " + SwingUtilities.isEventDispatchThread());
 			waitingMap.put(request, worker);
-		}
+		} else
+			scheduler.addRequester(worker, view);
 //		workersToWait.add(worker);
 		return worker;
 	}
@@ -524,8 +594,7 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		// Try to cancel all workers
 		for (TileWorker<T> worker : new ArrayList<>(workers))
 			worker.cancel(true);
-		pool.shutdownNow();
-		poolLocal.shutdownNow();
+		scheduler.shutdownNow();
 		cache.clear();
 	}
 	
@@ -608,13 +677,7 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 				
 				TileWorker<T> worker = createTileWorker(temp.server, request, cache, false);
 				waitingMap.put(request, worker);
-				if (temp.server instanceof GeneratingImageServer) {
-					if (!poolLocal.isShutdown())
-						poolLocal.execute(worker);
-				} else {
-					if (!pool.isShutdown())
-						pool.execute(worker);
-				}
+				scheduler.prefetch(worker, temp.server instanceof GeneratingImageServer ? Lane.LOCAL : Lane.TILES);
 //				worker.execute();
 				requestedWorkers.add(worker);
 				busyThreads++;
@@ -43,6 +43,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import qupath.lib.awt.common.AwtTools;
+import qupath.lib.gui.images.stores.TileRequestScheduler.ViewRequest;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerMetadata.ChannelType;
 import qupath.lib.regions.RegionRequest;
@@ -174,12 +175,37 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 
 	@Override
 	public void paintRegion(ImageServer<BufferedImage> server, Graphics g, Shape clipShapeVisible, int zPosition, int tPosition, double downsampleFactor, BufferedImage imgThumbnail, ImageObserver observer, ImageRenderer imageDisplay) {
+		paintRegion(null, server, g, clipShapeVisible, zPosition, tPosition, downsampleFactor, imgThumbnail, observer, imageDisplay);
+	}
+	
+	/**
+	 * Paint a region on behalf of a specific requester (usually a viewer).
+	 * <p>
+	 * This behaves like {@link #paintRegion(ImageServer, Graphics, Shape, int, int, double, BufferedImage, ImageObserver, ImageRenderer)}, 
+	 * except that missing tiles are prioritized according to whether the requester has the focus and their distance from 
+	 * the center of the visible region. Any tile requests made earlier by the same requester that are no 
+	 * longer required for the visible region are cancelled.
+	 * 
+	 * @param requester the requester; if null, tiles are requested without reference to any particular view
+	 * @param server
+	 * @param g
+	 * @param clipShapeVisible
+	 * @param zPosition
+	 * @param tPosition
+	 * @param downsampleFactor
+	 * @param imgThumbnail
+	 * @param observer
+	 * @param imageDisplay
+	 * @see #setFocusedRequester(Object)
+	 */
+	public void paintRegion(Object requester, ImageServer<BufferedImage> server, Graphics g, Shape clipShapeVisible, int zPosition, int tPosition, double downsampleFactor, BufferedImage imgThumbnail, ImageObserver observer, ImageRenderer imageDisplay) {
 		registerRequest(null, server, clipShapeVisible, downsampleFactor, zPosition, tPosition);
-		paintRegionInternal(server, g, clipShapeVisible, zPosition, tPosition, downsampleFactor, imgThumbnail, observer, imageDisplay);
+		var view = registerView(requester, server, clipShapeVisible, downsampleFactor, zPosition, tPosition);
+		paintRegionInternal(server, g, clipShapeVisible, zPosition, tPosition, downsampleFactor, imgThumbnail, observer, imageDisplay, view);
 	}
 
 
-	private void paintRegionInternal(ImageServer<BufferedImage> server, Graphics g, Shape clipShapeVisible, int zPosition, int tPosition, double downsampleFactor, BufferedImage imgThumbnail, ImageObserver observer, ImageRenderer imageDisplay) {
+	private void paintRegionInternal(ImageServer<BufferedImage> server, Graphics g, Shape clipShapeVisible, int zPosition, int tPosition, double downsampleFactor, BufferedImage imgThumbnail, ImageObserver observer, ImageRenderer imageDisplay, ViewRequest view) {
 
 //		// We don't need it... but try to request the thumbnail to keep it present in the cache, if it is there
 //		cache.get(getThumbnailRequest(server, zPosition, tPosition));
@@ -218,7 +244,7 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 				// Get the next downsample level if we can
 				if (nextDownsample > 0)
 //					paintRegion(server, g, clipShapeVisible, zPosition, tPosition, nextDownsample, imgThumbnail, observer, imageDisplay);
-					paintRegionInternal(server, g, missingBounds, zPosition, tPosition, nextDownsample, imgThumbnail, observer, imageDisplay);
+					paintRegionInternal(server, g, missingBounds, zPosition, tPosition, nextDownsample, imgThumbnail, observer, imageDisplay, view);
 				else if (imgThumbnail != null) {
 					// The best we can do is paint the thumbnail
 					if (imageDisplay != null) {
@@ -246,7 +272,7 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 		BufferedImage imgTemp = null;
 		for (RegionRequest request : requests) {
 			// Load the image
-			BufferedImage img = getCachedRegion(server, request);
+			BufferedImage img = getCachedRegion(server, request, view);
 
 			// If there is no image tile, try to get a lower-resolution version to draw -
 			// this can actually paint over previously-available regions, but they will be repainted again when this region's request comes through
@@ -0,0 +1,415 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.images.stores;
+
+import java.awt.Shape;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Priority scheduler for {@link TileWorker}s.
+ * <p>
+ * Tile requests are queued according to (in order of importance):
+ * <ol>
+ *   <li>whether they were made on behalf of the focused viewer</li>
+ *   <li>the pyramid level, with lower resolutions first to support progressive display</li>
+ *   <li>the distance of the tile from the center of the requested view</li>
+ * </ol>
+ * Thumbnails are requested in their own lane, so that they are never stuck behind tile requests.
+ * <p>
+ * Whenever the view of a requester changes, its queued and running requests are checked against the new view:
+ * those that are no longer required are removed, and the remaining ones are reprioritized.
+ * The latency between submission and completion of every tile is recorded so that percentiles can be queried.
+ */
+class TileRequestScheduler {
+
+	/**
+	 * Lanes for tile requests, each with its own thread pool.
+	 */
+	static enum Lane {
+		/**
+		 * Tiles that need to be fetched, e.g. from disk or cloud storage.
+		 */
+		TILES,
+		/**
+		 * Tiles that are generated locally, e.g. by painting objects.
+		 */
+		LOCAL,
+		/**
+		 * Image thumbnails.
+		 */
+		THUMBNAILS
+	}
+
+	private static final int PRIORITY_FOCUSED = 0;
+	private static final int PRIORITY_DEFAULT = 1;
+	private static final int PRIORITY_UNFOCUSED = 2;
+	private static final int PRIORITY_PREFETCH = 3;
+
+	private static final int MAX_LATENCIES = 4096;
+
+	private final AtomicLong counter = new AtomicLong();
+	private final Map<Lane, ThreadPoolExecutor> pools = new EnumMap<>(Lane.class);
+	private final Map<TileWorker<?>, ScheduledTile> tasks = new ConcurrentHashMap<>();
+	private final Set<ScheduledTile> running = ConcurrentHashMap.newKeySet();
+
+	private volatile Object focusedRequester;
+
+	private final long[] latencies = new long[MAX_LATENCIES];
+	private int latencyIndex = 0;
+	private int nLatencies = 0;
+
+	TileRequestScheduler() {
+		int nProcessors = Runtime.getRuntime().availableProcessors();
+		pools.put(Lane.TILES, createPool(Math.max(8, Math.min(nProcessors * 4, 32)), "region-store-"));
+		pools.put(Lane.LOCAL, createPool(nProcessors, "region-store-local-"));
+		pools.put(Lane.THUMBNAILS, createPool(Math.min(nProcessors, 2), "region-store-thumbnails-"));
+	}
+
+	private static ThreadPoolExecutor createPool(int nThreads, String prefix) {
+		return new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<>(), ThreadTools.createThreadFactory(prefix, false));
+	}
+
+	/**
+	 * Set the requester (usually a viewer) that currently has the focus.
+	 * Its requests will be prioritized above all others.
+	 * @param requester
+	 */
+	void setFocusedRequester(Object requester) {
+		if (this.focusedRequester == requester)
+			return;
+		this.focusedRequester = requester;
+		for (var pool : pools.values())
+			reprioritize(pool, null);
+	}
+
+	/**
+	 * Get the requester (usually a viewer) that currently has the focus.
+	 * @return
+	 */
+	Object getFocusedRequester() {
+		return focusedRequester;
+	}
+
+	/**
+	 * Submit a worker for execution.
+	 * @param worker the worker
+	 * @param lane the lane in which the worker should be scheduled
+	 * @param view the view for which the tile is requested; may be null if the request is not associated with any view
+	 * @return true if the worker was submitted, false if the scheduler has been shut down
+	 */
+	boolean execute(TileWorker<?> worker, Lane lane, ViewRequest view) {
+		var pool = pools.get(lane);
+		if (pool.isShutdown())
+			return false;
+		var task = new ScheduledTile(worker, view, getPriority(view));
+		tasks.put(worker, task);
+		pool.execute(task);
+		return true;
+	}
+
+	/**
+	 * Notify the scheduler that a previously-submitted worker is also required for another view.
+	 * If this is a different requester (or no view is specified), the worker will no longer be 
+	 * cancelled when the view of the original requester changes.
+	 * @param worker the worker that has already been submitted
+	 * @param view the other view for which the worker is required; may be null
+	 */
+	void addRequester(TileWorker<?> worker, ViewRequest view) {
+		var task = tasks.get(worker);
+		if (task != null && (view == null || !task.isSameRequester(view)))
+			task.shared = true;
+	}
+
+	/**
+	 * Submit a worker for preemptive execution, i.e. for a tile that is not (yet) visible.
+	 * This will have a lower priority than all other requests.
+	 * @param worker
+	 * @param lane
+	 * @return true if the worker was submitted, false if the scheduler has been shut down
+	 */
+	boolean prefetch(TileWorker<?> worker, Lane lane) {
+		var pool = pools.get(lane);
+		if (pool.isShutdown())
+			return false;
+		pool.execute(new ScheduledTile(worker, null, PRIORITY_PREFETCH));
+		return true;
+	}
+
+	private int getPriority(ViewRequest view) {
+		if (view == null || view.requester == null)
+			return PRIORITY_DEFAULT;
+		var focused = focusedRequester;
+		if (focused == null)
+			return PRIORITY_DEFAULT;
+		return focused == view.requester ? PRIORITY_FOCUSED : PRIORITY_UNFOCUSED;
+	}
+
+	/**
+	 * Check all queued and running workers requested by the same requester against its current view.
+	 * Queued workers for tiles that are no longer required are removed from the queue, while the 
+	 * remaining queued workers for the requester are reprioritized according to the current view.
+	 * @param view the current view
+	 * @return the workers for tiles that are no longer required, either removed from the queue or still running; 
+	 *         these have not been cancelled
+	 * @see ViewRequest#isTileRequired(RegionRequest)
+	 */
+	List<TileWorker<?>> removeStale(ViewRequest view) {
+		List<TileWorker<?>> removed = new ArrayList<>();
+		if (view == null || view.requester == null)
+			return removed;
+		for (var pool : pools.values()) {
+			var iter = pool.getQueue().iterator();
+			while (iter.hasNext()) {
+				var task = (ScheduledTile)iter.next();
+				if (task.isStaleFor(view)) {
+					iter.remove();
+					tasks.remove(task.worker, task);
+					removed.add(task.worker);
+				}
+			}
+			reprioritize(pool, view);
+		}
+		for (var task : running) {
+			if (task.isStaleFor(view))
+				removed.add(task.worker);
+		}
+		return removed;
+	}
+
+	/**
+	 * Recompute the priorities of queued tasks, reinserting them into the queue if they have changed.
+	 * @param pool the pool containing the queue
+	 * @param view if not null, only tasks from the same requester are updated and their distances computed relative to this view; 
+	 *             if null, the priorities of all tasks associated with a view are updated (e.g. because the focus has changed)
+	 */
+	private void reprioritize(ThreadPoolExecutor pool, ViewRequest view) {
+		List<ScheduledTile> changed = new ArrayList<>();
+		var iter = pool.getQueue().iterator();
+		while (iter.hasNext()) {
+			var task = (ScheduledTile)iter.next();
+			if (task.view == null || (view != null && !task.isSameRequester(view)))
+				continue;
+			var newView = view == null ? task.view : view;
+			int priority = getPriority(newView);
+			double distance = newView.distanceSquared(task.worker.getRequest());
+			if (priority != task.priority || distance != task.distance) {
+				// The queue is ordered on insertion, so tasks must be removed before they can be updated
+				iter.remove();
+				task.update(newView, priority, distance);
+				changed.add(task);
+			}
+		}
+		// Since all threads in the pool have been started if there are queued tasks, it is safe to add to the queue directly
+		pool.getQueue().addAll(changed);
+	}
+
+	/**
+	 * Get the number of requests currently waiting in the queue for a specified lane.
+	 * @param lane
+	 * @return
+	 */
+	int getQueueDepth(Lane lane) {
+		return pools.get(lane).getQueue().size();
+	}
+
+	/**
+	 * Get the number of requests currently waiting in all queues.
+	 * @return
+	 */
+	int getQueueDepth() {
+		int n = 0;
+		for (var pool : pools.values())
+			n += pool.getQueue().size();
+		return n;
+	}
+
+	/**
+	 * Get a percentile of the latency between a tile being requested and it being available,
+	 * computed from the most recently completed tiles.
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the latency in milliseconds, or NaN if no tiles have been completed
+	 */
+	synchronized double getLatencyPercentile(double percentile) {
+		if (nLatencies == 0)
+			return Double.NaN;
+		long[] values = Arrays.copyOf(latencies, nLatencies);
+		Arrays.sort(values);
+		int ind = (int)Math.round(Math.max(0, Math.min(100, percentile)) / 100.0 * (nLatencies - 1));
+		return values[ind] / 1e6;
+	}
+
+	private synchronized void recordLatency(long nanos) {
+		latencies[latencyIndex] = nanos;
+		latencyIndex = (latencyIndex + 1) % MAX_LATENCIES;
+		nLatencies = Math.min(nLatencies + 1, MAX_LATENCIES);
+	}
+
+	/**
+	 * Stop all workers.
+	 */
+	void shutdownNow() {
+		for (var pool : pools.values())
+			pool.shutdownNow();
+	}
+
+
+	/**
+	 * A view for which tiles are requested, defined by the requester, the visible region and 
+	 * the finest resolution at which tiles are required.
+	 */
+	static class ViewRequest {
+
+		private final Object requester;
+		private final String path;
+		private final Rectangle2D bounds;
+		private final double downsample;
+		private final int z, t;
+
+		/**
+		 * Constructor.
+		 * @param requester the requester, usually a viewer
+		 * @param path the path of the image server
+		 * @param clipShape the visible region
+		 * @param downsample the downsample of the finest resolution level required for the view
+		 * @param z
+		 * @param t
+		 */
+		ViewRequest(Object requester, String path, Shape clipShape, double downsample, int z, int t) {
+			this.requester = requester;
+			this.path = path;
+			this.bounds = clipShape.getBounds2D();
+			this.downsample = downsample;
+			this.z = z;
+			this.t = t;
+		}
+
+		double distanceSquared(RegionRequest request) {
+			double dx = request.getX() + request.getWidth()/2.0 - bounds.getCenterX();
+			double dy = request.getY() + request.getHeight()/2.0 - bounds.getCenterY();
+			return dx*dx + dy*dy;
+		}
+
+		/**
+		 * Check whether a tile is required for this view.
+		 * Tiles at a lower resolution than the view are still required, since these are used for progressive display.
+		 * @param tile
+		 * @return true if the tile is from the same image and plane, intersects the visible region and 
+		 *         is not at a finer resolution than the view requires
+		 */
+		boolean isTileRequired(RegionRequest tile) {
+			if (!path.equals(tile.getPath()) || tile.getZ() != z || tile.getT() != t)
+				return false;
+			if (tile.getDownsample() < downsample && !GeneralTools.almostTheSame(tile.getDownsample(), downsample, 0.01))
+				return false;
+			return bounds.intersects(tile.getX(), tile.getY(), tile.getWidth(), tile.getHeight());
+		}
+
+	}
+
+
+	private class ScheduledTile implements Runnable, Comparable<ScheduledTile> {
+
+		private final TileWorker<?> worker;
+		private ViewRequest view;
+		private int priority;
+		private final double downsample;
+		private double distance;
+		private volatile boolean shared = false;
+		private final long order = counter.incrementAndGet();
+		private final long startTime = System.nanoTime();
+
+		ScheduledTile(TileWorker<?> worker, ViewRequest view, int priority) {
+			this.worker = worker;
+			this.view = view;
+			this.priority = priority;
+			this.downsample = worker.getRequest().getDownsample();
+			this.distance = view == null ? 0 : view.distanceSquared(worker.getRequest());
+		}
+
+		/**
+		 * Update the view and priority; this should only be called when the task is not in a queue.
+		 */
+		void update(ViewRequest view, int priority, double distance) {
+			this.view = view;
+			this.priority = priority;
+			this.distance = distance;
+		}
+
+		boolean isSameRequester(ViewRequest current) {
+			return view != null && view.requester == current.requester;
+		}
+
+		boolean isStaleFor(ViewRequest current) {
+			return !shared && isSameRequester(current) && !current.isTileRequired(worker.getRequest());
+		}
+
+		@Override
+		public void run() {
+			if (worker.isDone()) {
+				tasks.remove(worker, this);
+				return;
+			}
+			running.add(this);
+			try {
+				worker.run();
+			} finally {
+				running.remove(this);
+				tasks.remove(worker, this);
+			}
+			if (!worker.isCancelled())
+				recordLatency(System.nanoTime() - startTime);
+		}
+
+		@Override
+		public int compareTo(ScheduledTile o) {
+			int cmp = Integer.compare(priority, o.priority);
+			if (cmp != 0)
+				return cmp;
+			// Higher downsamples (lower resolutions) first
+			cmp = -Double.compare(downsample, o.downsample);
+			if (cmp != 0)
+				return cmp;
+			cmp = Double.compare(distance, o.distance);
+			if (cmp != 0)
+				return cmp;
+			return Long.compare(order, o.order);
+		}
+
+	}
+
+}
@@ -347,6 +347,12 @@ public class PreferencePane {
 				category,
 				"Adapt brush size by magnification, so higher magnification gives a finer brush");
 		
+		addPropertyPreference(PathPrefs.brushRasterEditingProperty(), Boolean.class,
+				"Use raster brush editing",
+				category,
+				"Edit annotations with the brush & wand by painting a mask, and only update the polygon when the mouse is released - " + 
+				"this makes editing very complex annotations faster, but the boundary is pixelated wherever it was brushed");
+		
 		addPropertyPreference(PathPrefs.multipointToolProperty(), Boolean.class,
 				"Use multipoint tool",
 				category,
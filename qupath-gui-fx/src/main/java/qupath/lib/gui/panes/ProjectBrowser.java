@@ -139,6 +139,9 @@ public class ProjectBrowser implements ChangeListener<ImageData<BufferedImage>>
 	// Keep a record of servers we've requested - don't want to keep putting in requests if the server is unavailable
 	private Set<String> serversRequested = new HashSet<>();
 	
+	// Read (and generate, if needed) thumbnails in the background
+	private ProjectThumbnailLoader thumbnailLoader = new ProjectThumbnailLoader(2, 2, 500);
+	
 	private StringProperty descriptionText = new SimpleStringProperty();
 	
 	private static TextField tfFilter;
@@ -339,6 +342,7 @@ public class ProjectBrowser implements ChangeListener<ImageData<BufferedImage>>
 				} catch (IOException e1) {
 					logger.error("Error writing thumbnail", e1);
 				}
+				thumbnailLoader.invalidate(entry);
 				tree.refresh();
 			}
 		});
@@ -700,6 +704,7 @@ public class ProjectBrowser implements ChangeListener<ImageData<BufferedImage>>
 			return true;		
 		
 		this.project = project;
+		thumbnailLoader.clear();
 
 		model = new ProjectImageTreeModel(project);
 		tree.setRoot(model.getRootFX());
@@ -1354,25 +1359,21 @@ public class ProjectBrowser implements ChangeListener<ImageData<BufferedImage>>
 				tooltip.setText(entry.getSummary());
 				//	        	 Tooltip tooltip = new Tooltip(sb.toString());
 
-				BufferedImage img = null;
-				try {
-					img = (BufferedImage)entry.getThumbnail();
-				} catch (Exception e) {
-					logger.warn("Unable to read thumbnail for {} ({})" + entry.getImageName(), e.getLocalizedMessage());
-				}
-				
-				if (img != null) {
-					Image image = SwingFXUtils.toFXImage(img, null);
-					viewTooltip.setImage(image);
-					tooltip.setGraphic(viewTooltip);
-					GuiTools.paintImage(viewCanvas, image);
-					if (getGraphic() == null)
-						setGraphic(label);
-				} else {
-					setGraphic(null);
-				}
+				// Thumbnails are read in the background; the cell is only updated if it still shows the same entry
+				setGraphic(null);
+				thumbnailLoader.requestThumbnail(entry,
+						() -> getItem() == entry && !isEmpty(),
+						image -> setThumbnail(image));
 			}
 			
 		}
+		
+		private void setThumbnail(Image image) {
+			viewTooltip.setImage(image);
+			tooltip.setGraphic(viewTooltip);
+			GuiTools.paintImage(viewCanvas, image);
+			if (getGraphic() == null)
+				setGraphic(label);
+		}
 	}
 }
\ No newline at end of file
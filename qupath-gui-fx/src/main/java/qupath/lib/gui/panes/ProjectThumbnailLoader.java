@@ -0,0 +1,340 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.gui.panes;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.application.Platform;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.gui.commands.ProjectCommands;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.projects.ProjectImageEntry;
+
+/**
+ * Background loader for project thumbnails.
+ * <p>
+ * Thumbnails are read on a small pool of worker threads rather than on the JavaFX Application thread,
+ * and decoded images are retained in an in-memory LRU cache.
+ * Each request supplies a check for whether its thumbnail is still visible; this is evaluated on the JavaFX Application thread 
+ * immediately before any expensive work, so that scrolling quickly through a large project does not leave a long queue of stale reads.
+ * Several requests for the same entry (e.g. from different or recycled cells) share a single read.
+ * <p>
+ * Entries without a thumbnail are generated from the lowest pyramid level in batches, by a separate pool.
+ * The size of that pool limits how many image servers may be open at once.
+ */
+class ProjectThumbnailLoader {
+
+	private final static Logger logger = LoggerFactory.getLogger(ProjectThumbnailLoader.class);
+
+	/**
+	 * Maximum number of missing thumbnails generated by a single task.
+	 */
+	private static final int GENERATE_BATCH_SIZE = 8;
+
+	private final AtomicLong counter = new AtomicLong();
+
+	private final ThreadPoolExecutor poolRead;
+	private final ThreadPoolExecutor poolGenerate;
+
+	private final Map<String, Image> cache;
+	private final Set<String> failed = Collections.synchronizedSet(new HashSet<>());
+
+	/**
+	 * Requests waiting for each entry ID. This is only accessed on the JavaFX Application thread.
+	 */
+	private final Map<String, List<ThumbnailRequest>> pending = new HashMap<>();
+
+	/**
+	 * Entries waiting for a thumbnail to be generated, with the most recent requests last.
+	 */
+	private final Deque<ProjectImageEntry<BufferedImage>> toGenerate = new ArrayDeque<>();
+
+	/**
+	 * Constructor.
+	 * @param nReadThreads number of threads used to read existing thumbnails
+	 * @param maxOpenServers maximum number of image servers that may be opened to generate missing thumbnails
+	 * @param maxCachedImages maximum number of decoded images to retain in memory
+	 */
+	ProjectThumbnailLoader(int nReadThreads, int maxOpenServers, int maxCachedImages) {
+		poolRead = new ThreadPoolExecutor(nReadThreads, nReadThreads, 10L, TimeUnit.SECONDS,
+				new PriorityBlockingQueue<>(), ThreadTools.createThreadFactory("project-thumbnails-", true));
+		poolRead.allowCoreThreadTimeOut(true);
+		poolGenerate = new ThreadPoolExecutor(maxOpenServers, maxOpenServers, 10L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), ThreadTools.createThreadFactory("project-thumbnails-generate-", true, Thread.MIN_PRIORITY));
+		poolGenerate.allowCoreThreadTimeOut(true);
+		cache = Collections.synchronizedMap(new LinkedHashMap<String, Image>(maxCachedImages, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+				return size() > maxCachedImages;
+			}
+		});
+	}
+
+	/**
+	 * Get a cached thumbnail, if available.
+	 * @param entry
+	 * @return the thumbnail, or null if it has not been loaded
+	 */
+	Image getCachedThumbnail(ProjectImageEntry<BufferedImage> entry) {
+		return cache.get(entry.getID());
+	}
+
+	/**
+	 * Request a thumbnail for an entry. This should be called from the JavaFX Application thread.
+	 * If the thumbnail is cached, the callback is called immediately; otherwise it will be called
+	 * on the JavaFX Application thread once the thumbnail is available, provided {@code isVisible} still returns true.
+	 * @param entry the entry for which the thumbnail is requested
+	 * @param isVisible supplier to check whether the thumbnail is still required; this is only called on the JavaFX Application thread
+	 * @param callback consumer for the thumbnail
+	 */
+	void requestThumbnail(ProjectImageEntry<BufferedImage> entry, BooleanSupplier isVisible, Consumer<Image> callback) {
+		String id = entry.getID();
+		var img = cache.get(id);
+		if (img != null) {
+			callback.accept(img);
+			return;
+		}
+		if (failed.contains(id))
+			return;
+		var requests = pending.get(id);
+		if (requests != null) {
+			// Already loading - just wait for the result
+			requests.add(new ThumbnailRequest(isVisible, callback));
+			return;
+		}
+		requests = new ArrayList<>();
+		requests.add(new ThumbnailRequest(isVisible, callback));
+		pending.put(id, requests);
+		poolRead.execute(new ThumbnailTask(() -> readThumbnail(entry)));
+	}
+
+	/**
+	 * Remove any cached thumbnail for an entry, e.g. because it has been updated.
+	 * @param entry
+	 */
+	void invalidate(ProjectImageEntry<BufferedImage> entry) {
+		cache.remove(entry.getID());
+		failed.remove(entry.getID());
+	}
+
+	/**
+	 * Clear all cached thumbnails and queued requests, e.g. because the project has changed.
+	 * This should be called from the JavaFX Application thread.
+	 */
+	void clear() {
+		poolRead.getQueue().clear();
+		poolGenerate.getQueue().clear();
+		synchronized (toGenerate) {
+			toGenerate.clear();
+		}
+		pending.clear();
+		failed.clear();
+		cache.clear();
+	}
+
+
+	private void readThumbnail(ProjectImageEntry<BufferedImage> entry) {
+		String id = entry.getID();
+		if (getRequired(Collections.singleton(id)).isEmpty())
+			return;
+		BufferedImage img = null;
+		try {
+			img = entry.getThumbnail();
+		} catch (Exception e) {
+			logger.warn("Unable to read thumbnail for {} ({})", entry.getImageName(), e.getLocalizedMessage());
+		}
+		if (img == null) {
+			// Generate lazily, with lower priority than reading existing thumbnails
+			synchronized (toGenerate) {
+				toGenerate.addLast(entry);
+			}
+			poolGenerate.execute(() -> generateThumbnails());
+			return;
+		}
+		var image = SwingFXUtils.toFXImage(img, null);
+		cache.put(id, image);
+		Platform.runLater(() -> deliver(id, image));
+	}
+
+
+	/**
+	 * Generate a batch of missing thumbnails, starting with the most recently requested.
+	 * Entries are only checked once per batch to see whether they are still visible, and the results are 
+	 * delivered together. Servers are opened one at a time within each batch.
+	 */
+	private void generateThumbnails() {
+		List<ProjectImageEntry<BufferedImage>> batch = new ArrayList<>();
+		synchronized (toGenerate) {
+			while (batch.size() < GENERATE_BATCH_SIZE && !toGenerate.isEmpty())
+				batch.add(toGenerate.pollLast());
+		}
+		if (batch.isEmpty())
+			return;
+		
+		List<String> ids = new ArrayList<>();
+		for (var entry : batch)
+			ids.add(entry.getID());
+		var required = getRequired(ids);
+		
+		Map<String, Image> images = new LinkedHashMap<>();
+		for (var entry : batch) {
+			String id = entry.getID();
+			if (!required.contains(id))
+				continue;
+			BufferedImage img = null;
+			try (ImageServer<BufferedImage> server = entry.getServerBuilder().build()) {
+				img = ProjectCommands.getThumbnailRGB(server);
+				entry.setThumbnail(img);
+			} catch (Exception e) {
+				logger.debug("Unable to generate thumbnail for {} ({})", entry.getImageName(), e.getLocalizedMessage());
+			}
+			if (img == null) {
+				failed.add(id);
+				images.put(id, null);
+			} else {
+				var image = SwingFXUtils.toFXImage(img, null);
+				cache.put(id, image);
+				images.put(id, image);
+			}
+		}
+		if (!images.isEmpty())
+			Platform.runLater(() -> images.forEach((id, image) -> deliver(id, image)));
+	}
+
+
+	/**
+	 * Get the IDs that are still required by at least one visible request, discarding requests that are no longer visible.
+	 * The visibility checks are made on the JavaFX Application thread, since they typically query the state of a cell.
+	 */
+	private Set<String> getRequired(Collection<String> ids) {
+		var future = new CompletableFuture<Set<String>>();
+		Platform.runLater(() -> future.complete(pruneRequests(ids)));
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return Collections.emptySet();
+		} catch (ExecutionException e) {
+			logger.debug("Unable to check thumbnail visibility: {}", e.getLocalizedMessage());
+			return new HashSet<>(ids);
+		}
+	}
+
+	private Set<String> pruneRequests(Collection<String> ids) {
+		Set<String> required = new HashSet<>();
+		for (var id : ids) {
+			var requests = pending.get(id);
+			if (requests == null)
+				continue;
+			requests.removeIf(r -> !r.isVisible.getAsBoolean());
+			if (requests.isEmpty())
+				pending.remove(id);
+			else
+				required.add(id);
+		}
+		return required;
+	}
+
+	/**
+	 * Pass a thumbnail to all visible requests for an entry. 
+	 * This must be called on the JavaFX Application thread.
+	 * @param id the entry ID
+	 * @param image the thumbnail, or null if none could be read or generated
+	 */
+	private void deliver(String id, Image image) {
+		var requests = pending.remove(id);
+		if (requests == null || image == null)
+			return;
+		for (var request : requests) {
+			if (request.isVisible.getAsBoolean())
+				request.callback.accept(image);
+		}
+	}
+
+
+	private static class ThumbnailRequest {
+
+		private final BooleanSupplier isVisible;
+		private final Consumer<Image> callback;
+
+		private ThumbnailRequest(BooleanSupplier isVisible, Consumer<Image> callback) {
+			this.isVisible = isVisible;
+			this.callback = callback;
+		}
+
+	}
+
+
+	/**
+	 * Runnable that can be ordered within a {@link PriorityBlockingQueue}.
+	 * Tasks are handled last-in, first-out, since the most recent requests 
+	 * are the most likely to correspond to entries that are currently visible.
+	 */
+	private class ThumbnailTask implements Runnable, Comparable<ThumbnailTask> {
+
+		private final long order = counter.incrementAndGet();
+		private final Runnable runnable;
+
+		ThumbnailTask(Runnable runnable) {
+			this.runnable = runnable;
+		}
+
+		@Override
+		public void run() {
+			runnable.run();
+		}
+
+		@Override
+		public int compareTo(ThumbnailTask o) {
+			return Long.compare(o.order, order);
+		}
+
+	}
+
+}
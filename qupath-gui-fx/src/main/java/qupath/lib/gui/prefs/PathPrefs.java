@@ -850,6 +850,19 @@ public class PathPrefs {
 		return brushDiameter;
 	}
 	
+	private static BooleanProperty brushRasterEditing = createPersistentPreference("brushRasterEditing", false);
+	
+	/**
+	 * Edit annotations with the Brush tool (and tools derived from it) by accumulating the brushed region in a run-length encoded mask, 
+	 * only combining this with the original ROI when the mouse is released. 
+	 * This keeps editing responsive for very complex annotations, at the cost of the boundary being pixelated wherever it was brushed.
+	 * @return
+	 * @see qupath.lib.roi.RunLengthMask
+	 */
+	public static BooleanProperty brushRasterEditingProperty() {
+		return brushRasterEditing;
+	}
+	
 	private static BooleanProperty returnToMoveMode = createPersistentPreference("returnToMoveMode", true); // Return to the pan tool after drawing a ROI
 
 	
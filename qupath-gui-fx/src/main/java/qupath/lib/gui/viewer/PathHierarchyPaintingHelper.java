@@ -580,6 +580,26 @@ public class PathHierarchyPaintingHelper {
 			return shape;
 		}
 		
+		/**
+		 * Simplify a very large area ROI using tiled, topology-preserving simplification (which is cached).
+		 * This is only worthwhile for ROIs with a huge number of vertices, since JTS methods are otherwise much slower 
+		 * than {@link #simplifyByDownsample(Shape, double)}.
+		 */
+		private static Shape simplifyLargeByDownsample(final ROI roi, final double downsample) {
+			try {
+				if (downsample > 50)
+					return RoiTools.getShape(RoiTools.simplify(roi, 50));
+				if (downsample > 20)
+					return RoiTools.getShape(RoiTools.simplify(roi, 20));
+				if (downsample > 10)
+					return RoiTools.getShape(RoiTools.simplify(roi, 10));
+			} catch (Exception e) {
+				logger.warn("Unable to simplify ROI: {}", e.getLocalizedMessage());
+				logger.debug("", e);
+			}
+			return RoiTools.getShape(roi);
+		}
+		
 		
 		public Shape getShape(final ROI roi, final double downsample) {
 			if (roi instanceof RectangleROI) {
@@ -605,16 +625,20 @@ public class PathHierarchyPaintingHelper {
 //			map.clear();
 			Shape shape = map.get(roi);
 			if (shape == null) {
-				shape = RoiTools.getShape(roi);
 				// Downsample if we have to
-				if (map != this.map) {
-					// JTS methods are much slower
-//					var simplifier = new DouglasPeuckerSimplifier(roi.getGeometry());
-//					var simplifier = new VWSimplifier(roi.getGeometry());
-//					simplifier.setDistanceTolerance(downsample);
-//					simplifier.setEnsureValid(false);
-//					shape = GeometryTools.geometryToShape(simplifier.getResultGeometry());
-					shape = simplifyByDownsample(shape, downsample);
+				if (map != this.map && roi.getNumPoints() >= RoiTools.MIN_TILED_SIMPLIFY_VERTICES)
+					shape = simplifyLargeByDownsample(roi, downsample);
+				else {
+					shape = RoiTools.getShape(roi);
+					if (map != this.map) {
+						// JTS methods are much slower
+//						var simplifier = new DouglasPeuckerSimplifier(roi.getGeometry());
+//						var simplifier = new VWSimplifier(roi.getGeometry());
+//						simplifier.setDistanceTolerance(downsample);
+//						simplifier.setEnsureValid(false);
+//						shape = GeometryTools.geometryToShape(simplifier.getResultGeometry());
+						shape = simplifyByDownsample(shape, downsample);
+					}
 				}
 				map.put(roi, shape);
 			}
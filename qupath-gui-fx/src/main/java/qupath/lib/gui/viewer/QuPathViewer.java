@@ -151,6 +151,9 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 	private ObjectProperty<ImageData<BufferedImage>> imageDataProperty = new SimpleObjectProperty<>();
 
 	private DefaultImageRegionStore regionStore;
+	
+	// Optional instrumentation of paint times
+	private final ViewerPaintProfiler paintProfiler = new ViewerPaintProfiler();
 
 	// Overlay (ROI/object) display variables
 	private OverlayOptions overlayOptions;
@@ -881,6 +884,15 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 	public DefaultImageRegionStore getImageRegionStore() {
 		return regionStore;
 	}
+	
+	/**
+	 * Get the profiler that can be used to record the time taken to paint this viewer.
+	 * This is disabled by default.
+	 * @return
+	 */
+	public ViewerPaintProfiler getPaintProfiler() {
+		return paintProfiler;
+	}
 
 
 	/**
@@ -1677,6 +1689,8 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 			updateRepaintTimestamp();
 			return;
 		}
+		
+		paintProfiler.beginFrame();
 
 //		// Get dimensions
 //		int w = getWidth();
@@ -1721,7 +1735,9 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 			locationUpdated = false;
 
 			//			updateBufferedImage(imgVolatile, shapeRegion, w, h);
+			long startTiles = System.nanoTime();
 			updateBufferedImage(imgBuffer, shapeRegion, w, h);
+			paintProfiler.recordTiles(System.nanoTime() - startTiles);
 		}
 
 		//		if (imageUpdated || locationUpdated) {
@@ -1763,6 +1779,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 			// Notify any listeners of shape changes
 			if (shapeChanged)
 				fireVisibleRegionChangedEvent(lastVisibleShape);
+			paintProfiler.endFrame();
 			return;
 		}
 		
@@ -1789,7 +1806,11 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 				if (overlay instanceof AbstractOverlay)
 					((AbstractOverlay)overlay).setPreferredOverlayColor(color);
 //				overlay.paintOverlay(g2d, regionBounds, downsample, null, paintCompletely);
+				long startOverlay = System.nanoTime();
 				overlay.paintOverlay(g2d, getServerBounds(), downsample, imageData, paintCompletely);
+				paintProfiler.recordOverlay(overlay, System.nanoTime() - startOverlay);
+				if (overlay instanceof HierarchyOverlay)
+					paintProfiler.recordObjects(((HierarchyOverlay)overlay).getLastPaintedObjectCount());
 			}
 //			if (hierarchyOverlay != null) {
 //				hierarchyOverlay.setPreferredOverlayColor(color);
@@ -1866,6 +1887,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 		if (shapeChanged)
 			fireVisibleRegionChangedEvent(lastVisibleShape);
 		
+		paintProfiler.endFrame();
 		
 		updateRepaintTimestamp();
 	}
@@ -1965,14 +1987,14 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 			// *However* this shouldn't be applied if the region we are viewing extends beyond the image boundary, as it means we would be color-transforming the background color.
 			// For a non-RGB image, or if the viewed region is over the image boundary, the transform should be applied in advance to the thumbnail, and then tile-by-tile during painting.
 			if (server.isRGB() && !overBoundary) {
-				regionStore.paintRegion(server, gBuffered, shapeToUpdate, getZPosition(), getTPosition(), downsample, imgThumbnail, null, null);
+				regionStore.paintRegion(this, server, gBuffered, shapeToUpdate, getZPosition(), getTPosition(), downsample, imgThumbnail, null, null);
 				gBuffered.dispose();
 				if (imageDisplay != null)
 //					imgBuffer = imageDisplay.applyTransforms(imgBuffer, imgBuffer);
 //					 More benchmarking required... but reusing imgBuffer was killing performance for RGB transform on Java 8 (JavaFX)... possibly
-					imgBuffer = getRenderer().applyTransforms(imgBuffer, null);
+					imgBuffer = paintProfiler.wrapRenderer(getRenderer()).applyTransforms(imgBuffer, null);
 			} else {
-				regionStore.paintRegion(server, gBuffered, shapeToUpdate, getZPosition(), getTPosition(), downsample, imgThumbnail, null, getRenderer());
+				regionStore.paintRegion(this, server, gBuffered, shapeToUpdate, getZPosition(), getTPosition(), downsample, imgThumbnail, null, paintProfiler.wrapRenderer(getRenderer()));
 			}
 		} else {
 			// Just paint the 'thumbnail' version, which has already (potentially) been color-transformed
@@ -0,0 +1,469 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.viewer;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.gui.images.stores.ImageRenderer;
+import qupath.lib.gui.viewer.overlays.PathOverlay;
+
+/**
+ * Low-overhead profiler for the time taken to paint a {@link QuPathViewer}.
+ * <p>
+ * For each frame this records
+ * <ul>
+ *   <li>the total paint time</li>
+ *   <li>the time spent painting image tiles, including any wait for the tile cache</li>
+ *   <li>the time spent applying the {@link ImageRenderer} (e.g. the image display transforms)</li>
+ *   <li>the time spent painting each overlay layer</li>
+ *   <li>the number of objects painted directly by overlays</li>
+ * </ul>
+ * Values are stored in preallocated primitive arrays that are used as a ring buffer, so that profiling
+ * does not create garbage while painting.
+ * Profiling is disabled by default; when disabled, the overhead is limited to a single check per call.
+ * <p>
+ * All recording methods are expected to be called from the thread that paints the viewer.
+ */
+public class ViewerPaintProfiler {
+
+	private final static Logger logger = LoggerFactory.getLogger(ViewerPaintProfiler.class);
+
+	/**
+	 * Maximum number of distinct overlays that can be profiled; any more are combined into the last entry.
+	 */
+	private static final int MAX_OVERLAYS = 16;
+
+	private final int capacity;
+
+	private volatile boolean enabled = false;
+	private volatile double slowFrameMillis = 100.0;
+
+	private final long[] timestamps;
+	private final long[] totalNanos;
+	private final long[] tileNanos;
+	private final long[] transformNanos;
+	private final long[][] overlayNanos;
+	private final int[] objectCounts;
+
+	private final Map<String, Integer> overlayIndices = new LinkedHashMap<>();
+
+	private int nextIndex = 0;
+	private int nFrames = 0;
+
+	// Values for the frame currently being painted
+	private boolean inFrame = false;
+	private long frameStart;
+	private long frameTile;
+	private long frameTransform;
+	private long frameObjects;
+	private final long[] frameOverlays = new long[MAX_OVERLAYS];
+
+	/**
+	 * Create a profiler that retains information for up to 1024 frames.
+	 */
+	public ViewerPaintProfiler() {
+		this(1024);
+	}
+
+	/**
+	 * Create a profiler that retains information for up to a specified number of frames.
+	 * @param capacity maximum number of frames to retain; once exceeded, the oldest frames are discarded
+	 */
+	public ViewerPaintProfiler(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be > 0!");
+		this.capacity = capacity;
+		this.timestamps = new long[capacity];
+		this.totalNanos = new long[capacity];
+		this.tileNanos = new long[capacity];
+		this.transformNanos = new long[capacity];
+		this.overlayNanos = new long[capacity][MAX_OVERLAYS];
+		this.objectCounts = new int[capacity];
+	}
+
+	/**
+	 * Request whether paint times should be recorded.
+	 * @param enabled
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Query whether paint times are being recorded.
+	 * @return
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Set the threshold above which the paint time for a frame is considered 'slow', and a breakdown is logged.
+	 * @param millis
+	 */
+	public void setSlowFrameMillis(double millis) {
+		this.slowFrameMillis = millis;
+	}
+
+	/**
+	 * Get the threshold above which the paint time for a frame is considered 'slow', and a breakdown is logged.
+	 * @return
+	 */
+	public double getSlowFrameMillis() {
+		return slowFrameMillis;
+	}
+
+	/**
+	 * Get the maximum number of frames that may be retained.
+	 * @return
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Signal that painting a new frame has begun.
+	 */
+	void beginFrame() {
+		if (!enabled)
+			return;
+		inFrame = true;
+		frameStart = System.nanoTime();
+		frameTile = 0L;
+		frameTransform = 0L;
+		frameObjects = 0L;
+		Arrays.fill(frameOverlays, 0L);
+	}
+
+	/**
+	 * Record the time taken to paint image tiles for the current frame.
+	 * This includes any transform time recorded via a renderer returned by {@link #wrapRenderer(ImageRenderer)}.
+	 * @param nanos
+	 */
+	void recordTiles(long nanos) {
+		if (inFrame)
+			frameTile += nanos;
+	}
+
+	/**
+	 * Record the time taken to apply display transforms for the current frame.
+	 * @param nanos
+	 */
+	void recordTransform(long nanos) {
+		if (inFrame)
+			frameTransform += nanos;
+	}
+
+	/**
+	 * Record the time taken to paint an overlay for the current frame.
+	 * @param overlay
+	 * @param nanos
+	 */
+	void recordOverlay(PathOverlay overlay, long nanos) {
+		if (!inFrame)
+			return;
+		frameOverlays[getOverlayIndex(overlay)] += nanos;
+	}
+
+	/**
+	 * Record the number of objects painted for the current frame.
+	 * @param count
+	 */
+	void recordObjects(int count) {
+		if (inFrame)
+			frameObjects += count;
+	}
+
+	/**
+	 * Signal that painting the current frame is complete.
+	 */
+	void endFrame() {
+		if (!inFrame)
+			return;
+		inFrame = false;
+		long total = System.nanoTime() - frameStart;
+		synchronized (this) {
+			int ind = nextIndex;
+			timestamps[ind] = System.currentTimeMillis();
+			totalNanos[ind] = total;
+			tileNanos[ind] = frameTile;
+			transformNanos[ind] = frameTransform;
+			System.arraycopy(frameOverlays, 0, overlayNanos[ind], 0, MAX_OVERLAYS);
+			objectCounts[ind] = (int)Math.min(Integer.MAX_VALUE, frameObjects);
+			nextIndex = (ind + 1) % capacity;
+			nFrames = Math.min(nFrames + 1, capacity);
+		}
+		if (total / 1e6 > slowFrameMillis && logger.isDebugEnabled())
+			logger.debug("Slow frame: {}", getFrame(0));
+	}
+
+	/**
+	 * Wrap an {@link ImageRenderer} so that the time taken to apply transforms is recorded for the current frame.
+	 * @param renderer
+	 * @return the wrapped renderer, or the original renderer if profiling is disabled (or the renderer is null)
+	 */
+	ImageRenderer wrapRenderer(ImageRenderer renderer) {
+		if (!inFrame || renderer == null)
+			return renderer;
+		return new TimedRenderer(renderer);
+	}
+
+	private synchronized int getOverlayIndex(PathOverlay overlay) {
+		String name = overlay.getClass().getSimpleName();
+		var ind = overlayIndices.get(name);
+		if (ind == null) {
+			ind = Math.min(overlayIndices.size(), MAX_OVERLAYS - 1);
+			if (overlayIndices.size() < MAX_OVERLAYS)
+				overlayIndices.put(name, ind);
+		}
+		return ind;
+	}
+
+	/**
+	 * Get the names of all overlays for which paint times have been recorded, in the order in which they were first painted.
+	 * @return
+	 */
+	public synchronized List<String> getOverlayNames() {
+		return Collections.unmodifiableList(new ArrayList<>(overlayIndices.keySet()));
+	}
+
+	/**
+	 * Get the number of frames currently retained.
+	 * @return
+	 */
+	public synchronized int size() {
+		return nFrames;
+	}
+
+	/**
+	 * Remove all recorded frames.
+	 */
+	public synchronized void clear() {
+		nFrames = 0;
+		nextIndex = 0;
+		overlayIndices.clear();
+	}
+
+	/**
+	 * Get a recorded frame.
+	 * @param age the age of the frame, where 0 is the most recent and {@code size()-1} is the oldest
+	 * @return
+	 */
+	public synchronized FrameProfile getFrame(int age) {
+		if (age < 0 || age >= nFrames)
+			throw new IndexOutOfBoundsException("No frame available with age " + age);
+		int ind = (nextIndex - 1 - age + capacity) % capacity;
+		Map<String, Double> overlays = new LinkedHashMap<>();
+		for (var entry : overlayIndices.entrySet())
+			overlays.put(entry.getKey(), overlayNanos[ind][entry.getValue()] / 1e6);
+		return new FrameProfile(timestamps[ind], totalNanos[ind] / 1e6, tileNanos[ind] / 1e6, transformNanos[ind] / 1e6, overlays, objectCounts[ind]);
+	}
+
+	/**
+	 * Get all recorded frames, from oldest to most recent.
+	 * @return
+	 */
+	public synchronized List<FrameProfile> getFrames() {
+		List<FrameProfile> frames = new ArrayList<>(nFrames);
+		for (int age = nFrames - 1; age >= 0; age--)
+			frames.add(getFrame(age));
+		return frames;
+	}
+
+	/**
+	 * Get a percentile of the total paint time, computed from all retained frames.
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the paint time in milliseconds, or NaN if no frames have been recorded
+	 */
+	public synchronized double getTotalMillisPercentile(double percentile) {
+		if (nFrames == 0)
+			return Double.NaN;
+		long[] values = Arrays.copyOf(totalNanos, nFrames);
+		Arrays.sort(values);
+		int ind = (int)Math.round(Math.max(0, Math.min(100, percentile)) / 100.0 * (nFrames - 1));
+		return values[ind] / 1e6;
+	}
+
+	/**
+	 * Write all retained frames as comma-separated values, from oldest to most recent.
+	 * All times are in milliseconds.
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void writeCSV(Writer writer) throws IOException {
+		var frames = getFrames();
+		var overlays = getOverlayNames();
+		var sb = new StringBuilder();
+		sb.append("Timestamp,Total (ms),Tiles (ms),Transform (ms),Objects painted");
+		for (var name : overlays)
+			sb.append(",").append(name).append(" (ms)");
+		sb.append(System.lineSeparator());
+		writer.write(sb.toString());
+		for (var frame : frames) {
+			sb.setLength(0);
+			sb.append(frame.getTimestamp()).append(",");
+			sb.append(frame.getTotalMillis()).append(",");
+			sb.append(frame.getTileMillis()).append(",");
+			sb.append(frame.getTransformMillis()).append(",");
+			sb.append(frame.getObjectCount());
+			for (var name : overlays)
+				sb.append(",").append(frame.getOverlayMillis().getOrDefault(name, 0.0));
+			sb.append(System.lineSeparator());
+			writer.write(sb.toString());
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Write all retained frames to a CSV file.
+	 * @param file
+	 * @throws IOException
+	 * @see #writeCSV(Writer)
+	 */
+	public void writeCSV(File file) throws IOException {
+		try (var writer = new PrintWriter(file)) {
+			writeCSV(writer);
+		}
+	}
+
+
+	/**
+	 * Profile for a single painted frame.
+	 */
+	public static class FrameProfile {
+
+		private final long timestamp;
+		private final double totalMillis;
+		private final double tileMillis;
+		private final double transformMillis;
+		private final Map<String, Double> overlayMillis;
+		private final int objectCount;
+
+		private FrameProfile(long timestamp, double totalMillis, double tileMillis, double transformMillis, Map<String, Double> overlayMillis, int objectCount) {
+			this.timestamp = timestamp;
+			this.totalMillis = totalMillis;
+			this.tileMillis = tileMillis;
+			this.transformMillis = transformMillis;
+			this.overlayMillis = Collections.unmodifiableMap(overlayMillis);
+			this.objectCount = objectCount;
+		}
+
+		/**
+		 * Get the time at which the frame was completed, in milliseconds since the epoch.
+		 * @return
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * Get the total time required to paint the frame.
+		 * @return
+		 */
+		public double getTotalMillis() {
+			return totalMillis;
+		}
+
+		/**
+		 * Get the time required to paint image tiles, including waiting for the tile cache and applying transforms.
+		 * @return
+		 */
+		public double getTileMillis() {
+			return tileMillis;
+		}
+
+		/**
+		 * Get the time required to apply display transforms.
+		 * @return
+		 */
+		public double getTransformMillis() {
+			return transformMillis;
+		}
+
+		/**
+		 * Get the time required to paint each overlay, keyed by the overlay name.
+		 * @return
+		 */
+		public Map<String, Double> getOverlayMillis() {
+			return overlayMillis;
+		}
+
+		/**
+		 * Get the number of objects painted directly by the overlays.
+		 * Objects painted from cached tiles are not included.
+		 * @return
+		 */
+		public int getObjectCount() {
+			return objectCount;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("total=%.2f ms, tiles=%.2f ms, transform=%.2f ms, objects=%d, overlays=%s",
+					totalMillis, tileMillis, transformMillis, objectCount, overlayMillis);
+		}
+
+	}
+
+
+	private class TimedRenderer implements ImageRenderer {
+
+		private final ImageRenderer renderer;
+
+		TimedRenderer(ImageRenderer renderer) {
+			this.renderer = renderer;
+		}
+
+		@Override
+		public BufferedImage applyTransforms(BufferedImage imgInput, BufferedImage imgOutput) {
+			long start = System.nanoTime();
+			var result = renderer.applyTransforms(imgInput, imgOutput);
+			recordTransform(System.nanoTime() - start);
+			return result;
+		}
+
+		@Override
+		public long getLastChangeTimestamp() {
+			return renderer.getLastChangeTimestamp();
+		}
+
+		@Override
+		public String getUniqueID() {
+			return renderer.getUniqueID();
+		}
+
+	}
+
+}
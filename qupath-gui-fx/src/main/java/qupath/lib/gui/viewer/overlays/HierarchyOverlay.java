@@ -88,6 +88,8 @@ public class HierarchyOverlay extends AbstractOverlay {
 	
 	private int lastPointRadius = PathPrefs.pointRadiusProperty().get();
 	
+	private int lastPaintedObjectCount = 0;
+	
 	private Font font = new Font("SansSerif", Font.BOLD, 10);
 	
 	transient private DetectionComparator comparator = new DetectionComparator();
@@ -121,6 +123,8 @@ public class HierarchyOverlay extends AbstractOverlay {
 	@Override
 	public void paintOverlay(final Graphics2D g2d, final ImageRegion imageRegion, final double downsampleFactor, final ImageData<BufferedImage> imageData, final boolean paintCompletely) {
 		
+		lastPaintedObjectCount = 0;
+		
 		if (this.imageData != imageData) {
 			this.imageData = imageData;
 			updateOverlayServer();
@@ -183,6 +187,7 @@ public class HierarchyOverlay extends AbstractOverlay {
 				Collection<PathObject> pathObjects = hierarchy.getObjectsForRegion(PathDetectionObject.class, region, pathObjectsToPaint);
 				g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
 				PathHierarchyPaintingHelper.paintSpecifiedObjects(g2d, boundsDisplayed, pathObjects, overlayOptions, hierarchy.getSelectionModel(), downsampleFactor);
+				lastPaintedObjectCount += pathObjects.size();
 				
 				if (overlayOptions.getShowConnections()) {
 					Object connections = imageData.getProperty(DefaultPathObjectConnectionGroup.KEY_OBJECT_CONNECTIONS);
@@ -233,6 +238,7 @@ public class HierarchyOverlay extends AbstractOverlay {
 			Collections.sort(pathObjectList, Comparator.comparingInt(PathObject::getLevel).reversed()
 					.thenComparing(Comparator.comparingDouble((PathObject p) -> -p.getROI().getArea())));
 			PathHierarchyPaintingHelper.paintSpecifiedObjects(g2d, boundsDisplayed, pathObjectList, overlayOptions, null, downsampleFactor);	
+			lastPaintedObjectCount += pathObjectList.size();
 		} else {
 			// Get the clip without any transform
 			var gNoTransform = (Graphics2D)g2d.create();
@@ -259,6 +265,7 @@ public class HierarchyOverlay extends AbstractOverlay {
 					Collections.sort(pathObjectList, Comparator.comparingInt(PathObject::getLevel).reversed()
 							.thenComparing(Comparator.comparingDouble((PathObject p) -> -p.getROI().getArea())));
 					PathHierarchyPaintingHelper.paintSpecifiedObjects(g, boundsDisplayed, pathObjectList, overlayOptions, null, downsampleFactor);		
+					lastPaintedObjectCount += pathObjectList.size();
 				}
 			}
 			if (bufferLocal != null) {
@@ -272,6 +279,7 @@ public class HierarchyOverlay extends AbstractOverlay {
 		
 		// Ensure that selected objects are painted last, to make sure they aren't obscured
 		if (!selectedObjects.isEmpty()) {
+			lastPaintedObjectCount += selectedObjects.size();
 			Composite previousComposite = g2d.getComposite();
 			float opacity = overlayOptions.getOpacity();
 			if (opacity < 1) {
@@ -340,6 +348,16 @@ public class HierarchyOverlay extends AbstractOverlay {
 		
 	}
 
+	/**
+	 * Get the number of objects that were painted directly during the last call to 
+	 * {@link #paintOverlay(Graphics2D, ImageRegion, double, ImageData, boolean)}.
+	 * This excludes any detections that were painted from cached tiles.
+	 * @return
+	 */
+	public int getLastPaintedObjectCount() {
+		return lastPaintedObjectCount;
+	}
+	
 	/**
 	 * Reset the buffer, indicating that a full repaint will be required.
 	 */
@@ -23,7 +23,9 @@
 
 package qupath.lib.gui.viewer.tools;
 
+import java.awt.Graphics2D;
 import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -39,8 +41,14 @@ import org.slf4j.LoggerFactory;
 
 import javafx.scene.Cursor;
 import javafx.scene.input.MouseEvent;
+import qupath.lib.color.ColorToolsAwt;
 import qupath.lib.gui.prefs.PathPrefs;
+import qupath.lib.gui.viewer.OverlayOptions;
+import qupath.lib.gui.viewer.PathHierarchyPaintingHelper;
+import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.gui.viewer.overlays.AbstractOverlay;
 import qupath.lib.gui.viewer.tools.QuPathPenManager.PenInputManager;
+import qupath.lib.images.ImageData;
 import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjects;
@@ -50,10 +58,12 @@ import qupath.lib.objects.classes.PathClassFactory;
 import qupath.lib.objects.classes.PathClassFactory.StandardPathClasses;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
 import qupath.lib.roi.RoiTools;
 import qupath.lib.roi.GeometryTools;
 import qupath.lib.roi.ROIs;
 import qupath.lib.roi.RectangleROI;
+import qupath.lib.roi.RunLengthMask;
 import qupath.lib.roi.interfaces.ROI;
 
 /**
@@ -85,6 +95,39 @@ public class BrushTool extends AbstractPathROITool {
 	
 	Point2D lastPoint;
 	
+	/**
+	 * Downsample used for raster editing. This is fixed at the full image resolution, so that the precision of an edit 
+	 * does not depend upon the magnification at which it was made.
+	 */
+	private static final double MASK_DOWNSAMPLE = 1.0;
+	
+	/**
+	 * Mask used to accumulate the region brushed during the current stroke if raster editing is enabled, or null if edits 
+	 * should be applied directly to the ROI.
+	 * Only the brushed region is rasterized; it is combined with the original geometry when the mouse is released.
+	 * @see PathPrefs#brushRasterEditingProperty()
+	 */
+	private RunLengthMask mask;
+	
+	/**
+	 * Geometry of the current object when the stroke began, used with the mask.
+	 */
+	private Geometry maskBaseGeometry;
+	
+	/**
+	 * True if the mask should be subtracted from the original geometry, false if it should be added.
+	 */
+	private boolean maskSubtract = false;
+	
+	private boolean maskModified = false;
+	
+	/**
+	 * Viewer displaying the mask overlay, or null if no overlay is shown.
+	 */
+	private QuPathViewer maskViewer;
+	
+	private MaskOverlay maskOverlay;
+	
 //	/**
 //	 * Cache the last 50 cursors we saw
 //	 */
@@ -254,11 +297,17 @@ public class BrushTool extends AbstractPathROITool {
 		}
 
 		ROI shapeROI = createNew ? null : currentObject.getROI();
+		boolean useMask = PathPrefs.brushRasterEditingProperty().get();
+		resetMask();
 		if (createNew) {
 			creatingTiledROI = false; // Reset this
 			this.currentObject = createNewAnnotation(e, p.getX(), p.getY());
 			viewer.getROIEditor().setROI(null);
+			if (useMask && this.currentObject != null)
+				startMask(viewer, this.currentObject.getROI(), false);
 		} else {
+			if (useMask)
+				startMask(viewer, shapeROI, isSubtractMode(e));
 			this.currentObject = getUpdatedObject(e, shapeROI, currentObject, -1);
 			viewer.setSelectedObject(this.currentObject);
 			viewer.getROIEditor().setROI(null); // Avoids handles appearing?
@@ -319,7 +368,10 @@ public class BrushTool extends AbstractPathROITool {
 		var viewer = getViewer();
 		ImagePlane plane = shapeROI == null ? ImagePlane.getPlane(viewer.getZPosition(), viewer.getTPosition()) : shapeROI.getImagePlane();
 		Geometry shapeNew;
-		boolean subtractMode = isSubtractMode(e);
+		// If a mask is in use, the ROI does not yet include the latest changes - but the geometry is then only needed to 
+		// indicate that the drawn shape will be added, and tracing the mask on every event would be too expensive.
+		// The mode is also fixed for the whole stroke, since the mask only records the region that was brushed.
+		boolean subtractMode = mask == null ? isSubtractMode(e) : maskSubtract;
 		Geometry shapeCurrent = shapeROI == null ? null : shapeROI.getGeometry();
 		
 		Geometry shapeDrawn = createShape(e, p.getX(), p.getY(),
@@ -334,6 +386,14 @@ public class BrushTool extends AbstractPathROITool {
 			shapeDrawn = GeometryTools.roundCoordinates(shapeDrawn);
 		
 		lastPoint = p;
+		
+		// When using a mask, only update the mask now - the ROI is updated when the mouse is released
+		if (mask != null) {
+			if (mask.add(shapeDrawn))
+				maskModified = true;
+			return currentObject;
+		}
+		
 		try {
 			if (shapeROI != null) {
 				// Check to see if any changes are required at all
@@ -409,8 +469,15 @@ public class BrushTool extends AbstractPathROITool {
 		
 		ensureCursorType(Cursor.DEFAULT);
 		
-		if (e.isConsumed())
+		if (e.isConsumed()) {
+			resetMask();
 			return;
+		}
+		
+		if (mask != null) {
+			updateObjectFromMask(e);
+			resetMask();
+		}
 
 		if (currentObject != null)
 			commitObjectToHierarchy(e, currentObject);
@@ -420,6 +487,94 @@ public class BrushTool extends AbstractPathROITool {
 	}
 	
 	
+	/**
+	 * Start raster editing for the current stroke, showing the mask as an overlay until it is reset.
+	 * @param viewer the viewer in which editing is performed
+	 * @param roi the ROI of the object being edited
+	 * @param subtract true if the brushed region should be subtracted from the ROI, false if it should be added
+	 */
+	private void startMask(QuPathViewer viewer, ROI roi, boolean subtract) {
+		mask = new RunLengthMask(MASK_DOWNSAMPLE);
+		maskBaseGeometry = roi.getGeometry();
+		maskSubtract = subtract;
+		maskModified = false;
+		maskViewer = viewer;
+		if (maskOverlay == null)
+			maskOverlay = new MaskOverlay(viewer.getOverlayOptions());
+		viewer.getCustomOverlayLayers().add(maskOverlay);
+	}
+	
+	/**
+	 * Discard any mask, and remove its overlay.
+	 */
+	private void resetMask() {
+		if (maskViewer != null) {
+			maskViewer.getCustomOverlayLayers().remove(maskOverlay);
+			maskViewer = null;
+		}
+		mask = null;
+		maskBaseGeometry = null;
+		maskModified = false;
+	}
+	
+	/**
+	 * Set the ROI of the current object by combining its original geometry with the mask, if the mask has been modified.
+	 * This is the only time the mask is traced, and the original geometry is retained away from the brushed region.
+	 */
+	private void updateObjectFromMask(MouseEvent e) {
+		if (mask == null || !maskModified || !(currentObject instanceof PathAnnotationObject))
+			return;
+		var viewer = getViewer();
+		try {
+			Geometry geometry;
+			Geometry geometryMask = mask.toGeometry();
+			if (maskSubtract)
+				geometry = maskBaseGeometry.difference(geometryMask);
+			else {
+				geometry = maskBaseGeometry.union(geometryMask);
+				if (requestParentClipping(e))
+					geometry = refineGeometryByParent(geometry);
+			}
+			
+			// Make sure we fit inside the image
+			var envelope = geometry.getEnvelopeInternal();
+			if (envelope.getMinX() < 0 || envelope.getMinY() < 0 || envelope.getMaxX() > viewer.getServerWidth() || envelope.getMaxY() > viewer.getServerHeight())
+				geometry = GeometryTools.constrainToBounds(geometry, 0, 0, viewer.getServerWidth(), viewer.getServerHeight());
+			if (geometry instanceof GeometryCollection)
+				geometry = GeometryTools.ensurePolygonal(geometry);
+			
+			var plane = currentObject.getROI().getImagePlane();
+			((PathAnnotationObject)currentObject).setROI(GeometryTools.geometryToROI(geometry, plane));
+		} catch (Exception ex) {
+			logger.error("Error updating ROI from mask", ex);
+		}
+		viewer.repaint();
+	}
+	
+	
+	/**
+	 * Overlay used to show the region brushed during the current stroke when raster editing, 
+	 * since the ROI itself is only updated when the mouse is released.
+	 */
+	class MaskOverlay extends AbstractOverlay {
+		
+		MaskOverlay(OverlayOptions overlayOptions) {
+			super(overlayOptions);
+		}
+
+		@Override
+		public void paintOverlay(Graphics2D g2d, ImageRegion imageRegion, double downsampleFactor,
+				ImageData<BufferedImage> imageData, boolean paintCompletely) {
+			if (mask == null || !maskModified)
+				return;
+			var colorFill = maskSubtract ? ColorToolsAwt.TRANSLUCENT_BLACK : 
+				ColorToolsAwt.getColorWithOpacity(PathPrefs.colorSelectedObjectProperty().get(), 0.5);
+			PathHierarchyPaintingHelper.paintShape(mask.toShape(), g2d, null, null, colorFill);
+		}
+		
+	}
+	
+	
 	protected double getBrushDiameter() {
 		PenInputManager manager = QuPathPenManager.getPenManager();
 		double scale = manager.getPressure();
@@ -50,20 +50,27 @@ import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 import picocli.CommandLine.ParseResult;
 import qupath.lib.common.GeneralTools;
+import qupath.lib.display.ImageDisplay;
 import qupath.lib.gui.BuildInfo;
 import qupath.lib.gui.ExtensionClassLoader;
 import qupath.lib.gui.QuPathApp;
 import qupath.lib.gui.Version;
 import qupath.lib.gui.extensions.Subcommand;
+import qupath.lib.gui.images.servers.RenderedImageServer;
+import qupath.lib.gui.images.stores.DefaultImageRegionStore;
 import qupath.lib.gui.images.stores.ImageRegionStoreFactory;
 import qupath.lib.gui.logging.LogManager;
 import qupath.lib.gui.logging.LogManager.LogLevel;
 import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.gui.scripting.DefaultScriptEditor;
 import qupath.lib.gui.tma.QuPathTMAViewer;
+import qupath.lib.gui.viewer.OverlayOptions;
+import qupath.lib.gui.viewer.overlays.HierarchyOverlay;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerProvider;
+import qupath.lib.images.writers.ome.OMEPyramidWriter;
+import qupath.lib.images.writers.ome.OMEPyramidWriter.CompressionType;
 import qupath.lib.projects.Project;
 import qupath.lib.projects.ProjectIO;
 
@@ -73,7 +80,7 @@ import qupath.lib.projects.ProjectIO;
  * @author Pete Bankhead
  *
  */
-@Command(name = "QuPath", subcommands = {HelpCommand.class, ScriptCommand.class, GenerateCompletion.class},
+@Command(name = "QuPath", subcommands = {HelpCommand.class, ScriptCommand.class, RenderCommand.class, GenerateCompletion.class},
 	footer = {"",
 			"Copyright(c) The Queen's University Belfast (2014-2016)",
 			"Copyright(c) QuPath developers (2017-2020)",
@@ -279,7 +286,7 @@ class ScriptCommand implements Runnable {
 			}
 			
 			// Ensure we have a tile cache set
-			createTileCache();
+			ScriptCommand.createTileCache();
 			
 			ImageData<BufferedImage> imageData;
 			
@@ -324,8 +331,9 @@ class ScriptCommand implements Runnable {
 	
 	/**
 	 * The tile cache is usually set when initializing the GUI; here, we need to create one for performance
+	 * @return the region store that wraps the tile cache
 	 */
-	private void createTileCache() {
+	static DefaultImageRegionStore createTileCache() {
 		// TODO: Refactor this to avoid replicating logic from QuPathGUI private method
 		Runtime rt = Runtime.getRuntime();
 		long maxAvailable = rt.maxMemory(); // Max available memory
@@ -346,6 +354,7 @@ class ScriptCommand implements Runnable {
 		
 		var imageRegionStore = ImageRegionStoreFactory.createImageRegionStore(tileCacheSize);
 		ImageServerProvider.setCache(imageRegionStore.getCache(), BufferedImage.class);
+		return imageRegionStore;
 	}
 	
 	
@@ -392,3 +401,115 @@ class ScriptCommand implements Runnable {
 	}
 	
 }
+
+
+@Command(name = "render", description = {
+		"Renders images in a project (including objects) and writes them as pyramidal OME-TIFF files.",
+		"This does not require a display, and so can be used on batch or cluster nodes."
+		}, sortOptions = false)
+class RenderCommand implements Runnable {
+	
+	final private static Logger logger = LoggerFactory.getLogger(RenderCommand.class);
+	
+	@Option(names = {"-p", "--project"}, description = "Path to a project file (.qpproj).", paramLabel = "project", required = true)
+	private String projectPath;
+	
+	@Option(names = {"-i", "--image"}, description = "Name of the image to render; if not specified, all images in the project will be rendered.", paramLabel = "image")
+	private String imageName;
+	
+	@Option(names = {"-o", "--output"}, description = "Output directory.", paramLabel = "output", required = true)
+	private String outputPath;
+	
+	@Option(names = {"-d", "--downsample"}, description = "Downsample factor for the full-resolution level of the rendered image (default = 1).", paramLabel = "downsample")
+	private double downsample = 1.0;
+	
+	@Option(names = {"--tile-size"}, description = "Tile size (default = 512).", paramLabel = "tile-size")
+	private int tileSize = 512;
+	
+	@Option(names = {"-t", "--threads"}, description = "Number of threads used to render tiles (default = number of processors).", paramLabel = "threads")
+	private int nThreads = Runtime.getRuntime().availableProcessors();
+	
+	@Option(names = {"-c", "--compression"}, description = {"Compression type (default = DEFAULT).", "Options: ${COMPLETION-CANDIDATES}"}, paramLabel = "compression")
+	private CompressionType compression = CompressionType.DEFAULT;
+	
+	@Option(names = {"--no-objects"}, description = "Render only the image, without any objects.")
+	private boolean noObjects;
+	
+	@Option(names = {"-h", "--help"}, usageHelp = true, description = "Show this help message and exit.")
+	private boolean usageHelpRequested;
+	
+	@Override
+	public void run() {
+		// Don't try to connect to a display
+		System.setProperty("java.awt.headless", "true");
+		
+		try {
+			var dirOutput = new File(QuPath.getEncodedPath(outputPath));
+			if (!dirOutput.isDirectory() && !dirOutput.mkdirs())
+				throw new IOException("Unable to create output directory " + dirOutput);
+			
+			// The same store is used for all images, so that the raw image tiles & rasterized objects share a cache
+			var store = ScriptCommand.createTileCache();
+			
+			Project<BufferedImage> project = ProjectIO.loadProject(new File(QuPath.getEncodedPath(projectPath)), BufferedImage.class);
+			for (var entry : project.getImageList()) {
+				if (imageName != null && !imageName.equals("") && !imageName.equals(entry.getImageName()))
+					continue;
+				var file = new File(dirOutput, GeneralTools.stripInvalidFilenameChars(
+						GeneralTools.getNameWithoutExtension(entry.getImageName())) + ".ome.tif");
+				logger.info("Rendering {} to {}", entry.getImageName(), file.getAbsolutePath());
+				long startTime = System.currentTimeMillis();
+				var imageData = entry.readImageData();
+				try {
+					renderImage(store, imageData, file);
+					logger.info("{} rendered in {} ms", entry.getImageName(), System.currentTimeMillis() - startTime);
+				} catch (Exception e) {
+					logger.error("Error rendering image: " + entry.getImageName(), e);
+				} finally {
+					imageData.getServer().close();
+				}
+			}
+		} catch (Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+		}
+	}
+	
+	
+	private void renderImage(DefaultImageRegionStore store, ImageData<BufferedImage> imageData, File file) throws Exception {
+		var server = imageData.getServer();
+		
+		// Request the same downsamples from the writer & renderer, so that objects are painted at each level
+		double[] downsamples = getDownsamples(server, downsample, tileSize);
+		
+		var builder = new RenderedImageServer.Builder(imageData)
+				.store(store)
+				.display(new ImageDisplay(imageData))
+				.downsamples(downsamples);
+		if (!noObjects) {
+			// Rasterized detections are cached in the store, and can be reused across pyramid levels
+			builder.layers(new HierarchyOverlay(store, new OverlayOptions(), imageData));
+		}
+		
+		try (var renderedServer = builder.build()) {
+			new OMEPyramidWriter.Builder(renderedServer)
+				.tileSize(tileSize)
+				.downsamples(downsamples)
+				.compression(compression)
+				.parallelize(nThreads)
+				.build()
+				.writePyramid(file.getAbsolutePath());
+		}
+	}
+	
+	
+	private static double[] getDownsamples(ImageServer<BufferedImage> server, double downsample, int tileSize) {
+		List<Double> downsamples = new ArrayList<>();
+		double d = Math.max(downsample, 1e-3);
+		do {
+			downsamples.add(d);
+			d *= 4;
+		} while (Math.max(server.getWidth(), server.getHeight()) / d >= tileSize);
+		return downsamples.stream().mapToDouble(Double::doubleValue).toArray();
+	}
+	
+}